@@ -0,0 +1,110 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.vaadin.server.Constants;
+import com.vaadin.server.DefaultDeploymentConfiguration;
+import com.vaadin.server.LegacyCommunicationManager;
+import com.vaadin.server.ServiceException;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinServlet;
+import com.vaadin.server.VaadinServletService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+/**
+ * Session used by the benchmarks. The session has its own lock and is attached
+ * to a real {@link VaadinServletService} that is never initialized, so that
+ * the code paths being measured see the same objects as in a deployment
+ * without requiring a servlet container.
+ * 
+ * @since 7.2
+ * @author Vaadin Ltd
+ */
+public class BenchmarkSession extends VaadinSession {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public BenchmarkSession() throws ServiceException {
+        super(new VaadinServletService(new VaadinServlet(),
+                new DefaultDeploymentConfiguration(BenchmarkSession.class,
+                        createInitParameters())));
+        setCommunicationManager(new LegacyCommunicationManager(this));
+    }
+
+    @Override
+    public Lock getLockInstance() {
+        return lock;
+    }
+
+    /**
+     * Creates an empty UI and adds it to this session. The session should be
+     * locked by the caller.
+     * 
+     * @return the new UI
+     */
+    public UI createUI() {
+        UI ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        ui.doInit(createRequest(), getNextUIid(), "");
+        ui.setSession(this);
+        addUI(ui);
+        return ui;
+    }
+
+    private static Properties createInitParameters() {
+        Properties initParameters = new Properties();
+        // Skip the debug mode warning and debug features
+        initParameters.setProperty(Constants.SERVLET_PARAMETER_PRODUCTION_MODE,
+                "true");
+        return initParameters;
+    }
+
+    /**
+     * Creates a request that returns <code>null</code>, zero or
+     * <code>false</code> for everything.
+     */
+    private static VaadinRequest createRequest() {
+        return (VaadinRequest) Proxy.newProxyInstance(
+                VaadinRequest.class.getClassLoader(),
+                new Class<?>[] { VaadinRequest.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        Class<?> type = method.getReturnType();
+                        if (type == boolean.class) {
+                            return Boolean.FALSE;
+                        } else if (type == int.class) {
+                            return Integer.valueOf(0);
+                        } else if (type == long.class) {
+                            return Long.valueOf(0);
+                        }
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.vaadin.server.ServiceException;
+import com.vaadin.ui.ConnectorTracker;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.VerticalLayout;
+
+/**
+ * Measures dirty tracking in {@link ConnectorTracker} for a UI consisting of
+ * nested layouts, some of which are hidden.
+ * 
+ * @since 7.2
+ * @author Vaadin Ltd
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConnectorTrackerBenchmark {
+
+    private static final int COMPONENTS_PER_LAYOUT = 10;
+
+    @Param({ "100", "1000", "10000" })
+    public int componentCount;
+
+    private BenchmarkSession session;
+    private ConnectorTracker tracker;
+    private final List<Label> labels = new ArrayList<Label>();
+    private int index;
+
+    @Setup
+    public void setUp() throws ServiceException {
+        session = new BenchmarkSession();
+        session.lock();
+        UI ui = session.createUI();
+        tracker = ui.getConnectorTracker();
+
+        VerticalLayout root = new VerticalLayout();
+        CssLayout layout = null;
+        for (int i = 0; i < componentCount; i++) {
+            if (i % COMPONENTS_PER_LAYOUT == 0) {
+                layout = new CssLayout();
+                // Every tenth layout is hidden
+                layout.setVisible(i % (COMPONENTS_PER_LAYOUT * 10) != 0);
+                root.addComponent(layout);
+            }
+            Label label = new Label("Label " + i);
+            labels.add(label);
+            layout.addComponent(label);
+        }
+        ui.setContent(root);
+        tracker.markAllConnectorsDirty();
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.unlock();
+    }
+
+    @Benchmark
+    public boolean markDirty() {
+        Label label = labels.get(index++ % labels.size());
+        tracker.markClean(label);
+        tracker.markDirty(label);
+        return tracker.isDirty(label);
+    }
+
+    @Benchmark
+    public int getDirtyVisibleConnectors() {
+        return tracker.getDirtyVisibleConnectors().size();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.vaadin.server.ServiceException;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+import com.vaadin.util.CurrentInstance;
+
+/**
+ * Measures setting and restoring the current instances, as done for every
+ * access task and connector resource request, using the map based methods and
+ * the reusable snapshots. Run with <code>-prof gc</code> to compare the
+ * allocation rates.
+ * 
+ * @since 7.2
+ * @author Vaadin Ltd
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CurrentInstanceBenchmark {
+
+    private BenchmarkSession session;
+    private UI ui;
+    private CurrentInstance.Snapshot taskInstances;
+    private Map<Class<?>, CurrentInstance> taskInstanceMap;
+
+    @Setup
+    public void setUp() throws ServiceException {
+        session = new BenchmarkSession();
+        session.lock();
+        ui = session.createUI();
+        CurrentInstance.clearAll();
+        UI.setCurrent(ui);
+        taskInstances = CurrentInstance.takeSnapshot(true);
+        taskInstanceMap = CurrentInstance.getInstances(true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.unlock();
+        CurrentInstance.clearAll();
+    }
+
+    @Benchmark
+    public Object setCurrentWithMap() {
+        Map<Class<?>, CurrentInstance> old = CurrentInstance.setCurrent(ui);
+        try {
+            return UI.getCurrent();
+        } finally {
+            CurrentInstance.restoreInstances(old);
+        }
+    }
+
+    @Benchmark
+    public Object setCurrentWithSnapshot() {
+        CurrentInstance.Snapshot old = CurrentInstance.saveAndSetCurrent(ui);
+        try {
+            return UI.getCurrent();
+        } finally {
+            CurrentInstance.restore(old);
+        }
+    }
+
+    @Benchmark
+    public Object restoreTaskInstancesWithMap() {
+        // What running a pending access task used to do
+        CurrentInstance.clearAll();
+        CurrentInstance.restoreInstances(taskInstanceMap);
+        CurrentInstance.setCurrent(session);
+        return UI.getCurrent();
+    }
+
+    @Benchmark
+    public Object restoreTaskInstancesWithSnapshot() {
+        CurrentInstance.restore(taskInstances);
+        VaadinSession.setCurrent(session);
+        VaadinService.setCurrent(session.getService());
+        return UI.getCurrent();
+    }
+
+    @Benchmark
+    public Object getCurrentUI() {
+        return UI.getCurrent();
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.vaadin.server.DownloadStream;
+import com.vaadin.server.FileResource;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinServletRequest;
+import com.vaadin.server.VaadinServletResponse;
+
+/**
+ * Measures concurrent downloads of a {@link FileResource}, copying the file
+ * through a heap buffer to the response stream compared to handing it to a
+ * container that supports sendfile. In the latter case the benchmark plays
+ * the container and sends the file with {@link FileChannel#transferTo} once
+ * {@link DownloadStream#writeResponse} returns, like Tomcat does. Each
+ * benchmark thread downloads to its own loopback socket, which is drained by
+ * a separate thread. Run with <code>-prof gc</code> to compare the allocation
+ * rates.
+ * 
+ * @since 7.2
+ * @author Vaadin Ltd
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class FileDownloadBenchmark {
+
+    /**
+     * Response stream writing to a socket.
+     */
+    private static class SocketOutputStream extends OutputStream {
+        private final SocketChannel channel;
+
+        public SocketOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() {
+            // The connection is reused for the next download
+        }
+    }
+
+    /**
+     * A loopback connection used by one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        private SocketChannel channel;
+        private SocketOutputStream out;
+        private Thread drain;
+
+        @Setup
+        public void setUp() throws IOException {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.socket().bind(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            channel = SocketChannel.open(server.socket()
+                    .getLocalSocketAddress());
+            final SocketChannel accepted = server.accept();
+            server.close();
+
+            drain = new Thread() {
+                @Override
+                public void run() {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                    try {
+                        while (accepted.read(buffer) >= 0) {
+                            buffer.clear();
+                        }
+                        accepted.close();
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            };
+            drain.setDaemon(true);
+            drain.start();
+            out = new SocketOutputStream(channel);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException, InterruptedException {
+            channel.close();
+            drain.join();
+        }
+    }
+
+    @Param({ "1048576", "16777216" })
+    public int fileSize;
+
+    private File file;
+    private FileResource resource;
+    private VaadinRequest request;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] content = new byte[fileSize];
+        new Random(1).nextBytes(content);
+        file = File.createTempFile("download", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        resource = new FileResource(file);
+        request = (VaadinRequest) Proxy.newProxyInstance(
+                VaadinRequest.class.getClassLoader(),
+                new Class<?>[] { VaadinRequest.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getMethod")) {
+                            return "GET";
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public void heapCopy(Connection connection) throws IOException {
+        DownloadStream stream = resource.getStream();
+        stream.writeResponse(request, createResponse(connection.out));
+    }
+
+    @Benchmark
+    public void sendFile(Connection connection) throws IOException {
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        DownloadStream stream = resource.getStream();
+        stream.writeResponse(
+                new VaadinServletRequest(createServletRequest(attributes),
+                        null),
+                new VaadinServletResponse(createServletResponse(), null));
+
+        String fileName = (String) attributes
+                .get("org.apache.tomcat.sendfile.filename");
+        long start = (Long) attributes.get("org.apache.tomcat.sendfile.start");
+        long end = (Long) attributes.get("org.apache.tomcat.sendfile.end");
+        FileInputStream in = new FileInputStream(fileName);
+        try {
+            FileChannel fileChannel = in.getChannel();
+            while (start < end) {
+                start += fileChannel.transferTo(start, end - start,
+                        connection.channel);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static VaadinResponse createResponse(final OutputStream out) {
+        return (VaadinResponse) Proxy.newProxyInstance(
+                VaadinResponse.class.getClassLoader(),
+                new Class<?>[] { VaadinResponse.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getOutputStream")) {
+                            return out;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static HttpServletRequest createServletRequest(
+            final Map<String, Object> attributes) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getMethod")) {
+                            return "GET";
+                        } else if (name.equals("getAttribute")) {
+                            return attributes.get(args[0]);
+                        } else if (name.equals("setAttribute")) {
+                            attributes.put((String) args[0], args[1]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static HttpServletResponse createServletResponse() {
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        // Only headers are set when the file is sent
+                        return null;
+                    }
+                });
+    }
+}
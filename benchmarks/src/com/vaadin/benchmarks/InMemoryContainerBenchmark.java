@@ -0,0 +1,160 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.benchmarks;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.util.BeanItemContainer;
+import com.vaadin.data.util.IndexedContainer;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+
+/**
+ * Measures filtering and sorting of the in-memory containers
+ * {@link IndexedContainer} and {@link BeanItemContainer}.
+ * 
+ * @since 7.2
+ * @author Vaadin Ltd
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InMemoryContainerBenchmark {
+
+    public static class Person implements Serializable {
+        private String name;
+        private int age;
+        private String city;
+
+        public Person(String name, int age, String city) {
+            this.name = name;
+            this.age = age;
+            this.city = city;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public int getAge() {
+            return age;
+        }
+
+        public void setAge(int age) {
+            this.age = age;
+        }
+
+        public String getCity() {
+            return city;
+        }
+
+        public void setCity(String city) {
+            this.city = city;
+        }
+    }
+
+    private static final String[] CITIES = { "Turku", "Helsinki", "Tampere",
+            "Oulu", "San Jose", "Berlin" };
+
+    @Param({ "IndexedContainer", "BeanItemContainer" })
+    public String containerType;
+
+    @Param({ "1000", "100000" })
+    public int size;
+
+    private Container.Filterable filterable;
+    private Container.Sortable sortable;
+    private boolean ascending;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(size);
+        List<Person> persons = new ArrayList<Person>(size);
+        for (int i = 0; i < size; i++) {
+            persons.add(new Person("Person " + random.nextInt(size),
+                    random.nextInt(100), CITIES[random.nextInt(CITIES.length)]));
+        }
+
+        if ("IndexedContainer".equals(containerType)) {
+            IndexedContainer container = new IndexedContainer();
+            container.addContainerProperty("name", String.class, null);
+            container.addContainerProperty("age", Integer.class, null);
+            container.addContainerProperty("city", String.class, null);
+            for (Person person : persons) {
+                Item item = container.getItem(container.addItem());
+                item.getItemProperty("name").setValue(person.getName());
+                item.getItemProperty("age").setValue(
+                        Integer.valueOf(person.getAge()));
+                item.getItemProperty("city").setValue(person.getCity());
+            }
+            filterable = container;
+            sortable = container;
+        } else {
+            BeanItemContainer<Person> container = new BeanItemContainer<Person>(
+                    Person.class, persons);
+            filterable = container;
+            sortable = container;
+        }
+    }
+
+    @Benchmark
+    public int filterByString() {
+        filterable.addContainerFilter(new SimpleStringFilter("name",
+                "person 1", true, true));
+        int filteredSize = filterable.size();
+        filterable.removeAllContainerFilters();
+        return filteredSize;
+    }
+
+    @Benchmark
+    public int filterByCompare() {
+        filterable.addContainerFilter(new And(new Compare.GreaterOrEqual(
+                "age", Integer.valueOf(30)), new Compare.Equal("city",
+                "Turku")));
+        int filteredSize = filterable.size();
+        filterable.removeAllContainerFilters();
+        return filteredSize;
+    }
+
+    @Benchmark
+    public Object sort() {
+        // Alternate the direction so that every round actually reorders
+        ascending = !ascending;
+        sortable.sort(new Object[] { "age", "name" }, new boolean[] {
+                ascending, true });
+        return sortable.firstItemId();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.benchmarks;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.vaadin.server.EncodeResult;
+import com.vaadin.server.JsonCodec;
+import com.vaadin.server.JsonCodec.BeanProperty;
+import com.vaadin.shared.ui.table.TableState;
+
+/**
+ * Measures {@link JsonCodec} encoding and decoding of shared state beans and
+ * of the collection types commonly used in state and RPC. Encoding a state
+ * diff is also compared with looking up and encoding every property through
+ * {@link JsonCodec#getProperties(Class)}, which is how beans were encoded
+ * before the encoding plan was cached per type.
+ * 
+ * @since 7.2
+ * @author Vaadin Ltd
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JsonCodecBenchmark {
+
+    // Declared only for their generic types
+    public List<String> stringList;
+    public Map<String, Integer> stringIntegerMap;
+
+    private Type stringListType;
+    private Type stringIntegerMapType;
+
+    private TableState state;
+    private JSONObject defaultState;
+    private JSONObject encodedState;
+
+    private List<String> list;
+    private Object encodedList;
+
+    private Map<String, Integer> map;
+    private Object encodedMap;
+
+    @Setup
+    public void setUp() throws JSONException, NoSuchFieldException {
+        stringListType = getClass().getField("stringList").getGenericType();
+        stringIntegerMapType = getClass().getField("stringIntegerMap")
+                .getGenericType();
+
+        state = new TableState();
+        state.caption = "Caption";
+        state.width = "100%";
+        state.styles = Arrays.asList("foo", "bar");
+        defaultState = (JSONObject) JsonCodec.encode(new TableState(), null,
+                TableState.class, null).getEncodedValue();
+        encodedState = (JSONObject) JsonCodec.encode(state, null,
+                TableState.class, null).getEncodedValue();
+
+        list = new ArrayList<String>();
+        map = new HashMap<String, Integer>();
+        for (int i = 0; i < 100; i++) {
+            list.add("Item " + i);
+            map.put("Key " + i, Integer.valueOf(i));
+        }
+        encodedList = JsonCodec.encode(list, null, stringListType, null)
+                .getEncodedValue();
+        encodedMap = JsonCodec.encode(map, null, stringIntegerMapType, null)
+                .getEncodedValue();
+    }
+
+    @Benchmark
+    public EncodeResult encodeState() throws JSONException {
+        return JsonCodec.encode(state, null, TableState.class, null);
+    }
+
+    @Benchmark
+    public EncodeResult encodeStateDiff() throws JSONException {
+        return JsonCodec.encode(state, defaultState, TableState.class, null);
+    }
+
+    @Benchmark
+    public JSONObject encodeStateDiffPerProperty() throws Exception {
+        JSONObject diff = new JSONObject();
+        for (BeanProperty property : JsonCodec
+                .getProperties(TableState.class)) {
+            String name = property.getName();
+            Object fieldReference = defaultState.opt(name);
+            if (JSONObject.NULL.equals(fieldReference)) {
+                fieldReference = null;
+            }
+            EncodeResult result = JsonCodec.encode(property.getValue(state),
+                    fieldReference, property.getType(), null);
+            Object value = result.getEncodedValue();
+            if (value == JSONObject.NULL) {
+                value = null;
+            }
+            if (value == null ? fieldReference != null
+                    : fieldReference == null
+                            || !value.toString().equals(
+                                    fieldReference.toString())) {
+                diff.put(name, result.getDiffOrValue());
+            }
+        }
+        return diff;
+    }
+
+    @Benchmark
+    public EncodeResult encodeList() throws JSONException {
+        return JsonCodec.encode(list, null, stringListType, null);
+    }
+
+    @Benchmark
+    public EncodeResult encodeMap() throws JSONException {
+        return JsonCodec.encode(map, null, stringIntegerMapType, null);
+    }
+
+    @Benchmark
+    public Object decodeState() throws JSONException {
+        return JsonCodec.decodeInternalOrCustomType(TableState.class,
+                encodedState, null);
+    }
+
+    @Benchmark
+    public Object decodeList() throws JSONException {
+        return JsonCodec.decodeInternalOrCustomType(stringListType,
+                encodedList, null);
+    }
+
+    @Benchmark
+    public Object decodeMap() throws JSONException {
+        return JsonCodec.decodeInternalOrCustomType(stringIntegerMapType,
+                encodedMap, null);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.benchmarks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.sqlcontainer.SQLContainer;
+import com.vaadin.data.util.sqlcontainer.connection.JDBCConnectionPool;
+import com.vaadin.data.util.sqlcontainer.connection.SimpleJDBCConnectionPool;
+import com.vaadin.data.util.sqlcontainer.query.TableQuery;
+
+/**
+ * Measures paging through a {@link SQLContainer} backed by a
+ * {@link TableQuery} against an in-memory HSQLDB database.
+ * 
+ * @since 7.2
+ * @author Vaadin Ltd
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SQLContainerBenchmark {
+
+    private static final int ROWS = 50000;
+
+    @Param({ "15", "100" })
+    public int pageLength;
+
+    @Param({ "false", "true" })
+    public boolean filtered;
+
+    private JDBCConnectionPool connectionPool;
+    private SQLContainer container;
+    private int index;
+
+    @Setup
+    public void setUp() throws SQLException {
+        connectionPool = new SimpleJDBCConnectionPool(
+                "org.hsqldb.jdbc.JDBCDriver",
+                "jdbc:hsqldb:mem:benchmark", "SA", "", 2, 2);
+        createPeople();
+
+        container = new SQLContainer(new TableQuery("people", connectionPool));
+        container.setPageLength(pageLength);
+        if (filtered) {
+            container.addContainerFilter(new Compare.Greater("AGE",
+                    Integer.valueOf(50)));
+            container.sort(new Object[] { "NAME" }, new boolean[] { true });
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        Connection connection = connectionPool.reserveConnection();
+        Statement statement = connection.createStatement();
+        statement.execute("drop table people");
+        statement.close();
+        connection.commit();
+        connectionPool.releaseConnection(connection);
+        connectionPool.destroy();
+    }
+
+    /**
+     * Reads a full page of rows starting at an index outside of the cached
+     * rows, forcing the container to fetch the page from the database.
+     */
+    @Benchmark
+    public int readPage() {
+        int size = container.size();
+        index = (index + pageLength * SQLContainer.CACHE_RATIO * 2)
+                % (size - pageLength);
+        int length = 0;
+        for (int i = index; i < index + pageLength; i++) {
+            Item item = container.getItem(container.getIdByIndex(i));
+            length += ((String) item.getItemProperty("NAME").getValue())
+                    .length();
+        }
+        return length;
+    }
+
+    /**
+     * Discards the cached rows and row count and reads the first page again,
+     * as happens when a Table is refreshed.
+     */
+    @Benchmark
+    public Object refresh() {
+        container.refresh();
+        return container.getIdByIndex(container.size() / 2);
+    }
+
+    private void createPeople() throws SQLException {
+        Connection connection = connectionPool.reserveConnection();
+        Statement statement = connection.createStatement();
+        statement.execute("create table people (ID integer generated"
+                + " always as identity, NAME varchar(32), AGE integer,"
+                + " primary key(ID))");
+        statement.close();
+
+        PreparedStatement insert = connection
+                .prepareStatement("insert into people values(default, ?, ?)");
+        for (int i = 0; i < ROWS; i++) {
+            insert.setString(1, "Person " + i);
+            insert.setInt(2, i % 99);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        insert.close();
+        connection.commit();
+        connectionPool.releaseConnection(connection);
+    }
+}
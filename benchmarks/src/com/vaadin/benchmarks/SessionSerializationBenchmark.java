@@ -0,0 +1,150 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.util.IndexedContainer;
+import com.vaadin.server.ClientConnector;
+import com.vaadin.server.CompactObjectInputStream;
+import com.vaadin.server.CompactObjectOutputStream;
+import com.vaadin.server.ServiceException;
+import com.vaadin.ui.ConnectorTracker;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Table;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.VerticalLayout;
+
+/**
+ * Compares the time and size of serializing a session with standard
+ * serialization and with {@link CompactObjectOutputStream}, with and without
+ * skipping rebuildable caches. The serialized sizes are printed when each
+ * trial ends.
+ * 
+ * @since 7.2
+ * @author Vaadin Ltd
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionSerializationBenchmark {
+
+    private static final int COLUMNS = 5;
+
+    @Param({ "default", "compact", "skipCaches" })
+    public String format;
+
+    @Param({ "100", "1000" })
+    public int rows;
+
+    @Param({ "10", "200" })
+    public int labels;
+
+    private BenchmarkSession session;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws ServiceException, IOException, JSONException {
+        session = new BenchmarkSession();
+        session.lock();
+        UI ui = session.createUI();
+
+        VerticalLayout root = new VerticalLayout();
+        for (int i = 0; i < labels; i++) {
+            root.addComponent(new Label("Label " + i));
+        }
+
+        IndexedContainer container = new IndexedContainer();
+        for (int column = 0; column < COLUMNS; column++) {
+            container.addContainerProperty("p" + column, String.class, null);
+        }
+        for (int row = 0; row < rows; row++) {
+            Item item = container.getItem(container.addItem());
+            for (int column = 0; column < COLUMNS; column++) {
+                item.getItemProperty("p" + column).setValue(
+                        "Cell " + row % 50 + "," + column);
+            }
+        }
+        root.addComponent(new Table(null, container));
+        ui.setContent(root);
+
+        // Store diff states as if a response had been written
+        ConnectorTracker tracker = ui.getConnectorTracker();
+        for (ClientConnector connector : new ArrayList<ClientConnector>(
+                tracker.getDirtyConnectors())) {
+            connector.encodeState();
+            tracker.markClean(connector);
+        }
+
+        serialized = serialize();
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.unlock();
+        System.out.println("Serialized size (" + format + "): "
+                + serialized.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out;
+        if ("default".equals(format)) {
+            out = new ObjectOutputStream(bytes);
+        } else {
+            out = new CompactObjectOutputStream(bytes,
+                    "skipCaches".equals(format));
+        }
+        out.writeObject(session);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        ObjectInputStream in;
+        if ("default".equals(format)) {
+            in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        } else {
+            in = new CompactObjectInputStream(new ByteArrayInputStream(
+                    serialized));
+        }
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.util.IndexedContainer;
+import com.vaadin.server.ServiceException;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Table;
+import com.vaadin.ui.UI;
+
+/**
+ * Measures building the row cache of an attached {@link Table}, both for plain
+ * property columns and for generated component columns.
+ * 
+ * @since 7.2
+ * @author Vaadin Ltd
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TableBenchmark {
+
+    private static final int ROWS = 10000;
+
+    /**
+     * Table exposing the row cache refresh.
+     */
+    public static class BenchmarkTable extends Table {
+        public BenchmarkTable(IndexedContainer container) {
+            super(null, container);
+        }
+
+        public void refreshAllRenderedCells() {
+            resetPageBuffer();
+            refreshRenderedCells();
+        }
+    }
+
+    @Param({ "15", "100" })
+    public int pageLength;
+
+    @Param({ "5", "20" })
+    public int columns;
+
+    @Param({ "false", "true" })
+    public boolean generatedColumns;
+
+    private BenchmarkSession session;
+    private BenchmarkTable table;
+    private int firstIndex;
+
+    @Setup
+    public void setUp() throws ServiceException {
+        session = new BenchmarkSession();
+        session.lock();
+        UI ui = session.createUI();
+
+        IndexedContainer container = new IndexedContainer();
+        for (int column = 0; column < columns; column++) {
+            container.addContainerProperty("p" + column, String.class, null);
+        }
+        for (int row = 0; row < ROWS; row++) {
+            Item item = container.getItem(container.addItem());
+            for (int column = 0; column < columns; column++) {
+                item.getItemProperty("p" + column).setValue(
+                        "Cell " + row + "," + column);
+            }
+        }
+
+        table = new BenchmarkTable(container);
+        table.setPageLength(pageLength);
+        if (generatedColumns) {
+            for (int column = 0; column < columns; column++) {
+                final String propertyId = "p" + column;
+                table.addGeneratedColumn(propertyId,
+                        new Table.ColumnGenerator() {
+                            @Override
+                            public Object generateCell(Table source,
+                                    Object itemId, Object columnId) {
+                                return new Label(String.valueOf(source
+                                        .getContainerProperty(itemId,
+                                                propertyId).getValue()));
+                            }
+                        });
+            }
+        }
+        ui.setContent(table);
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.unlock();
+    }
+
+    @Benchmark
+    public void refreshRenderedCells() {
+        table.refreshAllRenderedCells();
+    }
+
+    @Benchmark
+    public void scroll() {
+        firstIndex = (firstIndex + pageLength) % (ROWS - pageLength);
+        table.setCurrentPageFirstItemIndex(firstIndex);
+    }
+}
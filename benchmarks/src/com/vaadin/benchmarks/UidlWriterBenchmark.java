@@ -0,0 +1,121 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.benchmarks;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.vaadin.server.ServiceException;
+import com.vaadin.server.communication.UidlWriter;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.VerticalLayout;
+
+/**
+ * Measures {@link UidlWriter#write(UI, java.io.Writer, boolean, boolean)} for
+ * a full repaint of a UI and for a typical response where only a few
+ * components have changed.
+ * 
+ * @since 7.2
+ * @author Vaadin Ltd
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UidlWriterBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int componentCount;
+
+    private BenchmarkSession session;
+    private UI ui;
+    private final List<Label> labels = new ArrayList<Label>();
+    private int round;
+
+    @Setup
+    public void setUp() throws IOException, JSONException,
+            ServiceException {
+        session = new BenchmarkSession();
+        session.lock();
+        ui = session.createUI();
+
+        VerticalLayout layout = new VerticalLayout();
+        for (int i = 0; i < componentCount; i++) {
+            switch (i % 3) {
+            case 0:
+                Label label = new Label("Label " + i);
+                labels.add(label);
+                layout.addComponent(label);
+                break;
+            case 1:
+                layout.addComponent(new Button("Button " + i));
+                break;
+            default:
+                layout.addComponent(new TextField("Field " + i, "Value " + i));
+            }
+        }
+        ui.setContent(layout);
+
+        // The first response initializes the client side state
+        write(true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.unlock();
+    }
+
+    @Benchmark
+    public String repaintAll() throws Exception {
+        ui.getConnectorTracker().markAllConnectorsDirty();
+        return write(true);
+    }
+
+    @Benchmark
+    public String writeChanges() throws Exception {
+        // Change roughly every tenth label
+        round++;
+        for (int i = round % 10; i < labels.size(); i += 10) {
+            labels.get(i).setValue("Round " + round);
+        }
+        return write(false);
+    }
+
+    private String write(boolean repaintAll) throws IOException,
+            JSONException {
+        StringWriter writer = new StringWriter();
+        writer.write("{");
+        new UidlWriter().write(ui, writer, repaintAll, false);
+        writer.write("}");
+        return writer.toString();
+    }
+}
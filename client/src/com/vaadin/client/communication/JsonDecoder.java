@@ -37,6 +37,7 @@ import com.vaadin.client.metadata.NoDataException;
 import com.vaadin.client.metadata.Property;
 import com.vaadin.client.metadata.Type;
 import com.vaadin.shared.Connector;
+import com.vaadin.shared.JsonConstants;
 
 /**
  * Client side decoder for decodeing shared state and other values from JSON
@@ -44,6 +45,8 @@ import com.vaadin.shared.Connector;
  * 
  * Currently, basic data types as well as Map, String[] and Object[] are
  * supported, where maps and Object[] can contain other supported data types.
+ * Changes to lists, sets and maps in shared state can also be sent as element
+ * level changes, which are applied to the current value of the property.
  * 
  * TODO extensible type support
  * 
@@ -90,11 +93,23 @@ public class JsonDecoder {
         String baseTypeName = type.getBaseTypeName();
         if (Map.class.getName().equals(baseTypeName)
                 || HashMap.class.getName().equals(baseTypeName)) {
+            if (isMapDiff(jsonValue)) {
+                return applyMapDiff(type, (JSONArray) jsonValue,
+                        (Map<Object, Object>) target, connection);
+            }
             return decodeMap(type, jsonValue, connection);
         } else if (List.class.getName().equals(baseTypeName)
                 || ArrayList.class.getName().equals(baseTypeName)) {
+            if (jsonValue.isObject() != null) {
+                return applyListDiff(type, jsonValue.isObject(),
+                        (List<Object>) target, connection);
+            }
             return decodeList(type, (JSONArray) jsonValue, connection);
         } else if (Set.class.getName().equals(baseTypeName)) {
+            if (jsonValue.isObject() != null) {
+                return applySetDiff(type, jsonValue.isObject(),
+                        (Set<Object>) target, connection);
+            }
             return decodeSet(type, (JSONArray) jsonValue, connection);
         } else if (String.class.getName().equals(baseTypeName)) {
             return ((JSONString) jsonValue).stringValue();
@@ -166,7 +181,9 @@ public class JsonDecoder {
                     Type propertyType = property.getType();
 
                     Object propertyReference;
-                    if (needsReferenceValue(propertyType)) {
+                    if (needsReferenceValue(propertyType)
+                            || isCollectionDiff(propertyType,
+                                    encodedPropertyValue)) {
                         propertyReference = property.getValue(target);
                     } else {
                         propertyReference = null;
@@ -194,6 +211,102 @@ public class JsonDecoder {
         return !decodedWithoutReference.contains(type.getBaseTypeName());
     }
 
+    /**
+     * Checks whether the value is a change to a collection, which should be
+     * applied to the current value instead of replacing it.
+     */
+    private static boolean isCollectionDiff(Type type, JSONValue jsonValue) {
+        String baseTypeName = type.getBaseTypeName();
+        if (List.class.getName().equals(baseTypeName)
+                || ArrayList.class.getName().equals(baseTypeName)
+                || Set.class.getName().equals(baseTypeName)) {
+            // Full lists and sets are sent as arrays
+            return jsonValue.isObject() != null;
+        } else if (Map.class.getName().equals(baseTypeName)
+                || HashMap.class.getName().equals(baseTypeName)) {
+            return isMapDiff(jsonValue);
+        } else {
+            return false;
+        }
+    }
+
+    private static boolean isMapDiff(JSONValue jsonValue) {
+        // Full maps are sent as objects or as [keys, values] arrays
+        JSONArray array = jsonValue.isArray();
+        if (array == null || array.size() != 3) {
+            return false;
+        }
+        JSONString marker = array.get(0).isString();
+        return marker != null
+                && JsonConstants.MAP_DIFF.equals(marker.stringValue());
+    }
+
+    private static List<Object> applyListDiff(Type type, JSONObject diff,
+            List<Object> target, ApplicationConnection connection) {
+        JSONArray splice = (JSONArray) diff
+                .get(JsonConstants.COLLECTION_DIFF_SPLICE);
+        int index = (int) splice.get(0).isNumber().doubleValue();
+        int removeCount = (int) splice.get(1).isNumber().doubleValue();
+
+        // Create a new list so that the previous value is left intact
+        List<Object> list = new ArrayList<Object>();
+        if (target != null) {
+            list.addAll(target);
+        }
+        for (int i = 0; i < removeCount; i++) {
+            list.remove(index);
+        }
+
+        List<Object> inserted = new ArrayList<Object>();
+        decodeIntoCollection(type.getParameterTypes()[0],
+                (JSONArray) splice.get(2), connection, inserted);
+        list.addAll(index, inserted);
+
+        return list;
+    }
+
+    private static Set<Object> applySetDiff(Type type, JSONObject diff,
+            Set<Object> target, ApplicationConnection connection) {
+        Type childType = type.getParameterTypes()[0];
+
+        Set<Object> set = new HashSet<Object>();
+        if (target != null) {
+            set.addAll(target);
+        }
+        List<Object> removed = new ArrayList<Object>();
+        decodeIntoCollection(childType,
+                (JSONArray) diff.get(JsonConstants.COLLECTION_DIFF_REMOVE),
+                connection, removed);
+        set.removeAll(removed);
+        decodeIntoCollection(childType,
+                (JSONArray) diff.get(JsonConstants.COLLECTION_DIFF_ADD),
+                connection, set);
+
+        return set;
+    }
+
+    private static Map<Object, Object> applyMapDiff(Type type,
+            JSONArray diff, Map<Object, Object> target,
+            ApplicationConnection connection) {
+        Type valueType = type.getParameterTypes()[1];
+
+        Map<Object, Object> map = new HashMap<Object, Object>();
+        if (target != null) {
+            map.putAll(target);
+        }
+        JSONObject put = (JSONObject) diff.get(1);
+        for (String key : put.keySet()) {
+            map.put(key, decodeValue(valueType, put.get(key), null,
+                    connection));
+        }
+        JSONArray remove = (JSONArray) diff.get(2);
+        for (int i = 0; i < remove.size(); i++) {
+            map.remove(((JSONString) remove.get(i)).stringValue());
+        }
+
+        return map;
+    }
+
     private static Map<Object, Object> decodeMap(Type type, JSONValue jsonMap,
             ApplicationConnection connection) {
         // Client -> server encodes empty map as an empty array because of
@@ -16,6 +16,8 @@
 
 package com.vaadin.client.ui;
 
+import java.util.Date;
+
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.core.client.Scheduler;
 import com.google.gwt.core.client.Scheduler.ScheduledCommand;
@@ -25,8 +27,10 @@ import com.google.gwt.dom.client.Element;
 import com.google.gwt.dom.client.FormElement;
 import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.http.client.URL;
 import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.Event;
+import com.google.gwt.user.client.Random;
 import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.ui.FileUpload;
 import com.google.gwt.user.client.ui.FlowPanel;
@@ -34,10 +38,14 @@ import com.google.gwt.user.client.ui.FormPanel;
 import com.google.gwt.user.client.ui.Hidden;
 import com.google.gwt.user.client.ui.Panel;
 import com.google.gwt.user.client.ui.SimplePanel;
+import com.google.gwt.xhr.client.ReadyStateChangeHandler;
+import com.google.gwt.xhr.client.XMLHttpRequest;
 import com.vaadin.client.ApplicationConnection;
 import com.vaadin.client.BrowserInfo;
 import com.vaadin.client.VConsole;
+import com.vaadin.client.ui.dd.VHtml5File;
 import com.vaadin.client.ui.upload.UploadIFrameOnloadStrategy;
+import com.vaadin.shared.ui.upload.UploadConstants;
 
 /**
  * 
@@ -69,8 +77,40 @@ public class VUpload extends SimplePanel {
         }
     }
 
+    /**
+     * XMLHttpRequest that sends a chunk of a file.
+     */
+    static class ChunkXHR extends XMLHttpRequest {
+
+        protected ChunkXHR() {
+        }
+
+        /*
+         * The offsets are passed as double as JSNI does not support long
+         */
+        public final native void sendChunk(VHtml5File file, double start,
+                double end)
+        /*-{
+            this.send(file.slice(start, end));
+        }-*/;
+
+    }
+
     public static final String CLASSNAME = "v-upload";
 
+    /**
+     * The size of the chunks a resumable upload is sent in.
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * How many times a chunk is sent again without progress before the upload
+     * is given up.
+     */
+    private static final int MAX_CHUNK_RETRIES = 5;
+
+    private static final int CHUNK_RETRY_DELAY = 1000;
+
     /**
      * FileUpload component that opens native OS dialog to select file.
      * <p>
@@ -116,6 +156,8 @@ public class VUpload extends SimplePanel {
 
     private boolean immediate;
 
+    private boolean resumable;
+
     private Hidden maxfilesize = new Hidden();
 
     /** For internal use only. May be removed or replaced in the future. */
@@ -172,6 +214,16 @@ public class VUpload extends SimplePanel {
         setStyleName(getElement(), CLASSNAME + "-immediate", immediate);
     }
 
+    /**
+     * Sets whether the file is sent in chunks that can be resumed if sending
+     * fails. Has no effect in browsers that cannot read the selected file.
+     * <p>
+     * For internal use only. May be removed or replaced in the future.
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
     private static native void fireNativeClick(Element element)
     /*-{
         element.click();
@@ -227,7 +279,8 @@ public class VUpload extends SimplePanel {
     }
 
     /**
-     * Called by JSNI (hooked via {@link #onloadstrategy})
+     * Called by JSNI (hooked via {@link #onloadstrategy}) and when a chunked
+     * upload ends
      */
     private void onSubmitComplete() {
         /* Needs to be run dereferred to avoid various browser issues. */
@@ -262,7 +315,16 @@ public class VUpload extends SimplePanel {
 
         @Override
         public void execute() {
-            element.submit();
+            VHtml5File file = resumable ? getSelectedFile(fu.getElement())
+                    : null;
+            if (file != null) {
+                String uploadId = Long.toString(new Date().getTime(), 36)
+                        + Integer.toString(Random.nextInt(Integer.MAX_VALUE),
+                                36);
+                sendChunk(file, uploadId, 0, 0);
+            } else {
+                element.submit();
+            }
             submitted = true;
 
             disableUpload();
@@ -293,6 +355,91 @@ public class VUpload extends SimplePanel {
 
     };
 
+    /**
+     * Gets the file selected in the given file input if the browser can send
+     * it in chunks.
+     */
+    private static native VHtml5File getSelectedFile(Element input)
+    /*-{
+        if (input.files && input.files.length > 0 && $wnd.Blob
+                && $wnd.Blob.prototype.slice) {
+            return input.files[0];
+        }
+        return null;
+    }-*/;
+
+    /**
+     * Sends the chunk of the file starting at the given offset. See
+     * {@link UploadConstants} for the protocol.
+     */
+    private void sendChunk(final VHtml5File file, final String uploadId,
+            final long offset, final int retries) {
+        long length = (long) file.getSize();
+        ChunkXHR xhr = (ChunkXHR) ChunkXHR.create();
+        xhr.setOnReadyStateChange(new ReadyStateChangeHandler() {
+            @Override
+            public void onReadyStateChange(XMLHttpRequest xhr) {
+                if (xhr.getReadyState() == XMLHttpRequest.DONE) {
+                    xhr.clearOnReadyStateChange();
+                    onChunkSent(xhr, file, uploadId, offset, retries);
+                }
+            }
+        });
+        xhr.open("POST", element.getAction());
+        xhr.setRequestHeader(UploadConstants.UPLOAD_ID_HEADER, uploadId);
+        xhr.setRequestHeader(UploadConstants.UPLOAD_OFFSET_HEADER,
+                Long.toString(offset));
+        xhr.setRequestHeader(UploadConstants.UPLOAD_LENGTH_HEADER,
+                Long.toString(length));
+        xhr.setRequestHeader(UploadConstants.UPLOAD_FILENAME_HEADER,
+                URL.encodeQueryString(file.getName()));
+        String type = file.getType();
+        if (type == null || type.isEmpty()) {
+            type = "application/octet-stream";
+        }
+        xhr.setRequestHeader("Content-Type", type);
+        xhr.sendChunk(file, offset, Math.min(offset + CHUNK_SIZE, length));
+    }
+
+    private void onChunkSent(XMLHttpRequest xhr, final VHtml5File file,
+            final String uploadId, final long offset, final int retries) {
+        if (!submitted) {
+            // The upload has been cancelled
+            return;
+        }
+        int status = xhr.getStatus();
+        String acknowledged = xhr
+                .getResponseHeader(UploadConstants.UPLOAD_OFFSET_HEADER);
+        if ((status == 200 || status == 409) && acknowledged != null) {
+            // 409 tells where to resume from after a failed chunk
+            long received = Long.parseLong(acknowledged);
+            if (received == (long) file.getSize()) {
+                onSubmitComplete();
+            } else if (received > offset) {
+                sendChunk(file, uploadId, received, 0);
+            } else if (retries < MAX_CHUNK_RETRIES) {
+                sendChunk(file, uploadId, received, retries + 1);
+            } else {
+                VConsole.error("Upload gave up at offset " + received);
+                onSubmitComplete();
+            }
+        } else if ((status == 0 || status == 503)
+                && retries < MAX_CHUNK_RETRIES) {
+            // Connection lost or server busy, try again after a while
+            new Timer() {
+                @Override
+                public void run() {
+                    if (submitted) {
+                        sendChunk(file, uploadId, offset, retries + 1);
+                    }
+                }
+            }.schedule(CHUNK_RETRY_DELAY);
+        } else {
+            VConsole.error("Upload failed with status " + status);
+            onSubmitComplete();
+        }
+    }
+
     /** For internal use only. May be removed or replaced in the future. */
     public void submit() {
         if (submitted || !enabled) {
@@ -67,6 +67,7 @@ public class UploadConnector extends AbstractComponentConnector implements
             return;
         }
         getWidget().setImmediate(getState().immediate);
+        getWidget().setResumable(uidl.getBooleanAttribute("resumable"));
         getWidget().client = client;
         getWidget().paintableId = uidl.getId();
         getWidget().nextUploadId = uidl.getIntAttribute("nextid");
@@ -15,6 +15,8 @@
  */
 package com.vaadin.data.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -33,7 +35,11 @@ import java.util.Iterator;
  * This class is subject to change and should not be used outside Vaadin core.
  */
 public class ListSet<E> extends ArrayList<E> {
-    private HashSet<E> itemSet = null;
+    /*
+     * Contains the same elements as the list, rebuilt when deserializing
+     * instead of being serialized
+     */
+    private transient HashSet<E> itemSet = null;
 
     /**
      * Contains a map from an element to the number of duplicates it has. Used
@@ -273,4 +279,10 @@ public class ListSet<E> extends ArrayList<E> {
         return v;
     }
 
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        itemSet = new HashSet<E>(this);
+    }
+
 }
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.server.Histogram.Snapshot;
+import com.vaadin.server.VaadinSession.FutureAccess;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+/**
+ * Decides how the tasks submitted using {@link VaadinSession#access(Runnable)}
+ * and {@link UI#access(Runnable)} are queued and when they are run.
+ * <p>
+ * By default, the queues are unbounded and purged by the thread that releases
+ * the lock, which is often a thread handling a request. The scheduler can be
+ * configured using init parameters:
+ * <ul>
+ * <li><code>accessQueueLimit</code> limits the number of pending tasks per
+ * session or UI. When a queue is full, the <code>accessQueueOverflow</code>
+ * parameter decides whether the submitting thread waits for room in the queue
+ * ({@link OverflowPolicy#BLOCK block}, the default) or whether the task is
+ * rejected with a {@link RejectedExecutionException} (
+ * {@link OverflowPolicy#REJECT reject}).</li>
+ * <li><code>accessDrainThreads</code> sets the number of dedicated threads that
+ * purge the queues. Request threads then never run queued tasks, which keeps
+ * request latency independent of how busy background producers are.</li>
+ * </ul>
+ * <p>
+ * A dedicated thread runs the tasks in batches: one batch consists of the
+ * tasks that are pending when the lock is acquired. Tasks added while a batch
+ * is running are run in the next batch. The lock is released between batches,
+ * which means that the changes of one batch are pushed at once for UIs using
+ * {@link com.vaadin.shared.communication.PushMode#AUTOMATIC automatic push}.
+ * <p>
+ * Metrics are registered as an MXBean together with the {@link RequestMetrics}
+ * of the service.
+ * 
+ * @see VaadinService#getAccessTaskScheduler()
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class AccessTaskScheduler implements AccessTaskSchedulerMXBean,
+        Serializable {
+
+    /**
+     * The policies for handling tasks submitted when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until there is room in the queue. Threads holding a lock that
+         * prevents purging the queue add the task right away since the queue
+         * can't be purged before they release the lock.
+         */
+        BLOCK,
+        /**
+         * Throw a {@link RejectedExecutionException}.
+         */
+        REJECT;
+    }
+
+    /**
+     * The scheduler that is draining a queue in the current thread, if any.
+     */
+    private static final ThreadLocal<AccessTaskScheduler> drainingScheduler = new ThreadLocal<AccessTaskScheduler>();
+
+    private final int queueLimit;
+    private final OverflowPolicy overflowPolicy;
+    private final transient ExecutorService drainExecutor;
+
+    /**
+     * The sessions and UIs for which a drain has been scheduled but not yet
+     * started.
+     */
+    private final transient Set<Object> scheduledDrains = Collections
+            .newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    private final Histogram queueDepth = new Histogram();
+    private final Histogram taskWait = new Histogram();
+    private final Histogram drainDuration = new Histogram();
+    private final Histogram batchSize = new Histogram();
+
+    /**
+     * Creates a scheduler with unbounded queues that are purged by the thread
+     * releasing the lock.
+     */
+    public AccessTaskScheduler() {
+        this(0, OverflowPolicy.BLOCK, null);
+    }
+
+    /**
+     * Creates a new scheduler.
+     * 
+     * @param queueLimit
+     *            the maximum number of pending tasks per session or UI, or 0
+     *            for unbounded queues
+     * @param overflowPolicy
+     *            the policy to apply when a queue is full, not
+     *            <code>null</code>
+     * @param drainExecutor
+     *            the executor used for purging the queues, or
+     *            <code>null</code> to purge them in the thread releasing the
+     *            lock
+     */
+    public AccessTaskScheduler(int queueLimit, OverflowPolicy overflowPolicy,
+            ExecutorService drainExecutor) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy can not be null");
+        }
+        this.queueLimit = Math.max(0, queueLimit);
+        this.overflowPolicy = overflowPolicy;
+        this.drainExecutor = drainExecutor;
+    }
+
+    /**
+     * Adds a task to the pending access queue of a session, applying the queue
+     * limit.
+     * 
+     * @param queue
+     *            the queue of the session
+     * @param task
+     *            the task to add
+     * @param session
+     *            the session that the queue belongs to
+     * @throws RejectedExecutionException
+     *             if the queue is full and the task is rejected, or if the
+     *             thread is interrupted while waiting for room in the queue
+     */
+    public void enqueue(Queue<FutureAccess> queue, FutureAccess task,
+            VaadinSession session) throws RejectedExecutionException {
+        // Purging the session queue needs the entire session, so holding the
+        // lock of any of its UIs prevents it
+        enqueue(queue, task, session.hasLock());
+    }
+
+    /**
+     * Adds a task to the pending access queue of a UI, applying the queue
+     * limit.
+     * 
+     * @param queue
+     *            the queue of the UI
+     * @param task
+     *            the task to add
+     * @param ui
+     *            the UI that the queue belongs to
+     * @throws RejectedExecutionException
+     *             if the queue is full and the task is rejected, or if the
+     *             thread is interrupted while waiting for room in the queue
+     */
+    public void enqueue(Queue<FutureAccess> queue, FutureAccess task, UI ui)
+            throws RejectedExecutionException {
+        /*
+         * The lock of another UI only prevents purging the queue if there are
+         * no dedicated threads, since this thread can't lock the UI then.
+         */
+        enqueue(queue, task, ui.hasLock()
+                || (drainExecutor == null && ui.getSession().hasLock()));
+    }
+
+    private void enqueue(Queue<FutureAccess> queue, FutureAccess task,
+            boolean lockHeld) throws RejectedExecutionException {
+        if (queueLimit > 0) {
+            synchronized (queue) {
+                while (queue.size() >= queueLimit) {
+                    if (overflowPolicy == OverflowPolicy.REJECT) {
+                        rejectedTasks.incrementAndGet();
+                        throw new RejectedExecutionException(
+                                "The access queue is full (" + queueLimit
+                                        + " pending tasks)");
+                    }
+                    if (lockHeld) {
+                        // Waiting would never end as the queue is purged only
+                        // after the lock has been released
+                        break;
+                    }
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        rejectedTasks.incrementAndGet();
+                        throw new RejectedExecutionException(
+                                "Interrupted while waiting for room in the access queue");
+                    }
+                }
+                queue.add(task);
+            }
+        } else {
+            queue.add(task);
+        }
+        queueDepth.record(queue.size());
+    }
+
+    /**
+     * Checks whether the pending tasks should be run by the current thread. If
+     * queues are drained by dedicated threads, only those threads run tasks.
+     * 
+     * @return <code>true</code> if the current thread should run pending
+     *         tasks, <code>false</code> if a drain should be scheduled instead
+     */
+    public boolean isDrainThread() {
+        return drainExecutor == null || drainingScheduler.get() == this;
+    }
+
+    /**
+     * Gets the maximum number of tasks to run from the given queue before the
+     * lock is released.
+     * 
+     * @param queue
+     *            the queue about to be purged
+     * @return the number of tasks to run
+     */
+    public int getBatchLimit(Queue<FutureAccess> queue) {
+        if (drainingScheduler.get() == this) {
+            // Tasks added during the batch are left for the next batch
+            return queue.size();
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Records that a task is about to be run.
+     * 
+     * @param task
+     *            the task taken from the queue
+     */
+    public void taskStarted(FutureAccess task) {
+        taskWait.record(toMicros(System.nanoTime() - task.getCreationTime()));
+    }
+
+    /**
+     * Records that a batch of tasks has been run from a queue and wakes up
+     * threads waiting for room in the queue.
+     * 
+     * @param queue
+     *            the purged queue
+     * @param taskCount
+     *            the number of tasks taken from the queue
+     * @param startTime
+     *            the {@link System#nanoTime()} when the batch was started
+     */
+    public void batchCompleted(Queue<FutureAccess> queue, int taskCount,
+            long startTime) {
+        drainDuration.record(toMicros(System.nanoTime() - startTime));
+        batchSize.record(taskCount);
+        if (queueLimit > 0 && overflowPolicy == OverflowPolicy.BLOCK) {
+            synchronized (queue) {
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Schedules the queue of the given session to be purged by a dedicated
+     * thread. Does nothing if a drain is already scheduled for the session.
+     * 
+     * @param session
+     *            the session to purge the queue for
+     */
+    public void scheduleDrain(final VaadinSession session) {
+        scheduleDrain(session, new Runnable() {
+            @Override
+            public void run() {
+                session.lock();
+                // unlock runs the pending tasks and pushes
+                session.unlock();
+            }
+        });
+    }
+
+    /**
+     * Schedules the queue of the given UI to be purged by a dedicated thread.
+     * Does nothing if a drain is already scheduled for the UI.
+     * 
+     * @param ui
+     *            the UI to purge the queue for
+     */
+    public void scheduleDrain(final UI ui) {
+        scheduleDrain(ui, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ui.lock();
+                } catch (UIDetachedException e) {
+                    // Tasks of a detached UI are never run
+                    return;
+                }
+                // unlock runs the pending tasks and pushes
+                ui.unlock();
+            }
+        });
+    }
+
+    private void scheduleDrain(final Object owner, final Runnable drain) {
+        if (drainExecutor == null || !scheduledDrains.add(owner)) {
+            return;
+        }
+        try {
+            drainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Tasks added from now on need a new drain
+                    scheduledDrains.remove(owner);
+                    drainingScheduler.set(AccessTaskScheduler.this);
+                    try {
+                        drain.run();
+                    } catch (RuntimeException e) {
+                        getLogger().log(Level.WARNING,
+                                "Could not purge the access queue", e);
+                    } finally {
+                        drainingScheduler.remove();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The service has been destroyed
+            scheduledDrains.remove(owner);
+        }
+    }
+
+    /**
+     * Stops the dedicated threads, if any. Called when the service is
+     * destroyed.
+     */
+    public void shutdown() {
+        if (drainExecutor != null) {
+            drainExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    /**
+     * Gets the policy applied when a queue is full.
+     * 
+     * @return the overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    @Override
+    public String getOverflowPolicyName() {
+        return overflowPolicy.name();
+    }
+
+    @Override
+    public boolean isBackgroundDraining() {
+        return drainExecutor != null;
+    }
+
+    @Override
+    public long getRejectedTaskCount() {
+        return rejectedTasks.get();
+    }
+
+    @Override
+    public Snapshot getQueueDepth() {
+        return queueDepth.getSnapshot();
+    }
+
+    @Override
+    public Snapshot getTaskWait() {
+        return taskWait.getSnapshot();
+    }
+
+    @Override
+    public Snapshot getDrainDuration() {
+        return drainDuration.getSnapshot();
+    }
+
+    @Override
+    public Snapshot getBatchSize() {
+        return batchSize.getSnapshot();
+    }
+
+    @Override
+    public void reset() {
+        rejectedTasks.set(0);
+        queueDepth.reset();
+        taskWait.reset();
+        drainDuration.reset();
+        batchSize.reset();
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static final Logger getLogger() {
+        return Logger.getLogger(AccessTaskScheduler.class.getName());
+    }
+}
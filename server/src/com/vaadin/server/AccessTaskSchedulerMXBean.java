@@ -0,0 +1,78 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import com.vaadin.server.Histogram.Snapshot;
+
+/**
+ * Management interface for the {@link AccessTaskScheduler} of a
+ * {@link VaadinService}. Durations are reported in microseconds.
+ * 
+ * @see AccessTaskScheduler
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public interface AccessTaskSchedulerMXBean {
+
+    /**
+     * @return the maximum number of pending tasks per session or UI, or 0 if
+     *         the queues are unbounded
+     */
+    public int getQueueLimit();
+
+    /**
+     * @return the name of the policy applied when a queue is full
+     */
+    public String getOverflowPolicyName();
+
+    /**
+     * @return true if queues are drained by dedicated threads, false if they
+     *         are drained by the thread releasing the lock
+     */
+    public boolean isBackgroundDraining();
+
+    /**
+     * @return the number of tasks rejected because the queue was full
+     */
+    public long getRejectedTaskCount();
+
+    /**
+     * @return the number of pending tasks in the queue, including the new
+     *         task, when a task is enqueued
+     */
+    public Snapshot getQueueDepth();
+
+    /**
+     * @return the time tasks spend in the queue before they are run
+     */
+    public Snapshot getTaskWait();
+
+    /**
+     * @return the time it takes to run one batch of tasks
+     */
+    public Snapshot getDrainDuration();
+
+    /**
+     * @return the number of tasks run in one batch
+     */
+    public Snapshot getBatchSize();
+
+    /**
+     * Clears all collected metrics.
+     */
+    public void reset();
+}
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
@@ -61,6 +62,19 @@ public abstract class BootstrapHandler extends SynchronizedRequestHandler {
      */
     public static final String IGNORE_RESTART_PARAM = "ignoreRestart";
 
+    /**
+     * The maximum number of bootstrap page templates to keep in memory.
+     */
+    private static final int MAX_TEMPLATES = 100;
+
+    /**
+     * Stands in for the main script tag contents in a cached bootstrap page
+     * template.
+     */
+    private static final String MAIN_SCRIPT_PLACEHOLDER = "__vaadinMainScript__";
+
+    private final TemplateCache templates = new TemplateCache();
+
     protected class BootstrapContext implements Serializable {
 
         private final VaadinResponse response;
@@ -186,13 +200,18 @@ public abstract class BootstrapHandler extends SynchronizedRequestHandler {
                     new BootstrapFragmentResponse(this, request, session,
                             uiClass, new ArrayList<Node>(), provider));
 
-            setupMainDiv(context);
+            String html;
+            if (session.hasBootstrapListeners()) {
+                setupMainDiv(context);
 
-            BootstrapFragmentResponse fragmentResponse = context
-                    .getBootstrapResponse();
-            session.modifyBootstrapResponse(fragmentResponse);
+                BootstrapFragmentResponse fragmentResponse = context
+                        .getBootstrapResponse();
+                session.modifyBootstrapResponse(fragmentResponse);
 
-            String html = getBootstrapHtml(context);
+                html = getBootstrapHtml(context);
+            } else {
+                html = getCachedBootstrapHtml(context);
+            }
 
             writeBootstrapPage(response, html);
         } catch (JSONException e) {
@@ -203,15 +222,92 @@ public abstract class BootstrapHandler extends SynchronizedRequestHandler {
     }
 
     private String getBootstrapHtml(BootstrapContext context) {
+        Map<String, Object> headers = new LinkedHashMap<String, Object>();
+        String html = renderBootstrapHtml(context, headers);
+        sendBootstrapHeaders(context.getResponse(), headers);
+        return html;
+    }
+
+    /**
+     * Gets the bootstrap HTML using a cached template when a page has already
+     * been generated with the same settings. Only the contents of the main
+     * script tag are generated for each request. Must not be used if there
+     * are bootstrap listeners that could modify the page.
+     */
+    private String getCachedBootstrapHtml(BootstrapContext context)
+            throws IOException, JSONException {
+        List<Object> key = getTemplateKey(context);
+        BootstrapTemplate template;
+        synchronized (templates) {
+            template = templates.get(key);
+        }
+
+        String mainScript;
+        if (template == null) {
+            setupMainDiv(context);
+
+            // The main script tag is the last fragment node
+            List<Node> fragmentNodes = context.getBootstrapResponse()
+                    .getFragmentNodes();
+            DataNode mainScriptData = (DataNode) fragmentNodes.get(
+                    fragmentNodes.size() - 1).childNode(0);
+            mainScript = mainScriptData.getWholeData();
+            mainScriptData.setWholeData(MAIN_SCRIPT_PLACEHOLDER);
+
+            Map<String, Object> headers = new LinkedHashMap<String, Object>();
+            String html = renderBootstrapHtml(context, headers);
+            template = new BootstrapTemplate(html, headers);
+            synchronized (templates) {
+                templates.put(key, template);
+            }
+        } else {
+            mainScript = getMainScriptTagContents(context);
+        }
+
+        sendBootstrapHeaders(context.getResponse(), template.headers);
+        return template.render(mainScript);
+    }
+
+    /**
+     * Gets the values that the bootstrap HTML depends on, apart from the
+     * contents of the main script tag.
+     */
+    private List<Object> getTemplateKey(BootstrapContext context) {
+        VaadinRequest request = context.getRequest();
+        VaadinService vaadinService = request.getService();
+
+        boolean standalone = vaadinService.isStandalone(request);
+        String title = null;
+        if (standalone) {
+            title = context
+                    .getBootstrapResponse()
+                    .getUIProvider()
+                    .getPageTitle(
+                            new UICreateEvent(request, context.getUIClass()));
+        }
+        String themeName = context.getThemeName();
+        String themeUri = null;
+        if (themeName != null) {
+            themeUri = getThemeUri(context, themeName);
+        }
+
+        return Arrays.<Object> asList(context.getUIClass(),
+                Boolean.valueOf(standalone), themeName, themeUri,
+                context.getWidgetsetName(), context.getPushMode(),
+                Boolean.valueOf(vaadinService.getDeploymentConfiguration()
+                        .isProductionMode()), getVaadinLocation(context),
+                context.getAppId(), getMainDivStyle(context), title);
+    }
+
+    private String renderBootstrapHtml(BootstrapContext context,
+            Map<String, Object> headers) {
         VaadinRequest request = context.getRequest();
-        VaadinResponse response = context.getResponse();
         VaadinService vaadinService = request.getService();
 
         BootstrapFragmentResponse fragmentResponse = context
                 .getBootstrapResponse();
 
         if (vaadinService.isStandalone(request)) {
-            Map<String, Object> headers = new LinkedHashMap<String, Object>();
             Document document = Document.createShell("");
             BootstrapPageResponse pageResponse = new BootstrapPageResponse(
                     this, request, context.getSession(), context.getUIClass(),
@@ -225,8 +321,6 @@ public abstract class BootstrapHandler extends SynchronizedRequestHandler {
             setupStandaloneDocument(context, pageResponse);
             context.getSession().modifyBootstrapResponse(pageResponse);
 
-            sendBootstrapHeaders(response, headers);
-
             return document.outerHtml();
         } else {
             StringBuilder sb = new StringBuilder();
@@ -373,11 +467,7 @@ public abstract class BootstrapHandler extends SynchronizedRequestHandler {
                 .append("You have to enable javascript in your browser to use an application built with Vaadin.");
         fragmentNodes.add(mainDiv);
 
-        VaadinRequest request = context.getRequest();
-
-        VaadinService vaadinService = request.getService();
-        String vaadinLocation = vaadinService.getStaticFileLocation(request)
-                + "/VAADIN/";
+        String vaadinLocation = getVaadinLocation(context);
 
         fragmentNodes
                 .add(new Element(Tag.valueOf("iframe"), "")
@@ -401,25 +491,38 @@ public abstract class BootstrapHandler extends SynchronizedRequestHandler {
                     "type", "text/javascript").attr("src", pushJS));
         }
 
-        String bootstrapLocation = vaadinLocation + "vaadinBootstrap.js";
         fragmentNodes.add(new Element(Tag.valueOf("script"), "").attr("type",
-                "text/javascript").attr("src", bootstrapLocation));
+                "text/javascript").attr("src", getBootstrapLocation(context)));
         Element mainScriptTag = new Element(Tag.valueOf("script"), "").attr(
                 "type", "text/javascript");
 
+        mainScriptTag.appendChild(new DataNode(
+                getMainScriptTagContents(context), mainScriptTag.baseUri()));
+        fragmentNodes.add(mainScriptTag);
+
+    }
+
+    private String getVaadinLocation(BootstrapContext context) {
+        VaadinRequest request = context.getRequest();
+        return request.getService().getStaticFileLocation(request) + "/VAADIN/";
+    }
+
+    private String getBootstrapLocation(BootstrapContext context) {
+        return getVaadinLocation(context) + "vaadinBootstrap.js";
+    }
+
+    private String getMainScriptTagContents(BootstrapContext context)
+            throws JSONException, IOException {
         StringBuilder builder = new StringBuilder();
         builder.append("//<![CDATA[\n");
         builder.append("if (!window.vaadin) alert("
                 + JSONObject.quote("Failed to load the bootstrap javascript: "
-                        + bootstrapLocation) + ");\n");
+                        + getBootstrapLocation(context)) + ");\n");
 
         appendMainScriptTagContents(context, builder);
 
         builder.append("//]]>");
-        mainScriptTag.appendChild(new DataNode(builder.toString(),
-                mainScriptTag.baseUri()));
-        fragmentNodes.add(mainScriptTag);
-
+        return builder.toString();
     }
 
     protected void appendMainScriptTagContents(BootstrapContext context,
@@ -601,4 +704,47 @@ public abstract class BootstrapHandler extends SynchronizedRequestHandler {
         response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
                 e.getLocalizedMessage());
     }
+
+    /**
+     * Bootstrap HTML split around the contents of the main script tag,
+     * together with the headers to send with it.
+     */
+    private static class BootstrapTemplate implements Serializable {
+        private final String beforeMainScript;
+        private final String afterMainScript;
+        private final Map<String, Object> headers;
+
+        public BootstrapTemplate(String html, Map<String, Object> headers) {
+            // The placeholder is in the last script tag on the page
+            int index = html.lastIndexOf(MAIN_SCRIPT_PLACEHOLDER);
+            beforeMainScript = html.substring(0, index);
+            afterMainScript = html.substring(index
+                    + MAIN_SCRIPT_PLACEHOLDER.length());
+            this.headers = headers;
+        }
+
+        public String render(String mainScript) {
+            return new StringBuilder(beforeMainScript.length()
+                    + mainScript.length() + afterMainScript.length())
+                    .append(beforeMainScript).append(mainScript)
+                    .append(afterMainScript).toString();
+        }
+    }
+
+    /**
+     * Bootstrap page templates in least recently used order.
+     */
+    private static class TemplateCache extends
+            LinkedHashMap<List<Object>, BootstrapTemplate> {
+
+        public TemplateCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(
+                Entry<List<Object>, BootstrapTemplate> eldest) {
+            return size() > MAX_TEMPLATES;
+        }
+    }
 }
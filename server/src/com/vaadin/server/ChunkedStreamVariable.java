@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.OutputStream;
+
+import com.vaadin.shared.ui.upload.UploadConstants;
+
+/**
+ * A {@link StreamVariable} that can receive an upload in chunks sent in
+ * separate requests, so that an upload interrupted e.g. by a network failure
+ * can be resumed from the last received offset instead of starting over. See
+ * {@link UploadConstants} for the protocol.
+ * <p>
+ * {@link #streamingStarted(StreamingStartEvent)} is invoked before the first
+ * chunk and {@link #streamingFinished(StreamingEndEvent)} after the last one.
+ * For each chunk, the content is written to the stream returned by
+ * {@link #getOutputStream(String, long)}, after which
+ * {@link #chunkReceived(long)} is invoked with the number of bytes received
+ * so far. The variable is not disposed of when the upload ends, since it is
+ * needed for resuming.
+ * <p>
+ * A partially received upload is kept until it is resumed, until a new upload
+ * starts or until it is interrupted. Implementations should discard it in
+ * {@link #streamingStarted(StreamingStartEvent)} if a new upload starts
+ * before it has been finished.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public interface ChunkedStreamVariable extends StreamVariable {
+
+    /**
+     * Gets the id of the upload that has been partially received.
+     * 
+     * @return the id of the ongoing upload, or <code>null</code> if no upload
+     *         is ongoing
+     */
+    public String getUploadId();
+
+    /**
+     * Gets the number of bytes of the ongoing upload that have been received.
+     * The next chunk must start at this offset. Should be 0 when no upload is
+     * ongoing.
+     * 
+     * @return the number of bytes received
+     */
+    public long getReceivedBytes();
+
+    /**
+     * Invoked by the terminal when a chunk arrives. The terminal writes the
+     * content of the chunk to the returned stream and closes it. Any content
+     * previously written after the given offset should be discarded.
+     * 
+     * @param uploadId
+     *            the id of the upload the chunk belongs to
+     * @param offset
+     *            the offset of the chunk in the uploaded file
+     * @return Stream to which the chunk should be written.
+     */
+    public OutputStream getOutputStream(String uploadId, long offset);
+
+    /**
+     * Invoked by the terminal after the content of a chunk has been written,
+     * including when the chunk ended prematurely and the upload will be
+     * resumed from the given offset.
+     * 
+     * @param receivedBytes
+     *            the number of bytes of the upload received so far
+     */
+    public void chunkReceived(long receivedBytes);
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+
+/**
+ * An object input stream for reading objects written using
+ * {@link CompactObjectOutputStream}. Classes are loaded using the given class
+ * loader and must be identical to the classes used when writing.
+ * 
+ * @see CompactObjectOutputStream
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class CompactObjectInputStream extends ObjectInputStream {
+
+    private final ClassLoader classLoader;
+
+    /**
+     * Creates a compact object input stream that loads classes using the
+     * context class loader of the current thread.
+     * 
+     * @param in
+     *            the input stream to read from
+     * @throws IOException
+     *             if reading the stream header fails
+     */
+    public CompactObjectInputStream(InputStream in) throws IOException {
+        this(in, null);
+    }
+
+    /**
+     * Creates a compact object input stream that loads classes using the given
+     * class loader.
+     * 
+     * @param in
+     *            the input stream to read from
+     * @param classLoader
+     *            the class loader to use, or <code>null</code> to use the
+     *            context class loader of the current thread
+     * @throws IOException
+     *             if reading the stream header fails
+     */
+    public CompactObjectInputStream(InputStream in, ClassLoader classLoader)
+            throws IOException {
+        super(in);
+        if (classLoader == null) {
+            classLoader = Thread.currentThread().getContextClassLoader();
+        }
+        if (classLoader == null) {
+            classLoader = CompactObjectInputStream.class.getClassLoader();
+        }
+        this.classLoader = classLoader;
+    }
+
+    @Override
+    protected ObjectStreamClass readClassDescriptor() throws IOException,
+            ClassNotFoundException {
+        int index = readUnsignedByte();
+        String name;
+        if (index == CompactObjectOutputStream.NAMED_CLASS) {
+            name = readUTF();
+        } else if (index <= CompactObjectOutputStream.KNOWN_CLASSES.length) {
+            name = CompactObjectOutputStream.KNOWN_CLASSES[index - 1];
+        } else {
+            throw new StreamCorruptedException("Invalid class index " + index);
+        }
+        ObjectStreamClass desc = ObjectStreamClass.lookupAny(loadClass(name));
+        if (desc == null) {
+            throw new InvalidClassException(name, "Class not serializable");
+        }
+        return desc;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+            throws IOException, ClassNotFoundException {
+        return loadClass(desc.getName());
+    }
+
+    private Class<?> loadClass(String name) throws ClassNotFoundException {
+        try {
+            return Class.forName(name, false, classLoader);
+        } catch (ClassNotFoundException e) {
+            // Primitive array types of the bootstrap class loader etc.
+            return Class.forName(name);
+        }
+    }
+}
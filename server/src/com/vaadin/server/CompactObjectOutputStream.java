@@ -0,0 +1,248 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An object output stream that produces a more compact serialized form than
+ * {@link ObjectOutputStream}, intended for replicating {@link VaadinSession}s
+ * between servers running the same version of the application. The stream
+ * must be read using {@link CompactObjectInputStream}.
+ * <p>
+ * The following is done differently compared to standard serialization:
+ * <ul>
+ * <li>Class descriptors are written as an index into a table of frequently
+ * serialized framework and JDK classes, or as the class name for other
+ * classes. The field descriptions and serial version UID are not written, so
+ * the reading side must have exactly the same classes.</li>
+ * <li>Equal strings are written only once, even if they are different
+ * instances.</li>
+ * <li>Optionally, framework classes leave out caches that can be rebuilt after
+ * deserialization, see {@link #isSkippingCaches(ObjectOutputStream)}.</li>
+ * </ul>
+ * 
+ * @see CompactObjectInputStream
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class CompactObjectOutputStream extends ObjectOutputStream {
+
+    /**
+     * Marks a class descriptor written as a class name.
+     */
+    static final int NAMED_CLASS = 0;
+
+    /**
+     * Classes whose descriptors are written as an index into this table. The
+     * table is part of the serialized format, so classes may only be added to
+     * the end of it.
+     */
+    static final String[] KNOWN_CLASSES = {
+            // JDK
+            "java.lang.Boolean", "java.lang.Integer", "java.lang.Long",
+            "java.lang.Double", "java.lang.Float", "java.lang.Number",
+            "java.lang.Enum", "java.lang.Object", "[Ljava.lang.Object;",
+            "[Ljava.lang.String;", "[Ljava.lang.Class;", "[I", "[B",
+            "java.util.ArrayList", "java.util.LinkedList",
+            "java.util.HashMap", "java.util.LinkedHashMap",
+            "java.util.TreeMap", "java.util.HashSet",
+            "java.util.LinkedHashSet", "java.util.TreeSet",
+            "java.util.Collections$UnmodifiableMap",
+            "java.util.Collections$UnmodifiableSet",
+            "java.util.Collections$UnmodifiableCollection",
+            "java.util.Collections$UnmodifiableList",
+            "java.util.Collections$UnmodifiableRandomAccessList",
+            "java.util.Collections$EmptyList",
+            "java.util.Collections$EmptyMap",
+            "java.util.Collections$EmptySet", "java.util.Locale",
+            "java.util.concurrent.ConcurrentHashMap",
+            "java.util.concurrent.ConcurrentHashMap$Segment",
+            "java.util.concurrent.ConcurrentSkipListMap",
+            "java.util.concurrent.CopyOnWriteArrayList",
+            "java.util.concurrent.LinkedBlockingQueue",
+            "java.util.concurrent.locks.ReentrantLock",
+            "java.util.concurrent.locks.ReentrantLock$Sync",
+            "java.util.concurrent.locks.ReentrantLock$NonfairSync",
+            "java.util.concurrent.locks.AbstractQueuedSynchronizer",
+            "java.util.concurrent.locks.AbstractOwnableSynchronizer",
+            // Session and UI
+            "com.vaadin.server.VaadinSession",
+            "com.vaadin.server.LegacyCommunicationManager",
+            "com.vaadin.server.LegacyCommunicationManager$ClientCache",
+            "com.vaadin.server.DefaultDeploymentConfiguration",
+            "com.vaadin.server.DefaultErrorHandler",
+            "com.vaadin.server.DefaultUIProvider",
+            "com.vaadin.server.UIProvider",
+            "com.vaadin.server.GlobalResourceHandler",
+            "com.vaadin.server.AbstractClientConnector",
+            "com.vaadin.server.AbstractExtension",
+            "com.vaadin.server.ClientMethodInvocation",
+            "com.vaadin.server.ServerRpcManager", "com.vaadin.server.Page",
+            "com.vaadin.server.Sizeable$Unit", "com.vaadin.server.KeyMapper",
+            "com.vaadin.server.ThemeResource",
+            "com.vaadin.server.ExternalResource",
+            "com.vaadin.server.communication.JsonDiffStateStore",
+            "com.vaadin.server.communication.CompactDiffStateStore",
+            "com.vaadin.event.EventRouter", "com.vaadin.event.ListenerMethod",
+            "com.vaadin.ui.UI", "com.vaadin.ui.ConnectorTracker",
+            "com.vaadin.ui.TooltipConfigurationImpl",
+            "com.vaadin.ui.PushConfigurationImpl",
+            "com.vaadin.ui.LoadingIndicatorConfigurationImpl",
+            "com.vaadin.ui.NotificationConfigurationImpl",
+            // Components
+            "com.vaadin.ui.AbstractComponent",
+            "com.vaadin.ui.AbstractComponentContainer",
+            "com.vaadin.ui.AbstractSingleComponentContainer",
+            "com.vaadin.ui.AbstractLayout",
+            "com.vaadin.ui.AbstractOrderedLayout",
+            "com.vaadin.ui.AbstractField", "com.vaadin.ui.AbstractTextField",
+            "com.vaadin.ui.AbstractSelect", "com.vaadin.ui.Alignment",
+            "com.vaadin.ui.VerticalLayout", "com.vaadin.ui.HorizontalLayout",
+            "com.vaadin.ui.CssLayout", "com.vaadin.ui.GridLayout",
+            "com.vaadin.ui.FormLayout", "com.vaadin.ui.Panel",
+            "com.vaadin.ui.Window", "com.vaadin.ui.Label",
+            "com.vaadin.ui.Button", "com.vaadin.ui.TextField",
+            "com.vaadin.ui.TextArea", "com.vaadin.ui.CheckBox",
+            "com.vaadin.ui.ComboBox", "com.vaadin.ui.Table",
+            "com.vaadin.ui.TabSheet", "com.vaadin.ui.Tree",
+            "com.vaadin.ui.Image",
+            // Shared states
+            "com.vaadin.shared.communication.SharedState",
+            "com.vaadin.shared.communication.URLReference",
+            "com.vaadin.shared.AbstractComponentState",
+            "com.vaadin.shared.AbstractFieldState",
+            "com.vaadin.shared.ui.AbstractLayoutState",
+            "com.vaadin.shared.ui.AbstractEmbeddedState",
+            "com.vaadin.shared.ui.MarginInfo",
+            "com.vaadin.shared.ui.ui.UIState",
+            "com.vaadin.shared.ui.ui.PageState",
+            "com.vaadin.shared.ui.orderedlayout.AbstractOrderedLayoutState",
+            "com.vaadin.shared.ui.orderedlayout.VerticalLayoutState",
+            "com.vaadin.shared.ui.orderedlayout.HorizontalLayoutState",
+            "com.vaadin.shared.ui.csslayout.CssLayoutState",
+            "com.vaadin.shared.ui.gridlayout.GridLayoutState",
+            "com.vaadin.shared.ui.panel.PanelState",
+            "com.vaadin.shared.ui.window.WindowState",
+            "com.vaadin.shared.ui.label.LabelState",
+            "com.vaadin.shared.ui.label.ContentMode",
+            "com.vaadin.shared.ui.button.ButtonState",
+            "com.vaadin.shared.ui.textfield.AbstractTextFieldState",
+            "com.vaadin.shared.ui.checkbox.CheckBoxState",
+            "com.vaadin.shared.ui.combobox.ComboBoxState",
+            "com.vaadin.shared.ui.table.TableState",
+            // Data
+            "com.vaadin.data.util.AbstractContainer",
+            "com.vaadin.data.util.AbstractInMemoryContainer",
+            "com.vaadin.data.util.IndexedContainer",
+            "com.vaadin.data.util.IndexedContainer$IndexedContainerItem",
+            "com.vaadin.data.util.IndexedContainer$IndexedContainerProperty",
+            "com.vaadin.data.util.AbstractProperty",
+            "com.vaadin.data.util.ObjectProperty",
+            "com.vaadin.data.util.ListSet",
+            "com.vaadin.data.util.DefaultItemSorter",
+            "com.vaadin.data.util.DefaultItemSorter$DefaultPropertyValueComparator" };
+
+    private static final Map<String, Integer> KNOWN_CLASS_INDEXES = new HashMap<String, Integer>();
+
+    static {
+        assert KNOWN_CLASSES.length < 255;
+        for (int i = 0; i < KNOWN_CLASSES.length; i++) {
+            KNOWN_CLASS_INDEXES.put(KNOWN_CLASSES[i], Integer.valueOf(i + 1));
+        }
+    }
+
+    private final boolean skipCaches;
+
+    private final Map<String, String> strings = new HashMap<String, String>();
+
+    /**
+     * Creates a compact object output stream that writes all caches.
+     * 
+     * @param out
+     *            the output stream to write to
+     * @throws IOException
+     *             if writing the stream header fails
+     */
+    public CompactObjectOutputStream(OutputStream out) throws IOException {
+        this(out, false);
+    }
+
+    /**
+     * Creates a compact object output stream.
+     * 
+     * @param out
+     *            the output stream to write to
+     * @param skipCaches
+     *            <code>true</code> to leave out caches that can be rebuilt
+     *            after deserialization, <code>false</code> to write them
+     * @throws IOException
+     *             if writing the stream header fails
+     */
+    public CompactObjectOutputStream(OutputStream out, boolean skipCaches)
+            throws IOException {
+        super(out);
+        this.skipCaches = skipCaches;
+        enableReplaceObject(true);
+    }
+
+    /**
+     * Checks whether caches that can be rebuilt after deserialization should
+     * be left out when writing objects to the given stream. Meant to be called
+     * from <code>writeObject</code> methods.
+     * 
+     * @param out
+     *            the stream being written to
+     * @return <code>true</code> if the stream is a compact object output
+     *         stream that skips caches
+     */
+    public static boolean isSkippingCaches(ObjectOutputStream out) {
+        return out instanceof CompactObjectOutputStream
+                && ((CompactObjectOutputStream) out).skipCaches;
+    }
+
+    @Override
+    protected void writeClassDescriptor(ObjectStreamClass desc)
+            throws IOException {
+        Integer index = KNOWN_CLASS_INDEXES.get(desc.getName());
+        if (index != null) {
+            writeByte(index.intValue());
+        } else {
+            writeByte(NAMED_CLASS);
+            writeUTF(desc.getName());
+        }
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) throws IOException {
+        if (obj instanceof String) {
+            String string = (String) obj;
+            String interned = strings.get(string);
+            if (interned == null) {
+                strings.put(string, string);
+                return string;
+            }
+            return interned;
+        }
+        return obj;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Replaces a {@link VaadinSession} in the serialized form of the HTTP session
+ * when compact session serialization is enabled using the
+ * <code>compactSessionSerialization</code> init parameter. The session is
+ * written as a byte array produced by {@link CompactObjectOutputStream}, so
+ * the servlet container can keep using standard serialization.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+class CompactSessionForm implements Serializable {
+
+    /*
+     * The session being written by the current thread, which should not be
+     * replaced again
+     */
+    private static final ThreadLocal<VaadinSession> writing = new ThreadLocal<VaadinSession>();
+
+    private transient VaadinSession session;
+    private final boolean skipCaches;
+
+    CompactSessionForm(VaadinSession session, boolean skipCaches) {
+        this.session = session;
+        this.skipCaches = skipCaches;
+    }
+
+    VaadinSession getSession() {
+        return session;
+    }
+
+    /**
+     * Checks whether the given session is being written in compact form by
+     * the current thread.
+     * 
+     * @param session
+     *            the session to check
+     * @return <code>true</code> if the session is being written
+     */
+    static boolean isWriting(VaadinSession session) {
+        return writing.get() == session;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        VaadinSession previous = writing.get();
+        writing.set(session);
+        try {
+            ObjectOutputStream compact = new CompactObjectOutputStream(bytes,
+                    skipCaches);
+            compact.writeObject(session);
+            compact.close();
+        } finally {
+            if (previous == null) {
+                writing.remove();
+            } else {
+                writing.set(previous);
+            }
+        }
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        ObjectInputStream compact = new CompactObjectInputStream(
+                new ByteArrayInputStream(data));
+        try {
+            session = (VaadinSession) compact.readObject();
+        } finally {
+            compact.close();
+        }
+    }
+
+    private Object readResolve() {
+        return session;
+    }
+}
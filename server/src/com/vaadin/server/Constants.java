@@ -56,6 +56,19 @@ public interface Constants {
             + "and \"automatic\". The default of \"disabled\" will be used.\n"
             + "===========================================================";
 
+    static final String WARNING_COMPRESSION_THRESHOLD_NOT_NUMERIC = "\n"
+            + "===========================================================\n"
+            + "WARNING: compressionThreshold has been set to a non integer\n"
+            + "value in web.xml. Response compression will be disabled.\n"
+            + "===========================================================";
+
+    static final String WARNING_COMPRESSION_LEVEL_NOT_VALID = "\n"
+            + "===========================================================\n"
+            + "WARNING: compressionLevel has been set to a value that is not\n"
+            + "an integer between 1 and 9 in web.xml. The default of 6 will\n"
+            + "be used.\n"
+            + "===========================================================";
+
     static final String WIDGETSET_MISMATCH_INFO = "\n"
             + "=================================================================\n"
             + "The widgetset in use does not seem to be built for the Vaadin\n"
@@ -126,6 +139,25 @@ public interface Constants {
     static final String SERVLET_PARAMETER_PUSH_MODE = "pushMode";
     static final String SERVLET_PARAMETER_UI_PROVIDER = "UIProvider";
     static final String SERVLET_PARAMETER_LEGACY_PROPERTY_TOSTRING = "legacyPropertyToString";
+    static final String SERVLET_PARAMETER_STREAM_UIDL_RESPONSES = "streamUidlResponses";
+    static final String SERVLET_PARAMETER_DIFF_STATE_STORE = "diffStateStore";
+    static final String SERVLET_PARAMETER_COMPRESSION_THRESHOLD = "compressionThreshold";
+    static final String SERVLET_PARAMETER_COMPRESSION_LEVEL = "compressionLevel";
+    static final String SERVLET_PARAMETER_PUSH_COALESCING_WINDOW = "pushCoalescingWindow";
+    static final String SERVLET_PARAMETER_REQUEST_METRICS_SAMPLING = "requestMetricsSampling";
+    static final String SERVLET_PARAMETER_UI_LOCKING = "uiLocking";
+    static final String SERVLET_PARAMETER_ACCESS_QUEUE_LIMIT = "accessQueueLimit";
+    static final String SERVLET_PARAMETER_ACCESS_QUEUE_OVERFLOW = "accessQueueOverflow";
+    static final String SERVLET_PARAMETER_ACCESS_DRAIN_THREADS = "accessDrainThreads";
+    static final String SERVLET_PARAMETER_SESSION_LOCK_MAX_WAIT = "sessionLockMaxWait";
+    static final String SERVLET_PARAMETER_SESSION_LOCK_OWNER_SAMPLING = "sessionLockOwnerSampling";
+    static final String SERVLET_PARAMETER_UI_REAPER_INTERVAL = "uiReaperInterval";
+    static final String SERVLET_PARAMETER_UI_PASSIVATION_TIMEOUT = "uiPassivationTimeout";
+    static final String SERVLET_PARAMETER_UI_PASSIVATION_DIRECTORY = "uiPassivationDirectory";
+    static final String SERVLET_PARAMETER_COMPACT_SESSION_SERIALIZATION = "compactSessionSerialization";
+    static final String SERVLET_PARAMETER_UPLOAD_BUFFER_SIZE = "uploadBufferSize";
+    static final String SERVLET_PARAMETER_MAX_CONCURRENT_UPLOADS = "maxConcurrentUploads";
+    static final String SERVLET_PARAMETER_STATIC_RESOURCE_CACHE_SIZE = "staticResourceCacheSize";
 
     // Configurable parameter names
     static final String PARAMETER_VAADIN_RESOURCES = "Resources";
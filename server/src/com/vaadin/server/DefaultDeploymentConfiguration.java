@@ -45,6 +45,21 @@ public class DefaultDeploymentConfiguration implements DeploymentConfiguration {
      */
     public static final boolean DEFAULT_CLOSE_IDLE_SESSIONS = false;
 
+    /**
+     * Default value for {@link #isUILockingEnabled()} = {@value} .
+     */
+    public static final boolean DEFAULT_UI_LOCKING = false;
+
+    /**
+     * Default value for {@link #getCompressionThreshold()} = {@value} .
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = -1;
+
+    /**
+     * Default value for {@link #getCompressionLevel()} = {@value} .
+     */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
     /**
      * Default value for {@link #getLegacyPropertyToStringMode()} =
      * {@link LegacyProperyToStringMode#WARNING}.
@@ -57,7 +72,10 @@ public class DefaultDeploymentConfiguration implements DeploymentConfiguration {
     private int resourceCacheTime;
     private int heartbeatInterval;
     private boolean closeIdleSessions;
+    private boolean uiLocking;
     private PushMode pushMode;
+    private int compressionThreshold;
+    private int compressionLevel;
     private final Class<?> systemPropertyBaseClass;
     private LegacyProperyToStringMode legacyPropertyToStringMode;
 
@@ -82,6 +100,8 @@ public class DefaultDeploymentConfiguration implements DeploymentConfiguration {
         checkHeartbeatInterval();
         checkCloseIdleSessions();
         checkPushMode();
+        checkCompression();
+        checkUILocking();
         checkLegacyPropertyToString();
     }
 
@@ -245,6 +265,36 @@ public class DefaultDeploymentConfiguration implements DeploymentConfiguration {
         return pushMode;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The default value is -1, i.e. responses are not compressed.
+     */
+    @Override
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The default level is 6.
+     */
+    @Override
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The default value is false.
+     */
+    @Override
+    public boolean isUILockingEnabled() {
+        return uiLocking;
+    }
+
     @Override
     public Properties getInitParameters() {
         return initParameters;
@@ -309,6 +359,12 @@ public class DefaultDeploymentConfiguration implements DeploymentConfiguration {
                 Boolean.toString(DEFAULT_CLOSE_IDLE_SESSIONS)).equals("true");
     }
 
+    private void checkUILocking() {
+        uiLocking = getApplicationOrSystemProperty(
+                Constants.SERVLET_PARAMETER_UI_LOCKING,
+                Boolean.toString(DEFAULT_UI_LOCKING)).equals("true");
+    }
+
     private void checkPushMode() {
         String mode = getApplicationOrSystemProperty(
                 Constants.SERVLET_PARAMETER_PUSH_MODE,
@@ -321,6 +377,31 @@ public class DefaultDeploymentConfiguration implements DeploymentConfiguration {
         }
     }
 
+    private void checkCompression() {
+        try {
+            compressionThreshold = Integer
+                    .parseInt(getApplicationOrSystemProperty(
+                            Constants.SERVLET_PARAMETER_COMPRESSION_THRESHOLD,
+                            Integer.toString(DEFAULT_COMPRESSION_THRESHOLD)));
+        } catch (NumberFormatException e) {
+            getLogger().warning(
+                    Constants.WARNING_COMPRESSION_THRESHOLD_NOT_NUMERIC);
+            compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+        }
+
+        try {
+            compressionLevel = Integer.parseInt(getApplicationOrSystemProperty(
+                    Constants.SERVLET_PARAMETER_COMPRESSION_LEVEL,
+                    Integer.toString(DEFAULT_COMPRESSION_LEVEL)));
+        } catch (NumberFormatException e) {
+            compressionLevel = -1;
+        }
+        if (compressionLevel < 1 || compressionLevel > 9) {
+            getLogger().warning(Constants.WARNING_COMPRESSION_LEVEL_NOT_VALID);
+            compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        }
+    }
+
     private Logger getLogger() {
         return Logger.getLogger(getClass().getName());
     }
@@ -127,6 +127,48 @@ public interface DeploymentConfiguration extends Serializable {
      */
     public PushMode getPushMode();
 
+    /**
+     * Returns the minimum size, in bytes, of a UIDL response that should be
+     * compressed before it is sent to a browser that accepts gzip encoded
+     * content. A negative value disables response compression.
+     * 
+     * @since 7.2
+     * 
+     * @return the compression threshold in bytes, or a negative number if
+     *         responses should never be compressed
+     */
+    public int getCompressionThreshold();
+
+    /**
+     * Returns the deflate level, between 1 (fastest) and 9 (smallest output),
+     * used when compressing UIDL responses.
+     * 
+     * @see #getCompressionThreshold()
+     * @see java.util.zip.Deflater#setLevel(int)
+     * 
+     * @since 7.2
+     * 
+     * @return the compression level
+     */
+    public int getCompressionLevel();
+
+    /**
+     * Returns whether each UI in a session should be locked separately instead
+     * of locking the whole session for every request and access task.
+     * <p>
+     * When enabled, requests and access tasks for different UIs in the same
+     * session, e.g. in different browser tabs, can be processed concurrently.
+     * The session lock is still used for session level operations.
+     * 
+     * @see UILockingSessionLock
+     * 
+     * @since 7.2
+     * 
+     * @return true if UIs are locked separately, false if the session wide
+     *         lock is used for everything
+     */
+    public boolean isUILockingEnabled();
+
     /**
      * Gets the properties configured for the deployment, e.g. as init
      * parameters to the servlet or portlet.
@@ -16,14 +16,21 @@
 
 package com.vaadin.server;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -50,8 +57,16 @@ public class DownloadStream implements Serializable {
      */
     public static final long DEFAULT_CACHETIME = 1000 * 60 * 60 * 24;
 
+    /**
+     * The maximum number of separate ranges served for one request. Requests
+     * for more ranges get the whole content.
+     */
+    private static final int MAX_RANGES = 16;
+
     private InputStream stream;
 
+    private SeekableStreamSource seekableSource;
+
     private String contentType;
 
     private String fileName;
@@ -91,6 +106,33 @@ public class DownloadStream implements Serializable {
         this.stream = stream;
     }
 
+    /**
+     * Gets the seekable source of this stream.
+     * 
+     * @since 7.2
+     * @return the seekable source, or <code>null</code> if no seekable source
+     *         has been set
+     */
+    public SeekableStreamSource getSeekableSource() {
+        return seekableSource;
+    }
+
+    /**
+     * Sets a seekable source for the content of this stream. When a seekable
+     * source is set, requests for parts of the content are served by opening
+     * the source at the requested position instead of skipping through
+     * {@link #getStream()}. The stream is still used for requests for the
+     * whole content.
+     * 
+     * @since 7.2
+     * @param seekableSource
+     *            the seekable source, or <code>null</code> to only use the
+     *            stream
+     */
+    public void setSeekableSource(SeekableStreamSource seekableSource) {
+        this.seekableSource = seekableSource;
+    }
+
     /**
      * Gets stream content type.
      * 
@@ -234,6 +276,15 @@ public class DownloadStream implements Serializable {
      * response. If there's is a parameter named <code>Location</code>, a
      * redirect (302 Moved temporarily) is sent instead of the contents of this
      * stream.
+     * <p>
+     * If the length of the content is known, either from the
+     * {@link #getSeekableSource() seekable source} or from a
+     * <code>Content-Length</code> parameter, <code>Range</code> requests are
+     * supported. The requested ranges are sent in a 206 (Partial Content)
+     * response, using a <code>multipart/byteranges</code> body if there are
+     * several. An <code>If-Range</code> header is compared to the
+     * <code>ETag</code> and <code>Last-Modified</code> parameters.
+     * </p>
      * 
      * @param request
      *            the request for which the response should be written
@@ -255,65 +306,353 @@ public class DownloadStream implements Serializable {
 
         // Download from given stream
         final InputStream data = getStream();
-        if (data == null) {
+        if (data == null && seekableSource == null) {
             response.setStatus(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
 
-        if (data != null) {
+        OutputStream out = null;
+        InputStream in = data;
+        try {
+            // Sets content type
+            response.setContentType(getContentType());
+
+            // Sets cache headers
+            response.setCacheTime(getCacheTime());
+
+            // Copy download stream parameters directly
+            // to HTTP headers.
+            final Iterator<String> i = getParameterNames();
+            if (i != null) {
+                while (i.hasNext()) {
+                    final String param = i.next();
+                    response.setHeader(param, getParameter(param));
+                }
+            }
 
-            OutputStream out = null;
-            try {
-                // Sets content type
-                response.setContentType(getContentType());
-
-                // Sets cache headers
-                response.setCacheTime(getCacheTime());
-
-                // Copy download stream parameters directly
-                // to HTTP headers.
-                final Iterator<String> i = getParameterNames();
-                if (i != null) {
-                    while (i.hasNext()) {
-                        final String param = i.next();
-                        response.setHeader(param, getParameter(param));
+            // suggest local filename from DownloadStream if
+            // Content-Disposition
+            // not explicitly set
+            String contentDispositionValue = getParameter("Content-Disposition");
+            if (contentDispositionValue == null) {
+                contentDispositionValue = "filename=\"" + getFileName() + "\"";
+                response.setHeader("Content-Disposition",
+                        contentDispositionValue);
+            }
+
+            long length = getContentLength();
+            List<ByteRange> ranges = null;
+            if (length >= 0) {
+                response.setHeader("Accept-Ranges", "bytes");
+                ranges = getRequestedRanges(request, length);
+            }
+            if (ranges != null && ranges.isEmpty()) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setHeader("Content-Length", "0");
+                response.setStatus(416); // Requested Range Not Satisfiable
+                return;
+            }
+
+            int bufferSize = getBufferSize();
+            if (bufferSize <= 0 || bufferSize > Constants.MAX_BUFFER_SIZE) {
+                bufferSize = Constants.DEFAULT_BUFFER_SIZE;
+            }
+
+            if (ranges != null) {
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                if (ranges.size() == 1) {
+                    ByteRange range = ranges.get(0);
+                    response.setHeader("Content-Range",
+                            range.getContentRange(length));
+                    response.setHeader("Content-Length",
+                            String.valueOf(range.getLength()));
+                    if (sendFile(request, response, range.first,
+                            range.getLength())) {
+                        return;
                     }
                 }
 
-                // suggest local filename from DownloadStream if
-                // Content-Disposition
-                // not explicitly set
-                String contentDispositionValue = getParameter("Content-Disposition");
-                if (contentDispositionValue == null) {
-                    contentDispositionValue = "filename=\"" + getFileName()
-                            + "\"";
-                    response.setHeader("Content-Disposition",
-                            contentDispositionValue);
+                long position = 0;
+                if (seekableSource != null) {
+                    tryToCloseStream(data);
+                    position = ranges.get(0).first;
+                    in = seekableSource.openStream(position);
                 }
+                out = response.getOutputStream();
+                if (ranges.size() == 1) {
+                    ByteRange range = ranges.get(0);
+                    skipFully(in, range.first - position);
+                    copy(in, out, range.getLength(), bufferSize);
+                } else {
+                    writeRanges(in, position, ranges, length, response, out,
+                            bufferSize);
+                }
+                return;
+            }
+
+            if (length >= 0 && sendFile(request, response, 0, length)) {
+                response.setHeader("Content-Length", String.valueOf(length));
+                return;
+            }
+
+            if (in == null) {
+                in = seekableSource.openStream(0);
+            }
 
-                int bufferSize = getBufferSize();
-                if (bufferSize <= 0 || bufferSize > Constants.MAX_BUFFER_SIZE) {
-                    bufferSize = Constants.DEFAULT_BUFFER_SIZE;
+            out = response.getOutputStream();
+
+            final byte[] buffer = new byte[bufferSize];
+            int bytesRead = 0;
+            long totalWritten = 0;
+            while ((bytesRead = in.read(buffer)) > 0) {
+                out.write(buffer, 0, bytesRead);
+
+                totalWritten += bytesRead;
+                if (totalWritten >= buffer.length) {
+                    // Avoid chunked encoding for small resources
+                    out.flush();
                 }
-                final byte[] buffer = new byte[bufferSize];
-                int bytesRead = 0;
+            }
+        } finally {
+            tryToCloseStream(out);
+            tryToCloseStream(in);
+            tryToCloseStream(data);
+        }
+    }
 
-                out = response.getOutputStream();
+    /**
+     * Lets the servlet container send the content if it comes from a local
+     * file and the container supports it.
+     * 
+     * @return <code>true</code> if the container will send the content,
+     *         <code>false</code> if it must be written to the response
+     */
+    private boolean sendFile(VaadinRequest request, VaadinResponse response,
+            long start, long count) throws IOException {
+        if (!(seekableSource instanceof FileResource)
+                || !(request instanceof HttpServletRequest)
+                || !(response instanceof VaadinServletResponse)) {
+            return false;
+        }
+        File file = ((FileResource) seekableSource).getSourceFile();
+        return FileTransfer.sendFile((HttpServletRequest) request,
+                ((VaadinServletResponse) response).getResponse(), file,
+                start, count);
+    }
+
+    /**
+     * Gets the length of the content from the seekable source or the
+     * <code>Content-Length</code> parameter.
+     * 
+     * @return the length in bytes, or -1 if not known
+     */
+    private long getContentLength() {
+        if (seekableSource != null) {
+            return seekableSource.getContentLength();
+        }
+        String contentLength = getParameter("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                // Treat as unknown
+            }
+        }
+        return -1;
+    }
 
-                long totalWritten = 0;
-                while ((bytesRead = data.read(buffer)) > 0) {
-                    out.write(buffer, 0, bytesRead);
+    /**
+     * Parses the <code>Range</code> header of a GET request.
+     * 
+     * @param request
+     *            the request
+     * @param length
+     *            the length of the content
+     * @return the requested ranges sorted by position with overlapping and
+     *         adjacent ranges merged, an empty list if none of the ranges can
+     *         be satisfied, or <code>null</code> if the whole content should
+     *         be sent
+     */
+    private List<ByteRange> getRequestedRanges(VaadinRequest request,
+            long length) {
+        String header = request.getHeader("Range");
+        if (header == null || !"GET".equalsIgnoreCase(request.getMethod())
+                || !header.startsWith("bytes=")
+                || !isIfRangeValid(request.getHeader("If-Range"))) {
+            return null;
+        }
 
-                    totalWritten += bytesRead;
-                    if (totalWritten >= buffer.length) {
-                        // Avoid chunked encoding for small resources
-                        out.flush();
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        for (String spec : header.substring("bytes=".length()).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                // A syntactically invalid header is ignored
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // Suffix range, e.g. the last 500 bytes
+                    long suffixLength = Long.parseLong(spec.substring(1));
+                    if (suffixLength == 0 || length == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffixLength);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        last = length - 1;
+                    } else {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
                     }
                 }
-            } finally {
-                tryToCloseStream(out);
-                tryToCloseStream(data);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first >= length) {
+                // Not satisfiable
+                continue;
+            }
+            ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+        }
+
+        Collections.sort(ranges);
+        List<ByteRange> merged = new ArrayList<ByteRange>();
+        for (ByteRange range : ranges) {
+            ByteRange previous = merged.isEmpty() ? null : merged.get(merged
+                    .size() - 1);
+            if (previous != null && range.first <= previous.last + 1) {
+                previous.last = Math.max(previous.last, range.last);
+            } else {
+                merged.add(range);
+            }
+        }
+        if (merged.size() > MAX_RANGES) {
+            return null;
+        }
+        return merged;
+    }
+
+    /**
+     * Checks whether the validator in an <code>If-Range</code> header matches
+     * the <code>ETag</code> or <code>Last-Modified</code> parameter. Only
+     * strong validators may be used with <code>If-Range</code>.
+     * 
+     * @param ifRange
+     *            the header value, or <code>null</code>
+     * @return <code>true</code> if the requested ranges may be sent,
+     *         <code>false</code> if the whole content should be sent
+     */
+    private boolean isIfRangeValid(String ifRange) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(getParameter("ETag"));
+        } else if (ifRange.startsWith("W/")) {
+            return false;
+        } else {
+            return ifRange.equals(getParameter("Last-Modified"));
+        }
+    }
+
+    /**
+     * Writes several ranges as a <code>multipart/byteranges</code> body.
+     */
+    private void writeRanges(InputStream in, long position,
+            List<ByteRange> ranges, long length, VaadinResponse response,
+            OutputStream out, int bufferSize) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            String partHeader = "\r\n--" + boundary + "\r\n";
+            if (getContentType() != null) {
+                partHeader += "Content-Type: " + getContentType() + "\r\n";
+            }
+            partHeader += "Content-Range: " + range.getContentRange(length)
+                    + "\r\n\r\n";
+            byte[] bytes = partHeader.getBytes("ISO-8859-1");
+            partHeaders.add(bytes);
+            contentLength += bytes.length + range.getLength();
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+        contentLength += end.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setHeader("Content-Length", String.valueOf(contentLength));
+
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+            out.write(partHeaders.get(i));
+            skipFully(in, range.first - position);
+            copy(in, out, range.getLength(), bufferSize);
+            position = range.last + 1;
+        }
+        out.write(end);
+    }
+
+    private static void skipFully(InputStream in, long count)
+            throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // skip may return 0 before the end of the stream
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
             }
+            count -= skipped;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long count,
+            int bufferSize) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(bufferSize, count)];
+        while (count > 0) {
+            int read = in.read(buffer, 0,
+                    (int) Math.min(buffer.length, count));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, read);
+            count -= read;
+        }
+    }
+
+    /**
+     * A range of bytes, with inclusive first and last positions as in the
+     * <code>Range</code> header.
+     */
+    private static class ByteRange implements Comparable<ByteRange>,
+            Serializable {
+        private final long first;
+        private long last;
+
+        private ByteRange(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        private long getLength() {
+            return last - first + 1;
+        }
+
+        private String getContentRange(long length) {
+            return "bytes " + first + "-" + last + "/" + length;
+        }
+
+        @Override
+        public int compareTo(ByteRange other) {
+            return first < other.first ? -1 : first == other.first ? 0 : 1;
         }
     }
 
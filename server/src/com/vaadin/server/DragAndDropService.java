@@ -16,11 +16,13 @@
 package com.vaadin.server;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.io.Writer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,16 +46,29 @@ import com.vaadin.ui.UI;
 
 public class DragAndDropService implements VariableOwner, ClientConnector {
 
-    private int lastVisitId;
+    /**
+     * The state of the latest drag and drop visit, i.e. a drag or drop request
+     * from the client, that has not yet been sent back to the client.
+     */
+    private static class Visit implements Serializable {
+        private final int id;
+        private boolean accepted = false;
+        private AcceptCriterion acceptCriterion;
 
-    private boolean lastVisitAccepted = false;
+        public Visit(int id) {
+            this.id = id;
+        }
+    }
 
-    private DragAndDropEvent dragEvent;
+    /**
+     * The pending visit of each UI. With per-UI locking, requests for
+     * different UIs of the session can be handled concurrently, so each UI
+     * gets its own visit.
+     */
+    private final Map<UI, Visit> visits = new ConcurrentHashMap<UI, Visit>();
 
     private final VaadinSession session;
 
-    private AcceptCriterion acceptCriterion;
-
     private ErrorHandler errorHandler;
 
     public DragAndDropService(VaadinSession session) {
@@ -93,7 +108,18 @@ public class DragAndDropService implements VariableOwner, ClientConnector {
             return;
         }
 
-        lastVisitId = (Integer) variables.get("visitId");
+        UI ui = UI.getCurrent();
+        if (ui == null) {
+            ui = dropTarget.getUI();
+        }
+        if (ui == null) {
+            getLogger().warning(
+                    "Could not find the UI of the drag and drop request for "
+                            + owner);
+            return;
+        }
+        Visit visit = new Visit((Integer) variables.get("visitId"));
+        visits.put(ui, visit);
 
         // request may be dropRequest or request during drag operation (commonly
         // dragover or dragenter)
@@ -101,7 +127,7 @@ public class DragAndDropService implements VariableOwner, ClientConnector {
         if (dropRequest) {
             handleDropRequest(dropTarget, variables);
         } else {
-            handleDragRequest(dropTarget, variables);
+            handleDragRequest(dropTarget, variables, visit);
         }
 
     }
@@ -142,12 +168,12 @@ public class DragAndDropService implements VariableOwner, ClientConnector {
      * 
      * @param dropTarget
      * @param variables
+     * @param visit
      */
     private void handleDragRequest(DropTarget dropTarget,
-            Map<String, Object> variables) {
-        lastVisitId = (Integer) variables.get("visitId");
-
-        acceptCriterion = dropTarget.getDropHandler().getAcceptCriterion();
+            Map<String, Object> variables, Visit visit) {
+        AcceptCriterion acceptCriterion = dropTarget.getDropHandler()
+                .getAcceptCriterion();
 
         /*
          * Construct the Transferable and the DragDropDetails for the drag
@@ -158,9 +184,11 @@ public class DragAndDropService implements VariableOwner, ClientConnector {
         TargetDetails dragDropDetails = constructDragDropDetails(dropTarget,
                 variables);
 
-        dragEvent = new DragAndDropEvent(transferable, dragDropDetails);
+        DragAndDropEvent dragEvent = new DragAndDropEvent(transferable,
+                dragDropDetails);
 
-        lastVisitAccepted = acceptCriterion.accept(dragEvent);
+        visit.accepted = acceptCriterion.accept(dragEvent);
+        visit.acceptCriterion = acceptCriterion;
     }
 
     /**
@@ -228,33 +256,45 @@ public class DragAndDropService implements VariableOwner, ClientConnector {
         return true;
     }
 
+    /**
+     * Writes the result of the pending drag and drop visit of the current UI,
+     * if any.
+     * 
+     * @see #printJSONResponse(Writer, UI)
+     */
     public void printJSONResponse(Writer outWriter) throws IOException {
-        if (isDirty()) {
+        printJSONResponse(outWriter, UI.getCurrent());
+    }
+
+    /**
+     * Writes the result of the pending drag and drop visit of the given UI, if
+     * any.
+     * 
+     * @since 7.2
+     * @param outWriter
+     *            the writer to write the response to
+     * @param ui
+     *            the UI for which the response is written
+     * @throws IOException
+     *             if writing fails
+     */
+    public void printJSONResponse(Writer outWriter, UI ui) throws IOException {
+        Visit visit = ui == null ? null : visits.remove(ui);
+        if (visit != null && visit.id > 0) {
 
             outWriter.write(", \"dd\":");
 
             JsonPaintTarget jsonPaintTarget = new JsonPaintTarget(
                     session.getCommunicationManager(), outWriter, false);
             jsonPaintTarget.startTag("dd");
-            jsonPaintTarget.addAttribute("visitId", lastVisitId);
-            if (acceptCriterion != null) {
-                jsonPaintTarget.addAttribute("accepted", lastVisitAccepted);
-                acceptCriterion.paintResponse(jsonPaintTarget);
+            jsonPaintTarget.addAttribute("visitId", visit.id);
+            if (visit.acceptCriterion != null) {
+                jsonPaintTarget.addAttribute("accepted", visit.accepted);
+                visit.acceptCriterion.paintResponse(jsonPaintTarget);
             }
             jsonPaintTarget.endTag("dd");
             jsonPaintTarget.close();
-            lastVisitId = -1;
-            lastVisitAccepted = false;
-            acceptCriterion = null;
-            dragEvent = null;
-        }
-    }
-
-    private boolean isDirty() {
-        if (lastVisitId > 0) {
-            return true;
         }
-        return false;
     }
 
     @Override
@@ -19,6 +19,13 @@ package com.vaadin.server;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 
 import com.vaadin.util.FileTypeResolver;
 
@@ -27,12 +34,16 @@ import com.vaadin.util.FileTypeResolver;
  * files and directories are served through URI:s to the client terminal and
  * thus must be registered to an URI context before they can be used. The
  * resource is automatically registered to the application when it is created.
+ * <p>
+ * File resources support range requests, so browsers can seek in audio and
+ * video files and resume interrupted downloads.
+ * </p>
  * 
  * @author Vaadin Ltd.
  * @since 3.0
  */
 @SuppressWarnings("serial")
-public class FileResource implements ConnectorResource {
+public class FileResource implements ConnectorResource, SeekableStreamSource {
 
     /**
      * Default buffer size for this stream resource.
@@ -67,6 +78,16 @@ public class FileResource implements ConnectorResource {
                     sourceFile), getMIMEType(), getFilename());
             ds.setParameter("Content-Length",
                     String.valueOf(sourceFile.length()));
+            long lastModified = sourceFile.lastModified();
+            if (lastModified > 0) {
+                // Used for validating If-Range headers
+                DateFormat format = new SimpleDateFormat(
+                        "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                ds.setParameter("Last-Modified",
+                        format.format(new Date(lastModified)));
+            }
+            ds.setSeekableSource(this);
 
             ds.setCacheTime(cacheTime);
             return ds;
@@ -76,6 +97,23 @@ public class FileResource implements ConnectorResource {
         }
     }
 
+    @Override
+    public long getContentLength() {
+        return sourceFile.length();
+    }
+
+    @Override
+    public InputStream openStream(long offset) throws IOException {
+        FileInputStream in = new FileInputStream(sourceFile);
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
     /**
      * Gets the source file.
      * 
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Helpers for sending local files without copying their content through a
+ * buffer in the Java heap. The servlet container is asked to send the file
+ * itself if it supports it (Tomcat's sendfile support). The caller writes the
+ * file normally otherwise.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+class FileTransfer implements Serializable {
+
+    /**
+     * Request attribute set by the container if it can send files after the
+     * request has been handled.
+     */
+    static final String SENDFILE_SUPPORTED_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    /**
+     * Files smaller than this are written directly, since the container would
+     * need an extra round trip to the poller to send them. Same as Tomcat's
+     * default servlet.
+     */
+    static final long SENDFILE_MIN_SIZE = 48 * 1024;
+
+    private FileTransfer() {
+        // Only static helpers
+    }
+
+    /**
+     * Asks the servlet container to send a part of a file once the request
+     * has been handled. The <code>Content-Length</code> header should already
+     * be set and nothing should be written to the response if the container
+     * accepts the file.
+     * 
+     * @param request
+     *            the servlet request
+     * @param response
+     *            the servlet response, which must not be wrapped by a filter
+     *            since the wrapper would be bypassed
+     * @param file
+     *            the file to send
+     * @param start
+     *            the position of the first byte to send
+     * @param count
+     *            the number of bytes to send
+     * @return <code>true</code> if the container will send the file,
+     *         <code>false</code> if the caller must write it
+     * @throws IOException
+     *             if the path of the file can not be resolved
+     */
+    static boolean sendFile(HttpServletRequest request,
+            ServletResponse response, File file, long start, long count)
+            throws IOException {
+        if (count < SENDFILE_MIN_SIZE
+                || response instanceof ServletResponseWrapper
+                || !Boolean.TRUE.equals(request
+                        .getAttribute(SENDFILE_SUPPORTED_ATTRIBUTE))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE,
+                file.getCanonicalPath());
+        request.setAttribute(SENDFILE_START_ATTRIBUTE, Long.valueOf(start));
+        request.setAttribute(SENDFILE_END_ATTRIBUTE,
+                Long.valueOf(start + count));
+        return true;
+    }
+}
@@ -36,6 +36,10 @@ import com.vaadin.util.CurrentInstance;
 /**
  * A {@link RequestHandler} that takes care of {@link ConnectorResource}s that
  * should not be served by the connector.
+ * <p>
+ * The handler is shared by all UIs of a session. With per-UI locking, threads
+ * holding the locks of different UIs can register resources concurrently, so
+ * the registry is guarded by the handler instance.
  * 
  * @author Vaadin Ltd
  * @version @VERSION@
@@ -87,17 +91,19 @@ public class GlobalResourceHandler implements RequestHandler {
                     + " is not a valid global resource path");
         }
         session.lock();
-        Map<Class<?>, CurrentInstance> oldInstances = null;
+        CurrentInstance.Snapshot oldInstances = null;
         DownloadStream stream = null;
         try {
             UI ui = session.getUIById(Integer.parseInt(uiid));
             if (ui == null) {
                 return error(request, response, "No UI found for id  " + uiid);
             }
-            oldInstances = CurrentInstance.setCurrent(ui);
+            oldInstances = CurrentInstance.saveAndSetCurrent(ui);
             ConnectorResource resource;
             if (LEGACY_TYPE.equals(type)) {
-                resource = legacyResources.get(key);
+                synchronized (this) {
+                    resource = legacyResources.get(key);
+                }
             } else {
                 return error(request, response, "Unknown global resource type "
                         + type + " in requested path " + pathInfo);
@@ -116,7 +122,7 @@ public class GlobalResourceHandler implements RequestHandler {
         } finally {
             session.unlock();
             if (oldInstances != null) {
-                CurrentInstance.restoreInstances(oldInstances);
+                CurrentInstance.restore(oldInstances);
             }
         }
 
@@ -136,7 +142,8 @@ public class GlobalResourceHandler implements RequestHandler {
      * @param ownerConnector
      *            the connector to which the resource belongs
      */
-    public void register(Resource resource, ClientConnector ownerConnector) {
+    public synchronized void register(Resource resource,
+            ClientConnector ownerConnector) {
         if (resource instanceof ConnectorResource) {
             if (!(ownerConnector instanceof LegacyComponent)) {
                 throw new IllegalArgumentException(
@@ -159,11 +166,83 @@ public class GlobalResourceHandler implements RequestHandler {
 
     private void unregisterResource(Resource resource) {
         String oldUri = legacyResourceKeys.remove(resource);
-        if (oldUri != null) {
+        // A restored copy of the resource may share the URI of the original
+        if (oldUri != null && legacyResources.get(oldUri) == resource) {
             legacyResources.remove(oldUri);
         }
     }
 
+    /**
+     * Gets the resources registered for the connectors of a UI, e.g. so that
+     * the registrations can be passivated together with the UI and restored
+     * using {@link #restoreRegistrations(Map)}.
+     * 
+     * @param ui
+     *            the UI
+     * @return a map from the connectors of the UI to the URIs and resources
+     *         registered for them
+     */
+    synchronized Map<ClientConnector, Map<String, ConnectorResource>> getRegistrations(
+            UI ui) {
+        Map<ClientConnector, Map<String, ConnectorResource>> registrations = new HashMap<ClientConnector, Map<String, ConnectorResource>>();
+        for (Map.Entry<ClientConnector, Set<Resource>> entry : usedResources
+                .entrySet()) {
+            if (entry.getKey().getUI() != ui) {
+                continue;
+            }
+            Map<String, ConnectorResource> resources = new HashMap<String, ConnectorResource>();
+            for (Resource resource : entry.getValue()) {
+                String uri = legacyResourceKeys.get(resource);
+                if (uri != null) {
+                    resources.put(uri, (ConnectorResource) resource);
+                }
+            }
+            registrations.put(entry.getKey(), resources);
+        }
+        return registrations;
+    }
+
+    /**
+     * Registers resources again with the URIs they had when they were
+     * returned by {@link #getRegistrations(UI)}, so that URIs that the client
+     * already knows about keep working after a UI has been restored.
+     * 
+     * @param registrations
+     *            a map from connectors to the URIs and resources registered
+     *            for them
+     */
+    synchronized void restoreRegistrations(
+            Map<ClientConnector, Map<String, ConnectorResource>> registrations) {
+        for (Map.Entry<ClientConnector, Map<String, ConnectorResource>> entry : registrations
+                .entrySet()) {
+            for (Map.Entry<String, ConnectorResource> resourceEntry : entry
+                    .getValue().entrySet()) {
+                String uri = resourceEntry.getKey();
+                ConnectorResource resource = resourceEntry.getValue();
+                if (!legacyResourceKeys.containsKey(resource)) {
+                    legacyResourceKeys.put(resource, uri);
+                }
+                if (!legacyResources.containsKey(uri)) {
+                    legacyResources.put(uri, resource);
+                }
+                registerResourceUsage(resource, entry.getKey());
+                nextLegacyId = Math.max(nextLegacyId, getLegacyId(uri) + 1);
+            }
+        }
+    }
+
+    private static int getLegacyId(String uri) {
+        // legacy/[id] or legacy/[id]/[filename]
+        int start = LEGACY_TYPE.length() + 1;
+        int end = uri.indexOf('/', start);
+        try {
+            return Integer.parseInt(end == -1 ? uri.substring(start) : uri
+                    .substring(start, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private void registerResourceUsage(Resource resource,
             ClientConnector connector) {
         ensureInSet(resourceUsers, resource, connector);
@@ -191,7 +270,10 @@ public class GlobalResourceHandler implements RequestHandler {
      */
     public String getUri(ClientConnector connector, ConnectorResource resource) {
         // app://APP/global/[ui]/[type]/[id]
-        String uri = legacyResourceKeys.get(resource);
+        String uri;
+        synchronized (this) {
+            uri = legacyResourceKeys.get(resource);
+        }
         if (uri != null && !uri.isEmpty()) {
             return ApplicationConstants.APP_PROTOCOL_PREFIX
                     + ApplicationConstants.APP_PATH + '/'
@@ -210,7 +292,7 @@ public class GlobalResourceHandler implements RequestHandler {
      *            the connector for which any registered resources can be
      *            released.
      */
-    public void unregisterConnector(ClientConnector connector) {
+    public synchronized void unregisterConnector(ClientConnector connector) {
         Set<Resource> set = usedResources.remove(connector);
         if (set == null) {
             return;
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.vaadin.server;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe histogram of non-negative values with power of two buckets.
+ * Recording a value is lock free and does not allocate memory, which makes the
+ * histogram suitable for collecting metrics while handling requests.
+ * Percentiles are approximate: they are reported as the upper bound of the
+ * bucket they fall in, but never above the largest recorded value.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class Histogram implements Serializable {
+
+    /**
+     * An immutable summary of the values recorded in a histogram.
+     */
+    public static class Snapshot implements Serializable {
+        private final long count;
+        private final double mean;
+        private final long max;
+        private final long median;
+        private final long percentile90;
+        private final long percentile99;
+
+        @ConstructorProperties({ "count", "mean", "max", "median",
+                "percentile90", "percentile99" })
+        public Snapshot(long count, double mean, long max, long median,
+                long percentile90, long percentile99) {
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.median = median;
+            this.percentile90 = percentile90;
+            this.percentile99 = percentile99;
+        }
+
+        /**
+         * @return the number of recorded values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean of the recorded values
+         */
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * @return the largest recorded value
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the approximate median of the recorded values
+         */
+        public long getMedian() {
+            return median;
+        }
+
+        /**
+         * @return the approximate 90th percentile of the recorded values
+         */
+        public long getPercentile90() {
+            return percentile90;
+        }
+
+        /**
+         * @return the approximate 99th percentile of the recorded values
+         */
+        public long getPercentile99() {
+            return percentile99;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + mean + ", max=" + max
+                    + ", median=" + median + ", p90=" + percentile90
+                    + ", p99=" + percentile99;
+        }
+    }
+
+    /*
+     * Bucket 0 holds zeros and bucket n > 0 holds values in [2^(n-1), 2^n - 1]
+     */
+    private static final int BUCKET_COUNT = 65;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     * 
+     * @param value
+     *            the value to record
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded values.
+     * 
+     * @return the number of values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the sum of all recorded values.
+     * 
+     * @return the sum of the values
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Returns the largest recorded value.
+     * 
+     * @return the largest value, or 0 if nothing has been recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     * 
+     * @return the mean, or 0 if nothing has been recorded
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Returns an approximation of the given percentile of the recorded values.
+     * 
+     * @param percentile
+     *            the percentile, between 0 and 100
+     * @return the upper bound of the bucket containing the percentile, or 0 if
+     *         nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long n = 0;
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long upperBound = i == 0 ? 0 : i == 64 ? Long.MAX_VALUE
+                        : (1L << i) - 1;
+                return Math.min(upperBound, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns a summary of the recorded values.
+     * 
+     * @return a snapshot of this histogram
+     */
+    public Snapshot getSnapshot() {
+        return new Snapshot(getCount(), getMean(), getMax(),
+                getPercentile(50), getPercentile(90), getPercentile(99));
+    }
+
+    /**
+     * Removes all recorded values. Values recorded concurrently with a reset
+     * might be partially retained.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return getSnapshot().toString();
+    }
+}
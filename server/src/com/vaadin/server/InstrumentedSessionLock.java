@@ -0,0 +1,308 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Session lock that keeps track of its current owner and reports wait and
+ * hold times to the {@link SessionLockMetrics} of the service.
+ * <p>
+ * The thread holding the lock is always known. The stack trace of the thread
+ * at the time it acquired the lock is recorded only when
+ * {@link SessionLockMetrics#isOwnerSampling() owner sampling} is enabled, since
+ * capturing a stack trace is expensive.
+ * <p>
+ * If a {@link SessionLockMetrics#getMaxWait() maximum wait} is set, a thread
+ * handling a request gives up after waiting that long in {@link #lock()} and
+ * throws a {@link SessionLockTimeoutException} that describes the current
+ * owner. Other threads, e.g. ones running background tasks, wait as long as
+ * needed.
+ * <p>
+ * The metrics are not serialized with the lock. The service reattaches its
+ * metrics when a deserialized lock is read from the session.
+ * <p>
+ * Subclasses can change the underlying locking by overriding
+ * {@link #acquireLock()}, {@link #acquireLockInterruptibly()},
+ * {@link #tryAcquireLock()}, {@link #tryAcquireLock(long, TimeUnit)} and
+ * {@link #releaseLock()}.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class InstrumentedSessionLock extends ReentrantLock {
+
+    private transient volatile SessionLockMetrics metrics;
+
+    /**
+     * Whether this lock reports to metrics, kept so that the metrics can be
+     * reattached after deserialization.
+     */
+    private final boolean instrumented;
+
+    private transient volatile Thread ownerThread;
+    private transient volatile StackTraceElement[] ownerStackTrace;
+    private transient volatile long acquireTime;
+
+    /**
+     * Creates a lock that only keeps track of its owner.
+     */
+    public InstrumentedSessionLock() {
+        this(null);
+    }
+
+    /**
+     * Creates a lock that reports to the given metrics.
+     * 
+     * @param metrics
+     *            the metrics to report to and to read the settings from, or
+     *            <code>null</code> to only keep track of the owner
+     */
+    public InstrumentedSessionLock(SessionLockMetrics metrics) {
+        this.metrics = metrics;
+        instrumented = metrics != null;
+    }
+
+    /**
+     * Reattaches the metrics of the service after this lock has been
+     * deserialized. Does nothing if the lock was created without metrics or
+     * already has them.
+     * 
+     * @param metrics
+     *            the session lock metrics of the service
+     */
+    void restoreMetrics(SessionLockMetrics metrics) {
+        if (instrumented && this.metrics == null) {
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * Gets the maximum time the current thread should wait for a lock before
+     * giving up. Only threads handling a request have a maximum wait.
+     * 
+     * @return the maximum wait in milliseconds, or 0 to wait as long as
+     *         needed
+     */
+    protected long getMaxWaitForCurrentThread() {
+        SessionLockMetrics metrics = this.metrics;
+        if (metrics == null || VaadinService.getCurrentRequest() == null) {
+            return 0;
+        }
+        return metrics.getMaxWait();
+    }
+
+    /**
+     * Records that a thread gave up waiting for a lock.
+     */
+    protected void recordTimeout() {
+        SessionLockMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordTimeout();
+        }
+    }
+
+    @Override
+    public void lock() {
+        long start = System.nanoTime();
+        long maxWait = getMaxWaitForCurrentThread();
+        if (maxWait > 0 && !isHeldByCurrentThread()) {
+            boolean acquired;
+            try {
+                acquired = tryAcquireLock(maxWait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (!acquired) {
+                recordTimeout();
+                throw new SessionLockTimeoutException(
+                        "Gave up waiting for the session lock after "
+                                + maxWait + " ms. " + getOwnerDescription());
+            }
+        } else {
+            acquireLock();
+        }
+        lockAcquired(start);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        long start = System.nanoTime();
+        acquireLockInterruptibly();
+        lockAcquired(start);
+    }
+
+    @Override
+    public boolean tryLock() {
+        if (tryAcquireLock()) {
+            lockAcquired(System.nanoTime());
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        if (tryAcquireLock(timeout, unit)) {
+            lockAcquired(start);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void unlock() {
+        if (isHeldByCurrentThread() && getHoldCount() == 1) {
+            SessionLockMetrics metrics = this.metrics;
+            if (metrics != null) {
+                metrics.recordHold(System.nanoTime() - acquireTime);
+            }
+            ownerThread = null;
+            ownerStackTrace = null;
+        }
+        releaseLock();
+    }
+
+    private void lockAcquired(long start) {
+        if (getHoldCount() != 1) {
+            // Reentrant locking does not wait
+            return;
+        }
+        long now = System.nanoTime();
+        acquireTime = now;
+        ownerThread = Thread.currentThread();
+        SessionLockMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordWait(now - start);
+            if (metrics.isOwnerSampling()) {
+                ownerStackTrace = ownerThread.getStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Acquires the underlying lock, waiting as long as needed.
+     */
+    protected void acquireLock() {
+        super.lock();
+    }
+
+    /**
+     * Acquires the underlying lock unless the thread is interrupted.
+     * 
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    protected void acquireLockInterruptibly() throws InterruptedException {
+        super.lockInterruptibly();
+    }
+
+    /**
+     * Acquires the underlying lock if it is available.
+     * 
+     * @return <code>true</code> if the lock was acquired, otherwise
+     *         <code>false</code>
+     */
+    protected boolean tryAcquireLock() {
+        return super.tryLock();
+    }
+
+    /**
+     * Acquires the underlying lock if it becomes available within the given
+     * time.
+     * 
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the unit of the timeout
+     * @return <code>true</code> if the lock was acquired, otherwise
+     *         <code>false</code>
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    protected boolean tryAcquireLock(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return super.tryLock(timeout, unit);
+    }
+
+    /**
+     * Releases the underlying lock.
+     */
+    protected void releaseLock() {
+        super.unlock();
+    }
+
+    /**
+     * Gets the thread currently holding this lock.
+     * 
+     * @return the owner thread, or <code>null</code> if the lock is not held
+     */
+    public Thread getOwnerThread() {
+        return ownerThread;
+    }
+
+    /**
+     * Gets the stack trace of the owner thread at the time it acquired this
+     * lock. Only available if owner sampling was enabled at that time.
+     * 
+     * @return the stack trace, or <code>null</code> if not available
+     */
+    public StackTraceElement[] getOwnerStackTrace() {
+        return ownerStackTrace;
+    }
+
+    /**
+     * Gets a human readable description of the current owner of this lock,
+     * including the stack trace at the time the lock was acquired if it is
+     * available.
+     * 
+     * @return a description of the owner
+     */
+    public String getOwnerDescription() {
+        Thread owner = ownerThread;
+        StackTraceElement[] stackTrace = ownerStackTrace;
+        if (owner == null) {
+            return "The lock is not held by any thread.";
+        }
+        StringBuilder description = new StringBuilder();
+        description.append("The lock has been held by thread \"")
+                .append(owner.getName())
+                .append("\" for ")
+                .append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                        - acquireTime)).append(" ms, ")
+                .append(getWaitingThreads()).append(" threads waiting.");
+        if (stackTrace != null) {
+            description.append(" Acquired at:");
+            for (StackTraceElement element : stackTrace) {
+                description.append("\n\tat ").append(element);
+            }
+        }
+        return description.toString();
+    }
+
+    /**
+     * Gets an estimate of the number of threads waiting to acquire this lock.
+     * 
+     * @return the number of waiting threads
+     */
+    protected int getWaitingThreads() {
+        return getQueueLength();
+    }
+}
@@ -77,6 +77,12 @@ public class JsonCodec implements Serializable {
 
         public FieldProperty(Field field) {
             this.field = field;
+            try {
+                // Skip the access checks done for every Field.get
+                field.setAccessible(true);
+            } catch (SecurityException e) {
+                // Access checks will be performed as usual
+            }
         }
 
         @Override
@@ -116,29 +122,36 @@ public class JsonCodec implements Serializable {
     }
 
     private static class MethodProperty implements BeanProperty {
-        private final PropertyDescriptor pd;
+        /*
+         * The methods and the name are resolved once as the PropertyDescriptor
+         * getters are surprisingly expensive to call for every encoded value.
+         */
+        private final Method readMethod;
+        private final Method writeMethod;
+        private final String name;
 
         public MethodProperty(PropertyDescriptor pd) {
-            this.pd = pd;
+            readMethod = pd.getReadMethod();
+            writeMethod = pd.getWriteMethod();
+
+            String fieldName = writeMethod.getName().substring(3);
+            name = Character.toLowerCase(fieldName.charAt(0))
+                    + fieldName.substring(1);
         }
 
         @Override
         public Object getValue(Object bean) throws Exception {
-            Method readMethod = pd.getReadMethod();
             return readMethod.invoke(bean);
         }
 
         @Override
         public void setValue(Object bean, Object value) throws Exception {
-            pd.getWriteMethod().invoke(bean, value);
+            writeMethod.invoke(bean, value);
         }
 
         @Override
         public String getName() {
-            String fieldName = pd.getWriteMethod().getName().substring(3);
-            fieldName = Character.toLowerCase(fieldName.charAt(0))
-                    + fieldName.substring(1);
-            return fieldName;
+            return name;
         }
 
         public static Collection<MethodProperty> find(Class<?> type)
@@ -158,7 +171,7 @@ public class JsonCodec implements Serializable {
 
         @Override
         public Type getType() {
-            return pd.getReadMethod().getGenericReturnType();
+            return readMethod.getGenericReturnType();
         }
 
     }
@@ -171,6 +184,12 @@ public class JsonCodec implements Serializable {
      */
     private static ConcurrentMap<Class<?>, Collection<BeanProperty>> typePropertyCache = new ConcurrentHashMap<Class<?>, Collection<BeanProperty>>();
 
+    /**
+     * Cache of the precomputed encoders for objects encoded field by field.
+     * Shared between threads in the same way as {@link #typePropertyCache}.
+     */
+    private static ConcurrentMap<Class<?>, ObjectEncoder> objectEncoderCache = new ConcurrentHashMap<Class<?>, ObjectEncoder>();
+
     private static Map<Class<?>, String> typeToTransportType = new HashMap<Class<?>, String>();
 
     /**
@@ -658,7 +677,8 @@ public class JsonCodec implements Serializable {
             Collection<?> collection = (Collection<?>) value;
             JSONArray jsonArray = encodeCollection(valueType, collection,
                     connectorTracker);
-            return new EncodeResult(jsonArray);
+            return new EncodeResult(jsonArray, encodeCollectionDiff(valueType,
+                    jsonArray, diffState));
         } else if (valueType instanceof Class<?>
                 && ((Class<?>) valueType).isArray()) {
             JSONArray jsonArray = encodeArrayContents(
@@ -674,7 +694,8 @@ public class JsonCodec implements Serializable {
         } else if (value instanceof Map) {
             Object jsonMap = encodeMap(valueType, (Map<?, ?>) value,
                     connectorTracker);
-            return new EncodeResult(jsonMap);
+            return new EncodeResult(jsonMap, encodeMapDiff(valueType, jsonMap,
+                    diffState));
         } else if (value instanceof Connector) {
             Connector connector = (Connector) value;
             if (value instanceof Component
@@ -725,49 +746,146 @@ public class JsonCodec implements Serializable {
     private static EncodeResult encodeObject(Object value, Class<?> valueType,
             JSONObject referenceValue, ConnectorTracker connectorTracker)
             throws JSONException {
-        JSONObject encoded = new JSONObject();
-        JSONObject diff = new JSONObject();
+        return getObjectEncoder(valueType).encode(value, referenceValue,
+                connectorTracker);
+    }
 
-        try {
-            for (BeanProperty property : getProperties(valueType)) {
-                String fieldName = property.getName();
-                // We can't use PropertyDescriptor.getPropertyType() as it does
-                // not support generics
-                Type fieldType = property.getType();
-                Object fieldValue = property.getValue(value);
+    private static ObjectEncoder getObjectEncoder(Class<?> type)
+            throws JSONException {
+        ObjectEncoder encoder = objectEncoderCache.get(type);
+        if (encoder == null) {
+            try {
+                encoder = new ObjectEncoder(type, getProperties(type));
+            } catch (IntrospectionException e) {
+                throw new JSONException(e.getMessage());
+            }
+            // Same reasoning as in getProperties, no need for putIfAbsent
+            objectEncoderCache.put(type, encoder);
+        }
+        return encoder;
+    }
 
-                if (encoded.has(fieldName)) {
-                    throw new RuntimeException(
+    /**
+     * Encodes objects of one type field by field. Everything that only depends
+     * on the type, i.e. the properties to encode, their names and declared
+     * types and how each property should be encoded, is resolved once when
+     * the encoder is created instead of for every encoded object.
+     */
+    private static class ObjectEncoder implements Serializable {
+        private final Class<?> type;
+        private final PropertyEncoder[] propertyEncoders;
+
+        public ObjectEncoder(Class<?> type, Collection<BeanProperty> properties)
+                throws JSONException {
+            this.type = type;
+
+            Set<String> names = new HashSet<String>();
+            propertyEncoders = new PropertyEncoder[properties.size()];
+            int i = 0;
+            for (BeanProperty property : properties) {
+                String fieldName = property.getName();
+                if (!names.add(fieldName)) {
+                    throw new JSONException(
                             "Can't encode "
-                                    + valueType.getName()
+                                    + type.getName()
                                     + " as it has multiple properties with the name "
                                     + fieldName.toLowerCase()
                                     + ". This can happen if there are getters and setters for a public field (the framework can't know which to ignore) or if there are properties with only casing distinguishing between the names (e.g. getFoo() and getFOO())");
                 }
+                propertyEncoders[i++] = new PropertyEncoder(property);
+            }
+        }
 
-                Object fieldReference;
-                if (referenceValue != null) {
-                    fieldReference = referenceValue.get(fieldName);
-                    if (JSONObject.NULL.equals(fieldReference)) {
+        public EncodeResult encode(Object value, JSONObject referenceValue,
+                ConnectorTracker connectorTracker) throws JSONException {
+            JSONObject encoded = new JSONObject();
+            JSONObject diff = new JSONObject();
+
+            try {
+                for (PropertyEncoder propertyEncoder : propertyEncoders) {
+                    String fieldName = propertyEncoder.name;
+
+                    Object fieldReference;
+                    if (referenceValue != null) {
+                        fieldReference = referenceValue.opt(fieldName);
+                        if (JSONObject.NULL.equals(fieldReference)) {
+                            fieldReference = null;
+                        }
+                    } else {
                         fieldReference = null;
                     }
-                } else {
-                    fieldReference = null;
-                }
 
-                EncodeResult encodeResult = encode(fieldValue, fieldReference,
-                        fieldType, connectorTracker);
-                encoded.put(fieldName, encodeResult.getEncodedValue());
+                    Object fieldValue = propertyEncoder.property
+                            .getValue(value);
+
+                    Object encodedValue;
+                    Object diffOrValue;
+                    if (propertyEncoder.simpleValue) {
+                        // Strings, primitives and their wrappers are
+                        // encoded as such
+                        encodedValue = fieldValue == null ? JSONObject.NULL
+                                : fieldValue;
+                        diffOrValue = encodedValue;
+                    } else if (propertyEncoder.enumValue) {
+                        encodedValue = fieldValue == null ? JSONObject.NULL
+                                : ((Enum<?>) fieldValue).name();
+                        diffOrValue = encodedValue;
+                    } else {
+                        EncodeResult encodeResult = JsonCodec.encode(
+                                fieldValue, fieldReference,
+                                propertyEncoder.type, connectorTracker);
+                        encodedValue = encodeResult.getEncodedValue();
+                        diffOrValue = encodeResult.getDiffOrValue();
+                    }
+
+                    encoded.put(fieldName, encodedValue);
 
-                if (!jsonEquals(encodeResult.getEncodedValue(), fieldReference)) {
-                    diff.put(fieldName, encodeResult.getDiffOrValue());
+                    if (!jsonEquals(encodedValue, fieldReference)) {
+                        diff.put(fieldName, diffOrValue);
+                    }
                 }
+            } catch (Exception e) {
+                // TODO: Should exceptions be handled in a different way?
+                throw new JSONException(e.getMessage());
             }
-        } catch (Exception e) {
-            // TODO: Should exceptions be handled in a different way?
-            throw new JSONException(e.getMessage());
+            return new EncodeResult(encoded, diff);
+        }
+
+        @Override
+        public String toString() {
+            return "ObjectEncoder for " + type.getName();
+        }
+    }
+
+    private static class PropertyEncoder implements Serializable {
+        private final BeanProperty property;
+        private final String name;
+        // We can't use PropertyDescriptor.getPropertyType() as it does not
+        // support generics
+        private final Type type;
+        private final boolean simpleValue;
+        private final boolean enumValue;
+
+        public PropertyEncoder(BeanProperty property) {
+            this.property = property;
+            name = property.getName();
+            type = property.getType();
+            simpleValue = isSimpleValueType(type);
+            enumValue = type instanceof Class<?>
+                    && ((Class<?>) type).isEnum();
+        }
+
+        private static boolean isSimpleValueType(Type type) {
+            if (!(type instanceof Class<?>)) {
+                return false;
+            }
+            Class<?> cls = (Class<?>) type;
+            return cls.isPrimitive() || cls == String.class
+                    || cls == Boolean.class || cls == Character.class
+                    || cls == Integer.class || cls == Long.class
+                    || cls == Float.class || cls == Double.class
+                    || cls == Short.class || cls == Byte.class;
         }
-        return new EncodeResult(encoded, diff);
     }
 
     /**
@@ -789,11 +907,29 @@ public class JsonCodec implements Serializable {
             return true;
         } else if (fieldValue == null || referenceValue == null) {
             return false;
+        } else if (fieldValue instanceof Number
+                && referenceValue instanceof Number) {
+            /*
+             * A reference decoded from a JSON string loses the original type,
+             * e.g. the Double 50.0 comes back as the Integer 50, so compare
+             * numbers by their JSON representation.
+             */
+            return numberToString((Number) fieldValue).equals(
+                    numberToString((Number) referenceValue));
         } else {
             return fieldValue.toString().equals(referenceValue.toString());
         }
     }
 
+    private static String numberToString(Number number) {
+        try {
+            return JSONObject.numberToString(number);
+        } catch (JSONException e) {
+            // Infinite or NaN, can't be encoded as JSON anyway
+            return number.toString();
+        }
+    }
+
     private static EncodeResult encodeEnum(Enum<?> e,
             ConnectorTracker connectorTracker) throws JSONException {
         return new EncodeResult(e.name());
@@ -835,6 +971,181 @@ public class JsonCodec implements Serializable {
         }
     }
 
+    /**
+     * Encodes the changes between a previously encoded list or set and its
+     * current encoding, if sending only the changed elements is supported for
+     * the type and is likely to be smaller than sending the whole collection.
+     * 
+     * @param collectionType
+     *            the declared type of the collection
+     * @param encoded
+     *            the current encoding of the collection
+     * @param reference
+     *            the previous encoding of the collection, or <code>null</code>
+     * @return the encoded changes, or <code>null</code> if the full
+     *         collection should be sent
+     * @throws JSONException
+     */
+    private static JSONObject encodeCollectionDiff(Type collectionType,
+            JSONArray encoded, Object reference) throws JSONException {
+        if (!(reference instanceof JSONArray)
+                || !(collectionType instanceof ParameterizedType)) {
+            return null;
+        }
+        Class<?> rawType = getClassForType(collectionType);
+        if (rawType == List.class || rawType == ArrayList.class) {
+            return encodeListDiff(encoded, (JSONArray) reference);
+        } else if (rawType == Set.class
+                && isValueComparable(((ParameterizedType) collectionType)
+                        .getActualTypeArguments()[0])) {
+            return encodeSetDiff(encoded, (JSONArray) reference);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Encodes the changes to a list as one splice operation replacing the
+     * elements between the unchanged head and tail of the list. This covers
+     * appending, inserting, removing and replacing elements.
+     */
+    private static JSONObject encodeListDiff(JSONArray encoded,
+            JSONArray reference) throws JSONException {
+        int length = encoded.length();
+        int referenceLength = reference.length();
+        int commonLength = Math.min(length, referenceLength);
+
+        int head = 0;
+        while (head < commonLength
+                && jsonEquals(encoded.get(head), reference.get(head))) {
+            head++;
+        }
+        int tail = 0;
+        while (tail < commonLength - head
+                && jsonEquals(encoded.get(length - 1 - tail),
+                        reference.get(referenceLength - 1 - tail))) {
+            tail++;
+        }
+
+        int removeCount = referenceLength - head - tail;
+        int insertCount = length - head - tail;
+        if (head + tail <= removeCount + insertCount) {
+            // Most of the list has changed, just send the whole list
+            return null;
+        }
+
+        JSONArray inserted = new JSONArray();
+        for (int i = head; i < head + insertCount; i++) {
+            inserted.put(encoded.get(i));
+        }
+        JSONArray splice = new JSONArray();
+        splice.put(head);
+        splice.put(removeCount);
+        splice.put(inserted);
+
+        JSONObject diff = new JSONObject();
+        diff.put(JsonConstants.COLLECTION_DIFF_SPLICE, splice);
+        return diff;
+    }
+
+    private static JSONObject encodeSetDiff(JSONArray encoded,
+            JSONArray reference) throws JSONException {
+        Map<String, Object> referenceValues = new HashMap<String, Object>();
+        for (int i = 0; i < reference.length(); i++) {
+            Object value = reference.get(i);
+            referenceValues.put(String.valueOf(value), value);
+        }
+
+        JSONArray added = new JSONArray();
+        int unchanged = 0;
+        for (int i = 0; i < encoded.length(); i++) {
+            Object value = encoded.get(i);
+            if (referenceValues.remove(String.valueOf(value)) != null) {
+                unchanged++;
+            } else {
+                added.put(value);
+            }
+        }
+        if (unchanged <= added.length() + referenceValues.size()) {
+            return null;
+        }
+
+        JSONObject diff = new JSONObject();
+        diff.put(JsonConstants.COLLECTION_DIFF_ADD, added);
+        diff.put(JsonConstants.COLLECTION_DIFF_REMOVE, new JSONArray(
+                referenceValues.values()));
+        return diff;
+    }
+
+    /**
+     * Encodes the changes between a previously encoded map and its current
+     * encoding. Only maps with String keys are diffed.
+     * 
+     * @return the encoded changes, or <code>null</code> if the full map should
+     *         be sent
+     * @throws JSONException
+     */
+    private static JSONArray encodeMapDiff(Type mapType, Object encoded,
+            Object reference) throws JSONException {
+        Class<?> rawType = getClassForType(mapType);
+        if (!(encoded instanceof JSONObject)
+                || !(reference instanceof JSONObject)
+                || (rawType != Map.class && rawType != HashMap.class)) {
+            return null;
+        }
+        Type keyType = ((ParameterizedType) mapType).getActualTypeArguments()[0];
+        if (keyType != String.class) {
+            return null;
+        }
+        JSONObject encodedMap = (JSONObject) encoded;
+        JSONObject referenceMap = (JSONObject) reference;
+
+        JSONObject put = new JSONObject();
+        int unchanged = 0;
+        for (Iterator<?> i = encodedMap.keys(); i.hasNext();) {
+            String key = (String) i.next();
+            Object value = encodedMap.get(key);
+            if (referenceMap.has(key)
+                    && jsonEquals(value, referenceMap.get(key))) {
+                unchanged++;
+            } else {
+                put.put(key, value);
+            }
+        }
+        JSONArray remove = new JSONArray();
+        for (Iterator<?> i = referenceMap.keys(); i.hasNext();) {
+            String key = (String) i.next();
+            if (!encodedMap.has(key)) {
+                remove.put(key);
+            }
+        }
+        if (unchanged <= put.length() + remove.length()) {
+            return null;
+        }
+
+        JSONArray diff = new JSONArray();
+        diff.put(JsonConstants.MAP_DIFF);
+        diff.put(put);
+        diff.put(remove);
+        return diff;
+    }
+
+    /**
+     * Checks whether decoded values of the given type can be compared for
+     * equality on the client, which is required for removing them from a set.
+     */
+    private static boolean isValueComparable(Type type) {
+        if (!(type instanceof Class<?>)) {
+            return false;
+        }
+        Class<?> cls = (Class<?>) type;
+        return cls == String.class || cls == Connector.class || cls.isEnum()
+                || cls == Boolean.class || cls == Character.class
+                || cls == Integer.class || cls == Long.class
+                || cls == Float.class || cls == Double.class
+                || cls == Short.class || cls == Byte.class;
+    }
+
     private static Object encodeMap(Type mapType, Map<?, ?> map,
             ConnectorTracker connectorTracker) throws JSONException {
         Type keyType, valueType;
@@ -16,8 +16,11 @@
 
 package com.vaadin.server;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.Map.Entry;
 
 /**
  * <code>KeyMapper</code> is the simple two-way map for generating textual keys
@@ -32,7 +35,11 @@ public class KeyMapper<V> implements Serializable {
 
     private final HashMap<V, String> objectKeyMap = new HashMap<V, String>();
 
-    private final HashMap<String, V> keyObjectMap = new HashMap<String, V>();
+    /*
+     * The inverse of objectKeyMap, rebuilt when deserializing instead of being
+     * serialized
+     */
+    private transient HashMap<String, V> keyObjectMap = new HashMap<String, V>();
 
     /**
      * Gets key for an object.
@@ -93,4 +100,13 @@ public class KeyMapper<V> implements Serializable {
         objectKeyMap.clear();
         keyObjectMap.clear();
     }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        keyObjectMap = new HashMap<String, V>(objectKeyMap.size() * 4 / 3 + 1);
+        for (Entry<V, String> entry : objectKeyMap.entrySet()) {
+            keyObjectMap.put(entry.getValue(), entry.getKey());
+        }
+    }
 }
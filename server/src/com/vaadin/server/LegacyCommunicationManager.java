@@ -158,7 +158,8 @@ public class LegacyCommunicationManager implements Serializable {
         return publishedFileContexts;
     }
 
-    private String registerPublishedFile(String name, Class<?> context) {
+    private synchronized String registerPublishedFile(String name,
+            Class<?> context) {
         // Add to map of names accepted by servePublishedFile
         if (publishedFileContexts.containsKey(name)) {
             Class<?> oldContext = publishedFileContexts.get(name);
@@ -179,7 +180,7 @@ public class LegacyCommunicationManager implements Serializable {
      * @deprecated As of 7.1. See #11410.
      */
     @Deprecated
-    public ClientCache getClientCache(UI uI) {
+    public synchronized ClientCache getClientCache(UI uI) {
         Integer uiId = Integer.valueOf(uI.getUIId());
         ClientCache cache = uiToClientCache.get(uiId);
         if (cache == null) {
@@ -303,7 +304,8 @@ public class LegacyCommunicationManager implements Serializable {
      * @deprecated As of 7.1. Will be removed in the future.
      */
     @Deprecated
-    public String getTagForType(Class<? extends ClientConnector> class1) {
+    public synchronized String getTagForType(
+            Class<? extends ClientConnector> class1) {
         Integer id = typeToKey.get(class1);
         if (id == null) {
             id = nextTypeKey++;
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.vaadin.server;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vaadin.server.Histogram.Snapshot;
+
+/**
+ * Collects timings and sizes of the requests handled by a
+ * {@link VaadinService}. Only every Nth request is measured, as configured
+ * using the <code>requestMetricsSampling</code> init parameter or
+ * {@link #setSamplingInterval(int)}. Requests that are not sampled only pay
+ * for incrementing a counter, which makes it feasible to keep sampling enabled
+ * in production.
+ * <p>
+ * The values of a sampled request are collected in a {@link Sample} stored as
+ * a request attribute and added to the histograms when the request ends. The
+ * metrics are registered as an MXBean when the service is initialized, also
+ * if sampling is disabled, so that sampling can be enabled through JMX.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class RequestMetrics implements RequestMetricsMXBean, Serializable {
+
+    /**
+     * The measured phases of handling a request.
+     */
+    public enum Phase {
+        /**
+         * Waiting for the session lock.
+         */
+        LOCK_WAIT,
+        /**
+         * Decoding RPC calls received from the client.
+         */
+        RPC_DECODE,
+        /**
+         * Executing RPC calls and the listeners they trigger.
+         */
+        RPC_EXECUTION,
+        /**
+         * Painting legacy components.
+         */
+        LEGACY_PAINT,
+        /**
+         * Encoding shared states.
+         */
+        STATE_ENCODING,
+        /**
+         * Writing the response to the client.
+         */
+        RESPONSE_WRITE;
+    }
+
+    /**
+     * The values measured for one sampled request.
+     */
+    public static class Sample implements Serializable {
+        private final long startTime = System.nanoTime();
+        private final long[] phaseTimes = new long[Phase.values().length];
+        private final boolean[] phasesRecorded = new boolean[phaseTimes.length];
+        private long bytesIn = -1;
+        private long bytesOut = -1;
+        private int dirtyConnectors = -1;
+
+        /**
+         * Adds time spent in a phase. Time can be added several times for the
+         * same phase.
+         * 
+         * @param phase
+         *            the phase
+         * @param startTime
+         *            the start of the phase as returned by
+         *            {@link System#nanoTime()}
+         */
+        public void addTimeSince(Phase phase, long startTime) {
+            phaseTimes[phase.ordinal()] += System.nanoTime() - startTime;
+            phasesRecorded[phase.ordinal()] = true;
+        }
+
+        /**
+         * Sets the size of the request body.
+         * 
+         * @param bytesIn
+         *            the number of bytes received
+         */
+        public void setBytesIn(long bytesIn) {
+            this.bytesIn = bytesIn;
+        }
+
+        /**
+         * Adds to the size of the response.
+         * 
+         * @param bytesOut
+         *            the number of bytes written
+         */
+        public void addBytesOut(long bytesOut) {
+            this.bytesOut = Math.max(this.bytesOut, 0) + bytesOut;
+        }
+
+        /**
+         * Adds to the number of dirty connectors written in the response.
+         * 
+         * @param dirtyConnectors
+         *            the number of connectors
+         */
+        public void addDirtyConnectors(int dirtyConnectors) {
+            this.dirtyConnectors = Math.max(this.dirtyConnectors, 0)
+                    + dirtyConnectors;
+        }
+    }
+
+    private static final String SAMPLE_ATTRIBUTE = RequestMetrics.class
+            .getName() + ".sample";
+
+    private volatile int samplingInterval;
+    private final AtomicLong requestCounter = new AtomicLong();
+    private final AtomicLong sampledRequests = new AtomicLong();
+
+    private final Histogram requestDuration = new Histogram();
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+    private final Histogram bytesIn = new Histogram();
+    private final Histogram bytesOut = new Histogram();
+    private final Histogram dirtyConnectors = new Histogram();
+
+    /**
+     * Creates new request metrics.
+     * 
+     * @param samplingInterval
+     *            the interval at which requests are sampled, or 0 to disable
+     *            sampling
+     */
+    public RequestMetrics(int samplingInterval) {
+        setSamplingInterval(samplingInterval);
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Decides whether a request should be measured and starts a sample for it
+     * if it should.
+     * 
+     * @param request
+     *            the request that is starting
+     * @return the sample for the request, or null if the request is not
+     *         measured
+     */
+    public Sample startSample(VaadinRequest request) {
+        int interval = samplingInterval;
+        if (interval <= 0 || requestCounter.incrementAndGet() % interval != 0) {
+            return null;
+        }
+        Sample sample = new Sample();
+        sample.setBytesIn(request.getContentLength());
+        request.setAttribute(SAMPLE_ATTRIBUTE, sample);
+        return sample;
+    }
+
+    /**
+     * Gets the sample of a request.
+     * 
+     * @param request
+     *            the request, or null
+     * @return the sample of the request, or null if the request is not
+     *         measured
+     */
+    public Sample getSample(VaadinRequest request) {
+        if (samplingInterval <= 0 || request == null) {
+            return null;
+        }
+        return (Sample) request.getAttribute(SAMPLE_ATTRIBUTE);
+    }
+
+    /**
+     * Gets the sample of the request currently being handled.
+     * 
+     * @see VaadinService#getCurrentRequest()
+     * 
+     * @return the sample of the current request, or null if the request is not
+     *         measured or there is no current request
+     */
+    public Sample getCurrentSample() {
+        if (samplingInterval <= 0) {
+            return null;
+        }
+        return getSample(VaadinService.getCurrentRequest());
+    }
+
+    /**
+     * Adds the values of the sample of an ending request to the collected
+     * metrics.
+     * 
+     * @param request
+     *            the request that has been handled
+     */
+    public void endSample(VaadinRequest request) {
+        Sample sample = getSample(request);
+        if (sample == null) {
+            return;
+        }
+        request.removeAttribute(SAMPLE_ATTRIBUTE);
+
+        sampledRequests.incrementAndGet();
+        requestDuration.record(toMicros(System.nanoTime() - sample.startTime));
+        for (int i = 0; i < phases.length; i++) {
+            if (sample.phasesRecorded[i]) {
+                phases[i].record(toMicros(sample.phaseTimes[i]));
+            }
+        }
+        if (sample.bytesIn >= 0) {
+            bytesIn.record(sample.bytesIn);
+        }
+        if (sample.bytesOut >= 0) {
+            bytesOut.record(sample.bytesOut);
+        }
+        if (sample.dirtyConnectors >= 0) {
+            dirtyConnectors.record(sample.dirtyConnectors);
+        }
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Gets the histogram of the durations of a phase in microseconds.
+     * 
+     * @param phase
+     *            the phase
+     * @return the histogram for the phase
+     */
+    public Histogram getPhaseHistogram(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    @Override
+    public int getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    @Override
+    public void setSamplingInterval(int samplingInterval) {
+        this.samplingInterval = Math.max(0, samplingInterval);
+    }
+
+    @Override
+    public long getSampledRequestCount() {
+        return sampledRequests.get();
+    }
+
+    @Override
+    public Snapshot getRequestDuration() {
+        return requestDuration.getSnapshot();
+    }
+
+    @Override
+    public Snapshot getLockWait() {
+        return getPhaseHistogram(Phase.LOCK_WAIT).getSnapshot();
+    }
+
+    @Override
+    public Snapshot getRpcDecode() {
+        return getPhaseHistogram(Phase.RPC_DECODE).getSnapshot();
+    }
+
+    @Override
+    public Snapshot getRpcExecution() {
+        return getPhaseHistogram(Phase.RPC_EXECUTION).getSnapshot();
+    }
+
+    @Override
+    public Snapshot getLegacyPaint() {
+        return getPhaseHistogram(Phase.LEGACY_PAINT).getSnapshot();
+    }
+
+    @Override
+    public Snapshot getStateEncoding() {
+        return getPhaseHistogram(Phase.STATE_ENCODING).getSnapshot();
+    }
+
+    @Override
+    public Snapshot getResponseWrite() {
+        return getPhaseHistogram(Phase.RESPONSE_WRITE).getSnapshot();
+    }
+
+    @Override
+    public Snapshot getBytesIn() {
+        return bytesIn.getSnapshot();
+    }
+
+    @Override
+    public Snapshot getBytesOut() {
+        return bytesOut.getSnapshot();
+    }
+
+    @Override
+    public Snapshot getDirtyConnectors() {
+        return dirtyConnectors.getSnapshot();
+    }
+
+    @Override
+    public void reset() {
+        sampledRequests.set(0);
+        requestDuration.reset();
+        for (Histogram histogram : phases) {
+            histogram.reset();
+        }
+        bytesIn.reset();
+        bytesOut.reset();
+        dirtyConnectors.reset();
+    }
+}
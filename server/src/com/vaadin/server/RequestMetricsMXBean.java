@@ -0,0 +1,105 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.vaadin.server;
+
+import com.vaadin.server.Histogram.Snapshot;
+
+/**
+ * Management interface for the request metrics of a {@link VaadinService}.
+ * Durations are reported in microseconds and sizes in bytes.
+ * 
+ * @see RequestMetrics
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public interface RequestMetricsMXBean {
+
+    /**
+     * @return the interval at which requests are sampled, e.g. 10 if every
+     *         tenth request is measured, or 0 if sampling is disabled
+     */
+    public int getSamplingInterval();
+
+    /**
+     * @param samplingInterval
+     *            the interval at which requests are sampled, 1 to measure
+     *            every request or 0 to disable sampling
+     */
+    public void setSamplingInterval(int samplingInterval);
+
+    /**
+     * @return the number of requests that have been measured
+     */
+    public long getSampledRequestCount();
+
+    /**
+     * @return the total time spent handling a request
+     */
+    public Snapshot getRequestDuration();
+
+    /**
+     * @return the time spent waiting for the session lock
+     */
+    public Snapshot getLockWait();
+
+    /**
+     * @return the time spent decoding RPC calls from the client
+     */
+    public Snapshot getRpcDecode();
+
+    /**
+     * @return the time spent executing RPC calls and the listeners they
+     *         trigger
+     */
+    public Snapshot getRpcExecution();
+
+    /**
+     * @return the time spent painting legacy components
+     */
+    public Snapshot getLegacyPaint();
+
+    /**
+     * @return the time spent encoding shared states
+     */
+    public Snapshot getStateEncoding();
+
+    /**
+     * @return the time spent writing the response
+     */
+    public Snapshot getResponseWrite();
+
+    /**
+     * @return the size of request bodies
+     */
+    public Snapshot getBytesIn();
+
+    /**
+     * @return the size of UIDL responses
+     */
+    public Snapshot getBytesOut();
+
+    /**
+     * @return the number of dirty connectors written in a response
+     */
+    public Snapshot getDirtyConnectors();
+
+    /**
+     * Clears all collected metrics.
+     */
+    public void reset();
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.vaadin.sass.internal.ScssStylesheet;
+
+/**
+ * Cache for stylesheets compiled on the fly from SCSS by {@link VaadinServlet}
+ * when not in production mode.
+ * <p>
+ * The first request for a stylesheet waits for it to be compiled. After that,
+ * the cached CSS is returned right away. The modification times of the SCSS
+ * files imported by the stylesheet are checked at most once per check
+ * interval. When a file has changed, the stylesheet is recompiled in the
+ * background and the previous CSS is returned until the compilation is
+ * done.
+ * </p>
+ * <p>
+ * Different stylesheets are compiled in parallel if the SCSS compiler keeps
+ * its state in the compilation instead of in static fields. Older compilers
+ * compile one stylesheet at a time.
+ * </p>
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class ScssCache implements ScssCacheMXBean, Serializable {
+
+    /**
+     * The default minimum time in milliseconds between checks of the
+     * modification times of the files of a stylesheet.
+     */
+    public static final long DEFAULT_CHECK_INTERVAL = 1000;
+
+    private static final Pattern IMPORT_PATTERN = Pattern
+            .compile("@import\\s+([^;]+);");
+
+    /*
+     * Compilers with ScssContext keep the state of a compilation in the
+     * context, older ones in static fields.
+     */
+    private static final boolean PARALLEL_COMPILE = isClassPresent("com.vaadin.sass.internal.ScssContext");
+
+    /*
+     * Used for compiling one stylesheet at a time if the compiler has static
+     * state and is not thread safe (#10292). Shared by all servlets since the
+     * state is.
+     */
+    private static final Object COMPILE_LOCK = new Object();
+
+    private static class Entry implements Serializable {
+        private final String css;
+        private final String realFilename;
+        private final String identifier;
+        private final Map<File, Long> dependencies;
+        private volatile long checkedAt;
+
+        private Entry(String css, String realFilename, String identifier,
+                Map<File, Long> dependencies) {
+            this.css = css;
+            this.realFilename = realFilename;
+            this.identifier = identifier;
+            this.dependencies = dependencies;
+            checkedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /*
+     * Locks for the first compilation of each stylesheet, so that requests
+     * for different stylesheets don't wait for each other.
+     */
+    private final ConcurrentHashMap<String, Object> firstCompileLocks = new ConcurrentHashMap<String, Object>();
+
+    private final ConcurrentHashMap<String, Boolean> recompiling = new ConcurrentHashMap<String, Boolean>();
+
+    private final transient ExecutorService executor;
+
+    private final long checkInterval;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong compiles = new AtomicLong();
+    private final AtomicLong failedCompiles = new AtomicLong();
+    private final AtomicLong totalCompileTime = new AtomicLong();
+    private final AtomicLong maxCompileTime = new AtomicLong();
+    private volatile long lastCompileTime = 0;
+
+    /**
+     * Creates a cache that recompiles stylesheets using the given executor.
+     * 
+     * @param executor
+     *            the executor for background compilations, shut down by
+     *            {@link #shutdown()}
+     * @param checkInterval
+     *            the minimum time in milliseconds between checks of the
+     *            modification times of the files of a stylesheet
+     */
+    public ScssCache(ExecutorService executor, long checkInterval) {
+        this.executor = executor;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Checks whether the SCSS compiler can compile several stylesheets at the
+     * same time.
+     * 
+     * @return <code>true</code> if stylesheets can be compiled in parallel,
+     *         <code>false</code> if they are compiled one at a time
+     */
+    public static boolean isParallelCompileSupported() {
+        return PARALLEL_COMPILE;
+    }
+
+    /**
+     * Gets the CSS compiled from a stylesheet. The stylesheet is compiled if
+     * it is not in the cache. If a file of a cached stylesheet has changed, a
+     * background compilation is started and the previously compiled CSS is
+     * returned.
+     * 
+     * @param scssFilename
+     *            the path of the stylesheet in the web application, e.g.
+     *            <code>/VAADIN/themes/mytheme/styles.scss</code>
+     * @param realFilename
+     *            the path of the stylesheet in the file system, or
+     *            <code>null</code> if it is only available from the class
+     *            path
+     * @return the compiled CSS, or <code>null</code> if the stylesheet could
+     *         not be compiled
+     */
+    public String getCss(String scssFilename, String realFilename) {
+        Entry entry = entries.get(scssFilename);
+        if (entry == null) {
+            Object lock = new Object();
+            Object existingLock = firstCompileLocks.putIfAbsent(scssFilename,
+                    lock);
+            if (existingLock != null) {
+                lock = existingLock;
+            }
+            synchronized (lock) {
+                entry = entries.get(scssFilename);
+                if (entry == null) {
+                    misses.incrementAndGet();
+                    String identifier = scssFilename;
+                    if (identifier.startsWith("/")) {
+                        identifier = identifier.substring(1);
+                    }
+                    entry = compileEntry(realFilename, identifier);
+                    if (entry == null) {
+                        return null;
+                    }
+                    entries.put(scssFilename, entry);
+                }
+                return entry.css;
+            }
+        }
+
+        if (isStale(entry)) {
+            staleHits.incrementAndGet();
+            recompile(scssFilename, entry);
+        } else if (recompiling.containsKey(scssFilename)) {
+            staleHits.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry.css;
+    }
+
+    private boolean isStale(Entry entry) {
+        long now = System.currentTimeMillis();
+        if (now - entry.checkedAt < checkInterval) {
+            return false;
+        }
+        entry.checkedAt = now;
+        for (Map.Entry<File, Long> dependency : entry.dependencies.entrySet()) {
+            if (dependency.getKey().lastModified() != dependency.getValue()
+                    .longValue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recompile(final String scssFilename, final Entry entry) {
+        if (recompiling.putIfAbsent(scssFilename, Boolean.TRUE) != null) {
+            // Already being compiled
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Entry newEntry = compileEntry(entry.realFilename,
+                                entry.identifier);
+                        if (newEntry == null) {
+                            // Keep serving the old CSS until the files change
+                            // again instead of retrying all the time
+                            newEntry = new Entry(entry.css,
+                                    entry.realFilename, entry.identifier,
+                                    findDependencies(entry.realFilename));
+                        }
+                        entries.put(scssFilename, newEntry);
+                    } finally {
+                        recompiling.remove(scssFilename);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shut down
+            recompiling.remove(scssFilename);
+        }
+    }
+
+    /**
+     * Compiles a stylesheet and records the files it depends on.
+     * 
+     * @return the new entry, or <code>null</code> if compilation failed
+     */
+    private Entry compileEntry(String realFilename, String identifier) {
+        // Record the dependencies before compiling, so that changes made
+        // during the compilation cause another compilation
+        Map<File, Long> dependencies = findDependencies(realFilename);
+        long start = System.nanoTime();
+        String css;
+        try {
+            if (PARALLEL_COMPILE) {
+                css = compile(realFilename, identifier);
+            } else {
+                synchronized (COMPILE_LOCK) {
+                    css = compile(realFilename, identifier);
+                }
+            }
+        } catch (Exception e) {
+            failedCompiles.incrementAndGet();
+            getLogger().log(Level.WARNING, "Scss compilation failed", e);
+            return null;
+        }
+        if (css == null) {
+            failedCompiles.incrementAndGet();
+            getLogger()
+                    .log(Level.WARNING,
+                            "Scss file {0} exists but ScssStylesheet was not able to find it",
+                            identifier);
+            return null;
+        }
+
+        long time = (System.nanoTime() - start) / 1000000;
+        compiles.incrementAndGet();
+        lastCompileTime = time;
+        totalCompileTime.addAndGet(time);
+        long max = maxCompileTime.get();
+        while (time > max && !maxCompileTime.compareAndSet(max, time)) {
+            max = maxCompileTime.get();
+        }
+        getLogger().log(Level.FINE, "Compiled {0} in {1} ms",
+                new Object[] { identifier, Long.valueOf(time) });
+
+        return new Entry(css, realFilename, identifier, dependencies);
+    }
+
+    /**
+     * Compiles a stylesheet.
+     * 
+     * @param realFilename
+     *            the path of the stylesheet in the file system, or
+     *            <code>null</code>
+     * @param identifier
+     *            the class path identifier of the stylesheet, used if the
+     *            file is not found in the file system
+     * @return the compiled CSS, or <code>null</code> if the stylesheet was not
+     *         found
+     * @throws Exception
+     *             if the compilation fails
+     */
+    protected String compile(String realFilename, String identifier)
+            throws Exception {
+        ScssStylesheet scss = null;
+        if (realFilename != null) {
+            scss = ScssStylesheet.get(realFilename);
+        }
+        if (scss == null) {
+            // Not a file in the file system (WebContent directory). Use the
+            // identifier directly (VAADIN/themes/.../styles.css) so
+            // ScssStylesheet will try using the class loader.
+            scss = ScssStylesheet.get(identifier);
+        }
+        if (scss == null) {
+            return null;
+        }
+        scss.compile();
+        return scss.printState();
+    }
+
+    /**
+     * Finds the SCSS files a stylesheet imports, directly or through other
+     * files, and their modification times. Stylesheets loaded from the class
+     * path are not tracked since they don't change.
+     * 
+     * @param realFilename
+     *            the path of the stylesheet in the file system, or
+     *            <code>null</code>
+     * @return the files and their modification times, including the
+     *         stylesheet itself
+     */
+    static Map<File, Long> findDependencies(String realFilename) {
+        if (realFilename == null || !new File(realFilename).isFile()) {
+            return Collections.emptyMap();
+        }
+        Map<File, Long> dependencies = new HashMap<File, Long>();
+        LinkedList<File> pending = new LinkedList<File>();
+        pending.add(new File(realFilename));
+        while (!pending.isEmpty()) {
+            File file = pending.removeFirst();
+            if (dependencies.containsKey(file)) {
+                continue;
+            }
+            dependencies.put(file, Long.valueOf(file.lastModified()));
+            try {
+                for (String name : findImports(readFile(file))) {
+                    for (File imported : resolveImport(file.getParentFile(),
+                            name)) {
+                        pending.add(imported);
+                    }
+                }
+            } catch (IOException e) {
+                // Compilation will report it
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * Finds the names of the SCSS files imported by a stylesheet. Imports of
+     * plain CSS are not included.
+     */
+    static List<String> findImports(String scss) {
+        List<String> imports = new ArrayList<String>();
+        Matcher matcher = IMPORT_PATTERN.matcher(scss);
+        while (matcher.find()) {
+            for (String name : matcher.group(1).split(",")) {
+                name = name.trim();
+                if (name.length() < 2
+                        || (name.charAt(0) != '"' && name.charAt(0) != '\'')) {
+                    // url(...) imports
+                    continue;
+                }
+                int end = name.indexOf(name.charAt(0), 1);
+                if (end < 0) {
+                    continue;
+                }
+                name = name.substring(1, end);
+                if (name.endsWith(".css") || name.contains("://")) {
+                    continue;
+                }
+                imports.add(name);
+            }
+        }
+        return imports;
+    }
+
+    private static List<File> resolveImport(File directory, String name) {
+        List<File> files = new ArrayList<File>(2);
+        if (name.endsWith(".scss")) {
+            files.add(new File(directory, name));
+        } else {
+            File file = new File(directory, name + ".scss");
+            files.add(file);
+            // Partials may be imported without the leading underscore
+            files.add(new File(file.getParentFile(), "_" + file.getName()));
+        }
+        for (int i = files.size() - 1; i >= 0; i--) {
+            if (!files.get(i).isFile()) {
+                files.remove(i);
+            }
+        }
+        return files;
+    }
+
+    private static String readFile(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file),
+                "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                sb.append(buffer, 0, read);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean isClassPresent(String className) {
+        try {
+            Class.forName(className, false,
+                    ScssStylesheet.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops background compilations. Called when the servlet is destroyed.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getCompileCount() {
+        return compiles.get();
+    }
+
+    @Override
+    public long getFailedCompileCount() {
+        return failedCompiles.get();
+    }
+
+    @Override
+    public long getLastCompileTime() {
+        return lastCompileTime;
+    }
+
+    @Override
+    public long getMaxCompileTime() {
+        return maxCompileTime.get();
+    }
+
+    @Override
+    public long getTotalCompileTime() {
+        return totalCompileTime.get();
+    }
+
+    @Override
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public void reset() {
+        hits.set(0);
+        staleHits.set(0);
+        misses.set(0);
+        compiles.set(0);
+        failedCompiles.set(0);
+        totalCompileTime.set(0);
+        maxCompileTime.set(0);
+        lastCompileTime = 0;
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(ScssCache.class.getName());
+    }
+}
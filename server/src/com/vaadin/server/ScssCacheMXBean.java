@@ -0,0 +1,86 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+/**
+ * Management interface for the {@link ScssCache} of a {@link VaadinServlet}.
+ * 
+ * @see ScssCache
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public interface ScssCacheMXBean {
+
+    /**
+     * @return the number of requests served with up to date CSS from the
+     *         cache
+     */
+    public long getHitCount();
+
+    /**
+     * @return the number of requests served with outdated CSS while the
+     *         stylesheet was being recompiled
+     */
+    public long getStaleHitCount();
+
+    /**
+     * @return the number of requests that had to wait for the first
+     *         compilation of a stylesheet
+     */
+    public long getMissCount();
+
+    /**
+     * @return the number of successful compilations
+     */
+    public long getCompileCount();
+
+    /**
+     * @return the number of failed compilations
+     */
+    public long getFailedCompileCount();
+
+    /**
+     * @return the duration of the latest compilation in milliseconds
+     */
+    public long getLastCompileTime();
+
+    /**
+     * @return the duration of the slowest compilation in milliseconds
+     */
+    public long getMaxCompileTime();
+
+    /**
+     * @return the combined duration of all compilations in milliseconds
+     */
+    public long getTotalCompileTime();
+
+    /**
+     * @return the number of stylesheets in the cache
+     */
+    public int getEntryCount();
+
+    /**
+     * Removes all stylesheets from the cache so they are compiled again when
+     * next requested.
+     */
+    public void clear();
+
+    /**
+     * Clears all counters.
+     */
+    public void reset();
+}
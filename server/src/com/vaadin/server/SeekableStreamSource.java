@@ -0,0 +1,58 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+
+/**
+ * A source of downloadable content that can be read starting from any
+ * position. A {@link DownloadStream} uses a seekable source for serving only
+ * the requested parts of the content when the browser sends a
+ * <code>Range</code> header, e.g. when seeking in a video or resuming an
+ * interrupted download.
+ * <p>
+ * A {@link StreamResource.StreamSource} can also implement this interface to
+ * enable range requests for a {@link StreamResource}.
+ * </p>
+ * 
+ * @see FileResource
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public interface SeekableStreamSource extends Serializable {
+
+    /**
+     * Gets the length of the content.
+     * 
+     * @return the length of the content in bytes, or -1 if the length is not
+     *         known
+     */
+    public long getContentLength();
+
+    /**
+     * Opens a new stream for reading the content starting from the given
+     * position.
+     * 
+     * @param offset
+     *            the position of the first byte to read
+     * @return a new input stream positioned at the offset
+     * @throws IOException
+     *             if the stream can not be opened
+     */
+    public InputStream openStream(long offset) throws IOException;
+}
@@ -15,20 +15,43 @@
  */
 package com.vaadin.server;
 
+import java.io.Serializable;
 import java.lang.reflect.Method;
-import java.util.Map;
+import java.lang.reflect.Type;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.vaadin.shared.communication.MethodInvocation;
 import com.vaadin.shared.communication.ServerRpc;
 
 public class ServerRpcMethodInvocation extends MethodInvocation {
 
-    private static final Map<String, Method> invocationMethodCache = new ConcurrentHashMap<String, Method>(
+    /**
+     * Resolved RPC methods per interface and method name. There is typically
+     * only one method for each name, but overloads with a different number of
+     * parameters are also supported.
+     */
+    private static final ConcurrentMap<Class<?>, ConcurrentMap<String, RpcMethod[]>> invocationMethodCache = new ConcurrentHashMap<Class<?>, ConcurrentMap<String, RpcMethod[]>>(
             128, 0.75f, 1);
 
+    /**
+     * An RPC method together with its generic parameter types, which are
+     * otherwise created anew every time they are asked from the method.
+     */
+    private static class RpcMethod implements Serializable {
+        private final Method method;
+        private final Type[] parameterTypes;
+
+        public RpcMethod(Method method) {
+            this.method = method;
+            parameterTypes = method.getGenericParameterTypes();
+        }
+    }
+
     private final Method method;
 
+    private final Type[] parameterTypes;
+
     private final Class<? extends ServerRpc> interfaceClass;
 
     public ServerRpcMethodInvocation(String connectorId,
@@ -39,8 +62,10 @@ public class ServerRpcMethodInvocation extends MethodInvocation {
         assert ServerRpc.class.isAssignableFrom(interfaceClass);
         this.interfaceClass = interfaceClass;
 
-        method = findInvocationMethod(interfaceClass, methodName,
+        RpcMethod rpcMethod = findInvocationMethod(interfaceClass, methodName,
                 parameterCount);
+        method = rpcMethod.method;
+        parameterTypes = rpcMethod.parameterTypes;
     }
 
     public Class<? extends ServerRpc> getInterfaceClass() {
@@ -51,6 +76,17 @@ public class ServerRpcMethodInvocation extends MethodInvocation {
         return method;
     }
 
+    /**
+     * Gets the generic parameter types of the invoked method. The returned
+     * array is shared between invocations and must not be modified.
+     * 
+     * @since 7.2
+     * @return the generic parameter types of {@link #getMethod()}
+     */
+    public Type[] getParameterTypes() {
+        return parameterTypes;
+    }
+
     /**
      * Tries to find the method from the cache or alternatively by invoking
      * {@link #doFindInvocationMethod(Class, String, int)} and updating the
@@ -61,32 +97,53 @@ public class ServerRpcMethodInvocation extends MethodInvocation {
      * @param parameterCount
      * @return
      */
-    private Method findInvocationMethod(Class<?> targetType, String methodName,
-            int parameterCount) {
+    private RpcMethod findInvocationMethod(Class<?> targetType,
+            String methodName, int parameterCount) {
         // TODO currently only using method name and number of parameters as the
         // signature
-        String signature = targetType.getName() + "." + methodName + "("
-                + parameterCount;
-        Method invocationMethod = invocationMethodCache.get(signature);
-
-        if (invocationMethod == null) {
-            invocationMethod = doFindInvocationMethod(targetType, methodName,
-                    parameterCount);
+        ConcurrentMap<String, RpcMethod[]> methods = invocationMethodCache
+                .get(targetType);
+        if (methods == null) {
+            methods = new ConcurrentHashMap<String, RpcMethod[]>(16, 0.75f, 1);
+            ConcurrentMap<String, RpcMethod[]> existing = invocationMethodCache
+                    .putIfAbsent(targetType, methods);
+            if (existing != null) {
+                methods = existing;
+            }
+        }
 
-            if (invocationMethod != null) {
-                invocationMethodCache.put(signature, invocationMethod);
+        RpcMethod[] candidates = methods.get(methodName);
+        if (candidates != null) {
+            for (RpcMethod candidate : candidates) {
+                if (candidate.parameterTypes.length == parameterCount) {
+                    return candidate;
+                }
             }
         }
 
+        Method invocationMethod = doFindInvocationMethod(targetType,
+                methodName, parameterCount);
+
         if (invocationMethod == null) {
             throw new IllegalStateException("Can't find method " + methodName
                     + " with " + parameterCount + " parameters in "
                     + targetType.getName());
         }
 
-        return invocationMethod;
-    }
+        RpcMethod rpcMethod = new RpcMethod(invocationMethod);
+        // Racing threads might both add the method, which is harmless
+        RpcMethod[] updated;
+        if (candidates == null) {
+            updated = new RpcMethod[] { rpcMethod };
+        } else {
+            updated = new RpcMethod[candidates.length + 1];
+            System.arraycopy(candidates, 0, updated, 0, candidates.length);
+            updated[candidates.length] = rpcMethod;
+        }
+        methods.put(methodName, updated);
 
+        return rpcMethod;
+    }
     /**
      * Tries to find the method from the class by looping through available
      * methods.
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vaadin.server.Histogram.Snapshot;
+
+/**
+ * Collects wait and hold times of the session locks created by a
+ * {@link VaadinService} and holds the settings of the locks. The settings are
+ * initialized from the <code>sessionLockMaxWait</code> and
+ * <code>sessionLockOwnerSampling</code> init parameters and can be changed at
+ * runtime through the MXBean, which is registered when the service is
+ * initialized if either request metrics sampling or owner sampling is enabled.
+ * 
+ * @see InstrumentedSessionLock
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class SessionLockMetrics implements SessionLockMetricsMXBean,
+        Serializable {
+
+    private volatile boolean ownerSampling;
+    private volatile long maxWait;
+
+    private final Histogram waitTime = new Histogram();
+    private final Histogram holdTime = new Histogram();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Records the time a thread waited for a lock.
+     * 
+     * @param nanos
+     *            the wait time in nanoseconds
+     */
+    public void recordWait(long nanos) {
+        waitTime.record(toMicros(nanos));
+    }
+
+    /**
+     * Records the time a lock was held.
+     * 
+     * @param nanos
+     *            the hold time in nanoseconds
+     */
+    public void recordHold(long nanos) {
+        holdTime.record(toMicros(nanos));
+    }
+
+    /**
+     * Records that a request gave up waiting for a lock.
+     */
+    public void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    @Override
+    public boolean isOwnerSampling() {
+        return ownerSampling;
+    }
+
+    @Override
+    public void setOwnerSampling(boolean ownerSampling) {
+        this.ownerSampling = ownerSampling;
+    }
+
+    @Override
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    @Override
+    public void setMaxWait(long maxWait) {
+        this.maxWait = Math.max(0, maxWait);
+    }
+
+    @Override
+    public Snapshot getWaitTime() {
+        return waitTime.getSnapshot();
+    }
+
+    @Override
+    public Snapshot getHoldTime() {
+        return holdTime.getSnapshot();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    @Override
+    public void reset() {
+        waitTime.reset();
+        holdTime.reset();
+        timeouts.set(0);
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import com.vaadin.server.Histogram.Snapshot;
+
+/**
+ * Management interface for the session lock metrics of a {@link VaadinService}.
+ * Durations are reported in microseconds.
+ * 
+ * @see SessionLockMetrics
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public interface SessionLockMetricsMXBean {
+
+    /**
+     * @return true if the stack trace of the thread acquiring a session lock
+     *         is recorded
+     */
+    public boolean isOwnerSampling();
+
+    /**
+     * @param ownerSampling
+     *            true to record the stack trace of the thread acquiring a
+     *            session lock, false to only record the thread
+     */
+    public void setOwnerSampling(boolean ownerSampling);
+
+    /**
+     * @return the maximum time in milliseconds that a request waits for the
+     *         session lock, or 0 to wait as long as needed
+     */
+    public long getMaxWait();
+
+    /**
+     * @param maxWait
+     *            the maximum time in milliseconds that a request waits for
+     *            the session lock, or 0 to wait as long as needed
+     */
+    public void setMaxWait(long maxWait);
+
+    /**
+     * @return the time spent waiting for a session lock
+     */
+    public Snapshot getWaitTime();
+
+    /**
+     * @return the time a session lock is held
+     */
+    public Snapshot getHoldTime();
+
+    /**
+     * @return the number of requests that gave up waiting for a session lock
+     */
+    public long getTimeoutCount();
+
+    /**
+     * Clears all collected metrics.
+     */
+    public void reset();
+}
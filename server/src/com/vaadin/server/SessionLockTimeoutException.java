@@ -0,0 +1,40 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+/**
+ * Thrown when the lock of a session could not be acquired for handling a
+ * request within the maximum wait time configured using the
+ * <code>sessionLockMaxWait</code> init parameter. The request is then rejected
+ * instead of keeping the thread waiting.
+ * 
+ * @see SessionLockMetrics#getMaxWait()
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class SessionLockTimeoutException extends RuntimeException {
+
+    /**
+     * Creates a new exception.
+     * 
+     * @param message
+     *            the detail message, describing the current holder of the lock
+     */
+    public SessionLockTimeoutException(String message) {
+        super(message);
+    }
+}
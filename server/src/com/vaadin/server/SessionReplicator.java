@@ -0,0 +1,822 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.vaadin.ui.Alignment;
+import com.vaadin.ui.ConnectorTracker;
+import com.vaadin.ui.UI;
+
+/**
+ * Creates replication deltas of a {@link VaadinSession} for keeping a standby
+ * copy of the session up to date, e.g. on another node of a cluster. The
+ * first delta is a full copy of the session and the following deltas only
+ * contain the connectors that have been registered, changed or unregistered
+ * since the previous delta was created. The deltas are applied to the standby
+ * copy using {@link #applyDelta(VaadinSession, byte[])}.
+ * <p>
+ * Changed connectors are found by comparing a digest of the serialized fields
+ * of each connector with the digest recorded for the previous delta, so
+ * changes are found even if the connector has not been marked dirty. Creating
+ * a delta thus costs about as much processing as serializing the whole
+ * session, but only the changes are written.
+ * <p>
+ * The fields of a changed connector are written by value and copied into the
+ * existing connector instance of the standby copy, so references between
+ * connectors remain intact. Objects that are not connectors are copied along
+ * with the connectors that refer to them. Session attributes are included in
+ * every delta. If an object that is written by value is also reachable from
+ * connectors that have not changed, e.g. a container shared by a changed and
+ * an unchanged component, those connectors are written as well, so that they
+ * still share the same copy of the object in the standby copy. A UI is
+ * written in full when it is new or after {@link #reset()}.
+ * <p>
+ * Deltas should be created while the session is locked and after the
+ * response to a request has been written, since the standby copy assumes
+ * that the client has the current state of connectors that are not dirty.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class SessionReplicator implements Serializable {
+
+    private static final byte FULL = 0;
+    private static final byte DELTA = 1;
+
+    private static final byte UI_FULL = 0;
+    private static final byte UI_CHANGES = 1;
+
+    private enum Reference {
+        SESSION, SERVICE;
+    }
+
+    /**
+     * Owner of the objects reachable from the session attributes.
+     */
+    private static final Object ATTRIBUTES = new Object();
+
+    /**
+     * Refers to a connector that is already present in the standby copy.
+     */
+    private static class ConnectorReference implements Serializable {
+        private final int uiId;
+        private final String connectorId;
+
+        public ConnectorReference(int uiId, String connectorId) {
+            this.uiId = uiId;
+            this.connectorId = connectorId;
+        }
+    }
+
+    private final VaadinSession session;
+
+    /**
+     * The digests of the connectors of each UI in the standby copy by
+     * connector id, or null if a full copy has not been created yet.
+     */
+    private transient Map<Integer, Map<String, byte[]>> checkpoint;
+
+    /**
+     * Creates a replicator for the given session.
+     * 
+     * @param session
+     *            the session to replicate, not <code>null</code>
+     */
+    public SessionReplicator(VaadinSession session) {
+        if (session == null) {
+            throw new IllegalArgumentException("session can not be null");
+        }
+        this.session = session;
+    }
+
+    /**
+     * Gets the replicated session.
+     * 
+     * @return the session
+     */
+    public VaadinSession getSession() {
+        return session;
+    }
+
+    /**
+     * Makes the next delta a full copy of the session, e.g. when the standby
+     * copy has been lost.
+     */
+    public void reset() {
+        checkpoint = null;
+    }
+
+    /**
+     * Creates a delta containing the changes since the previous delta, or a
+     * full copy of the session if no delta has been created since this
+     * replicator was created or reset. The session must be locked.
+     * 
+     * @return the serialized delta
+     * @throws IOException
+     *             if the session could not be serialized
+     */
+    public byte[] createDelta() throws IOException {
+        assert session.hasLock();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (checkpoint == null) {
+            ReplicationOutputStream out = new ReplicationOutputStream(bytes,
+                    false);
+            out.writeByte(FULL);
+            out.writeObject(session);
+            out.close();
+            checkpoint = new ScanOutputStream().scanSession();
+        } else {
+            ScanOutputStream scan = new ScanOutputStream();
+            Map<Integer, Map<String, byte[]>> digests = scan.scanSession();
+            Set<Object> sharing = scan.getConnectorsSharingState(digests);
+            ReplicationOutputStream out = new ReplicationOutputStream(bytes,
+                    true);
+            out.writeByte(DELTA);
+            writeChanges(out, digests, sharing);
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private void writeChanges(ObjectOutputStream out,
+            Map<Integer, Map<String, byte[]>> digests, Set<Object> sharing)
+            throws IOException {
+        int[] sequences = session.getIdSequences();
+        out.writeInt(sequences[0]);
+        out.writeInt(sequences[1]);
+
+        Map<Integer, UI> uis = new HashMap<Integer, UI>();
+        for (UI ui : session.getUIs()) {
+            uis.put(Integer.valueOf(ui.getUIId()), ui);
+        }
+
+        ArrayList<Integer> removedUIs = new ArrayList<Integer>();
+        Iterator<Integer> iterator = checkpoint.keySet().iterator();
+        while (iterator.hasNext()) {
+            Integer uiId = iterator.next();
+            if (!uis.containsKey(uiId)) {
+                iterator.remove();
+                // Passivated UIs are kept in the standby copy as they were
+                // and written in full once they have been activated
+                if (session.getPassivatedUI(uiId.intValue()) == null) {
+                    removedUIs.add(uiId);
+                }
+            }
+        }
+        out.writeObject(removedUIs);
+
+        out.writeInt(uis.size());
+        for (UI ui : uis.values()) {
+            Integer uiId = Integer.valueOf(ui.getUIId());
+            Map<String, byte[]> previous = checkpoint.get(uiId);
+            if (previous == null) {
+                out.writeByte(UI_FULL);
+                out.writeObject(ui);
+            } else {
+                out.writeByte(UI_CHANGES);
+                out.writeInt(ui.getUIId());
+                writeConnectorChanges(out, ui, previous, digests.get(uiId),
+                        sharing);
+            }
+            // Connectors written so far are referenced by id from now on
+            checkpoint.put(uiId, digests.get(uiId));
+        }
+
+        // Written last so that references to connectors of UIs written in
+        // full are not resolved to the replaced instances
+        out.writeObject(new HashMap<String, Object>(session.getAttributeMap()));
+    }
+
+    private static void writeConnectorChanges(ObjectOutputStream out, UI ui,
+            Map<String, byte[]> previous, Map<String, byte[]> current,
+            Set<Object> sharing) throws IOException {
+        ConnectorTracker tracker = ui.getConnectorTracker();
+
+        ArrayList<String> removed = new ArrayList<String>();
+        for (String id : previous.keySet()) {
+            if (!current.containsKey(id)) {
+                removed.add(id);
+            }
+        }
+
+        ArrayList<ClientConnector> added = new ArrayList<ClientConnector>();
+        List<ClientConnector> modified = new ArrayList<ClientConnector>();
+        for (Map.Entry<String, byte[]> entry : current.entrySet()) {
+            String id = entry.getKey();
+            byte[] digest = previous.get(id);
+            ClientConnector connector = tracker.getConnector(id);
+            if (digest == null) {
+                added.add(connector);
+            } else if (!Arrays.equals(digest, entry.getValue())
+                    || sharing.contains(connector)) {
+                modified.add(connector);
+            }
+        }
+
+        out.writeObject(removed);
+        // New connectors are not in the checkpoint yet and are thus written in
+        // full, including references from modified connectors
+        out.writeObject(added);
+        out.writeInt(modified.size());
+        for (ClientConnector connector : modified) {
+            out.writeUTF(connector.getConnectorId());
+            writeFields(out, connector);
+        }
+        for (ClientConnector connector : added) {
+            writeTrackerState(out, tracker, connector);
+        }
+        for (ClientConnector connector : modified) {
+            writeTrackerState(out, tracker, connector);
+        }
+    }
+
+    private static void writeFields(ObjectOutputStream out, Object object)
+            throws IOException {
+        List<Class<?>> classes = getClasses(object);
+        out.writeInt(classes.size());
+        for (Class<?> type : classes) {
+            List<Field> fields = getFields(type);
+            out.writeUTF(type.getName());
+            out.writeInt(fields.size());
+            for (Field field : fields) {
+                Object value = getValue(field, object);
+                out.writeUTF(field.getName());
+                if (isReplicated(value)) {
+                    out.writeBoolean(true);
+                    out.writeObject(value);
+                } else {
+                    out.writeBoolean(false);
+                }
+            }
+        }
+    }
+
+    private static List<Class<?>> getClasses(Object object) {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (Class<?> type = object.getClass(); type != Object.class; type = type
+                .getSuperclass()) {
+            classes.add(type);
+        }
+        return classes;
+    }
+
+    private static List<Field> getFields(Class<?> type) {
+        List<Field> fields = new ArrayList<Field>();
+        for (Field field : type.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (!Modifier.isStatic(modifiers)
+                    && !Modifier.isTransient(modifiers)) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    private static Object getValue(Field field, Object object)
+            throws IOException {
+        field.setAccessible(true);
+        try {
+            return field.get(object);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static boolean isReplicated(Object value) {
+        // The tracker and the locks of the standby copy are kept
+        return !(value instanceof ConnectorTracker || value instanceof Lock);
+    }
+
+    /**
+     * Checks whether an object can be shared by connectors without being
+     * replicated separately for each of them.
+     */
+    private static boolean isImmutable(Object obj) {
+        return obj instanceof String || obj instanceof Boolean
+                || obj instanceof Character || obj instanceof Byte
+                || obj instanceof Short || obj instanceof Integer
+                || obj instanceof Long || obj instanceof Float
+                || obj instanceof Double || obj instanceof BigInteger
+                || obj instanceof BigDecimal || obj instanceof Enum
+                || obj instanceof Locale || obj instanceof ThemeResource
+                || obj instanceof Alignment
+                || obj instanceof ConnectorReference
+                || obj == Collections.EMPTY_LIST
+                || obj == Collections.EMPTY_SET
+                || obj == Collections.EMPTY_MAP;
+    }
+
+    private static void writeTrackerState(ObjectOutputStream out,
+            ConnectorTracker tracker, ClientConnector connector)
+            throws IOException {
+        boolean initialized = tracker.isClientSideInitialized(connector);
+        boolean dirty = tracker.isDirty(connector);
+        out.writeBoolean(initialized);
+        out.writeBoolean(dirty);
+
+        // The diff state of a clean connector is the current state and can
+        // be rebuilt by the standby copy
+        JSONObject diffState = null;
+        if (initialized && dirty) {
+            diffState = tracker.getDiffState(connector);
+        }
+        out.writeObject(diffState == null ? null : diffState.toString());
+    }
+
+
+    /**
+     * Applies a delta created by {@link #createDelta()} to a standby copy of
+     * the session. A delta containing a full copy of the session does not
+     * need an existing copy. Other deltas must be applied in the order they
+     * were created to the copy created from the preceding deltas, which must
+     * be locked.
+     * 
+     * @param replica
+     *            the standby copy to update, or <code>null</code> if the
+     *            delta is a full copy
+     * @param delta
+     *            the delta to apply
+     * @return the updated standby copy
+     * @throws IOException
+     *             if the delta could not be read
+     * @throws ClassNotFoundException
+     *             if a class in the delta could not be found
+     */
+    public static VaadinSession applyDelta(VaadinSession replica, byte[] delta)
+            throws IOException, ClassNotFoundException {
+        ClassLoader classLoader = null;
+        if (replica != null && replica.getService() != null) {
+            classLoader = replica.getService().getClassLoader();
+        }
+        ReplicationInputStream in = new ReplicationInputStream(
+                new ByteArrayInputStream(delta), replica, classLoader);
+        try {
+            byte type = in.readByte();
+            if (type == FULL) {
+                return (VaadinSession) in.readObject();
+            } else if (type != DELTA) {
+                throw new StreamCorruptedException("Invalid delta type "
+                        + type);
+            } else if (replica == null) {
+                throw new IllegalArgumentException(
+                        "A delta can only be applied to an existing copy");
+            }
+            assert replica.hasLock();
+            readChanges(in, replica);
+            return replica;
+        } finally {
+            in.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void readChanges(ObjectInputStream in, VaadinSession replica)
+            throws IOException, ClassNotFoundException {
+        replica.setIdSequences(new int[] { in.readInt(), in.readInt() });
+
+        for (Integer uiId : (List<Integer>) in.readObject()) {
+            UI ui = findUI(replica, uiId.intValue());
+            if (ui != null) {
+                replica.removeUI(ui);
+            }
+        }
+
+        int uiCount = in.readInt();
+        for (int i = 0; i < uiCount; i++) {
+            byte type = in.readByte();
+            if (type == UI_FULL) {
+                UI ui = (UI) in.readObject();
+                UI previous = findUI(replica, ui.getUIId());
+                if (previous != null) {
+                    replica.removeUI(previous);
+                }
+                replica.addUI(ui);
+            } else if (type == UI_CHANGES) {
+                UI ui = findUI(replica, in.readInt());
+                if (ui == null) {
+                    throw new StreamCorruptedException(
+                            "Delta for a UI that has not been replicated");
+                }
+                readConnectorChanges(in, ui);
+            } else {
+                throw new StreamCorruptedException("Invalid UI type " + type);
+            }
+        }
+
+        Map<String, Object> attributes = (Map<String, Object>) in
+                .readObject();
+        Map<String, Object> replicaAttributes = replica.getAttributeMap();
+        replicaAttributes.keySet().retainAll(attributes.keySet());
+        replicaAttributes.putAll(attributes);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void readConnectorChanges(ObjectInputStream in, UI ui)
+            throws IOException, ClassNotFoundException {
+        ConnectorTracker tracker = ui.getConnectorTracker();
+
+        for (String id : (List<String>) in.readObject()) {
+            ClientConnector connector = tracker.getConnector(id);
+            if (connector != null) {
+                tracker.unregisterConnector(connector);
+            }
+        }
+
+        List<ClientConnector> added = (List<ClientConnector>) in.readObject();
+        int modifiedCount = in.readInt();
+        List<ClientConnector> modified = new ArrayList<ClientConnector>(
+                modifiedCount);
+        for (int i = 0; i < modifiedCount; i++) {
+            String id = in.readUTF();
+            ClientConnector connector = tracker.getConnector(id);
+            if (connector == null) {
+                throw new StreamCorruptedException("Connector " + id
+                        + " has not been replicated");
+            }
+            readFields(in, connector);
+            modified.add(connector);
+        }
+
+        for (ClientConnector connector : added) {
+            tracker.registerConnector(connector);
+            readTrackerState(in, tracker, connector);
+        }
+        for (ClientConnector connector : modified) {
+            readTrackerState(in, tracker, connector);
+        }
+        tracker.cleanConnectorMap();
+    }
+
+    private static void readFields(ObjectInputStream in, Object object)
+            throws IOException, ClassNotFoundException {
+        int classCount = in.readInt();
+        for (int i = 0; i < classCount; i++) {
+            String className = in.readUTF();
+            Class<?> type = object.getClass();
+            while (type != null && !type.getName().equals(className)) {
+                type = type.getSuperclass();
+            }
+            if (type == null) {
+                throw new InvalidClassException(className,
+                        "Not a superclass of " + object.getClass().getName());
+            }
+            int fieldCount = in.readInt();
+            for (int j = 0; j < fieldCount; j++) {
+                String fieldName = in.readUTF();
+                if (!in.readBoolean()) {
+                    continue;
+                }
+                Object value = in.readObject();
+                try {
+                    Field field = type.getDeclaredField(fieldName);
+                    field.setAccessible(true);
+                    field.set(object, value);
+                } catch (NoSuchFieldException e) {
+                    throw new InvalidClassException(className, "No field "
+                            + fieldName);
+                } catch (IllegalAccessException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    private static void readTrackerState(ObjectInputStream in,
+            ConnectorTracker tracker, ClientConnector connector)
+            throws IOException, ClassNotFoundException {
+        boolean initialized = in.readBoolean();
+        boolean dirty = in.readBoolean();
+        String diffState = (String) in.readObject();
+
+        if (dirty) {
+            tracker.markDirty(connector);
+        } else {
+            tracker.markClean(connector);
+        }
+        if (initialized) {
+            tracker.markClientSideInitialized(connector);
+            if (diffState != null) {
+                try {
+                    tracker.setDiffState(connector, new JSONObject(diffState));
+                } catch (JSONException e) {
+                    throw new IOException(e);
+                }
+            } else {
+                tracker.invalidateDiffState(connector);
+            }
+        }
+    }
+
+    private static UI findUI(VaadinSession session, int uiId) {
+        // Avoids activating UIs passivated in the standby copy
+        for (UI ui : session.getUIs()) {
+            if (ui.getUIId() == uiId) {
+                return ui;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Computes the digests of the connectors of the session and records the
+     * objects that are reachable from more than one connector or from a
+     * connector and the session attributes. Connectors are not followed, so
+     * the fields of each connector are written separately.
+     */
+    private class ScanOutputStream extends ObjectOutputStream {
+        private final ByteArrayOutputStream bytes;
+        private final MessageDigest digest;
+
+        /*
+         * The connector whose fields are being written, or ATTRIBUTES
+         */
+        private Object owner;
+
+        private final Map<Object, Object> owners = new IdentityHashMap<Object, Object>();
+        private final Map<Object, Set<Object>> sharedOwners = new IdentityHashMap<Object, Set<Object>>();
+
+        public ScanOutputStream() throws IOException {
+            this(new ByteArrayOutputStream());
+        }
+
+        private ScanOutputStream(ByteArrayOutputStream bytes)
+                throws IOException {
+            super(bytes);
+            this.bytes = bytes;
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            enableReplaceObject(true);
+        }
+
+        /**
+         * Scans all connectors and attributes of the session.
+         * 
+         * @return the digests of the connectors of each UI by connector id
+         */
+        public Map<Integer, Map<String, byte[]>> scanSession()
+                throws IOException {
+            Map<Integer, Map<String, byte[]>> digests = new HashMap<Integer, Map<String, byte[]>>();
+            for (UI ui : session.getUIs()) {
+                Map<String, byte[]> uiDigests = new HashMap<String, byte[]>();
+                scanConnector(ui.getConnectorTracker(), ui, uiDigests);
+                digests.put(Integer.valueOf(ui.getUIId()), uiDigests);
+            }
+
+            begin(ATTRIBUTES);
+            for (Object value : session.getAttributeMap().values()) {
+                writeObject(value);
+            }
+            flush();
+            return digests;
+        }
+
+        private void scanConnector(ConnectorTracker tracker,
+                ClientConnector connector, Map<String, byte[]> digests)
+                throws IOException {
+            String id = connector.getConnectorId();
+            if (tracker.getConnector(id) == connector) {
+                begin(connector);
+                writeBoolean(tracker.isClientSideInitialized(connector));
+                writeBoolean(tracker.isDirty(connector));
+                for (Class<?> type : getClasses(connector)) {
+                    for (Field field : getFields(type)) {
+                        Object value = getValue(field, connector);
+                        if (isReplicated(value)) {
+                            writeObject(value);
+                        }
+                    }
+                }
+                flush();
+                digests.put(id, digest.digest(bytes.toByteArray()));
+            }
+            for (ClientConnector child : AbstractClientConnector
+                    .getAllChildrenIterable(connector)) {
+                scanConnector(tracker, child, digests);
+            }
+        }
+
+        private void begin(Object owner) throws IOException {
+            this.owner = owner;
+            // Objects are only passed to replaceObject once between resets
+            reset();
+            flush();
+            bytes.reset();
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj == session
+                    || (obj instanceof CompactSessionForm && ((CompactSessionForm) obj)
+                            .getSession() == session)) {
+                return Reference.SESSION;
+            } else if (obj == session.getService()) {
+                return Reference.SERVICE;
+            } else if (obj instanceof ClientConnector) {
+                ClientConnector connector = (ClientConnector) obj;
+                UI ui = connector.getUI();
+                if (ui != null && ui.getSession() == session) {
+                    String id = connector.getConnectorId();
+                    if (ui.getConnectorTracker().getConnector(id) == connector) {
+                        return new ConnectorReference(ui.getUIId(), id);
+                    }
+                }
+            }
+            if (!isImmutable(obj)) {
+                recordOwner(obj);
+            }
+            return obj;
+        }
+
+        private void recordOwner(Object obj) {
+            Object previous = owners.put(obj, owner);
+            if (previous != null && previous != owner) {
+                Set<Object> objectOwners = sharedOwners.get(obj);
+                if (objectOwners == null) {
+                    objectOwners = Collections
+                            .newSetFromMap(new IdentityHashMap<Object, Boolean>());
+                    objectOwners.add(previous);
+                    sharedOwners.put(obj, objectOwners);
+                }
+                objectOwners.add(owner);
+            }
+        }
+
+        /**
+         * Finds the unchanged connectors that must be written in a delta
+         * because they share objects with connectors or attributes that are
+         * written by value.
+         * 
+         * @param digests
+         *            the digests returned by {@link #scanSession()}
+         * @return the unchanged connectors to write
+         */
+        public Set<Object> getConnectorsSharingState(
+                Map<Integer, Map<String, byte[]>> digests) {
+            Set<Object> sharing = Collections
+                    .newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            boolean added;
+            do {
+                added = false;
+                for (Set<Object> objectOwners : sharedOwners.values()) {
+                    if (!containsWritten(objectOwners, digests, sharing)) {
+                        continue;
+                    }
+                    for (Object objectOwner : objectOwners) {
+                        if (!isChanged(objectOwner, digests)
+                                && sharing.add(objectOwner)) {
+                            added = true;
+                        }
+                    }
+                }
+            } while (added);
+            return sharing;
+        }
+
+        private boolean containsWritten(Set<Object> objectOwners,
+                Map<Integer, Map<String, byte[]>> digests, Set<Object> sharing) {
+            for (Object objectOwner : objectOwners) {
+                if (sharing.contains(objectOwner)
+                        || isChanged(objectOwner, digests)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isChanged(Object owner,
+                Map<Integer, Map<String, byte[]>> digests) {
+            if (owner == ATTRIBUTES) {
+                return true;
+            }
+            ClientConnector connector = (ClientConnector) owner;
+            Integer uiId = Integer.valueOf(connector.getUI().getUIId());
+            Map<String, byte[]> previous = checkpoint.get(uiId);
+            if (previous == null) {
+                // The UI is written in full
+                return true;
+            }
+            String id = connector.getConnectorId();
+            byte[] digest = previous.get(id);
+            return digest == null
+                    || !Arrays.equals(digest, digests.get(uiId).get(id));
+        }
+    }
+
+    private class ReplicationOutputStream extends CompactObjectOutputStream {
+        private final boolean useReferences;
+
+        public ReplicationOutputStream(OutputStream out, boolean useReferences)
+                throws IOException {
+            super(out);
+            this.useReferences = useReferences;
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (!useReferences) {
+                return super.replaceObject(obj);
+            } else if (obj == session
+                    || (obj instanceof CompactSessionForm && ((CompactSessionForm) obj)
+                            .getSession() == session)) {
+                return Reference.SESSION;
+            } else if (obj != null && obj == session.getService()) {
+                return Reference.SERVICE;
+            } else if (obj instanceof ClientConnector) {
+                ClientConnector connector = (ClientConnector) obj;
+                UI ui = connector.getUI();
+                if (ui != null && ui.getSession() == session) {
+                    Map<String, byte[]> ids = checkpoint.get(Integer
+                            .valueOf(ui.getUIId()));
+                    String id = connector.getConnectorId();
+                    if (ids != null
+                            && ids.containsKey(id)
+                            && ui.getConnectorTracker().getConnector(id) == connector) {
+                        return new ConnectorReference(ui.getUIId(), id);
+                    }
+                }
+            }
+            return super.replaceObject(obj);
+        }
+    }
+
+    private static class ReplicationInputStream extends
+            CompactObjectInputStream {
+        private final VaadinSession replica;
+
+        public ReplicationInputStream(InputStream in, VaadinSession replica,
+                ClassLoader classLoader) throws IOException {
+            super(in, classLoader);
+            this.replica = replica;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (obj == Reference.SESSION) {
+                return replica;
+            } else if (obj == Reference.SERVICE) {
+                return replica.getService();
+            } else if (obj instanceof ConnectorReference) {
+                ConnectorReference reference = (ConnectorReference) obj;
+                UI ui = findUI(replica, reference.uiId);
+                ClientConnector connector = ui == null ? null : ui
+                        .getConnectorTracker().getConnector(
+                                reference.connectorId);
+                if (connector == null) {
+                    throw new StreamCorruptedException("Connector "
+                            + reference.connectorId
+                            + " has not been replicated");
+                }
+                return connector;
+            }
+            return obj;
+        }
+    }
+}
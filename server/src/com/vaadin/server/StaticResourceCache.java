@@ -0,0 +1,342 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vaadin.server.communication.ResponseCompression;
+
+/**
+ * Keeps the content of static resources served by {@link VaadinServlet} from
+ * the VAADIN directory in memory, so that frequently requested resources such
+ * as the widgetset and theme files are not read from the class path or file
+ * system for every request. A gzip encoded variant is created when a resource
+ * is loaded if it makes the resource noticeably smaller, and each variant has
+ * a strong ETag based on the content.
+ * <p>
+ * The total size of the cache is bounded. When a new resource does not fit,
+ * the least recently used resources are evicted. Resources larger than a
+ * quarter of the maximum size are not cached. Cached resources are not
+ * checked for modifications, so the cache is by default only enabled in
+ * production mode. The size is set using the
+ * <code>staticResourceCacheSize</code> init parameter.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class StaticResourceCache implements StaticResourceCacheMXBean,
+        Serializable {
+
+    /**
+     * The default maximum size of the cache in production mode.
+     */
+    public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * A cached resource.
+     */
+    public static final class Entry implements Serializable {
+        private final byte[] content;
+        private final byte[] gzippedContent;
+        private final long lastModified;
+        private final String eTag;
+        private volatile long lastAccess;
+
+        private Entry(byte[] content, byte[] gzippedContent,
+                long lastModified, String eTag) {
+            this.content = content;
+            this.gzippedContent = gzippedContent;
+            this.lastModified = lastModified;
+            this.eTag = eTag;
+        }
+
+        /**
+         * @return the content of the resource
+         */
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * @return the gzip encoded content of the resource, or
+         *         <code>null</code> if there is no gzip encoded variant
+         */
+        public byte[] getGzippedContent() {
+            return gzippedContent;
+        }
+
+        /**
+         * @return the last modification time of the resource, truncated to
+         *         seconds, or 0 if not known
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Gets the strong ETag of a variant of the resource.
+         * 
+         * @param gzipped
+         *            <code>true</code> for the gzip encoded variant,
+         *            <code>false</code> for the plain content
+         * @return the quoted ETag
+         */
+        public String getETag(boolean gzipped) {
+            return gzipped ? "\"" + eTag + "-gzip\"" : "\"" + eTag + "\"";
+        }
+
+        private int getSize() {
+            return content.length
+                    + (gzippedContent == null ? 0 : gzippedContent.length);
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final int compressionLevel;
+    private volatile long maxSize;
+    private long size = 0;
+
+    /*
+     * Increasing counter used as the access time of entries
+     */
+    private final AtomicLong accessCounter = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache with the given maximum size.
+     * 
+     * @param maxSize
+     *            the maximum number of bytes held by the cache
+     * @param compressionLevel
+     *            the level used for creating gzip encoded variants, 1-9
+     */
+    public StaticResourceCache(long maxSize, int compressionLevel) {
+        this.maxSize = maxSize;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Gets a cached resource.
+     * 
+     * @param path
+     *            the path of the resource, e.g.
+     *            <code>/VAADIN/themes/reindeer/styles.css</code>
+     * @return the cached resource, or <code>null</code> if the resource is
+     *         not in the cache
+     */
+    public Entry get(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.lastAccess = accessCounter.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Reads a resource into the cache, evicting the least recently used
+     * resources if needed.
+     * 
+     * @param path
+     *            the path of the resource
+     * @param url
+     *            the URL to read the resource from
+     * @return the cached resource, or <code>null</code> if the resource is too
+     *         large to be cached
+     * @throws IOException
+     *             if reading the resource fails
+     */
+    public Entry load(String path, URL url) throws IOException {
+        long maxEntrySize = getMaxEntrySize();
+        URLConnection connection = url.openConnection();
+        InputStream in = connection.getInputStream();
+        long lastModified;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            lastModified = connection.getLastModified();
+            // Browsers only send seconds in If-Modified-Since
+            lastModified -= lastModified % 1000;
+
+            byte[] bytes = new byte[Constants.DEFAULT_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(bytes)) >= 0) {
+                buffer.write(bytes, 0, read);
+                if (buffer.size() > maxEntrySize) {
+                    return null;
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        byte[] content = buffer.toByteArray();
+        byte[] gzipped = ResponseCompression.gzip(content, compressionLevel);
+        if (gzipped.length > content.length * 9 / 10) {
+            // Not worth the trouble, e.g. an image
+            gzipped = null;
+        }
+        Entry entry = new Entry(content, gzipped, lastModified,
+                createETag(content));
+        if (entry.getSize() > maxEntrySize) {
+            return null;
+        }
+        entry.lastAccess = accessCounter.incrementAndGet();
+        add(path, entry);
+        return entry;
+    }
+
+    private synchronized void add(String path, Entry entry) {
+        Entry old = entries.put(path, entry);
+        if (old != null) {
+            size -= old.getSize();
+        }
+        size += entry.getSize();
+        evict(maxSize);
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache fits the given
+     * size. There are typically at most a few hundred static resources, so
+     * looking for the oldest entry is cheaper than maintaining an ordered
+     * structure on every cache hit.
+     */
+    private synchronized void evict(long targetSize) {
+        while (size > targetSize && !entries.isEmpty()) {
+            String oldestPath = null;
+            long oldestAccess = Long.MAX_VALUE;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (e.getValue().lastAccess < oldestAccess) {
+                    oldestAccess = e.getValue().lastAccess;
+                    oldestPath = e.getKey();
+                }
+            }
+            size -= entries.remove(oldestPath).getSize();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static String createETag(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+            StringBuilder eTag = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                eTag.append(Character.forDigit((b >> 4) & 0xf, 16));
+                eTag.append(Character.forDigit(b & 0xf, 16));
+            }
+            return eTag.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks whether the given <code>If-None-Match</code> header value matches
+     * an ETag.
+     * 
+     * @param ifNoneMatch
+     *            the header value, or <code>null</code>
+     * @param eTag
+     *            the quoted ETag
+     * @return <code>true</code> if the header lists the ETag or is
+     *         <code>*</code>, <code>false</code> otherwise
+     */
+    public static boolean matches(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                // If-None-Match uses weak comparison
+                tag = tag.substring(2);
+            }
+            if (tag.equals(eTag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        evict(this.maxSize);
+    }
+
+    @Override
+    public long getMaxEntrySize() {
+        return maxSize / 4;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    @Override
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+}
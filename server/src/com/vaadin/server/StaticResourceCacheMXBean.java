@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+/**
+ * Management interface for the {@link StaticResourceCache} of a
+ * {@link VaadinServlet}.
+ * 
+ * @see StaticResourceCache
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public interface StaticResourceCacheMXBean {
+
+    /**
+     * @return the number of requests served from the cache
+     */
+    public long getHitCount();
+
+    /**
+     * @return the number of requests for resources that were not in the cache
+     */
+    public long getMissCount();
+
+    /**
+     * @return the number of resources removed from the cache to make room for
+     *         other resources
+     */
+    public long getEvictionCount();
+
+    /**
+     * @return the number of resources in the cache
+     */
+    public int getEntryCount();
+
+    /**
+     * @return the number of bytes held by the cache, including the gzip
+     *         encoded variants
+     */
+    public long getSize();
+
+    /**
+     * @return the maximum number of bytes held by the cache
+     */
+    public long getMaxSize();
+
+    /**
+     * Sets the maximum number of bytes held by the cache. Resources are
+     * evicted if needed.
+     * 
+     * @param maxSize
+     *            the maximum size in bytes
+     */
+    public void setMaxSize(long maxSize);
+
+    /**
+     * @return the maximum size of a single resource in bytes, larger
+     *         resources are not cached
+     */
+    public long getMaxEntrySize();
+
+    /**
+     * Removes all resources from the cache.
+     */
+    public void clear();
+
+    /**
+     * Clears all counters.
+     */
+    public void reset();
+}
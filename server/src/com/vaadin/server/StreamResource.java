@@ -142,11 +142,18 @@ public class StreamResource implements ConnectorResource {
                 getMIMEType(), getFilename());
         ds.setBufferSize(getBufferSize());
         ds.setCacheTime(cacheTime);
+        if (ss instanceof SeekableStreamSource) {
+            ds.setSeekableSource((SeekableStreamSource) ss);
+        }
         return ds;
     }
 
     /**
      * Interface implemented by the source of a StreamResource.
+     * <p>
+     * If the source also implements {@link SeekableStreamSource}, browsers can
+     * request parts of the content, e.g. for seeking in a video.
+     * </p>
      * 
      * @author Vaadin Ltd.
      * @since 3.0
@@ -17,11 +17,16 @@ package com.vaadin.server;
 
 import java.io.IOException;
 
+import com.vaadin.server.RequestMetrics.Phase;
+import com.vaadin.ui.UI;
+
 /**
  * RequestHandler which takes care of locking and unlocking of the VaadinSession
  * automatically. The session is locked before
  * {@link #synchronizedHandleRequest(VaadinSession, VaadinRequest, VaadinResponse)}
- * is called and unlocked after it has completed.
+ * is called and unlocked after it has completed. Handlers for requests that
+ * only touch a single UI may choose to lock just that UI by overriding
+ * {@link #isUIRequest(VaadinRequest)}.
  * 
  * @author Vaadin Ltd
  * @version @VERSION@
@@ -36,11 +41,27 @@ public abstract class SynchronizedRequestHandler implements RequestHandler {
             return false;
         }
 
-        session.lock();
+        RequestMetrics.Sample sample = session.getService()
+                .getRequestMetrics().getSample(request);
+        long lockStart = System.nanoTime();
+        UI ui = null;
+        if (isUIRequest(request)) {
+            ui = session.getService().findAndLockUI(request, session);
+        }
+        if (ui == null) {
+            session.lock();
+        }
+        if (sample != null) {
+            sample.addTimeSince(Phase.LOCK_WAIT, lockStart);
+        }
         try {
             return synchronizedHandleRequest(session, request, response);
         } finally {
-            session.unlock();
+            if (ui != null) {
+                ui.unlock();
+            } else {
+                session.unlock();
+            }
         }
     }
 
@@ -87,4 +108,23 @@ public abstract class SynchronizedRequestHandler implements RequestHandler {
         return true;
     }
 
+    /**
+     * Checks whether the handling of a request only touches the UI identified
+     * by the request. If this is the case and
+     * {@link DeploymentConfiguration#isUILockingEnabled() UI locking} is
+     * enabled, only the lock of that UI is held instead of the session lock
+     * while
+     * {@link #synchronizedHandleRequest(VaadinSession, VaadinRequest, VaadinResponse)}
+     * is run. The default implementation returns <code>false</code>.
+     * 
+     * @since 7.2
+     * @param request
+     *            the request to handle
+     * @return <code>true</code> if it is enough to lock the UI of the
+     *         request; <code>false</code> if the session should be locked
+     */
+    protected boolean isUIRequest(VaadinRequest request) {
+        return false;
+    }
+
 }
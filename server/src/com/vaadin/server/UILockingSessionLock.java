@@ -0,0 +1,239 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.vaadin.ui.UI;
+
+/**
+ * Session lock used when UI locking is enabled using the
+ * {@link Constants#SERVLET_PARAMETER_UI_LOCKING} init parameter.
+ * <p>
+ * Each UI in the session has its own lock, and requests and access tasks that
+ * only touch a single UI lock just that UI. The session lock itself is only
+ * needed for session level operations such as creating, closing or removing
+ * UIs. Holding the session lock gives exclusive access to the session and all
+ * its UIs, which means that code written for the session wide lock keeps
+ * working unchanged.
+ * <p>
+ * This is implemented with a read-write lock. Locking the session acquires the
+ * write lock, whereas locking a UI acquires the read lock before acquiring the
+ * lock of the UI itself. Holding the lock of one UI thus allows other UIs in
+ * the same session to be used concurrently, but not the session lock.
+ * <p>
+ * The following rules ensure that no deadlocks can occur:
+ * <ul>
+ * <li>The session lock can not be acquired while holding the lock of a UI in
+ * the session, since the read lock can not be upgraded. {@link #lock()} throws
+ * an {@link IllegalStateException} instead of waiting forever. Use
+ * {@link VaadinSession#access(Runnable)} to run session level tasks from UI
+ * code.</li>
+ * <li>The lock of a UI can not be acquired while holding the lock of another
+ * UI in the same session. Use {@link UI#access(Runnable)} instead.</li>
+ * <li>Any UI lock can be acquired while holding the session lock as the
+ * session lock excludes all other UI lock holders.</li>
+ * </ul>
+ * <p>
+ * This class extends {@link ReentrantLock} through
+ * {@link InstrumentedSessionLock} so that it can be used in place of the
+ * regular session lock. The locking methods and the methods for checking
+ * the lock holder operate on the write lock. The final queue inspection
+ * methods of {@link ReentrantLock} can not be overridden and do not provide
+ * meaningful information for this lock.
+ * 
+ * @since 7.2
+ * @author Vaadin Ltd
+ */
+public class UILockingSessionLock extends InstrumentedSessionLock {
+
+    private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+
+    /**
+     * Creates a lock that only keeps track of its owner.
+     */
+    public UILockingSessionLock() {
+        super();
+    }
+
+    /**
+     * Creates a lock that reports to the given metrics. The metrics only
+     * cover the session lock, not the locks of individual UIs.
+     * 
+     * @param metrics
+     *            the metrics to report to and to read the settings from, or
+     *            <code>null</code> to only keep track of the owner
+     */
+    public UILockingSessionLock(SessionLockMetrics metrics) {
+        super(metrics);
+    }
+
+    /**
+     * Gets the lock that is acquired before the lock of any UI in the session.
+     * This is used by {@link UI#lock()} and should not be used directly.
+     * 
+     * @return the shared UI lock
+     */
+    public Lock getUILock() {
+        return readWriteLock.readLock();
+    }
+
+    /**
+     * Acquires the lock that is shared by all UIs in the session and then the
+     * given lock of a UI. This is used by {@link UI#lock()} and should not be
+     * used directly.
+     * <p>
+     * Like the session lock, a thread handling a request gives up after
+     * waiting for the {@link SessionLockMetrics#getMaxWait() maximum wait} and
+     * throws a {@link SessionLockTimeoutException}.
+     * 
+     * @param uiLock
+     *            the lock of the UI to acquire after the shared lock, or
+     *            <code>null</code> to only acquire the shared lock
+     */
+    public void lockUI(Lock uiLock) {
+        Lock sharedLock = getUILock();
+        long maxWait = getMaxWaitForCurrentThread();
+        if (maxWait <= 0 || isHeldByCurrentThread()
+                || (uiLock == null && isUILockHeldByCurrentThread())
+                || (uiLock instanceof ReentrantLock && ((ReentrantLock) uiLock)
+                        .isHeldByCurrentThread())) {
+            sharedLock.lock();
+            if (uiLock != null) {
+                uiLock.lock();
+            }
+            return;
+        }
+
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        boolean sharedLockAcquired = false;
+        try {
+            sharedLockAcquired = sharedLock.tryLock(maxWait,
+                    TimeUnit.MILLISECONDS);
+            if (sharedLockAcquired
+                    && (uiLock == null || uiLock.tryLock(
+                            Math.max(0, deadline - System.nanoTime()),
+                            TimeUnit.NANOSECONDS))) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (sharedLockAcquired) {
+            sharedLock.unlock();
+        }
+
+        recordTimeout();
+        String message = "Gave up waiting for the UI lock after " + maxWait
+                + " ms.";
+        if (isLocked()) {
+            message += " The session is locked. " + getOwnerDescription();
+        }
+        throw new SessionLockTimeoutException(message);
+    }
+
+    /**
+     * Checks whether the current thread holds the lock of some UI in the
+     * session.
+     * 
+     * @return <code>true</code> if the current thread holds a UI lock,
+     *         otherwise <code>false</code>
+     */
+    public boolean isUILockHeldByCurrentThread() {
+        return readWriteLock.getReadHoldCount() > 0;
+    }
+
+    private void checkNoUILockHeld() {
+        if (isUILockHeldByCurrentThread() && !isHeldByCurrentThread()) {
+            throw new IllegalStateException(
+                    "Can't lock the session while holding the lock of one of its UIs. Use VaadinSession.access() to run session level tasks from UI code.");
+        }
+    }
+
+    @Override
+    public void lock() {
+        // Fail right away also when a maximum wait is configured
+        checkNoUILockHeld();
+        super.lock();
+    }
+
+    @Override
+    protected void acquireLock() {
+        checkNoUILockHeld();
+        readWriteLock.writeLock().lock();
+    }
+
+    @Override
+    protected void acquireLockInterruptibly() throws InterruptedException {
+        checkNoUILockHeld();
+        readWriteLock.writeLock().lockInterruptibly();
+    }
+
+    @Override
+    protected boolean tryAcquireLock() {
+        return readWriteLock.writeLock().tryLock();
+    }
+
+    @Override
+    protected boolean tryAcquireLock(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (isUILockHeldByCurrentThread() && !isHeldByCurrentThread()) {
+            // Would only wait for the current thread to release its UI lock
+            return false;
+        }
+        return readWriteLock.writeLock().tryLock(timeout, unit);
+    }
+
+    @Override
+    protected void releaseLock() {
+        readWriteLock.writeLock().unlock();
+    }
+
+    @Override
+    protected int getWaitingThreads() {
+        return readWriteLock.getQueueLength();
+    }
+
+    @Override
+    public Condition newCondition() {
+        return readWriteLock.writeLock().newCondition();
+    }
+
+    @Override
+    public int getHoldCount() {
+        return readWriteLock.getWriteHoldCount();
+    }
+
+    @Override
+    public boolean isHeldByCurrentThread() {
+        return readWriteLock.isWriteLockedByCurrentThread();
+    }
+
+    @Override
+    public boolean isLocked() {
+        return readWriteLock.isWriteLocked();
+    }
+
+    @Override
+    public String toString() {
+        return readWriteLock.toString();
+    }
+}
@@ -0,0 +1,643 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.server.Histogram.Snapshot;
+import com.vaadin.ui.UI;
+import com.vaadin.util.CurrentInstance;
+
+/**
+ * Moves UIs that have not received any requests for a while from the heap to
+ * files on disk. A passivated UI is replaced by a small stub in its session
+ * and is transparently restored when it is needed again, e.g. when
+ * {@link VaadinSession#getUIById(int)} is called while handling the next UIDL
+ * or push request for the UI. Heartbeat requests only update the stub, so a UI
+ * that is kept open in a background tab stays passivated.
+ * <p>
+ * Passivation is enabled by setting the <code>uiPassivationTimeout</code> init
+ * parameter to the number of seconds without UIDL or push requests after which
+ * a UI is passivated. Each passivator writes its files to a new directory that
+ * is only accessible by the owner of the process. The directory is created in
+ * the directory given by the <code>uiPassivationDirectory</code> init
+ * parameter, or in <code>java.io.tmpdir</code> if the parameter is not set.
+ * <p>
+ * A passivated UI is restored as a new instance. UIs that use server push are
+ * never passivated, but an application that keeps references to UIs or
+ * components of UIs that can be passivated should look them up again instead
+ * of using the references.
+ * <p>
+ * Everything that is reachable from a UI is serialized together with it,
+ * except for the session and the service. An object that is also referenced
+ * from elsewhere, e.g. a container shared by the UIs of a session, is
+ * restored as a separate copy that no longer is shared. UIs that reference
+ * session attributes, the error handler or converter factory of the session,
+ * or connectors of other UIs are therefore never passivated. Other shared
+ * objects cannot be detected, so applications that share state between UIs
+ * in other ways should override {@link #canPassivate(UI)} to exclude such
+ * UIs.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class UIPassivator implements UIPassivatorMXBean, Runnable,
+        Serializable {
+
+    /**
+     * The stub that replaces a passivated UI in its session.
+     */
+    static class PassivatedUI implements Serializable {
+        private final int uiId;
+        private volatile long lastHeartbeatTimestamp;
+
+        private transient File file;
+
+        /*
+         * The serialized UI when the stub has been deserialized together with
+         * its session, since the file may not exist on this server.
+         */
+        private transient byte[] data;
+
+        /*
+         * The restored UI, written while holding this. Volatile since
+         * heartbeats read it without locking.
+         */
+        private transient volatile UI ui;
+
+        PassivatedUI(int uiId, File file, long lastHeartbeatTimestamp) {
+            this.uiId = uiId;
+            this.file = file;
+            this.lastHeartbeatTimestamp = lastHeartbeatTimestamp;
+        }
+
+        int getUIId() {
+            return uiId;
+        }
+
+        long getLastHeartbeatTimestamp() {
+            return lastHeartbeatTimestamp;
+        }
+
+        void setLastHeartbeatTimestamp(long lastHeartbeatTimestamp) {
+            this.lastHeartbeatTimestamp = lastHeartbeatTimestamp;
+            /*
+             * The UI may have been restored after this stub was looked up and
+             * may already have copied the previous timestamp. The activation
+             * publishes the UI before copying, so either it sees this
+             * timestamp or the UI is seen here.
+             */
+            UI restored = ui;
+            if (restored != null) {
+                restored.setLastHeartbeatTimestamp(Math.max(
+                        restored.getLastHeartbeatTimestamp(),
+                        lastHeartbeatTimestamp));
+            }
+        }
+
+        private InputStream openStream() throws IOException {
+            if (data != null) {
+                return new ByteArrayInputStream(data);
+            } else {
+                return new FileInputStream(file);
+            }
+        }
+
+        private void discard() {
+            if (file != null) {
+                file.delete();
+                file = null;
+            }
+            data = null;
+        }
+
+        private synchronized void writeObject(ObjectOutputStream stream)
+                throws IOException {
+            stream.defaultWriteObject();
+            if (data != null) {
+                stream.writeInt(data.length);
+                stream.write(data);
+            } else if (file == null) {
+                // Activated while serializing the session
+                stream.writeInt(0);
+            } else {
+                stream.writeInt((int) file.length());
+                InputStream in = new FileInputStream(file);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        stream.write(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        private void readObject(ObjectInputStream stream) throws IOException,
+                ClassNotFoundException {
+            stream.defaultReadObject();
+            data = new byte[stream.readInt()];
+            new DataInputStream(stream).readFully(data);
+        }
+    }
+
+    /**
+     * Written instead of the session and service of the UI, which are not
+     * passivated.
+     */
+    private enum Reference {
+        SESSION, SERVICE
+    }
+
+    private static class PassivationOutputStream extends
+            CompactObjectOutputStream {
+        private final VaadinSession session;
+        private final UI ui;
+
+        /*
+         * Objects of the session that would be cloned if they were serialized
+         * with the UI.
+         */
+        private final Map<Object, Boolean> shared = new IdentityHashMap<Object, Boolean>();
+
+        public PassivationOutputStream(OutputStream out,
+                VaadinSession session, UI ui) throws IOException {
+            super(out);
+            this.session = session;
+            this.ui = ui;
+            for (Object value : session.getAttributeValues()) {
+                shared.put(value, Boolean.TRUE);
+            }
+            if (session.getErrorHandler() != null) {
+                shared.put(session.getErrorHandler(), Boolean.TRUE);
+            }
+            if (session.getConverterFactory() != null) {
+                shared.put(session.getConverterFactory(), Boolean.TRUE);
+            }
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj == session
+                    || (obj instanceof CompactSessionForm && ((CompactSessionForm) obj)
+                            .getSession() == session)) {
+                return Reference.SESSION;
+            } else if (obj == session.getService()) {
+                return Reference.SERVICE;
+            } else if (shared.containsKey(obj) || isConnectorOfOtherUI(obj)) {
+                throw new IOException("UI " + ui.getUIId() + " references "
+                        + obj.getClass().getName()
+                        + " which is shared with the session or another UI");
+            }
+            return super.replaceObject(obj);
+        }
+
+        private boolean isConnectorOfOtherUI(Object obj) {
+            if (obj instanceof ClientConnector) {
+                UI connectorUI = ((ClientConnector) obj).getUI();
+                return connectorUI != null && connectorUI != ui;
+            }
+            return false;
+        }
+    }
+
+    private static class ActivationInputStream extends
+            CompactObjectInputStream {
+        private final VaadinSession session;
+
+        public ActivationInputStream(InputStream in, VaadinSession session)
+                throws IOException {
+            super(in, session.getService().getClassLoader());
+            this.session = session;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (obj == Reference.SESSION) {
+                return session;
+            } else if (obj == Reference.SERVICE) {
+                return session.getService();
+            }
+            return obj;
+        }
+    }
+
+    private final VaadinService service;
+    private final File parentDirectory;
+
+    /*
+     * Created when the first UI is passivated, guarded by this.
+     */
+    private File directory;
+    private volatile int idleTimeout;
+
+    /*
+     * UIs that could not be serialized are not tried again.
+     */
+    private final transient Set<UI> notSerializable = Collections
+            .synchronizedSet(Collections
+                    .newSetFromMap(new WeakHashMap<UI, Boolean>()));
+
+    private final AtomicLong passivations = new AtomicLong();
+    private final AtomicLong activations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final Histogram passivationTime = new Histogram();
+    private final Histogram activationTime = new Histogram();
+    private final Histogram passivatedSize = new Histogram();
+
+    /**
+     * Creates a passivator for the sessions of the given service.
+     * 
+     * @param service
+     *            the service, not <code>null</code>
+     * @param parentDirectory
+     *            the directory in which the directory for the passivated UIs
+     *            of this passivator is created, not <code>null</code>
+     * @param idleTimeout
+     *            the number of seconds without requests after which a UI is
+     *            passivated, or 0 to disable passivation
+     */
+    public UIPassivator(VaadinService service, File parentDirectory,
+            int idleTimeout) {
+        this.service = service;
+        this.parentDirectory = parentDirectory;
+        setIdleTimeout(idleTimeout);
+    }
+
+    /**
+     * Gets the directory that passivated UIs are written to. The directory is
+     * created in the parent directory given to the constructor when the first
+     * UI is passivated and is not shared with other passivators.
+     * 
+     * @return the directory, or <code>null</code> if no UI has been passivated
+     */
+    public synchronized File getDirectory() {
+        return directory;
+    }
+
+    private synchronized File createDirectory() throws IOException {
+        if (directory == null) {
+            parentDirectory.mkdirs();
+            File dir = File.createTempFile("vaadin-passivated-uis-", "",
+                    parentDirectory);
+            // Fails if someone else managed to create the directory
+            if (!dir.delete() || !dir.mkdir()) {
+                throw new IOException("Could not create directory " + dir);
+            }
+            // The files are only protected by the permissions of the directory
+            if (!restrictToOwner(dir)) {
+                getLogger().warning(
+                        "Could not restrict access to " + dir
+                                + " to the owner of the process");
+            }
+            dir.deleteOnExit();
+            directory = dir;
+        }
+        return directory;
+    }
+
+    private static boolean restrictToOwner(File dir) {
+        return dir.setReadable(false, false) && dir.setReadable(true, true)
+                && dir.setWritable(false, false) && dir.setWritable(true, true)
+                && dir.setExecutable(false, false)
+                && dir.setExecutable(true, true);
+    }
+
+    /**
+     * Passivates the idle UIs of all sessions of the service. Sessions that
+     * are locked by another thread are skipped. Passivated UIs whose heartbeat
+     * has expired are activated so that they are closed and removed like any
+     * other inactive UI.
+     */
+    @Override
+    public void run() {
+        if (idleTimeout <= 0) {
+            return;
+        }
+        for (VaadinSession session : service.getSessions()) {
+            Lock lock = session.getLockInstance();
+            if (lock == null || !lock.tryLock()) {
+                continue;
+            }
+            CurrentInstance.Snapshot old = CurrentInstance
+                    .saveAndSetCurrent(session);
+            try {
+                passivateIdleUIs(session);
+            } catch (RuntimeException e) {
+                getLogger().log(Level.WARNING,
+                        "Could not passivate UIs of session", e);
+            } finally {
+                session.unlock();
+                CurrentInstance.restore(old);
+            }
+        }
+    }
+
+    private void passivateIdleUIs(VaadinSession session) {
+        for (PassivatedUI passivated : new ArrayList<PassivatedUI>(
+                session.getPassivatedUIs())) {
+            if (service.isHeartbeatExpired(passivated
+                    .getLastHeartbeatTimestamp())) {
+                activate(session, passivated);
+            }
+        }
+
+        long idleSince = System.currentTimeMillis()
+                - TimeUnit.SECONDS.toMillis(idleTimeout);
+        for (UI ui : new ArrayList<UI>(session.getUIs())) {
+            if (ui.getLastUidlRequestTimestamp() < idleSince
+                    && canPassivate(ui)) {
+                passivate(session, ui);
+            }
+        }
+    }
+
+    /**
+     * Checks whether an idle UI can be passivated. The default implementation
+     * excludes UIs that are closing or inactive, that use server push, that
+     * have pending access tasks or that could not be serialized before.
+     * 
+     * @param ui
+     *            the UI to check
+     * @return <code>true</code> if the UI can be passivated
+     */
+    protected boolean canPassivate(UI ui) {
+        return service.isUIActive(ui) && ui.getPushConnection() == null
+                && ui.getPendingAccessQueue().isEmpty()
+                && !notSerializable.contains(ui);
+    }
+
+    /**
+     * Writes a UI to disk and replaces it with a stub in its session. The
+     * session must be locked.
+     * 
+     * @param session
+     *            the session of the UI
+     * @param ui
+     *            the UI to passivate
+     * @return <code>true</code> if the UI was passivated, <code>false</code>
+     *         if it could not be serialized
+     */
+    boolean passivate(VaadinSession session, UI ui) {
+        assert session.hasLock();
+        long start = System.nanoTime();
+        GlobalResourceHandler resourceHandler = session
+                .getGlobalResourceHandler(false);
+        Map<ClientConnector, Map<String, ConnectorResource>> registrations;
+        if (resourceHandler != null) {
+            registrations = resourceHandler.getRegistrations(ui);
+        } else {
+            registrations = Collections.emptyMap();
+        }
+        File file = null;
+        try {
+            file = File.createTempFile("ui-", ".ser", createDirectory());
+            ObjectOutputStream out = new PassivationOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)),
+                    session, ui);
+            try {
+                out.writeObject(ui);
+                // Written in the same stream to preserve object identities
+                out.writeObject(registrations);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            if (file != null) {
+                file.delete();
+            }
+            notSerializable.add(ui);
+            failures.incrementAndGet();
+            getLogger().log(Level.WARNING,
+                    "Could not passivate UI " + ui.getUIId(), e);
+            return false;
+        }
+
+        // Release the old connectors so that the UI can be garbage collected
+        for (ClientConnector connector : registrations.keySet()) {
+            resourceHandler.unregisterConnector(connector);
+        }
+        session.setPassivated(ui, new PassivatedUI(ui.getUIId(), file,
+                ui.getLastHeartbeatTimestamp()));
+
+        passivatedSize.record(file.length());
+        passivationTime.record(toMicros(System.nanoTime() - start));
+        passivations.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Restores a passivated UI and puts it back in its session. The session
+     * must be locked.
+     * 
+     * @param session
+     *            the session of the UI
+     * @param passivated
+     *            the stub of the UI
+     * @return the restored UI, or <code>null</code> if the UI could not be
+     *         restored and has been dropped from the session
+     */
+    UI activate(VaadinSession session, PassivatedUI passivated) {
+        assert session.hasLock();
+        synchronized (passivated) {
+            if (passivated.ui != null) {
+                // Already activated by another thread
+                return passivated.ui;
+            }
+            long start = System.nanoTime();
+            UI ui;
+            Map<ClientConnector, Map<String, ConnectorResource>> registrations;
+            try {
+                ObjectInputStream in = new ActivationInputStream(
+                        new BufferedInputStream(passivated.openStream()),
+                        session);
+                try {
+                    ui = (UI) in.readObject();
+                    @SuppressWarnings("unchecked")
+                    Map<ClientConnector, Map<String, ConnectorResource>> read = (Map<ClientConnector, Map<String, ConnectorResource>>) in
+                            .readObject();
+                    registrations = read;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return activationFailed(session, passivated, e);
+            } catch (ClassNotFoundException e) {
+                return activationFailed(session, passivated, e);
+            }
+
+            // Give the UI a full idle timeout before it is passivated again
+            ui.setLastUidlRequestTimestamp(System.currentTimeMillis());
+
+            if (!registrations.isEmpty()) {
+                session.getGlobalResourceHandler(true).restoreRegistrations(
+                        registrations);
+            }
+
+            // Published before copying the heartbeat, see the stub
+            passivated.ui = ui;
+            ui.setLastHeartbeatTimestamp(Math.max(
+                    ui.getLastHeartbeatTimestamp(),
+                    passivated.getLastHeartbeatTimestamp()));
+            session.setActivated(ui);
+            passivated.discard();
+
+            activationTime.record(toMicros(System.nanoTime() - start));
+            activations.incrementAndGet();
+            return ui;
+        }
+    }
+
+    private UI activationFailed(VaadinSession session,
+            PassivatedUI passivated, Exception e) {
+        getLogger().log(Level.WARNING,
+                "Could not activate UI " + passivated.getUIId(), e);
+        failures.incrementAndGet();
+        session.removePassivated(passivated);
+        passivated.discard();
+        return null;
+    }
+
+    /**
+     * Restores all passivated UIs of a session, e.g. before the session is
+     * destroyed. The session must be locked.
+     * 
+     * @param session
+     *            the session
+     */
+    void activateAll(VaadinSession session) {
+        for (PassivatedUI passivated : new ArrayList<PassivatedUI>(
+                session.getPassivatedUIs())) {
+            activate(session, passivated);
+        }
+    }
+
+    /**
+     * Records a heartbeat for a UI without activating it if the UI is
+     * passivated. The session does not need to be locked.
+     * 
+     * @param session
+     *            the session of the UI
+     * @param uiId
+     *            the id of the UI
+     * @param timestamp
+     *            the time of the heartbeat, in milliseconds since the epoch
+     * @return <code>true</code> if the UI is passivated and the heartbeat was
+     *         recorded, <code>false</code> if the UI is not passivated
+     */
+    public boolean updateHeartbeat(VaadinSession session, int uiId,
+            long timestamp) {
+        PassivatedUI passivated = session.getPassivatedUI(uiId);
+        if (passivated == null) {
+            return false;
+        }
+        passivated.setLastHeartbeatTimestamp(timestamp);
+        return true;
+    }
+
+    @Override
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    @Override
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+    }
+
+    @Override
+    public int getPassivatedUICount() {
+        int count = 0;
+        for (VaadinSession session : service.getSessions()) {
+            count += session.getPassivatedUIs().size();
+        }
+        return count;
+    }
+
+    @Override
+    public long getPassivationCount() {
+        return passivations.get();
+    }
+
+    @Override
+    public long getActivationCount() {
+        return activations.get();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public Snapshot getPassivationTime() {
+        return passivationTime.getSnapshot();
+    }
+
+    @Override
+    public Snapshot getActivationTime() {
+        return activationTime.getSnapshot();
+    }
+
+    @Override
+    public Snapshot getPassivatedSize() {
+        return passivatedSize.getSnapshot();
+    }
+
+    @Override
+    public void reset() {
+        passivations.set(0);
+        activations.set(0);
+        failures.set(0);
+        passivationTime.reset();
+        activationTime.reset();
+        passivatedSize.reset();
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static final Logger getLogger() {
+        return Logger.getLogger(UIPassivator.class.getName());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import com.vaadin.server.Histogram.Snapshot;
+
+/**
+ * Management interface for the {@link UIPassivator} of a
+ * {@link VaadinService}. Durations are reported in microseconds.
+ * 
+ * @see UIPassivator
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public interface UIPassivatorMXBean {
+
+    /**
+     * @return the number of seconds without requests after which a UI is
+     *         passivated, or 0 if passivation is disabled
+     */
+    public int getIdleTimeout();
+
+    /**
+     * @param idleTimeout
+     *            the number of seconds without requests after which a UI is
+     *            passivated, or 0 to disable passivation
+     */
+    public void setIdleTimeout(int idleTimeout);
+
+    /**
+     * @return the number of UIs that are currently passivated
+     */
+    public int getPassivatedUICount();
+
+    /**
+     * @return the number of UIs that have been passivated
+     */
+    public long getPassivationCount();
+
+    /**
+     * @return the number of UIs that have been activated
+     */
+    public long getActivationCount();
+
+    /**
+     * @return the number of UIs that could not be passivated or activated
+     */
+    public long getFailureCount();
+
+    /**
+     * @return the time spent serializing a UI to disk
+     */
+    public Snapshot getPassivationTime();
+
+    /**
+     * @return the time spent restoring a UI from disk
+     */
+    public Snapshot getActivationTime();
+
+    /**
+     * @return the size in bytes of the serialized UIs
+     */
+    public Snapshot getPassivatedSize();
+
+    /**
+     * Clears all collected metrics.
+     */
+    public void reset();
+}
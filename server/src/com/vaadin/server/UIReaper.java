@@ -0,0 +1,156 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.ui.UI;
+import com.vaadin.util.CurrentInstance;
+
+/**
+ * Periodically removes UIs whose heartbeat has expired from all sessions of a
+ * {@link VaadinService}. Without the reaper, inactive UIs are only removed at
+ * the end of a request to the same session, which means that abandoned UIs and
+ * all their components stay in memory until the HTTP session expires.
+ * <p>
+ * The reaper is enabled by setting the <code>uiReaperInterval</code> init
+ * parameter to the number of seconds between runs. It runs on the
+ * {@link VaadinService#getScheduledExecutor() scheduled executor} of the
+ * service. Sessions that are locked by another thread are skipped and checked
+ * again on the next run, so the reaper never makes a request wait.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class UIReaper implements UIReaperMXBean, Runnable, Serializable {
+
+    private final VaadinService service;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong reclaimedUIs = new AtomicLong();
+    private final AtomicLong reclaimedConnectors = new AtomicLong();
+    private final AtomicLong skippedSessions = new AtomicLong();
+
+    /**
+     * Creates a reaper for the sessions of the given service.
+     * 
+     * @param service
+     *            the service, not <code>null</code>
+     */
+    public UIReaper(VaadinService service) {
+        this.service = service;
+    }
+
+    @Override
+    public void run() {
+        runs.incrementAndGet();
+        long uisBefore = reclaimedUIs.get();
+        long connectorsBefore = reclaimedConnectors.get();
+        for (VaadinSession session : service.getSessions()) {
+            try {
+                reap(session);
+            } catch (RuntimeException e) {
+                getLogger().log(Level.WARNING,
+                        "Could not remove inactive UIs from session", e);
+            }
+        }
+        long uis = reclaimedUIs.get() - uisBefore;
+        if (uis > 0) {
+            getLogger().log(
+                    Level.FINE,
+                    "Removed {0} inactive UIs with {1} connectors",
+                    new Object[] { uis,
+                            reclaimedConnectors.get() - connectorsBefore });
+        }
+    }
+
+    /**
+     * Closes and removes the inactive UIs of a session if the session lock is
+     * available.
+     * 
+     * @param session
+     *            the session to check
+     */
+    protected void reap(final VaadinSession session) {
+        Lock lock = session.getLockInstance();
+        if (lock == null || !lock.tryLock()) {
+            skippedSessions.incrementAndGet();
+            return;
+        }
+        CurrentInstance.Snapshot old = CurrentInstance
+                .saveAndSetCurrent(session);
+        try {
+            for (final UI ui : new ArrayList<UI>(session.getUIs())) {
+                if (service.isUIActive(ui)) {
+                    continue;
+                }
+                int connectors = ui.getConnectorTracker().getConnectorCount();
+                ui.accessSynchronously(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Always close before removing, see fireSessionDestroy
+                        if (!ui.isClosing()) {
+                            ui.close();
+                        }
+                        session.removeUI(ui);
+                    }
+                });
+                reclaimedUIs.incrementAndGet();
+                reclaimedConnectors.addAndGet(connectors);
+            }
+        } finally {
+            session.unlock();
+            CurrentInstance.restore(old);
+        }
+    }
+
+    @Override
+    public long getRunCount() {
+        return runs.get();
+    }
+
+    @Override
+    public long getReclaimedUICount() {
+        return reclaimedUIs.get();
+    }
+
+    @Override
+    public long getReclaimedConnectorCount() {
+        return reclaimedConnectors.get();
+    }
+
+    @Override
+    public long getSkippedSessionCount() {
+        return skippedSessions.get();
+    }
+
+    @Override
+    public void reset() {
+        runs.set(0);
+        reclaimedUIs.set(0);
+        reclaimedConnectors.set(0);
+        skippedSessions.set(0);
+    }
+
+    private static final Logger getLogger() {
+        return Logger.getLogger(UIReaper.class.getName());
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+/**
+ * Management interface for the {@link UIReaper} of a {@link VaadinService}.
+ * 
+ * @see UIReaper
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public interface UIReaperMXBean {
+
+    /**
+     * @return the number of times the sessions have been checked
+     */
+    public long getRunCount();
+
+    /**
+     * @return the number of UIs closed and removed because their heartbeat
+     *         had expired
+     */
+    public long getReclaimedUICount();
+
+    /**
+     * @return the number of connectors in the removed UIs
+     */
+    public long getReclaimedConnectorCount();
+
+    /**
+     * @return the number of times a session was skipped because it was
+     *         locked by another thread
+     */
+    public long getSkippedSessionCount();
+
+    /**
+     * Clears all counters.
+     */
+    public void reset();
+}
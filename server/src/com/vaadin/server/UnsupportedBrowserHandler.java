@@ -33,6 +33,17 @@ public class UnsupportedBrowserHandler extends SynchronizedRequestHandler {
     /** Cookie used to ignore browser checks */
     public static final String FORCE_LOAD_COOKIE = "vaadinforceload=1";
 
+    /**
+     * Heartbeat and UIDL requests are only sent by the client engine, which
+     * has already been loaded in a supported browser. Skipping them avoids
+     * locking the session for every heartbeat.
+     */
+    @Override
+    protected boolean canHandleRequest(VaadinRequest request) {
+        return !ServletPortletHelper.isHeartbeatRequest(request)
+                && !ServletPortletHelper.isUIDLRequest(request);
+    }
+
     @Override
     public boolean synchronizedHandleRequest(VaadinSession session,
             VaadinRequest request, VaadinResponse response) throws IOException {
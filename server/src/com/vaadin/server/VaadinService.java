@@ -24,6 +24,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
@@ -33,14 +34,23 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.portlet.Portlet;
 import javax.portlet.PortletContext;
 import javax.servlet.Servlet;
@@ -56,6 +66,7 @@ import com.vaadin.server.VaadinSession.FutureAccess;
 import com.vaadin.server.communication.FileUploadHandler;
 import com.vaadin.server.communication.HeartbeatHandler;
 import com.vaadin.server.communication.PublishedFileHandler;
+import com.vaadin.server.communication.ResponseCompression;
 import com.vaadin.server.communication.SessionRequestHandler;
 import com.vaadin.server.communication.UidlRequestHandler;
 import com.vaadin.shared.JsonConstants;
@@ -128,6 +139,37 @@ public abstract class VaadinService implements Serializable {
 
     private Iterable<RequestHandler> requestHandlers;
 
+    private final ResponseCompression responseCompression = new ResponseCompression();
+
+    private transient ScheduledExecutorService scheduledExecutor;
+
+    private final RequestMetrics requestMetrics = new RequestMetrics(0);
+
+    private transient ObjectName requestMetricsName;
+
+    private transient AccessTaskScheduler accessTaskScheduler;
+
+    private final SessionLockMetrics sessionLockMetrics = new SessionLockMetrics();
+
+    private transient ObjectName sessionLockMetricsName;
+
+    private transient ObjectName accessTaskSchedulerName;
+
+    private transient UIReaper uiReaper;
+
+    private transient ObjectName uiReaperName;
+
+    private transient UIPassivator uiPassivator;
+
+    private transient ObjectName uiPassivatorName;
+
+    /**
+     * The sessions of this service that have not yet been destroyed. Weak so
+     * that sessions discarded by the servlet container without a destroy event
+     * do not leak.
+     */
+    private transient Set<VaadinSession> sessions;
+
     /**
      * Keeps track of whether a warning about missing push support has already
      * been logged. This is used to avoid spamming the log with the same message
@@ -180,9 +222,199 @@ public abstract class VaadinService implements Serializable {
         Collections.reverse(handlers);
         requestHandlers = Collections.unmodifiableCollection(handlers);
 
+        initRequestMetrics();
+        initSessionLockMetrics();
+        initUIReaper();
+        initUIPassivation();
+
         initialized = true;
     }
 
+    /**
+     * Configures request sampling and registers the request metrics and access
+     * task scheduler MXBeans. The MXBeans are registered even if sampling is
+     * disabled so that sampling can be enabled later through JMX.
+     */
+    private void initRequestMetrics() {
+        String interval = getDeploymentConfiguration()
+                .getApplicationOrSystemProperty(
+                        Constants.SERVLET_PARAMETER_REQUEST_METRICS_SAMPLING,
+                        "0");
+        try {
+            requestMetrics.setSamplingInterval(Integer.parseInt(interval));
+        } catch (NumberFormatException e) {
+            getLogger().log(Level.WARNING,
+                    "Invalid request metrics sampling interval {0}", interval);
+        }
+        requestMetricsName = registerMBean(requestMetrics, "RequestMetrics");
+        accessTaskSchedulerName = registerMBean(getAccessTaskScheduler(),
+                "AccessTaskScheduler");
+    }
+
+    /**
+     * Configures the session locks and registers the session lock metrics
+     * MXBean. Like the request metrics, the MXBean is registered even if
+     * sampling is disabled.
+     */
+    private void initSessionLockMetrics() {
+        sessionLockMetrics.setMaxWait(getIntegerProperty(
+                Constants.SERVLET_PARAMETER_SESSION_LOCK_MAX_WAIT, 0));
+        sessionLockMetrics.setOwnerSampling(getDeploymentConfiguration()
+                .getApplicationOrSystemProperty(
+                        Constants.SERVLET_PARAMETER_SESSION_LOCK_OWNER_SAMPLING,
+                        "false").equals("true"));
+
+        sessionLockMetricsName = registerMBean(sessionLockMetrics,
+                "SessionLockMetrics");
+    }
+
+    /**
+     * Schedules the UI reaper and registers its MXBean if the
+     * <code>uiReaperInterval</code> init parameter is positive.
+     */
+    private void initUIReaper() {
+        int interval = getIntegerProperty(
+                Constants.SERVLET_PARAMETER_UI_REAPER_INTERVAL, 0);
+        if (interval <= 0) {
+            return;
+        }
+        uiReaper = new UIReaper(this);
+        getScheduledExecutor().scheduleWithFixedDelay(uiReaper, interval,
+                interval, TimeUnit.SECONDS);
+        uiReaperName = registerMBean(uiReaper, "UIReaper");
+    }
+
+    /**
+     * Schedules passivation of idle UIs and registers the passivator MXBean if
+     * the <code>uiPassivationTimeout</code> init parameter is positive. Idle
+     * UIs are looked for at intervals of half the timeout.
+     */
+    private void initUIPassivation() {
+        UIPassivator passivator = getUIPassivator();
+        if (passivator.getIdleTimeout() <= 0) {
+            return;
+        }
+        long interval = Math.max(1,
+                TimeUnit.SECONDS.toMillis(passivator.getIdleTimeout()) / 2);
+        getScheduledExecutor().scheduleWithFixedDelay(passivator, interval,
+                interval, TimeUnit.MILLISECONDS);
+        uiPassivatorName = registerMBean(passivator, "UIPassivator");
+    }
+
+    /**
+     * Gets the passivator that moves idle UIs of the sessions of this service
+     * to disk. The passivator is created when first needed. Passivation is
+     * only done if the <code>uiPassivationTimeout</code> init parameter is
+     * set, but the passivator is also used for restoring UIs of deserialized
+     * sessions.
+     * 
+     * @since 7.2
+     * @return the UI passivator of this service
+     */
+    public synchronized UIPassivator getUIPassivator() {
+        if (uiPassivator == null) {
+            uiPassivator = createUIPassivator();
+        }
+        return uiPassivator;
+    }
+
+    /**
+     * Creates the passivator returned by {@link #getUIPassivator()}. The
+     * default implementation configures the passivator based on the
+     * <code>uiPassivationTimeout</code> and <code>uiPassivationDirectory</code>
+     * init parameters. The passivated UIs are written to a new directory in
+     * the <code>uiPassivationDirectory</code> directory, or in
+     * <code>java.io.tmpdir</code> if the parameter is not set.
+     * 
+     * @since 7.2
+     * @return a new UI passivator
+     */
+    protected UIPassivator createUIPassivator() {
+        int timeout = getIntegerProperty(
+                Constants.SERVLET_PARAMETER_UI_PASSIVATION_TIMEOUT, 0);
+        String directory = getDeploymentConfiguration()
+                .getApplicationOrSystemProperty(
+                        Constants.SERVLET_PARAMETER_UI_PASSIVATION_DIRECTORY,
+                        null);
+        File dir;
+        if (directory != null) {
+            dir = new File(directory);
+        } else {
+            dir = new File(System.getProperty("java.io.tmpdir"));
+        }
+        return new UIPassivator(this, dir, timeout);
+    }
+
+    /**
+     * Gets the reaper that periodically removes inactive UIs from the sessions
+     * of this service.
+     * 
+     * @since 7.2
+     * @return the UI reaper, or <code>null</code> if the
+     *         <code>uiReaperInterval</code> init parameter is not set
+     */
+    public UIReaper getUIReaper() {
+        return uiReaper;
+    }
+
+    /**
+     * Adds a session to the sessions tracked by this service.
+     * 
+     * @param session
+     *            the session to add
+     */
+    void registerSession(VaadinSession session) {
+        getSessionRegistry().add(session);
+    }
+
+    /**
+     * Gets a snapshot of the sessions of this service that have not been
+     * destroyed.
+     * 
+     * @return a list of sessions
+     */
+    List<VaadinSession> getSessions() {
+        Set<VaadinSession> registry = getSessionRegistry();
+        synchronized (registry) {
+            return new ArrayList<VaadinSession>(registry);
+        }
+    }
+
+    private synchronized Set<VaadinSession> getSessionRegistry() {
+        if (sessions == null) {
+            sessions = Collections.synchronizedSet(Collections
+                    .newSetFromMap(new WeakHashMap<VaadinSession, Boolean>()));
+        }
+        return sessions;
+    }
+
+    ObjectName registerMBean(Object mbean, String type) {
+        try {
+            ObjectName name = new ObjectName("com.vaadin:type=" + type + ","
+                    + "service=" + ObjectName.quote(getServiceName()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(mbean, name);
+                return name;
+            }
+        } catch (JMException e) {
+            getLogger().log(Level.WARNING,
+                    "Could not register " + type + " MXBean", e);
+        }
+        return null;
+    }
+
+    void unregisterMBean(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            getLogger().log(Level.FINE, "Could not unregister " + name, e);
+        }
+    }
+
     /**
      * Called during initialization to add the request handlers for the service.
      * Note that the returned list will be reversed so the last handler will be
@@ -313,6 +545,43 @@ public abstract class VaadinService implements Serializable {
         return deploymentConfiguration;
     }
 
+    /**
+     * Gets the metrics and settings of the session locks created by this
+     * service.
+     * 
+     * @since 7.2
+     * @return the session lock metrics, not <code>null</code>
+     */
+    public SessionLockMetrics getSessionLockMetrics() {
+        return sessionLockMetrics;
+    }
+
+    /**
+     * Gets the request metrics of this service. Requests are measured only if
+     * sampling has been enabled using the <code>requestMetricsSampling</code>
+     * init parameter or {@link RequestMetrics#setSamplingInterval(int)}.
+     * 
+     * @since 7.2
+     * @return the request metrics of this service
+     */
+    public RequestMetrics getRequestMetrics() {
+        return requestMetrics;
+    }
+
+    /**
+     * Gets the response compression support of this service, which compresses
+     * UIDL responses according to the deployment configuration and keeps
+     * statistics about the compression.
+     * 
+     * @see DeploymentConfiguration#getCompressionThreshold()
+     * 
+     * @since 7.2
+     * @return the response compression instance of this service
+     */
+    public ResponseCompression getResponseCompression() {
+        return responseCompression;
+    }
+
     /**
      * Sets the system messages provider to use for getting system messages to
      * display to users of this service.
@@ -443,12 +712,17 @@ public abstract class VaadinService implements Serializable {
      */
     public void fireSessionDestroy(VaadinSession vaadinSession) {
         final VaadinSession session = vaadinSession;
+        getSessionRegistry().remove(session);
         session.accessSynchronously(new Runnable() {
             @Override
             public void run() {
                 if (!session.isClosing()) {
                     closeSession(session);
                 }
+                // Restore passivated UIs so that they are properly detached
+                if (!session.getPassivatedUIs().isEmpty()) {
+                    getUIPassivator().activateAll(session);
+                }
                 ArrayList<UI> uis = new ArrayList<UI>(session.getUIs());
                 for (final UI ui : uis) {
                     ui.accessSynchronously(new Runnable() {
@@ -565,6 +839,10 @@ public abstract class VaadinService implements Serializable {
     protected Lock getSessionLock(WrappedSession wrappedSession) {
         Object lock = wrappedSession.getAttribute(getLockAttributeName());
 
+        if (lock instanceof InstrumentedSessionLock) {
+            // The metrics are not serialized with the lock
+            ((InstrumentedSessionLock) lock).restoreMetrics(sessionLockMetrics);
+        }
         if (lock instanceof ReentrantLock) {
             return (ReentrantLock) lock;
         }
@@ -578,6 +856,25 @@ public abstract class VaadinService implements Serializable {
                         + getLockAttributeName() + " in the session");
     }
 
+    /**
+     * Creates the lock instance for a session that does not yet have a lock.
+     * The default implementation creates a {@link UILockingSessionLock} if
+     * {@link DeploymentConfiguration#isUILockingEnabled() UI locking} is
+     * enabled and an {@link InstrumentedSessionLock} otherwise. Both report to
+     * the {@link #getSessionLockMetrics() session lock metrics} of this
+     * service.
+     * 
+     * @since 7.2
+     * @return a new session lock, not <code>null</code>
+     */
+    protected ReentrantLock createSessionLock() {
+        if (getDeploymentConfiguration().isUILockingEnabled()) {
+            return new UILockingSessionLock(sessionLockMetrics);
+        } else {
+            return new InstrumentedSessionLock(sessionLockMetrics);
+        }
+    }
+
     /**
      * Locks the given session for this service instance. Typically you want to
      * call {@link VaadinSession#lock()} instead of this method.
@@ -601,7 +898,7 @@ public abstract class VaadinService implements Serializable {
             synchronized (VaadinService.class) {
                 lock = getSessionLock(wrappedSession);
                 if (lock == null) {
-                    lock = new ReentrantLock();
+                    lock = createSessionLock();
                     setSessionLock(wrappedSession, lock);
                 }
             }
@@ -637,6 +934,17 @@ public abstract class VaadinService implements Serializable {
 
     private VaadinSession findOrCreateVaadinSession(VaadinRequest request)
             throws SessionExpiredException, ServiceException {
+        if (ServletPortletHelper.isHeartbeatRequest(request)) {
+            /*
+             * Heartbeats are handled without locking the session, so an already
+             * loaded session is used as such without waiting for the lock.
+             */
+            VaadinSession session = findLoadedVaadinSession(request);
+            if (session != null) {
+                return session;
+            }
+        }
+
         boolean requestCanCreateSession = requestCanCreateSession(request);
         WrappedSession wrappedSession = getWrappedSession(request,
                 requestCanCreateSession);
@@ -655,6 +963,19 @@ public abstract class VaadinService implements Serializable {
 
     }
 
+    private VaadinSession findLoadedVaadinSession(VaadinRequest request) {
+        WrappedSession wrappedSession = request.getWrappedSession(false);
+        if (wrappedSession == null) {
+            return null;
+        }
+        try {
+            return VaadinSession.getLoadedSession(this, wrappedSession);
+        } catch (IllegalStateException e) {
+            // Invalidated session, let the locked path handle it
+            return null;
+        }
+    }
+
     /**
      * Finds or creates a Vaadin session. Assumes necessary synchronization has
      * been done by the caller to ensure this is not called simultaneously by
@@ -743,6 +1064,7 @@ public abstract class VaadinService implements Serializable {
         VaadinSession.setCurrent(session);
 
         session.storeInSession(this, request.getWrappedSession());
+        registerSession(session);
 
         // Initial locale comes from the request
         Locale locale = request.getLocale();
@@ -985,6 +1307,56 @@ public abstract class VaadinService implements Serializable {
         return ui;
     }
 
+    /**
+     * Finds the UI that the request belongs to and locks only that UI if
+     * {@link DeploymentConfiguration#isUILockingEnabled() UI locking} is
+     * enabled for the session. The returned UI is also set as the current UI
+     * ({@link UI#setCurrent(UI)}). The caller is responsible for releasing the
+     * lock using {@link UI#unlock()}.
+     * <p>
+     * The current thread should not hold any lock of the session when calling
+     * this method.
+     * 
+     * @since 7.2
+     * @param request
+     *            the request for which a UI is desired
+     * @param session
+     *            the session of the request
+     * @return the locked UI belonging to the request, or <code>null</code> if
+     *         UI locking is not enabled for the session or if no UI is found
+     */
+    public UI findAndLockUI(VaadinRequest request, VaadinSession session) {
+        if (!(session.getLockInstance() instanceof UILockingSessionLock)) {
+            return null;
+        }
+        UILockingSessionLock sessionLock = (UILockingSessionLock) session
+                .getLockInstance();
+        Lock uiLock = sessionLock.getUILock();
+
+        UI ui;
+        sessionLock.lockUI(null);
+        try {
+            ui = findUI(request);
+        } finally {
+            uiLock.unlock();
+        }
+        if (ui == null) {
+            return null;
+        }
+
+        /*
+         * The shared lock must be released before locking the UI since holding
+         * it without the UI lock looks like holding the lock of some other UI.
+         * The UI might thus have been removed in between.
+         */
+        ui.lock();
+        if (ui.getSession() != session) {
+            ui.unlock();
+            return null;
+        }
+        return ui;
+    }
+
     /**
      * Check if the given UI should be associated with the
      * <code>window.name</code> so that it can be re-used if the browser window
@@ -1255,17 +1627,29 @@ public abstract class VaadinService implements Serializable {
      * 
      * @return true if the UI is active, false if it could be removed.
      */
-    private boolean isUIActive(UI ui) {
+    boolean isUIActive(UI ui) {
         if (ui.isClosing()) {
             return false;
         } else {
-            long now = System.currentTimeMillis();
-            int timeout = 1000 * getHeartbeatTimeout();
-            return timeout < 0
-                    || now - ui.getLastHeartbeatTimestamp() < timeout;
+            return !isHeartbeatExpired(ui.getLastHeartbeatTimestamp());
         }
     }
 
+    /**
+     * Checks whether a UI with the given last heartbeat should be considered
+     * inactive.
+     * 
+     * @param lastHeartbeatTimestamp
+     *            the time of the last heartbeat, in milliseconds since the
+     *            epoch
+     * @return true if the heartbeat timeout has expired
+     */
+    boolean isHeartbeatExpired(long lastHeartbeatTimestamp) {
+        long now = System.currentTimeMillis();
+        int timeout = 1000 * getHeartbeatTimeout();
+        return timeout >= 0 && now - lastHeartbeatTimestamp >= timeout;
+    }
+
     /**
      * Returns whether the given session is active or whether it can be closed.
      * <p>
@@ -1308,6 +1692,7 @@ public abstract class VaadinService implements Serializable {
         }
         setCurrentInstances(request, response);
         request.setAttribute(REQUEST_START_TIME_ATTRIBUTE, System.nanoTime());
+        requestMetrics.startSample(request);
     }
 
     /**
@@ -1325,12 +1710,32 @@ public abstract class VaadinService implements Serializable {
     public void requestEnd(VaadinRequest request, VaadinResponse response,
             VaadinSession session) {
         if (session != null) {
-            final VaadinSession finalSession = session;
+            if (!ServletPortletHelper.isHeartbeatRequest(request)) {
+                cleanupAfterRequest(request, session);
+            } else if (session.getLockInstance().tryLock()) {
+                /*
+                 * Heartbeats do not wait for the lock. If the session is
+                 * locked, the cleanup is done when the request holding the
+                 * lock ends.
+                 */
+                try {
+                    cleanupAfterRequest(request, session);
+                } finally {
+                    session.unlock();
+                }
+            }
+        }
+        requestMetrics.endSample(request);
+        CurrentInstance.clearAll();
+    }
 
+    private void cleanupAfterRequest(VaadinRequest request,
+            final VaadinSession session) {
+        try {
             session.accessSynchronously(new Runnable() {
                 @Override
                 public void run() {
-                    cleanupSession(finalSession);
+                    cleanupSession(session);
                 }
             });
 
@@ -1339,11 +1744,13 @@ public abstract class VaadinService implements Serializable {
             session.accessSynchronously(new Runnable() {
                 @Override
                 public void run() {
-                    finalSession.setLastRequestDuration(duration);
+                    session.setLastRequestDuration(duration);
                 }
             });
+        } catch (SessionLockTimeoutException e) {
+            // Cleanup is done at the end of some later request instead
+            getLogger().log(Level.WARNING, e.getMessage());
         }
-        CurrentInstance.clearAll();
     }
 
     /**
@@ -1404,6 +1811,10 @@ public abstract class VaadinService implements Serializable {
 
         } catch (final SessionExpiredException e) {
             handleSessionExpired(request, response);
+        } catch (final SessionLockTimeoutException e) {
+            // The session would still be locked by someone else
+            vaadinSession = null;
+            handleSessionLockTimeout(request, response, e);
         } catch (final Throwable e) {
             handleExceptionDuringRequest(request, response, vaadinSession, e);
         } finally {
@@ -1411,6 +1822,34 @@ public abstract class VaadinService implements Serializable {
         }
     }
 
+    /**
+     * Responds to a request that gave up waiting for the session lock. The
+     * session is not locked, so no error handler is invoked. The default
+     * implementation logs the exception and sends a 503 Service Unavailable
+     * error.
+     * 
+     * @since 7.2
+     * @param request
+     *            the request that could not be handled
+     * @param response
+     *            the response to write to
+     * @param exception
+     *            the exception describing the current owner of the lock
+     * @throws ServiceException
+     *             if the response can not be written
+     */
+    protected void handleSessionLockTimeout(VaadinRequest request,
+            VaadinResponse response, SessionLockTimeoutException exception)
+            throws ServiceException {
+        getLogger().log(Level.WARNING, exception.getMessage());
+        try {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "The session is busy");
+        } catch (IOException e) {
+            throw new ServiceException(e);
+        }
+    }
+
     private void handleExceptionDuringRequest(VaadinRequest request,
             VaadinResponse response, VaadinSession vaadinSession, Throwable t)
             throws ServiceException {
@@ -1715,7 +2154,8 @@ public abstract class VaadinService implements Serializable {
      */
     public Future<Void> accessSession(VaadinSession session, Runnable runnable) {
         FutureAccess future = new FutureAccess(session, runnable);
-        session.getPendingAccessQueue().add(future);
+        getAccessTaskScheduler().enqueue(session.getPendingAccessQueue(),
+                future, session);
 
         ensureAccessQueuePurged(session);
 
@@ -1747,6 +2187,16 @@ public abstract class VaadinService implements Serializable {
          * thread and we acquire it, we just release it again to purge the queue
          * right away.
          */
+        if (getAccessTaskScheduler().isBackgroundDraining()) {
+            /*
+             * Dedicated threads purge the queue. A drain thread also schedules
+             * a new drain instead of purging the remaining tasks here, since
+             * this is called again when it unlocks and the stack would grow
+             * for as long as tasks keep coming.
+             */
+            getAccessTaskScheduler().scheduleDrain(session);
+            return;
+        }
         try {
             // tryLock() would be shorter, but it does not guarantee fairness
             if (session.getLockInstance().tryLock(0, TimeUnit.SECONDS)) {
@@ -1758,6 +2208,31 @@ public abstract class VaadinService implements Serializable {
         }
     }
 
+    /**
+     * Makes sure the pending access queue is purged for the provided UI when
+     * {@link DeploymentConfiguration#isUILockingEnabled() UI locking} is
+     * enabled. If the UI is currently locked by the current thread or some
+     * other thread, the queue will be purged when the UI is unlocked. If the
+     * lock is not held by any thread, it is acquired and the queue is purged
+     * right away.
+     * 
+     * @since 7.2
+     * @param ui
+     *            the UI for which the access queue should be purged
+     */
+    public void ensureAccessQueuePurged(UI ui) {
+        if (getAccessTaskScheduler().isBackgroundDraining()) {
+            // See ensureAccessQueuePurged(VaadinSession)
+            getAccessTaskScheduler().scheduleDrain(ui);
+            return;
+        }
+        // See ensureAccessQueuePurged(VaadinSession) for the reasoning
+        if (ui.getSession() != null && ui.tryLock()) {
+            // unlock triggers runPendingAccessTasks
+            ui.unlock();
+        }
+    }
+
     /**
      * Purges the queue of pending access invocations enqueued with
      * {@link VaadinSession#access(Runnable)}.
@@ -1772,21 +2247,85 @@ public abstract class VaadinService implements Serializable {
     public void runPendingAccessTasks(VaadinSession session) {
         assert session.hasLock();
 
-        if (session.getPendingAccessQueue().isEmpty()) {
+        if (!getAccessTaskScheduler().isDrainThread()) {
+            // Leave the tasks to a dedicated thread
+            if (!session.getPendingAccessQueue().isEmpty()) {
+                getAccessTaskScheduler().scheduleDrain(session);
+            }
+            return;
+        }
+        runPendingAccessTasks(session, session.getPendingAccessQueue());
+    }
+
+    /**
+     * Purges the queue of pending access invocations enqueued with
+     * {@link UI#access(Runnable)} for the given UI when
+     * {@link DeploymentConfiguration#isUILockingEnabled() UI locking} is
+     * enabled. The tasks enqueued with {@link VaadinSession#access(Runnable)}
+     * are also run if the current thread holds the lock of the entire session.
+     * <p>
+     * This method is automatically run by the framework at appropriate
+     * situations and is not intended to be used by application developers.
+     * 
+     * @param ui
+     *            the UI to purge the queue for
+     * @since 7.2
+     */
+    public void runPendingAccessTasks(UI ui) {
+        assert ui.hasLock();
+
+        VaadinSession session = ui.getSession();
+        if (session == null) {
+            return;
+        }
+
+        if (!getAccessTaskScheduler().isDrainThread()) {
+            // Leave the tasks to a dedicated thread
+            if (!session.getPendingAccessQueue().isEmpty()) {
+                getAccessTaskScheduler().scheduleDrain(session);
+            }
+            if (!ui.getPendingAccessQueue().isEmpty()) {
+                getAccessTaskScheduler().scheduleDrain(ui);
+            }
+            return;
+        }
+
+        if (session.getLockInstance() instanceof UILockingSessionLock) {
+            if (((ReentrantLock) session.getLockInstance())
+                    .isHeldByCurrentThread()) {
+                runPendingAccessTasks(session, session.getPendingAccessQueue());
+            }
+            runPendingAccessTasks(session, ui.getPendingAccessQueue());
+        } else {
+            runPendingAccessTasks(session, session.getPendingAccessQueue());
+        }
+    }
+
+    private void runPendingAccessTasks(VaadinSession session,
+            Queue<FutureAccess> queue) {
+        if (queue.isEmpty()) {
             return;
         }
 
-        Map<Class<?>, CurrentInstance> oldInstances = CurrentInstance
-                .getInstances(false);
+        CurrentInstance.Snapshot oldInstances = CurrentInstance
+                .takeSnapshot(false);
+
+        AccessTaskScheduler scheduler = getAccessTaskScheduler();
+        int limit = scheduler.getBatchLimit(queue);
+        int taskCount = 0;
+        long startTime = System.nanoTime();
 
         FutureAccess pendingAccess;
         try {
-            while ((pendingAccess = session.getPendingAccessQueue().poll()) != null) {
+            while (taskCount < limit && (pendingAccess = queue.poll()) != null) {
+                taskCount++;
                 if (!pendingAccess.isCancelled()) {
-                    CurrentInstance.clearAll();
-                    CurrentInstance.restoreInstances(pendingAccess
-                            .getCurrentInstances());
-                    CurrentInstance.setCurrent(session);
+                    scheduler.taskStarted(pendingAccess);
+                    // Replaces all current instances without allocating
+                    CurrentInstance.restore(pendingAccess
+                            .getCurrentInstanceSnapshot());
+                    VaadinSession.setCurrent(session);
+                    VaadinService.setCurrent(session.getService());
                     pendingAccess.run();
 
                     try {
@@ -1798,8 +2337,8 @@ public abstract class VaadinService implements Serializable {
                 }
             }
         } finally {
-            CurrentInstance.clearAll();
-            CurrentInstance.restoreInstances(oldInstances);
+            CurrentInstance.restore(oldInstances);
+            scheduler.batchCompleted(queue, taskCount, startTime);
         }
     }
 
@@ -1846,6 +2385,144 @@ public abstract class VaadinService implements Serializable {
      */
     public void destroy() {
         eventRouter.fireEvent(new ServiceDestroyEvent(this));
+
+        unregisterMBean(requestMetricsName);
+        requestMetricsName = null;
+        unregisterMBean(accessTaskSchedulerName);
+        accessTaskSchedulerName = null;
+        unregisterMBean(sessionLockMetricsName);
+        sessionLockMetricsName = null;
+        unregisterMBean(uiReaperName);
+        uiReaperName = null;
+        unregisterMBean(uiPassivatorName);
+        uiPassivatorName = null;
+
+        synchronized (this) {
+            if (scheduledExecutor != null) {
+                scheduledExecutor.shutdownNow();
+                scheduledExecutor = null;
+            }
+            if (accessTaskScheduler != null) {
+                accessTaskScheduler.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Gets the scheduler that decides how tasks submitted using
+     * {@link VaadinSession#access(Runnable)} and {@link UI#access(Runnable)}
+     * are queued and run. The scheduler is created when first needed.
+     * 
+     * @since 7.2
+     * @return the access task scheduler of this service
+     */
+    public synchronized AccessTaskScheduler getAccessTaskScheduler() {
+        if (accessTaskScheduler == null) {
+            accessTaskScheduler = createAccessTaskScheduler();
+        }
+        return accessTaskScheduler;
+    }
+
+    /**
+     * Creates the scheduler returned by {@link #getAccessTaskScheduler()}. The
+     * default implementation configures the scheduler based on the
+     * <code>accessQueueLimit</code>, <code>accessQueueOverflow</code> and
+     * <code>accessDrainThreads</code> init parameters.
+     * 
+     * @since 7.2
+     * @return a new access task scheduler
+     */
+    protected AccessTaskScheduler createAccessTaskScheduler() {
+        int queueLimit = getIntegerProperty(
+                Constants.SERVLET_PARAMETER_ACCESS_QUEUE_LIMIT, 0);
+        int drainThreads = getIntegerProperty(
+                Constants.SERVLET_PARAMETER_ACCESS_DRAIN_THREADS, 0);
+
+        String overflow = getDeploymentConfiguration()
+                .getApplicationOrSystemProperty(
+                        Constants.SERVLET_PARAMETER_ACCESS_QUEUE_OVERFLOW,
+                        AccessTaskScheduler.OverflowPolicy.BLOCK.name());
+        AccessTaskScheduler.OverflowPolicy overflowPolicy;
+        try {
+            overflowPolicy = AccessTaskScheduler.OverflowPolicy
+                    .valueOf(overflow.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            getLogger().log(Level.WARNING,
+                    "Invalid access queue overflow policy {0}", overflow);
+            overflowPolicy = AccessTaskScheduler.OverflowPolicy.BLOCK;
+        }
+
+        ExecutorService drainExecutor = null;
+        if (drainThreads > 0) {
+            drainExecutor = Executors.newFixedThreadPool(drainThreads,
+                    new DaemonThreadFactory(getServiceName() + "-access"));
+        }
+        return new AccessTaskScheduler(queueLimit, overflowPolicy,
+                drainExecutor);
+    }
+
+    private int getIntegerProperty(String name, int defaultValue) {
+        String value = getDeploymentConfiguration()
+                .getApplicationOrSystemProperty(name,
+                        Integer.toString(defaultValue));
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            getLogger().log(Level.WARNING, "Invalid value {0} for {1}",
+                    new Object[] { value, name });
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets the executor used for running delayed and periodic background tasks
+     * of this service. The executor is created when first needed and shut
+     * down when the service is destroyed.
+     * <p>
+     * Tasks run without holding any session lock. A task that needs to access
+     * a session should do it using {@link VaadinSession#access(Runnable)}.
+     * 
+     * @since 7.2
+     * @return the scheduled executor of this service
+     */
+    public synchronized ScheduledExecutorService getScheduledExecutor() {
+        if (scheduledExecutor == null) {
+            scheduledExecutor = createScheduledExecutor();
+        }
+        return scheduledExecutor;
+    }
+
+    /**
+     * Creates the executor returned by {@link #getScheduledExecutor()}. The
+     * default implementation uses a single daemon thread.
+     * 
+     * @since 7.2
+     * @return a new scheduled executor
+     */
+    protected ScheduledExecutorService createScheduledExecutor() {
+        return Executors
+                .newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+                        getServiceName() + "-scheduler"));
+    }
+
+    /**
+     * Creates daemon threads so that background tasks never keep the JVM
+     * running.
+     */
+    static class DaemonThreadFactory implements ThreadFactory,
+            Serializable {
+        private final String name;
+
+        public DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 
 }
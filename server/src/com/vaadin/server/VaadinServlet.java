@@ -16,6 +16,8 @@
 package com.vaadin.server;
 
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -24,6 +26,7 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.Arrays;
@@ -31,9 +34,13 @@ import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
+import javax.management.ObjectName;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -42,7 +49,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.vaadin.annotations.VaadinServletConfiguration;
 import com.vaadin.annotations.VaadinServletConfiguration.InitParameterName;
-import com.vaadin.sass.internal.ScssStylesheet;
+import com.vaadin.server.communication.ResponseCompression;
 import com.vaadin.server.communication.ServletUIInitHandler;
 import com.vaadin.shared.JsonConstants;
 import com.vaadin.ui.UI;
@@ -53,6 +60,12 @@ public class VaadinServlet extends HttpServlet implements Constants {
 
     private VaadinServletService servletService;
 
+    private StaticResourceCache staticResourceCache;
+    private ObjectName staticResourceCacheName;
+
+    private ScssCache scssCache;
+    private ObjectName scssCacheName;
+
     /**
      * Called by the servlet container to indicate to a servlet that the servlet
      * is being placed into service.
@@ -100,11 +113,110 @@ public class VaadinServlet extends HttpServlet implements Constants {
         // Sets current service even though there are no request and response
         servletService.setCurrentInstances(null, null);
 
+        initStaticResourceCache();
+        initScssCache();
+
         servletInitialized();
 
         CurrentInstance.clearAll();
     }
 
+    /**
+     * Creates the static resource cache and registers its MXBean if the cache
+     * is enabled. The cache is enabled by default in production mode and its
+     * size can be set using the <code>staticResourceCacheSize</code> init
+     * parameter. The cache is not used if
+     * {@link #writeStaticResourceResponse(HttpServletRequest, HttpServletResponse, URL)}
+     * has been overridden, since cached resources are written without it.
+     */
+    private void initStaticResourceCache() {
+        DeploymentConfiguration configuration = getService()
+                .getDeploymentConfiguration();
+        long defaultSize = configuration.isProductionMode() ? StaticResourceCache.DEFAULT_MAX_SIZE
+                : 0;
+        String value = configuration.getApplicationOrSystemProperty(
+                SERVLET_PARAMETER_STATIC_RESOURCE_CACHE_SIZE,
+                Long.toString(defaultSize));
+        long size;
+        try {
+            size = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            getLogger().log(Level.WARNING,
+                    "Invalid static resource cache size {0}", value);
+            size = defaultSize;
+        }
+        if (size <= 0) {
+            return;
+        }
+        if (isStaticResourceResponseOverridden()) {
+            getLogger()
+                    .log(Level.FINE,
+                            "Static resource cache disabled because writeStaticResourceResponse is overridden");
+            return;
+        }
+        staticResourceCache = new StaticResourceCache(size,
+                Deflater.BEST_COMPRESSION);
+        staticResourceCacheName = getService().registerMBean(
+                staticResourceCache, "StaticResourceCache");
+    }
+
+    /**
+     * Creates the cache for stylesheets compiled on the fly and registers its
+     * MXBean. Stylesheets are only compiled on the fly when not in production
+     * mode.
+     */
+    private void initScssCache() {
+        if (getService().getDeploymentConfiguration().isProductionMode()) {
+            return;
+        }
+        int threads = 1;
+        if (ScssCache.isParallelCompileSupported()) {
+            threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new VaadinService.DaemonThreadFactory(getService()
+                        .getServiceName() + "-scss"));
+        scssCache = new ScssCache(executor, ScssCache.DEFAULT_CHECK_INTERVAL);
+        scssCacheName = getService().registerMBean(scssCache, "ScssCache");
+    }
+
+    private boolean isStaticResourceResponseOverridden() {
+        for (Class<?> type = getClass(); type != VaadinServlet.class; type = type
+                .getSuperclass()) {
+            try {
+                type.getDeclaredMethod("writeStaticResourceResponse",
+                        HttpServletRequest.class, HttpServletResponse.class,
+                        URL.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // Check the superclass
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the cache used for serving static resources from the VAADIN
+     * directory.
+     * 
+     * @since 7.2
+     * @return the static resource cache, or <code>null</code> if resources
+     *         are not cached
+     */
+    public StaticResourceCache getStaticResourceCache() {
+        return staticResourceCache;
+    }
+
+    /**
+     * Gets the cache for stylesheets compiled on the fly from SCSS.
+     * 
+     * @since 7.2
+     * @return the SCSS cache, or <code>null</code> in production mode
+     */
+    public ScssCache getScssCache() {
+        return scssCache;
+    }
+
     private void readUiFromEnclosingClass(Properties initParameters) {
         Class<?> enclosingClass = getClass().getEnclosingClass();
 
@@ -489,13 +601,6 @@ public class VaadinServlet extends HttpServlet implements Constants {
             Arrays.asList(new Character[] { '&', '"', '\'', '<', '>', '(', ')',
                     ';' }));
 
-    /**
-     * Mutex for preventing to scss compilations to take place simultaneously.
-     * This is a workaround needed as the scss compiler currently is not thread
-     * safe (#10292).
-     */
-    private static final Object SCSS_MUTEX = new Object();
-
     /**
      * Returns the default theme. Must never return null.
      * 
@@ -592,6 +697,11 @@ public class VaadinServlet extends HttpServlet implements Constants {
             throws IOException, ServletException {
 
         final ServletContext sc = getServletContext();
+        if (staticResourceCache != null
+                && serveCachedStaticResource(filename, request, response)) {
+            return;
+        }
+
         URL resourceUrl = findResourceURL(filename, sc);
 
         if (resourceUrl == null) {
@@ -669,16 +779,91 @@ public class VaadinServlet extends HttpServlet implements Constants {
         // Provide modification timestamp to the browser if it is known.
         if (lastModifiedTime > 0) {
             response.setDateHeader("Last-Modified", lastModifiedTime);
+            setCacheControlHeader(response, filename);
+        }
 
-            String cacheControl = "public, max-age=0, must-revalidate";
-            int resourceCacheTime = getCacheTime(filename);
-            if (resourceCacheTime > 0) {
-                cacheControl = "max-age=" + String.valueOf(resourceCacheTime);
+        writeStaticResourceResponse(request, response, resourceUrl);
+    }
+
+    private void setCacheControlHeader(HttpServletResponse response,
+            String filename) {
+        String cacheControl = "public, max-age=0, must-revalidate";
+        int resourceCacheTime = getCacheTime(filename);
+        if (resourceCacheTime > 0) {
+            cacheControl = "max-age=" + String.valueOf(resourceCacheTime);
+        }
+        response.setHeader("Cache-Control", cacheControl);
+    }
+
+    /**
+     * Serves a resource from the VAADIN directory using the static resource
+     * cache, loading the resource into the cache if needed. The gzip encoded
+     * variant is sent if the browser accepts it.
+     * 
+     * @return <code>true</code> if the resource was served,
+     *         <code>false</code> if the resource was not found, is not allowed
+     *         or can not be cached
+     */
+    private boolean serveCachedStaticResource(String filename,
+            HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        StaticResourceCache.Entry entry = staticResourceCache.get(filename);
+        if (entry == null) {
+            URL resourceUrl = findResourceURL(filename, getServletContext());
+            if (resourceUrl == null
+                    || !isAllowedVAADINResourceUrl(request, resourceUrl)) {
+                // Let the uncached path decide what to send
+                return false;
+            }
+            try {
+                entry = staticResourceCache.load(filename, resourceUrl);
+            } catch (IOException e) {
+                getLogger().log(Level.FINE,
+                        "Could not cache static resource " + filename, e);
+                return false;
+            }
+            if (entry == null) {
+                // Too large to be cached
+                return false;
             }
-            response.setHeader("Cache-Control", cacheControl);
         }
 
-        writeStaticResourceResponse(request, response, resourceUrl);
+        boolean gzipped = entry.getGzippedContent() != null
+                && ResponseCompression.isGzipAccepted(request
+                        .getHeader("Accept-Encoding"));
+        String eTag = entry.getETag(gzipped);
+
+        response.setHeader("ETag", eTag);
+        if (entry.getGzippedContent() != null) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        if (entry.getLastModified() > 0) {
+            response.setDateHeader("Last-Modified", entry.getLastModified());
+        }
+        setCacheControlHeader(response, filename);
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null ? StaticResourceCache.matches(ifNoneMatch,
+                eTag) : browserHasNewestVersion(request,
+                entry.getLastModified())) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+
+        final String mimetype = getServletContext().getMimeType(filename);
+        if (mimetype != null) {
+            response.setContentType(mimetype);
+        }
+        byte[] content;
+        if (gzipped) {
+            response.setHeader("Content-Encoding", "gzip");
+            content = entry.getGzippedContent();
+        } else {
+            content = entry.getContent();
+        }
+        response.setContentLength(content.length);
+        response.getOutputStream().write(content);
+        return true;
     }
 
     /**
@@ -732,6 +917,11 @@ public class VaadinServlet extends HttpServlet implements Constants {
      */
     protected void writeStaticResourceResponse(HttpServletRequest request,
             HttpServletResponse response, URL resourceUrl) throws IOException {
+        if ("file".equals(resourceUrl.getProtocol())
+                && writeFileResponse(request, response, resourceUrl)) {
+            return;
+        }
+
         // Write the resource to the client.
         URLConnection connection = resourceUrl.openConnection();
         try {
@@ -764,6 +954,52 @@ public class VaadinServlet extends HttpServlet implements Constants {
         }
     }
 
+    /**
+     * Writes a static resource that is a file in the local file system. The
+     * servlet container is asked to send the file if it supports sending files
+     * on its own, otherwise the file is copied to the response.
+     * 
+     * @return <code>true</code> if the file was written, <code>false</code> if
+     *         the URL does not point to a readable file
+     */
+    private boolean writeFileResponse(HttpServletRequest request,
+            HttpServletResponse response, URL resourceUrl) throws IOException {
+        File file;
+        try {
+            file = new File(resourceUrl.toURI());
+        } catch (URISyntaxException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (!file.isFile()) {
+            return false;
+        }
+
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            long length = in.getChannel().size();
+            response.setHeader("Content-Length", String.valueOf(length));
+            if (FileTransfer.sendFile(request, response, file, 0, length)) {
+                return true;
+            }
+            final OutputStream os = response.getOutputStream();
+            final byte buffer[] = new byte[DEFAULT_BUFFER_SIZE];
+            int bytes;
+            while ((bytes = in.read(buffer)) >= 0) {
+                os.write(buffer, 0, bytes);
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
     private URL findResourceURL(String filename, ServletContext sc)
             throws MalformedURLException {
         URL resourceUrl = sc.getResource(filename);
@@ -817,45 +1053,20 @@ public class VaadinServlet extends HttpServlet implements Constants {
             return true;
         }
 
-        synchronized (SCSS_MUTEX) {
-            String realFilename = sc.getRealPath(scssFilename);
-            ScssStylesheet scss = ScssStylesheet.get(realFilename);
-            if (scss == null) {
-                // Not a file in the file system (WebContent directory). Use the
-                // identifier directly (VAADIN/themes/.../styles.css) so
-                // ScssStylesheet will try using the class loader.
-                if (scssFilename.startsWith("/")) {
-                    scssFilename = scssFilename.substring(1);
-                }
-
-                scss = ScssStylesheet.get(scssFilename);
-            }
-
-            if (scss == null) {
-                getLogger()
-                        .log(Level.WARNING,
-                                "Scss file {0} exists but ScssStylesheet was not able to find it",
-                                scssFilename);
-                return false;
-            }
-            try {
-                getLogger().log(Level.FINE, "Compiling {0} for request to {1}",
-                        new Object[] { realFilename, filename });
-                scss.compile();
-            } catch (Exception e) {
-                getLogger().log(Level.WARNING, "Scss compilation failed", e);
-                return false;
-            }
+        String realFilename = sc.getRealPath(scssFilename);
+        String css = scssCache.getCss(scssFilename, realFilename);
+        if (css == null) {
+            // Failure logged by the cache
+            return false;
+        }
 
-            // This is for development mode only so instruct the browser to
-            // never
-            // cache it
-            response.setHeader("Cache-Control", "no-cache");
-            final String mimetype = getService().getMimeType(filename);
-            writeResponse(response, mimetype, scss.printState());
+        // This is for development mode only so instruct the browser to
+        // never cache it
+        response.setHeader("Cache-Control", "no-cache");
+        final String mimetype = getService().getMimeType(filename);
+        writeResponse(response, mimetype, css);
 
-            return true;
-        }
+        return true;
     }
 
     /**
@@ -1097,6 +1308,13 @@ public class VaadinServlet extends HttpServlet implements Constants {
     @Override
     public void destroy() {
         super.destroy();
+        getService().unregisterMBean(staticResourceCacheName);
+        staticResourceCacheName = null;
+        getService().unregisterMBean(scssCacheName);
+        scssCacheName = null;
+        if (scssCache != null) {
+            scssCache.shutdown();
+        }
         getService().destroy();
     }
 
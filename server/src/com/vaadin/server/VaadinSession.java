@@ -18,24 +18,27 @@ package com.vaadin.server;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -86,10 +89,11 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
          * Snapshot of all non-inheritable current instances at the time this
          * object was created.
          */
-        private final Map<Class<?>, CurrentInstance> instances = CurrentInstance
-                .getInstances(true);
+        private final CurrentInstance.Snapshot instances = CurrentInstance
+                .takeSnapshot(true);
         private final VaadinSession session;
         private Runnable runnable;
+        private final long creationTime = System.nanoTime();
 
         /**
          * Creates an instance for the given runnable
@@ -128,13 +132,38 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
          * this task.
          * 
          * @see CurrentInstance#restoreInstances(Map)
+         * @see #getCurrentInstanceSnapshot()
          * 
          * @return a map of current instances.
          */
         public Map<Class<?>, CurrentInstance> getCurrentInstances() {
+            return instances.toMap();
+        }
+
+        /**
+         * Gets the current instance values that should be used when running
+         * this task as a snapshot that replaces all current instances when
+         * restored.
+         * 
+         * @see CurrentInstance#restore(CurrentInstance.Snapshot)
+         * 
+         * @since 7.2
+         * @return a snapshot of current instances
+         */
+        public CurrentInstance.Snapshot getCurrentInstanceSnapshot() {
             return instances;
         }
 
+        /**
+         * Gets the {@link System#nanoTime()} at which this task was created,
+         * used for measuring how long tasks wait in the queue.
+         * 
+         * @return the creation time in nanoseconds
+         */
+        long getCreationTime() {
+            return creationTime;
+        }
+
         /**
          * Handles exceptions thrown during the execution of this task.
          * 
@@ -202,20 +231,27 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
      */
     private ConverterFactory converterFactory = new DefaultConverterFactory();
 
-    private LinkedList<RequestHandler> requestHandlers = new LinkedList<RequestHandler>();
+    /*
+     * The collections below use thread safe implementations since threads
+     * holding only the lock of a single UI may read them concurrently when UI
+     * locking is enabled.
+     */
+    private List<RequestHandler> requestHandlers = new CopyOnWriteArrayList<RequestHandler>();
 
     private int nextUIId = 0;
-    private Map<Integer, UI> uIs = new HashMap<Integer, UI>();
+    private Map<Integer, UI> uIs = new ConcurrentSkipListMap<Integer, UI>();
+
+    private final Map<String, Integer> embedIdMap = new ConcurrentHashMap<String, Integer>();
 
-    private final Map<String, Integer> embedIdMap = new HashMap<String, Integer>();
+    private final Map<Integer, UIPassivator.PassivatedUI> passivatedUIs = new ConcurrentHashMap<Integer, UIPassivator.PassivatedUI>();
 
     private final EventRouter eventRouter = new EventRouter();
 
-    private GlobalResourceHandler globalResourceHandler;
+    private volatile GlobalResourceHandler globalResourceHandler;
 
     protected WebBrowser browser = new WebBrowser();
 
-    private DragAndDropService dragAndDropService;
+    private volatile DragAndDropService dragAndDropService;
 
     private LegacyCommunicationManager communicationManager;
 
@@ -223,15 +259,18 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
 
     private long lastRequestDuration = -1;
 
-    private long lastRequestTimestamp = System.currentTimeMillis();
+    private volatile long lastRequestTimestamp = System.currentTimeMillis();
 
-    private boolean closing = false;
+    /*
+     * Volatile since it is also read without the lock by getLoadedSession
+     */
+    private volatile boolean closing = false;
 
     private transient WrappedSession session;
 
-    private final Map<String, Object> attributes = new HashMap<String, Object>();
+    private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
 
-    private LinkedList<UIProvider> uiProviders = new LinkedList<UIProvider>();
+    private List<UIProvider> uiProviders = new CopyOnWriteArrayList<UIProvider>();
 
     private transient VaadinService service;
 
@@ -240,9 +279,10 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
     /*
      * Pending tasks can't be serialized and the queue should be empty when the
      * session is serialized as long as it doesn't happen while some other
-     * thread has the lock.
+     * thread has the lock. LinkedBlockingQueue is used since its size is
+     * tracked, which is needed by AccessTaskScheduler for the queue limit.
      */
-    private transient ConcurrentLinkedQueue<FutureAccess> pendingAccessQueue = new ConcurrentLinkedQueue<FutureAccess>();
+    private transient LinkedBlockingQueue<FutureAccess> pendingAccessQueue = new LinkedBlockingQueue<FutureAccess>();
 
     /**
      * Creates a new VaadinSession tied to a VaadinService.
@@ -399,7 +439,12 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
 
     public DragAndDropService getDragAndDropService() {
         if (dragAndDropService == null) {
-            dragAndDropService = new DragAndDropService(this);
+            synchronized (this) {
+                // Might be created concurrently by threads holding UI locks
+                if (dragAndDropService == null) {
+                    dragAndDropService = new DragAndDropService(this);
+                }
+            }
         }
         return dragAndDropService;
     }
@@ -429,11 +474,44 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
         }
 
         vaadinSession.session = underlyingSession;
+        if (vaadinSession.service == null) {
+            // Deserialized session, make it known to the service again
+            service.registerSession(vaadinSession);
+        }
         vaadinSession.service = service;
         vaadinSession.refreshLock();
         return vaadinSession;
     }
 
+    /**
+     * Gets the VaadinSession for the given service from the HTTP session
+     * without locking it, provided that it has already been loaded using
+     * {@link #getForSession(VaadinService, WrappedSession)} and is not being
+     * closed.
+     * 
+     * @param service
+     *            The service the VaadinSession is associated with
+     * @param underlyingSession
+     *            The wrapped HTTP session for the user
+     * @return the loaded VaadinSession, or <code>null</code> if the session
+     *         must be loaded while locked
+     */
+    static VaadinSession getLoadedSession(VaadinService service,
+            WrappedSession underlyingSession) {
+        Object attribute = underlyingSession
+                .getAttribute(getSessionAttributeName(service));
+        if (attribute instanceof VaadinSession) {
+            VaadinSession vaadinSession = (VaadinSession) attribute;
+            if (vaadinSession.service == service
+                    && vaadinSession.session != null
+                    && vaadinSession.lock != null
+                    && !vaadinSession.closing) {
+                return vaadinSession;
+            }
+        }
+        return null;
+    }
+
     /**
      * Retrieves all {@link VaadinSession}s which are stored in the given HTTP
      * session
@@ -657,7 +735,7 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
      */
     public void addRequestHandler(RequestHandler handler) {
         assert hasLock();
-        requestHandlers.addFirst(handler);
+        requestHandlers.add(0, handler);
     }
 
     /**
@@ -677,6 +755,11 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
      * Gets the request handlers that are registered to the session. The
      * iteration order of the returned collection is the same as the order in
      * which the request handlers will be invoked when a request is handled.
+     * <p>
+     * The session does not need to be locked. The handlers are stored in a
+     * thread-safe list, and iterating the returned collection sees the
+     * handlers that were registered when the iteration started.
+     * </p>
      * 
      * @return a collection of request handlers, with the iteration order
      *         according to the order they would be invoked
@@ -687,7 +770,6 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
      * @since 7.0
      */
     public Collection<RequestHandler> getRequestHandlers() {
-        assert hasLock();
         return Collections.unmodifiableCollection(requestHandlers);
     }
 
@@ -734,7 +816,8 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
     /**
      * Gets all the UIs of this session. This includes UIs that have been
      * requested but not yet initialized. UIs that receive no heartbeat requests
-     * from the client are eventually removed from the session.
+     * from the client are eventually removed from the session. UIs that have
+     * been passivated by the {@link UIPassivator} are not included.
      * 
      * @return a collection of UIs belonging to this application
      * 
@@ -745,7 +828,11 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
         return Collections.unmodifiableCollection(uIs.values());
     }
 
-    private int connectorIdSequence = 0;
+    /*
+     * Atomic since threads holding the locks of different UIs create
+     * connector ids concurrently
+     */
+    private final AtomicInteger connectorIdSequence = new AtomicInteger();
 
     private final String csrfToken = UUID.randomUUID().toString();
 
@@ -763,7 +850,7 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
     @Deprecated
     public String createConnectorId(ClientConnector connector) {
         assert hasLock();
-        return String.valueOf(connectorIdSequence++);
+        return String.valueOf(connectorIdSequence.getAndIncrement());
     }
 
     /**
@@ -778,17 +865,120 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
      */
     public UI getUIById(int uiId) {
         assert hasLock();
-        return uIs.get(uiId);
+        UI ui = uIs.get(uiId);
+        if (ui == null && !passivatedUIs.isEmpty()) {
+            UIPassivator.PassivatedUI passivated = passivatedUIs.get(uiId);
+            if (passivated != null) {
+                ui = getService().getUIPassivator().activate(this, passivated);
+            }
+        }
+        return ui;
+    }
+
+    /**
+     * Updates the heartbeat timestamp of the UI with the given id without
+     * locking this session, so that heartbeats are not delayed by requests
+     * holding the lock. The timestamp of a UI that has been passivated is
+     * updated without restoring the UI.
+     * 
+     * @see UI#setLastHeartbeatTimestamp(long)
+     * 
+     * @since 7.2
+     * @param uiId
+     *            the UI id
+     * @param timestamp
+     *            the time of the heartbeat, in milliseconds since the epoch
+     * @return <code>true</code> if the timestamp was updated,
+     *         <code>false</code> if this session has no UI with the given id
+     */
+    public boolean updateHeartbeat(int uiId, long timestamp) {
+        UI ui = uIs.get(Integer.valueOf(uiId));
+        if (ui != null) {
+            ui.setLastHeartbeatTimestamp(timestamp);
+            return true;
+        } else if (!passivatedUIs.isEmpty()) {
+            return getService().getUIPassivator().updateHeartbeat(this, uiId,
+                    timestamp);
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the stubs of the passivated UIs of this session.
+     * 
+     * @return a collection of stubs
+     */
+    Collection<UIPassivator.PassivatedUI> getPassivatedUIs() {
+        return passivatedUIs.values();
+    }
+
+    /**
+     * Gets the stub of a passivated UI.
+     * 
+     * @param uiId
+     *            the UI id
+     * @return the stub, or <code>null</code> if the UI is not passivated
+     */
+    UIPassivator.PassivatedUI getPassivatedUI(int uiId) {
+        return passivatedUIs.get(uiId);
+    }
+
+    /**
+     * Replaces a UI with the stub of the passivated UI.
+     * 
+     * @param ui
+     *            the passivated UI
+     * @param passivated
+     *            the stub
+     */
+    void setPassivated(UI ui, UIPassivator.PassivatedUI passivated) {
+        assert hasLock();
+        Integer id = Integer.valueOf(ui.getUIId());
+        passivatedUIs.put(id, passivated);
+        uIs.remove(id);
     }
 
     /**
-     * Checks if the current thread has exclusive access to this VaadinSession
+     * Replaces the stub of a passivated UI with the restored UI.
+     * 
+     * @param ui
+     *            the restored UI
+     */
+    void setActivated(UI ui) {
+        assert hasLock();
+        // Add before removing the stub so that the UI is always found
+        Integer id = Integer.valueOf(ui.getUIId());
+        uIs.put(id, ui);
+        passivatedUIs.remove(id);
+    }
+
+    /**
+     * Drops the stub of a passivated UI that could not be restored.
+     * 
+     * @param passivated
+     *            the stub
+     */
+    void removePassivated(UIPassivator.PassivatedUI passivated) {
+        Integer id = Integer.valueOf(passivated.getUIId());
+        passivatedUIs.remove(id);
+        for (Map.Entry<String, Integer> entry : embedIdMap.entrySet()) {
+            if (id.equals(entry.getValue())) {
+                embedIdMap.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Checks if the current thread has exclusive access to this VaadinSession.
+     * If {@link DeploymentConfiguration#isUILockingEnabled() UI locking} is
+     * enabled, holding the lock of any UI in this session is also considered
+     * to give access to the session.
      * 
      * @return true if the thread has exclusive access, false otherwise
      */
     public boolean hasLock() {
-        ReentrantLock l = ((ReentrantLock) getLockInstance());
-        return l.isHeldByCurrentThread();
+        return hasLock((ReentrantLock) getLockInstance());
     }
 
     /**
@@ -798,8 +988,16 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
      * @return true if this thread has exclusive access, false otherwise
      */
     private static boolean hasLock(VaadinService service, WrappedSession session) {
-        ReentrantLock l = (ReentrantLock) service.getSessionLock(session);
-        return l.isHeldByCurrentThread();
+        return hasLock((ReentrantLock) service.getSessionLock(session));
+    }
+
+    private static boolean hasLock(ReentrantLock l) {
+        if (l.isHeldByCurrentThread()) {
+            return true;
+        }
+        // The lock of a single UI also gives access to the session data
+        return l instanceof UILockingSessionLock
+                && ((UILockingSessionLock) l).isUILockHeldByCurrentThread();
     }
 
     /**
@@ -856,6 +1054,17 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
         eventRouter.fireEvent(response);
     }
 
+    /**
+     * Checks whether any bootstrap listeners have been added to this session.
+     * 
+     * @return <code>true</code> if there is at least one bootstrap listener,
+     *         otherwise <code>false</code>
+     */
+    boolean hasBootstrapListeners() {
+        return eventRouter.hasListeners(BootstrapFragmentResponse.class)
+                || eventRouter.hasListeners(BootstrapPageResponse.class);
+    }
+
     /**
      * Called by the framework to remove an UI instance from the session because
      * it has been closed.
@@ -894,8 +1103,14 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
     public GlobalResourceHandler getGlobalResourceHandler(boolean createOnDemand) {
         assert hasLock();
         if (globalResourceHandler == null && createOnDemand) {
-            globalResourceHandler = new GlobalResourceHandler();
-            addRequestHandler(globalResourceHandler);
+            synchronized (this) {
+                // Might be created concurrently by threads holding UI locks
+                if (globalResourceHandler == null) {
+                    GlobalResourceHandler handler = new GlobalResourceHandler();
+                    addRequestHandler(handler);
+                    globalResourceHandler = handler;
+                }
+            }
         }
 
         return globalResourceHandler;
@@ -988,14 +1203,20 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
                 ultimateRelease = true;
                 getService().runPendingAccessTasks(this);
 
+                if (getLockInstance() instanceof UILockingSessionLock) {
+                    for (UI ui : getUIs()) {
+                        getService().runPendingAccessTasks(ui);
+                    }
+                }
+
                 for (UI ui : getUIs()) {
                     if (ui.getPushConfiguration().getPushMode() == PushMode.AUTOMATIC) {
-                        Map<Class<?>, CurrentInstance> oldCurrent = CurrentInstance
-                                .setCurrent(ui);
+                        CurrentInstance.Snapshot oldCurrent = CurrentInstance
+                                .saveAndSetCurrent(ui);
                         try {
                             ui.push();
                         } finally {
-                            CurrentInstance.restoreInstances(oldCurrent);
+                            CurrentInstance.restore(oldCurrent);
                         }
                     }
                 }
@@ -1015,6 +1236,14 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
         if (ultimateRelease && !getPendingAccessQueue().isEmpty()) {
             getService().ensureAccessQueuePurged(this);
         }
+        if (ultimateRelease && getLockInstance() instanceof UILockingSessionLock) {
+            // Not using getUIs() since the lock is no longer held
+            for (UI ui : uIs.values()) {
+                if (!ui.getPendingAccessQueue().isEmpty()) {
+                    getService().ensureAccessQueuePurged(ui);
+                }
+            }
+        }
     }
 
     /**
@@ -1128,6 +1357,16 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
         }
     }
 
+    /**
+     * Gets the values of all attributes stored in this session.
+     * 
+     * @return an unmodifiable view of the attribute values
+     */
+    Collection<Object> getAttributeValues() {
+        assert hasLock();
+        return Collections.unmodifiableCollection(attributes.values());
+    }
+
     /**
      * Creates a new unique id for a UI.
      * 
@@ -1138,6 +1377,37 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
         return nextUIId++;
     }
 
+    /**
+     * Gets the id sequences of this session for replicating them to a copy of
+     * the session.
+     * 
+     * @return the next connector id and the next UI id
+     */
+    int[] getIdSequences() {
+        return new int[] { connectorIdSequence.get(), nextUIId };
+    }
+
+    /**
+     * Sets the id sequences replicated from another copy of this session.
+     * 
+     * @param sequences
+     *            the next connector id and the next UI id
+     */
+    void setIdSequences(int[] sequences) {
+        assert hasLock();
+        connectorIdSequence.set(sequences[0]);
+        nextUIId = sequences[1];
+    }
+
+    /**
+     * Gets the live map of the attributes stored in this session.
+     * 
+     * @return the attribute map
+     */
+    Map<String, Object> getAttributeMap() {
+        return attributes;
+    }
+
     /**
      * Adds an initialized UI to this session.
      * 
@@ -1162,7 +1432,7 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
         if (embedId != null) {
             Integer previousUiId = embedIdMap.put(embedId, uiId);
             if (previousUiId != null) {
-                UI previousUi = uIs.get(previousUiId);
+                UI previousUi = getUIById(previousUiId.intValue());
                 assert previousUi != null
                         && embedId.equals(previousUi.getEmbedId()) : "UI id map and embed id map not in sync";
 
@@ -1180,7 +1450,7 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
      */
     public void addUIProvider(UIProvider uiProvider) {
         assert hasLock();
-        uiProviders.addFirst(uiProvider);
+        uiProviders.add(0, uiProvider);
     }
 
     /**
@@ -1284,15 +1554,15 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
     public void accessSynchronously(Runnable runnable) {
         VaadinService.verifyNoOtherSessionLocked(this);
 
-        Map<Class<?>, CurrentInstance> old = null;
+        CurrentInstance.Snapshot old = null;
         lock();
         try {
-            old = CurrentInstance.setCurrent(this);
+            old = CurrentInstance.saveAndSetCurrent(this);
             runnable.run();
         } finally {
             unlock();
             if (old != null) {
-                CurrentInstance.restoreInstances(old);
+                CurrentInstance.restore(old);
             }
         }
 
@@ -1341,6 +1611,9 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
      *            the runnable which accesses the session
      * @return a future that can be used to check for task completion and to
      *         cancel the task
+     * @throws java.util.concurrent.RejectedExecutionException
+     *             if the pending access queue is full and the
+     *             {@link AccessTaskScheduler} is configured to reject tasks
      */
     public Future<Void> access(Runnable runnable) {
         return getService().accessSession(this, runnable);
@@ -1371,6 +1644,34 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
         return csrfToken;
     }
 
+    /**
+     * Replaces this session with a compact serialized form if enabled using
+     * the <code>compactSessionSerialization</code> init parameter. The value
+     * <code>true</code> writes the session using
+     * {@link CompactObjectOutputStream} and <code>skipCaches</code> also leaves
+     * out caches that can be rebuilt after deserialization.
+     * 
+     * @since 7.2
+     * @return the object to serialize instead of this session
+     * @throws ObjectStreamException
+     *             never thrown by this implementation
+     */
+    protected Object writeReplace() throws ObjectStreamException {
+        DeploymentConfiguration configuration = this.configuration;
+        if (configuration == null || CompactSessionForm.isWriting(this)) {
+            return this;
+        }
+        String mode = configuration.getApplicationOrSystemProperty(
+                Constants.SERVLET_PARAMETER_COMPACT_SESSION_SERIALIZATION,
+                "false");
+        if ("true".equals(mode)) {
+            return new CompactSessionForm(this, false);
+        } else if ("skipCaches".equals(mode)) {
+            return new CompactSessionForm(this, true);
+        }
+        return this;
+    }
+
     /**
      * Override default deserialization logic to account for transient
      * {@link #pendingAccessQueue}.
@@ -1378,7 +1679,7 @@ public class VaadinSession implements HttpSessionBindingListener, Serializable {
     private void readObject(ObjectInputStream stream) throws IOException,
             ClassNotFoundException {
         stream.defaultReadObject();
-        pendingAccessQueue = new ConcurrentLinkedQueue<FutureAccess>();
+        pendingAccessQueue = new LinkedBlockingQueue<FutureAccess>();
     }
 
     /**
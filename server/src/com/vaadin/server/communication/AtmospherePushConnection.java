@@ -25,14 +25,17 @@ import java.io.Writer;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.atmosphere.cpr.AtmosphereResource;
 import org.atmosphere.cpr.AtmosphereResource.TRANSPORT;
 
+import com.vaadin.server.Constants;
 import com.vaadin.shared.communication.PushConstants;
 import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
 
 /**
  * A {@link PushConnection} implementation using the Atmosphere push support
@@ -123,6 +126,18 @@ public class AtmospherePushConnection implements PushConnection {
     private FragmentedMessage incomingMessage;
     private Future<Object> outgoingMessage;
 
+    /**
+     * The coalescing window in milliseconds, or -1 if not yet read from the
+     * deployment configuration.
+     */
+    private int coalescingWindow = -1;
+    private long lastMessageTime;
+    private boolean messageSent = false;
+    private boolean flushScheduled = false;
+
+    private final AtomicLong pushRequests = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+
     public AtmospherePushConnection(UI ui) {
         this.ui = ui;
     }
@@ -142,21 +157,173 @@ public class AtmospherePushConnection implements PushConnection {
      *            false if it is a response to a client request.
      */
     public void push(boolean async) {
+        pushRequests.incrementAndGet();
         if (!isConnected()) {
             if (async && state != State.RESPONSE_PENDING) {
                 state = State.PUSH_PENDING;
             } else {
                 state = State.RESPONSE_PENDING;
             }
+        } else if (async && deferPush()) {
+            // The changes will be sent by the scheduled push
         } else {
+            writeMessage(async);
+        }
+    }
+
+    /**
+     * Writes the pending changes of the UI as a message to the client.
+     * 
+     * @param async
+     *            True if the message asynchronously originates from the
+     *            server, false if it is a response to a client request.
+     */
+    private void writeMessage(boolean async) {
+        try {
+            Writer writer = new StringWriter();
+            new UidlWriter().write(getUI(), writer, false, async);
+            String message = "for(;;);[{" + writer.toString() + "}]";
+            getUI().getSession().getService().getResponseCompression()
+                    .pushMessageSent(message.length());
+            sendMessage(message);
+            messagesSent.incrementAndGet();
+            lastMessageTime = System.nanoTime();
+            messageSent = true;
+        } catch (Exception e) {
+            throw new RuntimeException("Push failed", e);
+        }
+    }
+
+    /**
+     * Checks whether an asynchronous push should be merged with other pushes
+     * instead of being sent right away, and schedules sending the merged
+     * message if needed. A push is deferred if the previous message was sent
+     * less than the coalescing window ago or is still being written.
+     * 
+     * @return true if the push was deferred, false if it should be sent now
+     */
+    private boolean deferPush() {
+        int window = getCoalescingWindow();
+        if (window <= 0) {
+            return false;
+        }
+        if (flushScheduled) {
+            // Dirty connectors are included in the already scheduled push
+            return true;
+        }
+
+        boolean writing = outgoingMessage != null && !outgoingMessage.isDone();
+        long elapsed = messageSent ? TimeUnit.NANOSECONDS.toMillis(System
+                .nanoTime() - lastMessageTime) : window;
+        if (!writing && elapsed >= window) {
+            return false;
+        }
+
+        final UI ui = getUI();
+        flushScheduled = true;
+        ui.getSession().getService().getScheduledExecutor()
+                .schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ui.access(new Runnable() {
+                                @Override
+                                public void run() {
+                                    flushDeferredPush();
+                                }
+                            });
+                        } catch (UIDetachedException e) {
+                            // Nothing to push to a detached UI
+                        }
+                    }
+                }, writing ? window : window - elapsed, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Sends the changes accumulated since a push was deferred. Must be called
+     * with the UI locked.
+     */
+    private void flushDeferredPush() {
+        flushScheduled = false;
+        // Changes might already have been sent in a response to the client
+        if (!getUI().getConnectorTracker().hasDirtyConnectors()) {
+            return;
+        }
+        if (isConnected()) {
+            writeMessage(true);
+        } else if (state != State.RESPONSE_PENDING) {
+            // Send once a new connection is established
+            state = State.PUSH_PENDING;
+        }
+    }
+
+    /**
+     * Returns the time window in milliseconds within which asynchronous pushes
+     * are merged into one message. Pushes requested while a message is being
+     * written are also merged. A non-positive window disables coalescing so
+     * that every push is sent immediately. The default window is read from the
+     * <code>pushCoalescingWindow</code> deployment parameter and is 0 unless
+     * configured.
+     * 
+     * @since 7.2
+     * @return the coalescing window in milliseconds
+     */
+    public int getCoalescingWindow() {
+        if (coalescingWindow < 0) {
+            String window = getUI()
+                    .getSession()
+                    .getService()
+                    .getDeploymentConfiguration()
+                    .getApplicationOrSystemProperty(
+                            Constants.SERVLET_PARAMETER_PUSH_COALESCING_WINDOW,
+                            "0");
             try {
-                Writer writer = new StringWriter();
-                new UidlWriter().write(getUI(), writer, false, async);
-                sendMessage("for(;;);[{" + writer.toString() + "}]");
-            } catch (Exception e) {
-                throw new RuntimeException("Push failed", e);
+                coalescingWindow = Math.max(0, Integer.parseInt(window));
+            } catch (NumberFormatException e) {
+                getLogger().log(Level.WARNING,
+                        "Invalid push coalescing window {0}, using 0", window);
+                coalescingWindow = 0;
             }
         }
+        return coalescingWindow;
+    }
+
+    /**
+     * Sets the time window in milliseconds within which asynchronous pushes
+     * are merged into one message.
+     * 
+     * @see #getCoalescingWindow()
+     * 
+     * @since 7.2
+     * @param coalescingWindow
+     *            the coalescing window in milliseconds, or 0 to send every
+     *            push immediately
+     */
+    public void setCoalescingWindow(int coalescingWindow) {
+        this.coalescingWindow = Math.max(0, coalescingWindow);
+    }
+
+    /**
+     * Returns the number of times a push has been requested through this
+     * connection, including pushes that were merged with other pushes.
+     * 
+     * @since 7.2
+     * @return the number of push requests
+     */
+    public long getPushRequestCount() {
+        return pushRequests.get();
+    }
+
+    /**
+     * Returns the number of UIDL messages that have been sent through this
+     * connection.
+     * 
+     * @since 7.2
+     * @return the number of messages sent
+     */
+    public long getMessageCount() {
+        return messagesSent.get();
     }
 
     /**
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.vaadin.server.communication;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.vaadin.server.ClientConnector;
+
+/**
+ * A {@link DiffStateStore} keeping the states as UTF-8 encoded JSON strings.
+ * <p>
+ * A state stored in this form typically needs only a fraction of the memory
+ * of the corresponding {@link JSONObject} and can be serialized as is, at the
+ * cost of encoding the state when it is stored and decoding it again when it
+ * is needed for diffing, i.e. when the connector is dirty. This is a good
+ * trade-off for UIs with lots of connectors that are only rarely updated.
+ * <p>
+ * Enable by setting the <code>diffStateStore</code> init parameter to the name
+ * of this class.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class CompactDiffStateStore implements DiffStateStore {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Map<ClientConnector, byte[]> diffStates = new HashMap<ClientConnector, byte[]>();
+
+    @Override
+    public JSONObject get(ClientConnector connector) {
+        byte[] encoded = diffStates.get(connector);
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(new String(encoded, UTF8));
+        } catch (JSONException e) {
+            throw new RuntimeException("Could not decode the stored state of "
+                    + connector.getConnectorId(), e);
+        }
+    }
+
+    @Override
+    public void put(ClientConnector connector, JSONObject diffState) {
+        diffStates.put(connector, diffState.toString().getBytes(UTF8));
+    }
+
+    @Override
+    public void remove(ClientConnector connector) {
+        diffStates.remove(connector);
+    }
+
+    @Override
+    public void clear() {
+        diffStates.clear();
+    }
+
+    @Override
+    public int size() {
+        return diffStates.size();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.vaadin.server.communication;
+
+import java.io.Serializable;
+
+import org.json.JSONObject;
+
+import com.vaadin.server.ClientConnector;
+import com.vaadin.ui.ConnectorTracker;
+
+/**
+ * Stores the last shared state sent to the client for each connector of a UI.
+ * The stored state is used as the reference when determining which parts of
+ * the shared state have changed and need to be sent to the client.
+ * <p>
+ * Implementations are free to store the states in any form as long as
+ * {@link #get(ClientConnector)} returns an object equal to the one last passed
+ * to {@link #put(ClientConnector, JSONObject)}. Callers must not assume that
+ * modifying the returned object modifies the stored state.
+ * 
+ * @see ConnectorTracker#getDiffState(ClientConnector)
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public interface DiffStateStore extends Serializable {
+
+    /**
+     * Gets the stored state of the given connector.
+     * 
+     * @param connector
+     *            the connector to get the state for
+     * @return the stored state, or <code>null</code> if no state has been
+     *         stored for the connector
+     */
+    public JSONObject get(ClientConnector connector);
+
+    /**
+     * Stores a state for the given connector, replacing any previously stored
+     * state.
+     * 
+     * @param connector
+     *            the connector to store the state for
+     * @param diffState
+     *            the state to store, not <code>null</code>
+     */
+    public void put(ClientConnector connector, JSONObject diffState);
+
+    /**
+     * Removes the stored state of the given connector.
+     * 
+     * @param connector
+     *            the connector to remove the state for
+     */
+    public void remove(ClientConnector connector);
+
+    /**
+     * Removes the stored states of all connectors.
+     */
+    public void clear();
+
+    /**
+     * Gets the number of connectors for which a state is stored.
+     * 
+     * @return the number of stored states
+     */
+    public int size();
+}
@@ -18,13 +18,35 @@ package com.vaadin.server.communication;
 
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.net.URLDecoder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletResponse;
+
+import com.vaadin.server.ChunkedStreamVariable;
 import com.vaadin.server.ClientConnector;
+import com.vaadin.server.Constants;
 import com.vaadin.server.NoInputStreamException;
 import com.vaadin.server.NoOutputStreamException;
 import com.vaadin.server.RequestHandler;
@@ -36,6 +58,7 @@ import com.vaadin.server.UploadException;
 import com.vaadin.server.VaadinRequest;
 import com.vaadin.server.VaadinResponse;
 import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.ui.upload.UploadConstants;
 import com.vaadin.ui.Component;
 import com.vaadin.ui.UI;
 import com.vaadin.ui.Upload.FailedEvent;
@@ -51,150 +74,268 @@ public class FileUploadHandler implements RequestHandler {
     /**
      * Stream that extracts content from another stream until the boundary
      * string is encountered.
+     * <p>
+     * The content is read from the underlying stream in large blocks and the
+     * boundary is searched for using the Boyer-Moore-Horspool algorithm, which
+     * usually only needs to look at a fraction of the bytes in the buffer.
      * 
      * Public only for unit tests, should be considered private for all other
      * purposes.
      */
     public static class SimpleMultiPartInputStream extends InputStream {
 
+        private final byte[] boundary;
+
         /**
-         * Counter of how many characters have been matched to boundary string
-         * from the stream
+         * Number of bytes the search can be advanced by for each byte value
+         * found at the position of the last byte of the boundary.
          */
-        int matchedCount = -1;
+        private final int[] shift = new int[256];
+
+        private final byte[] buffer;
 
         /**
-         * Used as pointer when returning bytes after partly matched boundary
-         * string.
+         * Index of the first byte in the buffer that has not been returned.
          */
-        int curBoundaryIndex = 0;
+        private int position = 0;
+
         /**
-         * The byte found after a "promising start for boundary"
+         * Index of the first byte in the buffer that might be part of the
+         * boundary. The bytes before it can be returned.
          */
-        private int bufferedByte = -1;
-        private boolean atTheEnd = false;
+        private int contentEnd = 0;
 
-        private final char[] boundary;
+        /**
+         * Index after the last byte read into the buffer.
+         */
+        private int limit = 0;
+
+        private boolean boundaryFound = false;
 
         private final InputStream realInputStream;
 
         public SimpleMultiPartInputStream(InputStream realInputStream,
                 String boundaryString) {
-            boundary = (CRLF + DASHDASH + boundaryString).toCharArray();
+            this(realInputStream, boundaryString, DEFAULT_UPLOAD_BUFFER_SIZE);
+        }
+
+        /**
+         * Creates a stream that reads the underlying stream in blocks of the
+         * given size.
+         * 
+         * @since 7.2
+         * @param realInputStream
+         *            the stream to read from
+         * @param boundaryString
+         *            the mime boundary that ends the content
+         * @param bufferSize
+         *            the size of the read buffer in bytes
+         */
+        public SimpleMultiPartInputStream(InputStream realInputStream,
+                String boundaryString, int bufferSize) {
+            try {
+                boundary = (CRLF + DASHDASH + boundaryString).getBytes(UTF8);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
             this.realInputStream = realInputStream;
+            buffer = new byte[Math.max(bufferSize, 2 * boundary.length)];
+
+            Arrays.fill(shift, boundary.length);
+            for (int i = 0; i < boundary.length - 1; i++) {
+                shift[boundary[i] & 0xff] = boundary.length - 1 - i;
+            }
         }
 
         @Override
         public int read() throws IOException {
-            if (atTheEnd) {
-                // End boundary reached, nothing more to read
+            if (!fill()) {
                 return -1;
-            } else if (bufferedByte >= 0) {
-                /* Purge partially matched boundary if there was such */
-                return getBuffered();
-            } else if (matchedCount != -1) {
-                /*
-                 * Special case where last "failed" matching ended with first
-                 * character from boundary string
-                 */
-                return matchForBoundary();
-            } else {
-                int fromActualStream = realInputStream.read();
-                if (fromActualStream == -1) {
-                    // unexpected end of stream
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, contentEnd - position);
+            System.arraycopy(buffer, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        /**
+         * Writes the next block of content directly from the read buffer to
+         * the given channel.
+         * 
+         * @param channel
+         *            the channel to write to
+         * @return the number of bytes written, or -1 if the boundary has been
+         *         reached
+         * @throws IOException
+         *             if reading or writing fails
+         */
+        private int writeTo(WritableByteChannel channel) throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            int count = contentEnd - position;
+            ByteBuffer block = ByteBuffer.wrap(buffer, position, count);
+            while (block.hasRemaining()) {
+                channel.write(block);
+            }
+            position = contentEnd;
+            return count;
+        }
+
+        /**
+         * Makes sure there is content to return in the buffer, reading more
+         * from the underlying stream if needed.
+         * 
+         * @return <code>true</code> if there is content to return,
+         *         <code>false</code> if the boundary has been reached
+         * @throws IOException
+         *             if the underlying stream ends before the boundary
+         */
+        private boolean fill() throws IOException {
+            while (position == contentEnd) {
+                if (boundaryFound) {
+                    return false;
+                }
+                if (position > 0) {
+                    // Keep the bytes that might be the start of the boundary
+                    System.arraycopy(buffer, position, buffer, 0, limit
+                            - position);
+                    limit -= position;
+                    contentEnd = 0;
+                    position = 0;
+                }
+                int read = realInputStream.read(buffer, limit, buffer.length
+                        - limit);
+                if (read == -1) {
                     throw new IOException(
                             "The multipart stream ended unexpectedly");
                 }
-                if (boundary[0] == fromActualStream) {
-                    /*
-                     * If matches the first character in boundary string, start
-                     * checking if the boundary is fetched.
-                     */
-                    return matchForBoundary();
-                }
-                return fromActualStream;
+                limit += read;
+                findBoundary();
             }
+            return true;
         }
 
         /**
-         * Reads the input to expect a boundary string. Expects that the first
-         * character has already been matched.
-         * 
-         * @return -1 if the boundary was matched, else returns the first byte
-         *         from boundary
-         * @throws IOException
+         * Searches for the boundary in the buffer, starting from the first
+         * position that has not been ruled out yet. Updates
+         * {@link #contentEnd} to the start of the boundary if found, or else to
+         * the first position where the boundary could still start.
          */
-        private int matchForBoundary() throws IOException {
-            matchedCount = 0;
-            /*
-             * Going to "buffered mode". Read until full boundary match or a
-             * different character.
-             */
-            while (true) {
-                matchedCount++;
-                if (matchedCount == boundary.length) {
-                    /*
-                     * The whole boundary matched so we have reached the end of
-                     * file
-                     */
-                    atTheEnd = true;
-                    return -1;
+        private void findBoundary() {
+            int length = boundary.length;
+            int start = contentEnd;
+            while (start + length <= limit) {
+                int i = length - 1;
+                while (i >= 0 && buffer[start + i] == boundary[i]) {
+                    i--;
                 }
-                int fromActualStream = realInputStream.read();
-                if (fromActualStream != boundary[matchedCount]) {
-                    /*
-                     * Did not find full boundary, cache the mismatching byte
-                     * and start returning the partially matched boundary.
-                     */
-                    bufferedByte = fromActualStream;
-                    return getBuffered();
+                if (i < 0) {
+                    boundaryFound = true;
+                    break;
                 }
+                start += shift[buffer[start + length - 1] & 0xff];
             }
+            contentEnd = start;
+        }
+    }
+
+    /**
+     * Delivers progress events of an upload without making the uploading
+     * thread wait for the session lock. The number of received bytes is
+     * updated atomically and a single access task at a time is queued to
+     * deliver the latest value when the session lock is next released, e.g.
+     * by a poll or push.
+     */
+    private static class ProgressReporter implements Runnable, Serializable {
+        private final StreamVariable streamVariable;
+        private final String filename;
+        private final String type;
+        private final long contentLength;
+
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private volatile boolean done = false;
+
+        public ProgressReporter(StreamVariable streamVariable,
+                String filename, String type, long contentLength) {
+            this.streamVariable = streamVariable;
+            this.filename = filename;
+            this.type = type;
+            this.contentLength = contentLength;
         }
 
         /**
-         * Returns the partly matched boundary string and the byte following
-         * that.
-         * 
-         * @return
-         * @throws IOException
+         * Records the number of received bytes and queues delivery of a
+         * progress event unless one is already queued.
          */
-        private int getBuffered() throws IOException {
-            int b;
-            if (matchedCount == 0) {
-                // The boundary has been returned, return the buffered byte.
-                b = bufferedByte;
-                bufferedByte = -1;
-                matchedCount = -1;
-            } else {
-                b = boundary[curBoundaryIndex++];
-                if (curBoundaryIndex == matchedCount) {
-                    // The full boundary has been returned, remaining is the
-                    // char that did not match the boundary.
-
-                    curBoundaryIndex = 0;
-                    if (bufferedByte != boundary[0]) {
-                        /*
-                         * next call for getBuffered will return the
-                         * bufferedByte that came after the partial boundary
-                         * match
-                         */
-                        matchedCount = 0;
-                    } else {
-                        /*
-                         * Special case where buffered byte again matches the
-                         * boundaryString. This could be the start of the real
-                         * end boundary.
-                         */
-                        matchedCount = 0;
-                        bufferedByte = -1;
-                    }
+        public void report(VaadinSession session, long totalBytes) {
+            bytesReceived.set(totalBytes);
+            if (queued.compareAndSet(false, true)) {
+                try {
+                    session.access(this);
+                } catch (RejectedExecutionException e) {
+                    // Try again with the next report
+                    queued.set(false);
                 }
             }
-            if (b == -1) {
-                throw new IOException("The multipart stream ended unexpectedly");
+        }
+
+        /**
+         * Stops delivering queued progress events. Must be called while the
+         * session is locked.
+         */
+        public void finish() {
+            done = true;
+        }
+
+        @Override
+        public void run() {
+            queued.set(false);
+            if (!done) {
+                streamVariable.onProgress(new StreamingProgressEventImpl(
+                        filename, type, contentLength, bytesReceived.get()));
+            }
+        }
+    }
+
+    /**
+     * Keeps track of the uploads being received in a session.
+     */
+    private static class UploadCounter implements Serializable {
+        private int uploads = 0;
+        private final Set<StreamVariable> chunkedUploads = Collections
+                .newSetFromMap(new IdentityHashMap<StreamVariable, Boolean>());
+
+        public synchronized boolean tryStart(int maxUploads) {
+            if (maxUploads > 0 && uploads >= maxUploads) {
+                return false;
             }
-            return b;
+            uploads++;
+            return true;
+        }
+
+        public synchronized void end() {
+            uploads--;
+        }
+
+        public synchronized boolean startChunk(StreamVariable variable) {
+            return chunkedUploads.add(variable);
+        }
+
+        public synchronized void endChunk(StreamVariable variable) {
+            chunkedUploads.remove(variable);
         }
     }
 
@@ -224,12 +365,23 @@ public class FileUploadHandler implements RequestHandler {
 
     private static final String DASHDASH = "--";
 
-    /* Same as in apache commons file upload library that was previously used. */
-    private static final int MAX_UPLOAD_BUFFER_SIZE = 4 * 1024;
+    /**
+     * The default size of the buffer used for reading uploaded data. Can be
+     * changed using the <code>uploadBufferSize</code> init parameter.
+     * 
+     * @since 7.2
+     */
+    public static final int DEFAULT_UPLOAD_BUFFER_SIZE = 64 * 1024;
 
     /* Minimum interval which will be used for streaming progress events. */
     public static final int DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS = 500;
 
+    /*
+     * Uploads being received in each session. Sessions are not serialized
+     * with ongoing uploads, so the counters are not either.
+     */
+    private transient Map<VaadinSession, UploadCounter> uploadCounters;
+
     @Override
     public boolean handleRequest(VaadinSession session, VaadinRequest request,
             VaadinResponse response) throws IOException {
@@ -276,17 +428,30 @@ public class FileUploadHandler implements RequestHandler {
             session.unlock();
         }
 
-        String contentType = request.getContentType();
-        if (contentType.contains("boundary")) {
-            // Multipart requests contain boundary string
-            doHandleSimpleMultipartFileUpload(session, request, response,
-                    streamVariable, variableName, source,
-                    contentType.split("boundary=")[1]);
-        } else {
-            // if boundary string does not exist, the posted file is from
-            // XHR2.post(File)
-            doHandleXhrFilePost(session, request, response, streamVariable,
-                    variableName, source, getContentLength(request));
+        UploadCounter counter = getUploadCounter(session);
+        if (!counter.tryStart(getMaxConcurrentUploads(session))) {
+            sendBusyResponse(response);
+            return true;
+        }
+        try {
+            String contentType = request.getContentType();
+            if (request.getHeader(UploadConstants.UPLOAD_OFFSET_HEADER) != null) {
+                doHandleChunkedUpload(session, request, response,
+                        streamVariable, variableName, source);
+            } else if (contentType.contains("boundary")) {
+                // Multipart requests contain boundary string
+                doHandleSimpleMultipartFileUpload(session, request, response,
+                        streamVariable, variableName, source,
+                        contentType.split("boundary=")[1]);
+            } else {
+                // if boundary string does not exist, the posted file is from
+                // XHR2.post(File)
+                doHandleXhrFilePost(session, request, response,
+                        streamVariable, variableName, source,
+                        getContentLength(request));
+            }
+        } finally {
+            counter.end();
         }
         return true;
     }
@@ -372,20 +537,13 @@ public class FileUploadHandler implements RequestHandler {
                 * DASHDASH.length() + CRLF.length());
 
         /*
-         * Reads bytes from the underlying stream. Compares the read bytes to
-         * the boundary string and returns -1 if met.
-         * 
-         * The matching happens so that if the read byte equals to the first
-         * char of boundary string, the stream goes to "buffering mode". In
-         * buffering mode bytes are read until the character does not match the
-         * corresponding from boundary string or the full boundary string is
-         * found.
-         * 
-         * Note, if this is someday needed elsewhere, don't shoot yourself to
-         * foot and split to a top level helper class.
+         * Reads the file content from the underlying stream in blocks of the
+         * upload buffer size and returns -1 once the boundary is found. The
+         * boundary is searched for in each block using a skip table, so most
+         * bytes of the content are never compared.
          */
         InputStream simpleMultiPartReader = new SimpleMultiPartInputStream(
-                inputStream, boundary);
+                inputStream, boundary, getUploadBufferSize(session));
 
         /*
          * Should report only the filename even if the browser sends the path
@@ -423,6 +581,26 @@ public class FileUploadHandler implements RequestHandler {
             String filename, String mimeType, long contentLength,
             ClientConnector connector, String variableName)
             throws UploadException {
+        checkUploadAllowed(session, connector);
+        try {
+            boolean forgetVariable = streamToReceiver(session, inputStream,
+                    streamVariable, filename, mimeType, contentLength);
+            if (forgetVariable) {
+                cleanStreamVariable(session, connector, variableName);
+            }
+        } catch (Exception e) {
+            session.lock();
+            try {
+                session.getCommunicationManager()
+                        .handleConnectorRelatedException(connector, e);
+            } finally {
+                session.unlock();
+            }
+        }
+    }
+
+    private static void checkUploadAllowed(VaadinSession session,
+            ClientConnector connector) throws UploadException {
         session.lock();
         try {
             if (connector == null) {
@@ -443,23 +621,292 @@ public class FileUploadHandler implements RequestHandler {
         } finally {
             session.unlock();
         }
+    }
+
+    /**
+     * Used to stream a chunk of a resumable upload to a
+     * {@link ChunkedStreamVariable}. A chunk of the ongoing upload is accepted
+     * only if it starts at the offset that has been received so far, and a
+     * chunk with a new upload id only if it starts at offset 0. Otherwise the
+     * offset to resume from is sent with a 409 Conflict status. See
+     * {@link UploadConstants} for the protocol.
+     * <p>
+     * This method takes care of locking the session as needed and does not
+     * assume the caller has locked the session.
+     * </p>
+     * 
+     * @since 7.2
+     * @param session
+     *            The session containing the stream variable
+     * @param request
+     *            The upload request
+     * @param response
+     *            The upload response
+     * @param streamVariable
+     *            The destination stream variable
+     * @param variableName
+     *            The name of the destination stream variable
+     * @param owner
+     *            The owner of the stream variable
+     * @throws IOException
+     *             If there is a problem reading the request or writing the
+     *             response
+     */
+    protected void doHandleChunkedUpload(VaadinSession session,
+            VaadinRequest request, VaadinResponse response,
+            StreamVariable streamVariable, String variableName,
+            ClientConnector owner) throws IOException {
+        if (!(streamVariable instanceof ChunkedStreamVariable)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Chunked uploads are not supported");
+            return;
+        }
+        ChunkedStreamVariable variable = (ChunkedStreamVariable) streamVariable;
+
+        long offset;
+        long length;
         try {
-            boolean forgetVariable = streamToReceiver(session, inputStream,
-                    streamVariable, filename, mimeType, contentLength);
-            if (forgetVariable) {
-                cleanStreamVariable(session, connector, variableName);
+            offset = Long.parseLong(request
+                    .getHeader(UploadConstants.UPLOAD_OFFSET_HEADER));
+            length = Long.parseLong(request
+                    .getHeader(UploadConstants.UPLOAD_LENGTH_HEADER));
+        } catch (NumberFormatException e) {
+            length = -1;
+            offset = -1;
+        }
+        String uploadId = request.getHeader(UploadConstants.UPLOAD_ID_HEADER);
+        if (uploadId == null || offset < 0 || length < offset) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid upload id, offset or length");
+            return;
+        }
+
+        String filename = request
+                .getHeader(UploadConstants.UPLOAD_FILENAME_HEADER);
+        filename = filename == null ? "unknown" : removePath(URLDecoder
+                .decode(filename, UTF8));
+        String mimeType = request.getContentType();
+        if (mimeType == null) {
+            mimeType = "application/octet-stream";
+        }
+
+        UploadCounter counter = getUploadCounter(session);
+        if (!counter.startChunk(variable)) {
+            // The previous request of the same upload is still being received
+            sendBusyResponse(response);
+            return;
+        }
+        try {
+            checkUploadAllowed(session, owner);
+
+            long received;
+            boolean newUpload;
+            session.lock();
+            try {
+                newUpload = !uploadId.equals(variable.getUploadId());
+                // A new upload replaces any partially received one
+                received = newUpload ? 0 : variable.getReceivedBytes();
+            } finally {
+                session.unlock();
             }
-        } catch (Exception e) {
+            if (offset != received) {
+                sendOffsetResponse(response, HttpServletResponse.SC_CONFLICT,
+                        received);
+                return;
+            }
+
+            received = streamChunkToReceiver(session, request.getInputStream(),
+                    variable, uploadId, newUpload, filename, mimeType, offset,
+                    length);
+            if (received < 0) {
+                response.sendError(HttpServletResponse.SC_GONE,
+                        "Upload failed");
+            } else {
+                sendOffsetResponse(response, HttpServletResponse.SC_OK,
+                        received);
+            }
+        } catch (UploadException e) {
             session.lock();
             try {
                 session.getCommunicationManager()
-                        .handleConnectorRelatedException(connector, e);
+                        .handleConnectorRelatedException(owner, e);
             } finally {
                 session.unlock();
             }
+            response.sendError(HttpServletResponse.SC_GONE, "Upload failed");
+        } finally {
+            counter.endChunk(variable);
         }
     }
 
+    /**
+     * Streams one chunk of a resumable upload. If reading the request fails,
+     * e.g. because the client disconnected, the content received so far is
+     * kept so that the upload can be resumed.
+     * 
+     * @return the number of bytes of the upload received so far, or -1 if the
+     *         upload was interrupted by application code
+     * @throws UploadException
+     *             if the upload failed and can not be resumed
+     */
+    private long streamChunkToReceiver(VaadinSession session, InputStream in,
+            ChunkedStreamVariable variable, String uploadId, boolean newUpload,
+            String filename, String type, long offset, long length)
+            throws UploadException {
+        OutputStream out = null;
+        long received = offset;
+        ProgressReporter progress = new ProgressReporter(variable, filename,
+                type, length);
+        try {
+            boolean listenProgress;
+            session.lock();
+            try {
+                if (newUpload) {
+                    variable.streamingStarted(new StreamingStartEventImpl(
+                            filename, type, length));
+                }
+                out = variable.getOutputStream(uploadId, offset);
+                listenProgress = variable.listenProgress();
+            } finally {
+                session.unlock();
+            }
+
+            if (out == null) {
+                throw new NoOutputStreamException();
+            }
+
+            final byte buffer[] = new byte[getUploadBufferSize(session)];
+            long lastStreamingEvent = System.currentTimeMillis();
+            while (true) {
+                int bytesRead;
+                try {
+                    bytesRead = in.read(buffer);
+                } catch (IOException e) {
+                    // The client can resume from what has been received
+                    getLogger().log(Level.FINE,
+                            "Chunk of {0} ended prematurely at {1}",
+                            new Object[] { filename, Long.valueOf(received) });
+                    break;
+                }
+                if (bytesRead < 0) {
+                    break;
+                }
+                if (received + bytesRead > length) {
+                    throw new IOException(
+                            "The upload is longer than the declared length");
+                }
+                out.write(buffer, 0, bytesRead);
+                received += bytesRead;
+
+                long now = System.currentTimeMillis();
+                if (listenProgress
+                        && now - lastStreamingEvent >= getProgressEventInterval()) {
+                    lastStreamingEvent = now;
+                    progress.report(session, received);
+                }
+                if (variable.isInterrupted()) {
+                    throw new UploadInterruptedException();
+                }
+            }
+            out.close();
+
+            session.lock();
+            try {
+                variable.chunkReceived(received);
+                if (received == length) {
+                    progress.finish();
+                    if (listenProgress) {
+                        variable.onProgress(new StreamingProgressEventImpl(
+                                filename, type, length, received));
+                    }
+                    variable.streamingFinished(new StreamingEndEventImpl(
+                            filename, type, received));
+                }
+            } finally {
+                session.unlock();
+            }
+            return received;
+        } catch (UploadInterruptedException e) {
+            tryToCloseStream(out);
+            session.lock();
+            try {
+                progress.finish();
+                variable.streamingFailed(new StreamingErrorEventImpl(filename,
+                        type, length, received, e));
+            } finally {
+                session.unlock();
+            }
+            return -1;
+        } catch (final Exception e) {
+            tryToCloseStream(out);
+            session.lock();
+            try {
+                progress.finish();
+                variable.streamingFailed(new StreamingErrorEventImpl(filename,
+                        type, length, received, e));
+                throw new UploadException(e);
+            } finally {
+                session.unlock();
+            }
+        }
+    }
+
+    private static void sendOffsetResponse(VaadinResponse response,
+            int status, long offset) throws IOException {
+        response.setStatus(status);
+        response.setHeader(UploadConstants.UPLOAD_OFFSET_HEADER,
+                Long.toString(offset));
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentType("text/plain");
+        response.getOutputStream().close();
+    }
+
+    private static void sendBusyResponse(VaadinResponse response)
+            throws IOException {
+        response.setHeader("Retry-After", "1");
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "Too many concurrent uploads");
+    }
+
+    /**
+     * Gets the maximum number of uploads that may be received concurrently in
+     * a session. Additional upload requests are rejected with a 503 Service
+     * Unavailable status. The limit is read from the
+     * <code>maxConcurrentUploads</code> init parameter. The default of 0 means
+     * no limit.
+     * 
+     * @since 7.2
+     * @param session
+     *            the session receiving the upload
+     * @return the maximum number of concurrent uploads, or 0 for no limit
+     */
+    protected int getMaxConcurrentUploads(VaadinSession session) {
+        String value = session
+                .getService()
+                .getDeploymentConfiguration()
+                .getApplicationOrSystemProperty(
+                        Constants.SERVLET_PARAMETER_MAX_CONCURRENT_UPLOADS, "0");
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            getLogger().log(Level.WARNING,
+                    "Invalid maximum number of concurrent uploads {0}", value);
+            return 0;
+        }
+    }
+
+    private synchronized UploadCounter getUploadCounter(VaadinSession session) {
+        if (uploadCounters == null) {
+            uploadCounters = new WeakHashMap<VaadinSession, UploadCounter>();
+        }
+        UploadCounter counter = uploadCounters.get(session);
+        if (counter == null) {
+            counter = new UploadCounter();
+            uploadCounters.put(session, counter);
+        }
+        return counter;
+    }
+
     /**
      * Used to stream plain file post (aka XHR2.post(File))
      * <p>
@@ -530,6 +977,8 @@ public class FileUploadHandler implements RequestHandler {
         long totalBytes = 0;
         StreamingStartEventImpl startedEvent = new StreamingStartEventImpl(
                 filename, type, contentLength);
+        ProgressReporter progress = new ProgressReporter(streamVariable,
+                filename, type, contentLength);
         try {
             boolean listenProgress;
             session.lock();
@@ -551,30 +1000,44 @@ public class FileUploadHandler implements RequestHandler {
                 throw new NoInputStreamException();
             }
 
-            final byte buffer[] = new byte[MAX_UPLOAD_BUFFER_SIZE];
+            /*
+             * If the content is written to a file, multipart content is
+             * written straight from the buffer of the multipart stream
+             * without copying it through an intermediate buffer. Subclasses
+             * of FileOutputStream may override write() to transform or
+             * inspect the data, so they are written to as usual.
+             */
+            FileChannel channel = null;
+            byte buffer[] = null;
+            if (in instanceof SimpleMultiPartInputStream
+                    && out.getClass() == FileOutputStream.class) {
+                channel = ((FileOutputStream) out).getChannel();
+            } else {
+                buffer = new byte[getUploadBufferSize(session)];
+            }
+
             long lastStreamingEvent = 0;
             int bytesReadToBuffer = 0;
             do {
-                bytesReadToBuffer = in.read(buffer);
+                if (channel != null) {
+                    bytesReadToBuffer = ((SimpleMultiPartInputStream) in)
+                            .writeTo(channel);
+                } else {
+                    bytesReadToBuffer = in.read(buffer);
+                    if (bytesReadToBuffer > 0) {
+                        out.write(buffer, 0, bytesReadToBuffer);
+                    }
+                }
                 if (bytesReadToBuffer > 0) {
-                    out.write(buffer, 0, bytesReadToBuffer);
                     totalBytes += bytesReadToBuffer;
-                }
-                if (listenProgress) {
+                    // to avoid event storms, events are sent in intervals and
+                    // delivered without waiting for the session lock. The last
+                    // event is sent at the end of the file.
                     long now = System.currentTimeMillis();
-                    // to avoid excessive session locking and event storms,
-                    // events are sent in intervals, or at the end of the file.
-                    if (lastStreamingEvent + getProgressEventInterval() <= now
-                            || bytesReadToBuffer <= 0) {
+                    if (listenProgress
+                            && now - lastStreamingEvent >= getProgressEventInterval()) {
                         lastStreamingEvent = now;
-                        session.lock();
-                        try {
-                            StreamingProgressEventImpl progressEvent = new StreamingProgressEventImpl(
-                                    filename, type, contentLength, totalBytes);
-                            streamVariable.onProgress(progressEvent);
-                        } finally {
-                            session.unlock();
-                        }
+                        progress.report(session, totalBytes);
                     }
                 }
                 if (streamVariable.isInterrupted()) {
@@ -588,6 +1051,11 @@ public class FileUploadHandler implements RequestHandler {
                     totalBytes);
             session.lock();
             try {
+                progress.finish();
+                if (listenProgress) {
+                    streamVariable.onProgress(new StreamingProgressEventImpl(
+                            filename, type, contentLength, totalBytes));
+                }
                 streamVariable.streamingFinished(event);
             } finally {
                 session.unlock();
@@ -600,6 +1068,7 @@ public class FileUploadHandler implements RequestHandler {
                     type, contentLength, totalBytes, e);
             session.lock();
             try {
+                progress.finish();
                 streamVariable.streamingFailed(event);
             } finally {
                 session.unlock();
@@ -610,6 +1079,7 @@ public class FileUploadHandler implements RequestHandler {
             tryToCloseStream(out);
             session.lock();
             try {
+                progress.finish();
                 StreamingErrorEvent event = new StreamingErrorEventImpl(
                         filename, type, contentLength, totalBytes, e);
                 streamVariable.streamingFailed(event);
@@ -634,6 +1104,37 @@ public class FileUploadHandler implements RequestHandler {
         return DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS;
     }
 
+    /**
+     * Gets the size of the buffer used for reading uploaded data. The size is
+     * read from the <code>uploadBufferSize</code> init parameter, in bytes.
+     * Larger buffers reduce the per-read overhead of large uploads at the cost
+     * of memory for each ongoing upload.
+     * 
+     * @since 7.2
+     * @param session
+     *            the session receiving the upload
+     * @return the buffer size in bytes
+     */
+    protected int getUploadBufferSize(VaadinSession session) {
+        String value = session
+                .getService()
+                .getDeploymentConfiguration()
+                .getApplicationOrSystemProperty(
+                        Constants.SERVLET_PARAMETER_UPLOAD_BUFFER_SIZE,
+                        Integer.toString(DEFAULT_UPLOAD_BUFFER_SIZE));
+        try {
+            int size = Integer.parseInt(value);
+            if (size > 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // Warned about below
+        }
+        getLogger().log(Level.WARNING, "Invalid upload buffer size {0}",
+                value);
+        return DEFAULT_UPLOAD_BUFFER_SIZE;
+    }
+
     static void tryToCloseStream(OutputStream out) {
         try {
             // try to close output stream (e.g. file handle)
@@ -690,4 +1191,8 @@ public class FileUploadHandler implements RequestHandler {
             }
         });
     }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(FileUploadHandler.class.getName());
+    }
 }
@@ -23,6 +23,7 @@ import javax.servlet.http.HttpServletResponse;
 import com.vaadin.server.ServletPortletHelper;
 import com.vaadin.server.SessionExpiredHandler;
 import com.vaadin.server.SynchronizedRequestHandler;
+import com.vaadin.server.UIPassivator;
 import com.vaadin.server.VaadinRequest;
 import com.vaadin.server.VaadinResponse;
 import com.vaadin.server.VaadinSession;
@@ -48,6 +49,42 @@ public class HeartbeatHandler extends SynchronizedRequestHandler implements
         return ServletPortletHelper.isHeartbeatRequest(request);
     }
 
+    @Override
+    protected boolean isUIRequest(VaadinRequest request) {
+        return true;
+    }
+
+    /**
+     * Handles heartbeats without locking the session, so that heartbeats do not
+     * add to lock contention or wait for long-running requests. The heartbeat
+     * timestamp is updated using {@link VaadinSession#updateHeartbeat(int, long)}
+     * which also covers {@link UIPassivator passivated} UIs. Requests for
+     * unknown UIs are handled while holding the lock as usual.
+     */
+    @Override
+    public boolean handleRequest(VaadinSession session,
+            VaadinRequest request, VaadinResponse response) throws IOException {
+        if (canHandleRequest(request) && updateHeartbeat(session, request)) {
+            writeHeartbeatResponse(response);
+            return true;
+        }
+        return super.handleRequest(session, request, response);
+    }
+
+    private static boolean updateHeartbeat(VaadinSession session,
+            VaadinRequest request) {
+        String uiIdString = request.getParameter(UIConstants.UI_ID_PARAMETER);
+        if (uiIdString == null) {
+            return false;
+        }
+        try {
+            return session.updateHeartbeat(Integer.parseInt(uiIdString),
+                    System.currentTimeMillis());
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     /**
      * Handles a heartbeat request for the given session. Reads the GET
      * parameter named {@link UIConstants#UI_ID_PARAMETER} to identify the UI.
@@ -61,12 +98,7 @@ public class HeartbeatHandler extends SynchronizedRequestHandler implements
         UI ui = session.getService().findUI(request);
         if (ui != null) {
             ui.setLastHeartbeatTimestamp(System.currentTimeMillis());
-            // Ensure that the browser does not cache heartbeat responses.
-            // iOS 6 Safari requires this (#10370)
-            response.setHeader("Cache-Control", "no-cache");
-            // If Content-Type is not set, browsers assume text/html and may
-            // complain about the empty response body (#12182)
-            response.setHeader("Content-Type", "text/plain");
+            writeHeartbeatResponse(response);
         } else {
             response.sendError(HttpServletResponse.SC_NOT_FOUND, "UI not found");
         }
@@ -74,6 +106,15 @@ public class HeartbeatHandler extends SynchronizedRequestHandler implements
         return true;
     }
 
+    private static void writeHeartbeatResponse(VaadinResponse response) {
+        // Ensure that the browser does not cache heartbeat responses.
+        // iOS 6 Safari requires this (#10370)
+        response.setHeader("Cache-Control", "no-cache");
+        // If Content-Type is not set, browsers assume text/html and may
+        // complain about the empty response body (#12182)
+        response.setHeader("Content-Type", "text/plain");
+    }
+
     /*
      * (non-Javadoc)
      * 
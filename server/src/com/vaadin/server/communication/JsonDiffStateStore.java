@@ -0,0 +1,98 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.vaadin.server.communication;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.vaadin.server.ClientConnector;
+
+/**
+ * The default {@link DiffStateStore}, which keeps the states as
+ * {@link JSONObject}s that can be used as such when diffing.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class JsonDiffStateStore implements DiffStateStore {
+
+    private transient Map<ClientConnector, JSONObject> diffStates = new HashMap<ClientConnector, JSONObject>();
+
+    @Override
+    public JSONObject get(ClientConnector connector) {
+        return diffStates.get(connector);
+    }
+
+    @Override
+    public void put(ClientConnector connector, JSONObject diffState) {
+        diffStates.put(connector, diffState);
+    }
+
+    @Override
+    public void remove(ClientConnector connector) {
+        diffStates.remove(connector);
+    }
+
+    @Override
+    public void clear() {
+        diffStates.clear();
+    }
+
+    @Override
+    public int size() {
+        return diffStates.size();
+    }
+
+    /* Special serialization to JSONObjects which are not serializable */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        // Convert JSONObjects in diff state to String representation as
+        // JSONObject is not serializable
+        HashMap<ClientConnector, String> stringDiffStates = new HashMap<ClientConnector, String>(
+                diffStates.size());
+        for (ClientConnector key : diffStates.keySet()) {
+            stringDiffStates.put(key, diffStates.get(key).toString());
+        }
+        out.writeObject(stringDiffStates);
+    }
+
+    /* Special serialization to JSONObjects which are not serializable */
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+
+        // Read String versions of JSONObjects and parse into JSONObjects as
+        // JSONObject is not serializable
+        @SuppressWarnings("unchecked")
+        HashMap<ClientConnector, String> stringDiffStates = (HashMap<ClientConnector, String>) in
+                .readObject();
+        diffStates = new HashMap<ClientConnector, JSONObject>();
+        for (ClientConnector key : stringDiffStates.keySet()) {
+            try {
+                diffStates.put(key, new JSONObject(stringDiffStates.get(key)));
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -36,6 +36,7 @@ import com.vaadin.server.LegacyCommunicationManager.InvalidUIDLSecurityKeyExcept
 import com.vaadin.server.ServiceException;
 import com.vaadin.server.ServletPortletHelper;
 import com.vaadin.server.SessionExpiredException;
+import com.vaadin.server.SessionLockTimeoutException;
 import com.vaadin.server.SystemMessages;
 import com.vaadin.server.VaadinRequest;
 import com.vaadin.server.VaadinService;
@@ -269,11 +270,27 @@ public class PushHandler extends AtmosphereResourceEventListenerAdapter {
             }
 
             UI ui = null;
-            session.lock();
+            // Only locks the UI if UI locking is enabled
+            final UI lockedUI;
+            try {
+                lockedUI = service.findAndLockUI(vaadinRequest, session);
+                if (lockedUI == null) {
+                    session.lock();
+                }
+            } catch (SessionLockTimeoutException e) {
+                getLogger().log(Level.WARNING, e.getMessage());
+                // Not locked, so can't run the request end cleanup either
+                session = null;
+                return;
+            }
             try {
                 VaadinSession.setCurrent(session);
-                // Sets UI.currentInstance
-                ui = service.findUI(vaadinRequest);
+                if (lockedUI != null) {
+                    ui = lockedUI;
+                } else {
+                    // Sets UI.currentInstance
+                    ui = service.findUI(vaadinRequest);
+                }
                 if (ui == null) {
                     sendNotificationAndDisconnect(resource,
                             UidlRequestHandler.getUINotFoundErrorJSON(service,
@@ -307,7 +324,11 @@ public class PushHandler extends AtmosphereResourceEventListenerAdapter {
                 callErrorHandler(session, e);
             } finally {
                 try {
-                    session.unlock();
+                    if (lockedUI != null) {
+                        lockedUI.unlock();
+                    } else {
+                        session.unlock();
+                    }
                 } catch (Exception e) {
                     getLogger().log(Level.WARNING,
                             "Error while unlocking session", e);
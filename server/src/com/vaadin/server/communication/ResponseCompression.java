@@ -0,0 +1,335 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.vaadin.server.communication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.vaadin.server.Constants;
+import com.vaadin.server.DeploymentConfiguration;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+
+/**
+ * Compresses UIDL responses for browsers that accept gzip encoded content and
+ * keeps track of how much compression saves and costs. The compression
+ * threshold and level are read from the {@link DeploymentConfiguration}.
+ * <p>
+ * One instance is shared by all sessions of a service, see
+ * {@link com.vaadin.server.VaadinService#getResponseCompression()}.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class ResponseCompression implements Serializable {
+
+    private final AtomicLong compressedResponses = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionTime = new AtomicLong();
+
+    private final AtomicLong pushMessages = new AtomicLong();
+    private final AtomicLong pushMessageLength = new AtomicLong();
+
+    /**
+     * Checks whether a response of the given size should be compressed.
+     * 
+     * @param request
+     *            the request being handled
+     * @param length
+     *            the size of the uncompressed response in bytes, or a negative
+     *            number if the size is not known in advance
+     * @return true if the response should be compressed, false otherwise
+     */
+    public boolean isCompressed(VaadinRequest request, int length) {
+        DeploymentConfiguration configuration = request.getService()
+                .getDeploymentConfiguration();
+        int threshold = configuration.getCompressionThreshold();
+        if (threshold < 0 || (length >= 0 && length < threshold)) {
+            return false;
+        }
+        return isGzipAccepted(request);
+    }
+
+    /**
+     * Writes the given data as a gzip encoded response body, using the
+     * compression level of the deployment configuration.
+     * 
+     * @param request
+     *            the request being handled
+     * @param response
+     *            the response to write to
+     * @param data
+     *            the uncompressed data
+     * @throws IOException
+     *             if writing to the response fails
+     */
+    public void writeCompressed(VaadinRequest request,
+            VaadinResponse response, byte[] data) throws IOException {
+        int level = request.getService().getDeploymentConfiguration()
+                .getCompressionLevel();
+
+        long start = System.nanoTime();
+        byte[] compressed = gzip(data, level);
+        compressionTime.addAndGet(System.nanoTime() - start);
+
+        compressedResponses.incrementAndGet();
+        uncompressedBytes.addAndGet(data.length);
+        compressedBytes.addAndGet(compressed.length);
+
+        setCompressedHeaders(response);
+        OutputStream out = response.getOutputStream();
+        out.write(compressed);
+        out.flush();
+    }
+
+    /**
+     * Gzip encodes the given data.
+     * 
+     * @param data
+     *            the data to compress
+     * @param level
+     *            the compression level, 1-9
+     * @return the gzip encoded data
+     * @throws IOException
+     *             never thrown when writing to memory
+     */
+    public static byte[] gzip(byte[] data, int level) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                data.length / 4 + 64);
+        GzipStream gzip = new GzipStream(buffer, level);
+        gzip.write(data);
+        gzip.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Marks the response as gzip encoded and returns a stream that compresses
+     * everything written to it. The returned stream must be closed to finish
+     * the response. The time recorded for a stream includes the time spent
+     * writing to the underlying output stream.
+     * 
+     * @param request
+     *            the request being handled
+     * @param response
+     *            the response to write to
+     * @return a compressing stream writing to the response
+     * @throws IOException
+     *             if the output stream of the response cannot be opened
+     */
+    public OutputStream openCompressedStream(VaadinRequest request,
+            VaadinResponse response) throws IOException {
+        int level = request.getService().getDeploymentConfiguration()
+                .getCompressionLevel();
+        setCompressedHeaders(response);
+        return new GzipStream(response.getOutputStream(), level, this);
+    }
+
+    /**
+     * Records a message sent over a push connection. Push messages are not
+     * compressed by Vaadin; compressing them is up to the transport, e.g. a
+     * WebSocket extension of the servlet container.
+     * 
+     * @param length
+     *            the length of the message in characters
+     */
+    public void pushMessageSent(int length) {
+        pushMessages.incrementAndGet();
+        pushMessageLength.addAndGet(length);
+    }
+
+    /**
+     * Returns the number of responses that have been compressed.
+     * 
+     * @return the number of compressed responses
+     */
+    public long getCompressedResponseCount() {
+        return compressedResponses.get();
+    }
+
+    /**
+     * Returns the total size of compressed responses before compression.
+     * 
+     * @return the number of uncompressed bytes
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * Returns the total size of compressed responses after compression.
+     * 
+     * @return the number of compressed bytes
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * Returns the ratio between the compressed and uncompressed size of all
+     * compressed responses, e.g. 0.2 if responses were compressed to a fifth
+     * of their original size.
+     * 
+     * @return the compression ratio, or 1 if nothing has been compressed
+     */
+    public double getCompressionRatio() {
+        long uncompressed = uncompressedBytes.get();
+        if (uncompressed == 0) {
+            return 1;
+        }
+        return (double) compressedBytes.get() / uncompressed;
+    }
+
+    /**
+     * Returns the total time spent compressing responses.
+     * 
+     * @return the compression time in nanoseconds
+     */
+    public long getCompressionTime() {
+        return compressionTime.get();
+    }
+
+    /**
+     * Returns the number of messages sent over push connections.
+     * 
+     * @return the number of push messages
+     */
+    public long getPushMessageCount() {
+        return pushMessages.get();
+    }
+
+    /**
+     * Returns the total length of messages sent over push connections.
+     * 
+     * @return the total push message length in characters
+     */
+    public long getPushMessageLength() {
+        return pushMessageLength.get();
+    }
+
+    /**
+     * Checks whether the client accepts gzip encoded responses based on the
+     * <code>Accept-Encoding</code> header of the request.
+     * 
+     * @param request
+     *            the request to check
+     * @return true if gzip encoding is accepted, false otherwise
+     */
+    public static boolean isGzipAccepted(VaadinRequest request) {
+        return isGzipAccepted(request.getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * Checks whether gzip encoded responses are accepted according to the
+     * given <code>Accept-Encoding</code> header value.
+     * 
+     * @param acceptEncoding
+     *            the header value, or <code>null</code> if there is no header
+     * @return true if gzip encoding is accepted, false otherwise
+     */
+    public static boolean isGzipAccepted(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!"gzip".equalsIgnoreCase(name) && !"*".equals(name)) {
+                continue;
+            }
+            // "gzip;q=0" explicitly refuses the encoding
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        if (Double.parseDouble(param.substring(2)) <= 0) {
+                            return false;
+                        }
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static void setCompressedHeaders(VaadinResponse response) {
+        response.setHeader("Content-Encoding", "gzip");
+        response.setHeader("Vary", "Accept-Encoding");
+    }
+
+    /**
+     * Gzip stream with a configurable compression level that optionally
+     * records its statistics when finished.
+     */
+    private static class GzipStream extends GZIPOutputStream {
+
+        /*
+         * The gzip header and trailer are written outside of the deflater
+         */
+        private static final int GZIP_OVERHEAD = 10 + 8;
+
+        private final ResponseCompression statistics;
+        private long time = 0;
+        private boolean recorded = false;
+
+        public GzipStream(OutputStream out, int level) throws IOException {
+            this(out, level, null);
+        }
+
+        public GzipStream(OutputStream out, int level,
+                ResponseCompression statistics) throws IOException {
+            super(out, Constants.DEFAULT_BUFFER_SIZE);
+            def.setLevel(level);
+            this.statistics = statistics;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len)
+                throws IOException {
+            long start = System.nanoTime();
+            super.write(b, off, len);
+            time += System.nanoTime() - start;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (recorded) {
+                return;
+            }
+            long start = System.nanoTime();
+            super.finish();
+            time += System.nanoTime() - start;
+
+            // The deflater is released when the stream is closed
+            recorded = true;
+            if (statistics != null) {
+                statistics.compressedResponses.incrementAndGet();
+                statistics.uncompressedBytes.addAndGet(def.getBytesRead());
+                statistics.compressedBytes.addAndGet(def.getBytesWritten()
+                        + GZIP_OVERHEAD);
+                statistics.compressionTime.addAndGet(time);
+            }
+        }
+    }
+}
@@ -31,11 +31,14 @@ import java.util.logging.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import com.vaadin.server.ClientConnector;
 import com.vaadin.server.JsonCodec;
 import com.vaadin.server.LegacyCommunicationManager;
 import com.vaadin.server.LegacyCommunicationManager.InvalidUIDLSecurityKeyException;
+import com.vaadin.server.RequestMetrics;
+import com.vaadin.server.RequestMetrics.Phase;
 import com.vaadin.server.ServerRpcManager;
 import com.vaadin.server.ServerRpcManager.RpcInvocationException;
 import com.vaadin.server.ServerRpcMethodInvocation;
@@ -67,7 +70,11 @@ public class ServerRpcHandler implements Serializable {
      * 
      * @since 7.2
      * @author Vaadin Ltd
+     * @deprecated As of 7.2, no longer used. {@link ServerRpcHandler} decodes
+     *             the invocations while the request is being read instead of
+     *             building a JSON object of the whole request.
      */
+    @Deprecated
     public static class RpcRequest implements Serializable {
 
         private final String csrfToken;
@@ -127,6 +134,10 @@ public class ServerRpcHandler implements Serializable {
         }
     }
 
+    /**
+     * @deprecated As of 7.2, only used by {@link #getMessage(Reader)}.
+     */
+    @Deprecated
     private static final int MAX_BUFFER_SIZE = 64 * 1024;
 
     /**
@@ -148,28 +159,139 @@ public class ServerRpcHandler implements Serializable {
      */
     public void handleRpc(UI ui, Reader reader, VaadinRequest request)
             throws IOException, InvalidUIDLSecurityKeyException, JSONException {
-        ui.getSession().setLastRequestTimestamp(System.currentTimeMillis());
+        long now = System.currentTimeMillis();
+        ui.getSession().setLastRequestTimestamp(now);
+        ui.setLastUidlRequestTimestamp(now);
 
-        String changeMessage = getMessage(reader);
+        RequestMetrics.Sample sample = ui.getSession().getService()
+                .getRequestMetrics().getSample(request);
+        long decodeStart = System.nanoTime();
 
-        if (changeMessage == null || changeMessage.equals("")) {
+        StreamingJsonReader json = new StreamingJsonReader(reader);
+        if (json.isEmpty()) {
             // The client sometimes sends empty messages, this is probably a bug
             return;
         }
 
-        RpcRequest rpcRequest = new RpcRequest(changeMessage);
+        ConnectorTracker connectorTracker = ui.getConnectorTracker();
+        boolean csrfTokenChecked = false;
+        Integer syncId = null;
+        String undecodedInvocations = null;
+        List<MethodInvocation> invocations = new ArrayList<MethodInvocation>();
+        List<JSONArray> unknownConnectorInvocations = new ArrayList<JSONArray>();
+
+        /*
+         * The invocations are decoded one at a time as they are read so that
+         * the whole message is never kept in memory. Nothing is decoded before
+         * the CSRF token has been validated; if the invocations are sent
+         * before the token, they are kept as text until the token has been
+         * read. The sync id might be sent after the invocations, so checking
+         * invocations for connectors that are no longer present is postponed
+         * until the whole message has been read.
+         */
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (ApplicationConstants.CSRF_TOKEN.equals(name)) {
+                // Security: double cookie submission pattern unless disabled
+                // by property
+                if (!VaadinService.isCsrfTokenValid(ui.getSession(),
+                        String.valueOf(json.nextValue()))) {
+                    throw new InvalidUIDLSecurityKeyException("");
+                }
+                csrfTokenChecked = true;
+            } else if (ApplicationConstants.SERVER_SYNC_ID.equals(name)) {
+                syncId = Integer.valueOf(toInt(json.nextValue()));
+            } else if (ApplicationConstants.RPC_INVOCATIONS.equals(name)) {
+                if (!csrfTokenChecked) {
+                    undecodedInvocations = json.nextRawValue();
+                } else if (json.peek() == '[') {
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        Object invocationJson = json.nextValue();
+                        if (!(invocationJson instanceof JSONArray)) {
+                            throw new JSONException("Invalid RPC call "
+                                    + invocationJson);
+                        }
+                        parseInvocation((JSONArray) invocationJson,
+                                invocations, unknownConnectorInvocations,
+                                connectorTracker);
+                    }
+                } else {
+                    parseInvocations(json.nextValue(), invocations,
+                            unknownConnectorInvocations, connectorTracker);
+                }
+            } else {
+                json.nextValue();
+            }
+        }
+
+        if (!csrfTokenChecked) {
+            throw new JSONException("No value for "
+                    + ApplicationConstants.CSRF_TOKEN);
+        }
+        if (syncId == null) {
+            throw new JSONException("No value for "
+                    + ApplicationConstants.SERVER_SYNC_ID);
+        }
 
-        // Security: double cookie submission pattern unless disabled by
-        // property
-        if (!VaadinService.isCsrfTokenValid(ui.getSession(),
-                rpcRequest.getCsrfToken())) {
-            throw new InvalidUIDLSecurityKeyException("");
+        if (undecodedInvocations != null) {
+            parseInvocations(
+                    new JSONTokener(undecodedInvocations).nextValue(),
+                    invocations, unknownConnectorInvocations,
+                    connectorTracker);
+        }
+
+        for (JSONArray invocationJson : unknownConnectorInvocations) {
+            handleUnknownConnector(invocationJson, connectorTracker,
+                    syncId.intValue());
+        }
+
+        long executionStart = System.nanoTime();
+        if (sample != null) {
+            sample.addTimeSince(Phase.RPC_DECODE, decodeStart);
+        }
+
+        handleInvocations(ui, invocations);
+
+        if (sample != null) {
+            sample.addTimeSince(Phase.RPC_EXECUTION, executionStart);
         }
-        handleInvocations(ui, rpcRequest.getSyncId(),
-                rpcRequest.getRpcInvocationsData());
 
         ui.getConnectorTracker().cleanConcurrentlyRemovedConnectorIds(
-                rpcRequest.getSyncId());
+                syncId.intValue());
+    }
+
+    /**
+     * Parses RPC calls sent either as a JSON array or as a string containing
+     * the JSON array.
+     */
+    private void parseInvocations(Object invocationsJson,
+            List<MethodInvocation> invocations,
+            List<JSONArray> unknownConnectorInvocations,
+            ConnectorTracker connectorTracker) throws JSONException {
+        JSONArray invocationsArray;
+        if (invocationsJson instanceof JSONArray) {
+            invocationsArray = (JSONArray) invocationsJson;
+        } else {
+            // Invocations encoded as a string
+            invocationsArray = new JSONArray(String.valueOf(invocationsJson));
+        }
+        for (int i = 0; i < invocationsArray.length(); ++i) {
+            parseInvocation(invocationsArray.getJSONArray(i), invocations,
+                    unknownConnectorInvocations, connectorTracker);
+        }
+    }
+
+    private static int toInt(Object value) throws JSONException {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return Integer.parseInt(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            throw new JSONException("Expected an integer but was " + value);
+        }
     }
 
     /**
@@ -185,174 +307,158 @@ public class ServerRpcHandler implements Serializable {
      * 
      * @param uI
      *            the UI receiving the invocations data
-     * @param lastSyncIdSeenByClient
-     *            the most recent sync id the client has seen at the time the
-     *            request was sent
-     * @param invocationsData
-     *            JSON containing all information needed to execute all
-     *            requested RPC calls.
+     * @param invocations
+     *            the decoded RPC calls to execute
      */
-    private void handleInvocations(UI uI, int lastSyncIdSeenByClient,
-            JSONArray invocationsData) {
+    private void handleInvocations(UI uI, List<MethodInvocation> invocations) {
         // TODO PUSH Refactor so that this is not needed
         LegacyCommunicationManager manager = uI.getSession()
                 .getCommunicationManager();
 
-        try {
-            ConnectorTracker connectorTracker = uI.getConnectorTracker();
+        ConnectorTracker connectorTracker = uI.getConnectorTracker();
 
-            Set<Connector> enabledConnectors = new HashSet<Connector>();
+        Set<Connector> enabledConnectors = new HashSet<Connector>();
 
-            List<MethodInvocation> invocations = parseInvocations(
-                    uI.getConnectorTracker(), invocationsData,
-                    lastSyncIdSeenByClient);
-            for (MethodInvocation invocation : invocations) {
-                final ClientConnector connector = connectorTracker
-                        .getConnector(invocation.getConnectorId());
+        for (MethodInvocation invocation : invocations) {
+            final ClientConnector connector = connectorTracker
+                    .getConnector(invocation.getConnectorId());
 
-                if (connector != null && connector.isConnectorEnabled()) {
-                    enabledConnectors.add(connector);
-                }
+            if (connector != null && connector.isConnectorEnabled()) {
+                enabledConnectors.add(connector);
             }
+        }
 
-            for (int i = 0; i < invocations.size(); i++) {
-                MethodInvocation invocation = invocations.get(i);
-
-                final ClientConnector connector = connectorTracker
-                        .getConnector(invocation.getConnectorId());
-                if (connector == null) {
-                    getLogger()
-                            .log(Level.WARNING,
-                                    "Received RPC call for unknown connector with id {0} (tried to invoke {1}.{2})",
-                                    new Object[] { invocation.getConnectorId(),
-                                            invocation.getInterfaceName(),
-                                            invocation.getMethodName() });
-                    continue;
-                }
+        for (int i = 0; i < invocations.size(); i++) {
+            MethodInvocation invocation = invocations.get(i);
 
-                if (!enabledConnectors.contains(connector)) {
-
-                    if (invocation instanceof LegacyChangeVariablesInvocation) {
-                        LegacyChangeVariablesInvocation legacyInvocation = (LegacyChangeVariablesInvocation) invocation;
-                        // TODO convert window close to a separate RPC call and
-                        // handle above - not a variable change
-
-                        // Handle special case where window-close is called
-                        // after the window has been removed from the
-                        // application or the application has closed
-                        Map<String, Object> changes = legacyInvocation
-                                .getVariableChanges();
-                        if (changes.size() == 1 && changes.containsKey("close")
-                                && Boolean.TRUE.equals(changes.get("close"))) {
-                            // Silently ignore this
-                            continue;
-                        }
-                    }
+            final ClientConnector connector = connectorTracker
+                    .getConnector(invocation.getConnectorId());
+            if (connector == null) {
+                getLogger()
+                        .log(Level.WARNING,
+                                "Received RPC call for unknown connector with id {0} (tried to invoke {1}.{2})",
+                                new Object[] { invocation.getConnectorId(),
+                                        invocation.getInterfaceName(),
+                                        invocation.getMethodName() });
+                continue;
+            }
 
-                    // Connector is disabled, log a warning and move to the next
-                    getLogger().warning(
-                            getIgnoredDisabledError("RPC call", connector));
-                    continue;
-                }
-                // DragAndDropService has null UI
-                if (connector.getUI() != null && connector.getUI().isClosing()) {
-                    String msg = "Ignoring RPC call for connector "
-                            + connector.getClass().getName();
-                    if (connector instanceof Component) {
-                        String caption = ((Component) connector).getCaption();
-                        if (caption != null) {
-                            msg += ", caption=" + caption;
-                        }
-                    }
-                    msg += " in closed UI";
-                    getLogger().warning(msg);
-                    continue;
+            if (!enabledConnectors.contains(connector)) {
 
+                if (invocation instanceof LegacyChangeVariablesInvocation) {
+                    LegacyChangeVariablesInvocation legacyInvocation = (LegacyChangeVariablesInvocation) invocation;
+                    // TODO convert window close to a separate RPC call and
+                    // handle above - not a variable change
+
+                    // Handle special case where window-close is called
+                    // after the window has been removed from the
+                    // application or the application has closed
+                    Map<String, Object> changes = legacyInvocation
+                            .getVariableChanges();
+                    if (changes.size() == 1 && changes.containsKey("close")
+                            && Boolean.TRUE.equals(changes.get("close"))) {
+                        // Silently ignore this
+                        continue;
+                    }
                 }
 
-                if (invocation instanceof ServerRpcMethodInvocation) {
-                    try {
-                        ServerRpcManager.applyInvocation(connector,
-                                (ServerRpcMethodInvocation) invocation);
-                    } catch (RpcInvocationException e) {
-                        manager.handleConnectorRelatedException(connector, e);
+                // Connector is disabled, log a warning and move to the next
+                getLogger().warning(
+                        getIgnoredDisabledError("RPC call", connector));
+                continue;
+            }
+            // DragAndDropService has null UI
+            if (connector.getUI() != null && connector.getUI().isClosing()) {
+                String msg = "Ignoring RPC call for connector "
+                        + connector.getClass().getName();
+                if (connector instanceof Component) {
+                    String caption = ((Component) connector).getCaption();
+                    if (caption != null) {
+                        msg += ", caption=" + caption;
                     }
-                } else {
+                }
+                msg += " in closed UI";
+                getLogger().warning(msg);
+                continue;
 
-                    // All code below is for legacy variable changes
-                    LegacyChangeVariablesInvocation legacyInvocation = (LegacyChangeVariablesInvocation) invocation;
-                    Map<String, Object> changes = legacyInvocation
-                            .getVariableChanges();
-                    try {
-                        if (connector instanceof VariableOwner) {
-                            // The source parameter is never used anywhere
-                            changeVariables(null, (VariableOwner) connector,
-                                    changes);
-                        } else {
-                            throw new IllegalStateException(
-                                    "Received legacy variable change for "
-                                            + connector.getClass().getName()
-                                            + " ("
-                                            + connector.getConnectorId()
-                                            + ") which is not a VariableOwner. The client-side connector sent these legacy varaibles: "
-                                            + changes.keySet());
-                        }
-                    } catch (Exception e) {
-                        manager.handleConnectorRelatedException(connector, e);
+            }
+
+            if (invocation instanceof ServerRpcMethodInvocation) {
+                try {
+                    ServerRpcManager.applyInvocation(connector,
+                            (ServerRpcMethodInvocation) invocation);
+                } catch (RpcInvocationException e) {
+                    manager.handleConnectorRelatedException(connector, e);
+                }
+            } else {
+
+                // All code below is for legacy variable changes
+                LegacyChangeVariablesInvocation legacyInvocation = (LegacyChangeVariablesInvocation) invocation;
+                Map<String, Object> changes = legacyInvocation
+                        .getVariableChanges();
+                try {
+                    if (connector instanceof VariableOwner) {
+                        // The source parameter is never used anywhere
+                        changeVariables(null, (VariableOwner) connector,
+                                changes);
+                    } else {
+                        throw new IllegalStateException(
+                                "Received legacy variable change for "
+                                        + connector.getClass().getName()
+                                        + " ("
+                                        + connector.getConnectorId()
+                                        + ") which is not a VariableOwner. The client-side connector sent these legacy varaibles: "
+                                        + changes.keySet());
                     }
+                } catch (Exception e) {
+                    manager.handleConnectorRelatedException(connector, e);
                 }
             }
-        } catch (JSONException e) {
-            getLogger().warning(
-                    "Unable to parse RPC call from the client: "
-                            + e.getMessage());
-            throw new RuntimeException(e);
         }
     }
 
     /**
-     * Parse JSON from the client into a list of MethodInvocation instances.
+     * Parses one RPC call received from the client and adds it to the list of
+     * invocations to perform. Consecutive legacy variable changes for the same
+     * connector are merged into one invocation.
      * 
+     * @param invocationJson
+     *            JSON containing all information needed to execute the call
+     * @param invocations
+     *            the list of invocations to add the parsed invocation to
+     * @param unknownConnectorInvocations
+     *            the list to add the call to if its connector can not be found
      * @param connectorTracker
      *            The ConnectorTracker used to lookup connectors
-     * @param invocationsJson
-     *            JSON containing all information needed to execute all
-     *            requested RPC calls.
-     * @param lastSyncIdSeenByClient
-     *            the most recent sync id the client has seen at the time the
-     *            request was sent
-     * @return list of MethodInvocation to perform
-     * @throws JSONException
      */
-    private List<MethodInvocation> parseInvocations(
-            ConnectorTracker connectorTracker, JSONArray invocationsJson,
-            int lastSyncIdSeenByClient) throws JSONException {
-        ArrayList<MethodInvocation> invocations = new ArrayList<MethodInvocation>();
-
-        MethodInvocation previousInvocation = null;
-        // parse JSON to MethodInvocations
-        for (int i = 0; i < invocationsJson.length(); ++i) {
-
-            JSONArray invocationJson = invocationsJson.getJSONArray(i);
-
+    private void parseInvocation(JSONArray invocationJson,
+            List<MethodInvocation> invocations,
+            List<JSONArray> unknownConnectorInvocations,
+            ConnectorTracker connectorTracker) {
+        MethodInvocation previousInvocation = invocations.isEmpty() ? null
+                : invocations.get(invocations.size() - 1);
+        try {
             MethodInvocation invocation = parseInvocation(invocationJson,
-                    previousInvocation, connectorTracker,
-                    lastSyncIdSeenByClient);
+                    previousInvocation, unknownConnectorInvocations,
+                    connectorTracker);
             if (invocation != null) {
                 // Can be null if the invocation was a legacy invocation and it
                 // was merged with the previous one or if the invocation was
                 // rejected because of an error.
                 invocations.add(invocation);
-                previousInvocation = invocation;
             }
+        } catch (JSONException e) {
+            getLogger().warning(
+                    "Unable to parse RPC call from the client: "
+                            + e.getMessage());
+            throw new RuntimeException(e);
         }
-        return invocations;
     }
 
     private MethodInvocation parseInvocation(JSONArray invocationJson,
             MethodInvocation previousInvocation,
-            ConnectorTracker connectorTracker, long lastSyncIdSeenByClient)
-            throws JSONException {
+            List<JSONArray> unknownConnectorInvocations,
+            ConnectorTracker connectorTracker) throws JSONException {
         String connectorId = invocationJson.getString(0);
         String interfaceName = invocationJson.getString(1);
         String methodName = invocationJson.getString(2);
@@ -360,22 +466,7 @@ public class ServerRpcHandler implements Serializable {
         if (connectorTracker.getConnector(connectorId) == null
                 && !connectorId
                         .equals(ApplicationConstants.DRAG_AND_DROP_CONNECTOR_ID)) {
-
-            if (!connectorTracker.connectorWasPresentAsRequestWasSent(
-                    connectorId, lastSyncIdSeenByClient)) {
-                getLogger()
-                        .log(Level.WARNING,
-                                "RPC call to "
-                                        + interfaceName
-                                        + "."
-                                        + methodName
-                                        + " received for connector "
-                                        + connectorId
-                                        + " but no such connector could be found. Resynchronizing client.");
-                // This is likely an out of sync issue (client tries to update a
-                // connector which is not present). Force resync.
-                connectorTracker.markAllConnectorsDirty();
-            }
+            unknownConnectorInvocations.add(invocationJson);
             return null;
         }
 
@@ -398,6 +489,42 @@ public class ServerRpcHandler implements Serializable {
 
     }
 
+    /**
+     * Handles an RPC call for a connector that could not be found.
+     * 
+     * @param invocationJson
+     *            JSON of the RPC call
+     * @param connectorTracker
+     *            The ConnectorTracker used to lookup connectors
+     * @param lastSyncIdSeenByClient
+     *            the most recent sync id the client has seen at the time the
+     *            request was sent
+     * @throws JSONException
+     */
+    private void handleUnknownConnector(JSONArray invocationJson,
+            ConnectorTracker connectorTracker, int lastSyncIdSeenByClient)
+            throws JSONException {
+        String connectorId = invocationJson.getString(0);
+        String interfaceName = invocationJson.getString(1);
+        String methodName = invocationJson.getString(2);
+
+        if (!connectorTracker.connectorWasPresentAsRequestWasSent(connectorId,
+                lastSyncIdSeenByClient)) {
+            getLogger()
+                    .log(Level.WARNING,
+                            "RPC call to "
+                                    + interfaceName
+                                    + "."
+                                    + methodName
+                                    + " received for connector "
+                                    + connectorId
+                                    + " but no such connector could be found. Resynchronizing client.");
+            // This is likely an out of sync issue (client tries to update a
+            // connector which is not present). Force resync.
+            connectorTracker.markAllConnectorsDirty();
+        }
+    }
+
     private LegacyChangeVariablesInvocation parseLegacyChangeVariablesInvocation(
             String connectorId, String interfaceName, String methodName,
             LegacyChangeVariablesInvocation previousInvocation,
@@ -453,8 +580,8 @@ public class ServerRpcHandler implements Serializable {
                 connectorId, rpcInterface, methodName, parametersJson.length());
 
         Object[] parameters = new Object[parametersJson.length()];
-        Type[] declaredRpcMethodParameterTypes = invocation.getMethod()
-                .getGenericParameterTypes();
+        Type[] declaredRpcMethodParameterTypes = invocation
+                .getParameterTypes();
 
         for (int j = 0; j < parametersJson.length(); ++j) {
             Object parameterValue = parametersJson.get(j);
@@ -471,6 +598,14 @@ public class ServerRpcHandler implements Serializable {
         owner.changeVariables(source, m);
     }
 
+    /**
+     * Reads the whole message into a string.
+     * 
+     * @deprecated As of 7.2, no longer used. The message is decoded while it
+     *             is being read by
+     *             {@link #handleRpc(UI, Reader, VaadinRequest)}.
+     */
+    @Deprecated
     protected String getMessage(Reader reader) throws IOException {
 
         StringBuilder sb = new StringBuilder(MAX_BUFFER_SIZE);
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 
 import com.vaadin.server.RequestHandler;
+import com.vaadin.server.ServletPortletHelper;
 import com.vaadin.server.VaadinRequest;
 import com.vaadin.server.VaadinResponse;
 import com.vaadin.server.VaadinSession;
@@ -39,6 +40,11 @@ import com.vaadin.server.VaadinSession;
  * The session is not locked during execution of the request handlers. The
  * request handler can itself decide if it needs to lock the session or not.
  * </p>
+ * <p>
+ * Heartbeat requests are passed to the request handlers without locking the
+ * session at all, so that heartbeats are not delayed by other requests holding
+ * the lock.
+ * </p>
  * 
  * @see VaadinSession#addRequestHandler(RequestHandler)
  * @see RequestHandler
@@ -50,14 +56,20 @@ public class SessionRequestHandler implements RequestHandler {
     @Override
     public boolean handleRequest(VaadinSession session, VaadinRequest request,
             VaadinResponse response) throws IOException {
-        // Use a copy to avoid ConcurrentModificationException
-        session.lock();
         ArrayList<RequestHandler> requestHandlers;
-        try {
+        if (ServletPortletHelper.isHeartbeatRequest(request)) {
+            // The handlers can be read without the lock
             requestHandlers = new ArrayList<RequestHandler>(
                     session.getRequestHandlers());
-        } finally {
-            session.unlock();
+        } else {
+            // Use a copy to avoid ConcurrentModificationException
+            session.lock();
+            try {
+                requestHandlers = new ArrayList<RequestHandler>(
+                        session.getRequestHandlers());
+            } finally {
+                session.unlock();
+            }
         }
         for (RequestHandler handler : requestHandlers) {
             if (handler.handleRequest(session, request, response)) {
@@ -40,6 +40,12 @@ public class SharedStateWriter implements Serializable {
     /**
      * Writes a JSON object containing the pending state changes of the dirty
      * connectors of the given UI.
+     * <p>
+     * The state of each connector is written to the writer as soon as it has
+     * been encoded instead of first collecting the states of all dirty
+     * connectors into one JSON object. This keeps the amount of memory needed
+     * for serializing the states proportional to the size of the largest
+     * state rather than to the size of the whole response.
      * 
      * @param ui
      *            The UI whose state changes should be written.
@@ -53,23 +59,30 @@ public class SharedStateWriter implements Serializable {
         Collection<ClientConnector> dirtyVisibleConnectors = ui
                 .getConnectorTracker().getDirtyVisibleConnectors();
 
-        JSONObject sharedStates = new JSONObject();
+        writer.write('{');
+        boolean first = true;
         for (ClientConnector connector : dirtyVisibleConnectors) {
             // encode and send shared state
+            String connectorId = connector.getConnectorId();
             try {
                 JSONObject stateJson = connector.encodeState();
 
                 if (stateJson != null && stateJson.length() != 0) {
-                    sharedStates.put(connector.getConnectorId(), stateJson);
+                    if (!first) {
+                        writer.write(',');
+                    }
+                    first = false;
+                    writer.write(JSONObject.quote(connectorId));
+                    writer.write(':');
+                    writer.write(stateJson.toString());
                 }
             } catch (JSONException e) {
                 throw new PaintException(
                         "Failed to serialize shared state for connector "
                                 + connector.getClass().getName() + " ("
-                                + connector.getConnectorId() + "): "
-                                + e.getMessage(), e);
+                                + connectorId + "): " + e.getMessage(), e);
             }
         }
-        writer.write(sharedStates.toString());
+        writer.write('}');
     }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.vaadin.server.communication;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * Reads the structure of a JSON message from a {@link Reader} incrementally.
+ * Only the containers that are explicitly entered are processed by this
+ * reader; each value inside them is read as a separate string that is decoded
+ * using {@link JSONTokener}. This keeps the memory needed for reading a large
+ * message proportional to the largest individual value instead of the size of
+ * the whole message.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+class StreamingJsonReader {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    /**
+     * Whether the next value in the current container is the first one, i.e.
+     * whether it should not be preceded by a comma.
+     */
+    private boolean first;
+
+    /**
+     * The {@link #first} flags of the enclosing containers.
+     */
+    private final Deque<Boolean> enclosingFirst = new ArrayDeque<Boolean>();
+
+    /**
+     * Creates a new reader for a JSON message.
+     * 
+     * @param reader
+     *            the reader to read the message from
+     */
+    public StreamingJsonReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Checks whether the message is empty, i.e. only contains whitespace.
+     * 
+     * @return true if there are no more characters except whitespace
+     * @throws IOException
+     *             if reading fails
+     */
+    public boolean isEmpty() throws IOException {
+        return peek() == -1;
+    }
+
+    /**
+     * Consumes the start of an object.
+     * 
+     * @throws IOException
+     *             if reading fails
+     * @throws JSONException
+     *             if the next value is not an object
+     */
+    public void beginObject() throws IOException, JSONException {
+        expect('{');
+        enter();
+    }
+
+    /**
+     * Consumes the start of an array.
+     * 
+     * @throws IOException
+     *             if reading fails
+     * @throws JSONException
+     *             if the next value is not an array
+     */
+    public void beginArray() throws IOException, JSONException {
+        expect('[');
+        enter();
+    }
+
+    private void enter() {
+        enclosingFirst.push(Boolean.valueOf(first));
+        first = true;
+    }
+
+    /**
+     * Checks whether the current object or array has more values. If it does
+     * not, the end of the object or array is consumed and reading continues in
+     * the enclosing object or array, if any.
+     * 
+     * @return true if there is another value, false if the container ended
+     * @throws IOException
+     *             if reading fails
+     * @throws JSONException
+     *             if the message is malformed
+     */
+    public boolean hasNext() throws IOException, JSONException {
+        int c = peek();
+        if (c == '}' || c == ']') {
+            position++;
+            if (!enclosingFirst.isEmpty()) {
+                first = enclosingFirst.pop().booleanValue();
+            }
+            return false;
+        }
+        if (!first) {
+            expect(',');
+        }
+        first = false;
+        return true;
+    }
+
+    /**
+     * Reads the name of the next object member and the following colon.
+     * 
+     * @return the name of the member
+     * @throws IOException
+     *             if reading fails
+     * @throws JSONException
+     *             if the message is malformed
+     */
+    public String nextName() throws IOException, JSONException {
+        Object name = nextValue();
+        if (!(name instanceof String)) {
+            throw new JSONException("Expected a name but was " + name);
+        }
+        expect(':');
+        return (String) name;
+    }
+
+    /**
+     * Returns the first character of the next value without consuming it.
+     * 
+     * @return the next non-whitespace character, or -1 if the end of the
+     *         message has been reached
+     * @throws IOException
+     *             if reading fails
+     */
+    public int peek() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            char c = buffer[position];
+            if (!Character.isWhitespace(c)) {
+                return c;
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Reads and decodes the next value, which can be a nested object or array.
+     * 
+     * @return the decoded value as returned by {@link JSONTokener#nextValue()}
+     * @throws IOException
+     *             if reading fails
+     * @throws JSONException
+     *             if the value is malformed
+     */
+    public Object nextValue() throws IOException, JSONException {
+        return new JSONTokener(nextRawValue()).nextValue();
+    }
+
+    /**
+     * Reads the JSON text of the next value without decoding it.
+     * 
+     * @return the JSON text of the next value
+     * @throws IOException
+     *             if reading fails
+     * @throws JSONException
+     *             if the message ends before the value is complete
+     */
+    String nextRawValue() throws IOException, JSONException {
+        int c = peek();
+        if (c == -1) {
+            throw new JSONException("Unexpected end of message");
+        }
+
+        StringBuilder value = new StringBuilder();
+        if (c != '"' && c != '{' && c != '[') {
+            // Literal: number, boolean or null
+            while (position < limit || fill()) {
+                c = buffer[position];
+                if (c == ',' || c == '}' || c == ']' || c == ':'
+                        || Character.isWhitespace(c)) {
+                    break;
+                }
+                value.append((char) c);
+                position++;
+            }
+            return value.toString();
+        }
+
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        while (position < limit || fill()) {
+            int start = position;
+            while (position < limit) {
+                c = buffer[position++];
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (c == '\\') {
+                        escaped = true;
+                    } else if (c == '"') {
+                        inString = false;
+                        if (depth == 0) {
+                            value.append(buffer, start, position - start);
+                            return value.toString();
+                        }
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        value.append(buffer, start, position - start);
+                        return value.toString();
+                    }
+                }
+            }
+            value.append(buffer, start, position - start);
+        }
+        throw new JSONException("Unexpected end of message");
+    }
+
+    private void expect(char expected) throws IOException, JSONException {
+        int c = peek();
+        if (c != expected) {
+            throw new JSONException("Expected '" + expected + "' but was "
+                    + (c == -1 ? "end of message" : "'" + (char) c + "'"));
+        }
+        position++;
+    }
+
+    private boolean fill() throws IOException {
+        int read = reader.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            // Readers are not supposed to return 0 for a non-empty buffer
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+}
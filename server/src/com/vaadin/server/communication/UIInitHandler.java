@@ -28,6 +28,8 @@ import org.json.JSONObject;
 
 import com.vaadin.annotations.PreserveOnRefresh;
 import com.vaadin.server.LegacyApplicationUIProvider;
+import com.vaadin.server.RequestMetrics;
+import com.vaadin.server.RequestMetrics.Phase;
 import com.vaadin.server.SynchronizedRequestHandler;
 import com.vaadin.server.UIClassSelectionEvent;
 import com.vaadin.server.UICreateEvent;
@@ -114,6 +116,23 @@ public abstract class UIInitHandler extends SynchronizedRequestHandler {
         // iOS 6 Safari requires this (#9732)
         response.setHeader("Cache-Control", "no-cache");
 
+        RequestMetrics.Sample sample = request.getService()
+                .getRequestMetrics().getSample(request);
+        long writeStart = System.nanoTime();
+
+        ResponseCompression compression = request.getService()
+                .getResponseCompression();
+        // The length in characters is a lower bound for the UTF-8 length
+        if (compression.isCompressed(request, json.length())) {
+            byte[] bytes = json.getBytes("UTF-8");
+            compression.writeCompressed(request, response, bytes);
+            if (sample != null) {
+                sample.addTimeSince(Phase.RESPONSE_WRITE, writeStart);
+                sample.addBytesOut(bytes.length);
+            }
+            return true;
+        }
+
         // NOTE! GateIn requires, for some weird reason, getOutputStream
         // to be used instead of getWriter() (it seems to interpret
         // application/json as a binary content type)
@@ -127,6 +146,12 @@ public abstract class UIInitHandler extends SynchronizedRequestHandler {
             outputWriter.close();
         }
 
+        if (sample != null) {
+            sample.addTimeSince(Phase.RESPONSE_WRITE, writeStart);
+            // Counting the UTF-8 bytes is only done for sampled requests
+            sample.addBytesOut(json.getBytes("UTF-8").length);
+        }
+
         return true;
     }
 
@@ -16,7 +16,10 @@
 
 package com.vaadin.server.communication;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.logging.Level;
@@ -64,6 +67,11 @@ public class UidlRequestHandler extends SynchronizedRequestHandler implements
         return ServletPortletHelper.isUIDLRequest(request);
     }
 
+    @Override
+    protected boolean isUIRequest(VaadinRequest request) {
+        return true;
+    }
+
     @Override
     public boolean synchronizedHandleRequest(VaadinSession session,
             VaadinRequest request, VaadinResponse response) throws IOException {
@@ -87,7 +95,8 @@ public class UidlRequestHandler extends SynchronizedRequestHandler implements
         repaintAll = (request
                 .getParameter(ApplicationConstants.URL_PARAMETER_REPAINT_ALL) != null);
 
-        StringWriter stringWriter = new StringWriter();
+        StringWriter stringWriter = null;
+        Writer responseWriter = null;
 
         try {
             rpcHandler.handleRpc(uI, request.getReader(), request);
@@ -96,13 +105,27 @@ public class UidlRequestHandler extends SynchronizedRequestHandler implements
                 session.getCommunicationManager().repaintAll(uI);
             }
 
+            if (isStreamingResponse(session.getService())) {
+                responseWriter = openStreamingJsonResponse(request, response);
+                writeUidl(request, response, uI, responseWriter, repaintAll);
+                // NOTE GateIn requires the buffers to be flushed to work.
+                // Closing also finishes a compressed response.
+                responseWriter.close();
+                return true;
+            }
+
+            stringWriter = new StringWriter();
             writeUidl(request, response, uI, stringWriter, repaintAll);
         } catch (JSONException e) {
             getLogger().log(Level.SEVERE, "Error writing JSON to response", e);
-            // Refresh on client side
-            response.getWriter().write(
-                    VaadinService.createCriticalNotificationJSON(null, null,
-                            null, null));
+            if (responseWriter == null) {
+                // Refresh on client side
+                response.getWriter().write(
+                        VaadinService.createCriticalNotificationJSON(null,
+                                null, null, null));
+            }
+            // Otherwise part of the message has already been sent and the
+            // client will fail to parse the truncated response
             return true;
         } catch (InvalidUIDLSecurityKeyException e) {
             getLogger().log(Level.WARNING,
@@ -114,13 +137,71 @@ public class UidlRequestHandler extends SynchronizedRequestHandler implements
                             null, null));
             return true;
         } finally {
-            stringWriter.close();
+            if (stringWriter != null) {
+                stringWriter.close();
+            }
+            if (responseWriter != null) {
+                responseWriter.close();
+            }
         }
 
         return UIInitHandler.commitJsonResponse(request, response,
                 stringWriter.toString());
     }
 
+    /**
+     * Checks whether UIDL responses should be written directly to the response
+     * instead of first being buffered in memory. Streaming keeps the memory
+     * needed for writing a response independent of the size of the response,
+     * but the response can no longer be replaced with an error message if
+     * writing fails half-way through.
+     * 
+     * @param service
+     *            the Vaadin service
+     * @return true if UIDL responses should be streamed; false to buffer them
+     */
+    protected boolean isStreamingResponse(VaadinService service) {
+        return Boolean.parseBoolean(service.getDeploymentConfiguration()
+                .getApplicationOrSystemProperty(
+                        Constants.SERVLET_PARAMETER_STREAM_UIDL_RESPONSES,
+                        "false"));
+    }
+
+    /**
+     * Prepares the response for a streamed JSON message and returns a writer
+     * for the message. The message is compressed if enabled in the deployment
+     * configuration, as the size of the message is not known in advance.
+     * 
+     * @param request
+     *            the request being handled
+     * @param response
+     *            the response to write to
+     * @return a buffered writer writing to the output stream of the response
+     * @throws IOException
+     *             if the output stream cannot be opened
+     */
+    private static Writer openStreamingJsonResponse(VaadinRequest request,
+            VaadinResponse response) throws IOException {
+        response.setContentType(JsonConstants.JSON_CONTENT_TYPE);
+
+        // Ensure that the browser does not cache UIDL responses.
+        // iOS 6 Safari requires this (#9732)
+        response.setHeader("Cache-Control", "no-cache");
+
+        // NOTE! GateIn requires getOutputStream to be used instead of
+        // getWriter(), see UIInitHandler.commitJsonResponse
+        ResponseCompression compression = request.getService()
+                .getResponseCompression();
+        OutputStream out;
+        if (compression.isCompressed(request, -1)) {
+            out = compression.openCompressedStream(request, response);
+        } else {
+            out = response.getOutputStream();
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, "UTF-8"),
+                Constants.DEFAULT_BUFFER_SIZE);
+    }
+
     /**
      * Checks that the version reported by the client (widgetset) matches that
      * of the server.
@@ -36,6 +36,8 @@ import com.vaadin.server.ClientConnector;
 import com.vaadin.server.JsonPaintTarget;
 import com.vaadin.server.LegacyCommunicationManager;
 import com.vaadin.server.LegacyCommunicationManager.ClientCache;
+import com.vaadin.server.RequestMetrics;
+import com.vaadin.server.RequestMetrics.Phase;
 import com.vaadin.server.SystemMessages;
 import com.vaadin.server.VaadinSession;
 import com.vaadin.shared.ApplicationConstants;
@@ -78,10 +80,16 @@ public class UidlWriter implements Serializable {
 
         // Purge pending access calls as they might produce additional changes
         // to write out
-        session.getService().runPendingAccessTasks(session);
+        session.getService().runPendingAccessTasks(ui);
+
+        RequestMetrics.Sample sample = session.getService()
+                .getRequestMetrics().getCurrentSample();
 
         ArrayList<ClientConnector> dirtyVisibleConnectors = ui
                 .getConnectorTracker().getDirtyVisibleConnectors();
+        if (sample != null) {
+            sample.addDirtyConnectors(dirtyVisibleConnectors.size());
+        }
         LegacyCommunicationManager manager = session.getCommunicationManager();
         // Paints components
         ConnectorTracker uiConnectorTracker = ui.getConnectorTracker();
@@ -107,9 +115,13 @@ public class UidlWriter implements Serializable {
             JsonPaintTarget paintTarget = new JsonPaintTarget(manager, writer,
                     !repaintAll);
 
+            long paintStart = System.nanoTime();
             new LegacyUidlWriter().write(ui, writer, paintTarget);
 
             paintTarget.close();
+            if (sample != null) {
+                sample.addTimeSince(Phase.LEGACY_PAINT, paintStart);
+            }
             writer.write(", "); // close changes
 
             // send shared state to client
@@ -124,7 +136,11 @@ public class UidlWriter implements Serializable {
             // processing.
 
             writer.write("\"state\":");
+            long stateStart = System.nanoTime();
             new SharedStateWriter().write(ui, writer);
+            if (sample != null) {
+                sample.addTimeSince(Phase.STATE_ENCODING, stateStart);
+            }
             writer.write(", "); // close states
 
             // TODO This should be optimized. The type only needs to be
@@ -285,7 +301,7 @@ public class UidlWriter implements Serializable {
                         + new JSONArray(styleDependencies).toString());
             }
 
-            session.getDragAndDropService().printJSONResponse(writer);
+            session.getDragAndDropService().printJSONResponse(writer, ui);
 
             for (ClientConnector connector : dirtyVisibleConnectors) {
                 uiConnectorTracker.markClientSideInitialized(connector);
@@ -20,6 +20,7 @@ import java.io.Serializable;
 import java.lang.reflect.Method;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import com.vaadin.event.Action;
 import com.vaadin.event.FieldEvents;
@@ -63,8 +64,10 @@ public class Button extends AbstractComponent implements
             // a following setEnabled(true) call might have no effect. see
             // ticket #10030
             try {
-                getUI().getConnectorTracker().getDiffState(Button.this)
-                        .put("enabled", false);
+                ConnectorTracker tracker = getUI().getConnectorTracker();
+                JSONObject diffState = tracker.getDiffState(Button.this);
+                diffState.put("enabled", false);
+                tracker.setDiffState(Button.this, diffState);
             } catch (JSONException e) {
                 throw new RuntimeException(e);
             }
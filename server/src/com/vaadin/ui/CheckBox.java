@@ -17,6 +17,7 @@
 package com.vaadin.ui;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import com.vaadin.data.Property;
 import com.vaadin.event.FieldEvents.BlurEvent;
@@ -48,8 +49,10 @@ public class CheckBox extends AbstractField<Boolean> {
              * See #11028, #10030.
              */
             try {
-                getUI().getConnectorTracker().getDiffState(CheckBox.this)
-                        .put("checked", checked);
+                ConnectorTracker tracker = getUI().getConnectorTracker();
+                JSONObject diffState = tracker.getDiffState(CheckBox.this);
+                diffState.put("checked", checked);
+                tracker.setDiffState(CheckBox.this, diffState);
             } catch (JSONException e) {
                 throw new RuntimeException(e);
             }
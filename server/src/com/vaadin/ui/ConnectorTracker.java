@@ -16,6 +16,8 @@
 package com.vaadin.ui;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -35,10 +37,16 @@ import org.json.JSONObject;
 
 import com.vaadin.server.AbstractClientConnector;
 import com.vaadin.server.ClientConnector;
+import com.vaadin.server.CompactObjectOutputStream;
+import com.vaadin.server.Constants;
 import com.vaadin.server.DragAndDropService;
 import com.vaadin.server.GlobalResourceHandler;
 import com.vaadin.server.LegacyCommunicationManager;
 import com.vaadin.server.StreamVariable;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.server.communication.DiffStateStore;
+import com.vaadin.server.communication.JsonDiffStateStore;
 
 /**
  * A class which takes care of book keeping of {@link ClientConnector}s for a
@@ -76,7 +84,14 @@ public class ConnectorTracker implements Serializable {
     private boolean writingResponse = false;
 
     private UI uI;
-    private transient Map<ClientConnector, JSONObject> diffStates = new HashMap<ClientConnector, JSONObject>();
+    private transient DiffStateStore diffStates;
+
+    /**
+     * Connectors whose diff state was left out when serializing since it can
+     * be rebuilt from the current state of the connector. The state is rebuilt
+     * when it is needed or before the connector is marked dirty.
+     */
+    private transient Set<ClientConnector> staleDiffStates;
 
     /** Maps connectorIds to a map of named StreamVariables */
     private Map<String, Map<String, StreamVariable>> pidToNameToStreamVariable;
@@ -256,7 +271,10 @@ public class ConnectorTracker implements Serializable {
      */
     public void markAllClientSidesUninitialized() {
         uninitializedConnectors.addAll(connectorIdToConnector.values());
-        diffStates.clear();
+        if (diffStates != null) {
+            diffStates.clear();
+        }
+        staleDiffStates = null;
     }
 
     /**
@@ -284,6 +302,17 @@ public class ConnectorTracker implements Serializable {
         return null;
     }
 
+    /**
+     * Gets the number of connectors registered to this tracker, including
+     * connectors that have been unregistered but not yet cleaned up.
+     * 
+     * @since 7.2
+     * @return the number of registered connectors
+     */
+    public int getConnectorCount() {
+        return connectorIdToConnector.size();
+    }
+
     /**
      * Cleans the connector map from all connectors that are no longer attached
      * to the application. This should only be called by the framework.
@@ -297,7 +326,7 @@ public class ConnectorTracker implements Serializable {
 
             removeFromGlobalResourceHandler(connector);
             uninitializedConnectors.remove(connector);
-            diffStates.remove(connector);
+            removeDiffState(connector);
         }
         unregisteredConnectors.clear();
 
@@ -330,13 +359,13 @@ public class ConnectorTracker implements Serializable {
 
                 removeFromGlobalResourceHandler(connector);
                 uninitializedConnectors.remove(connector);
-                diffStates.remove(connector);
+                removeDiffState(connector);
                 iterator.remove();
             } else if (!uninitializedConnectors.contains(connector)
                     && !LegacyCommunicationManager
                             .isConnectorVisibleToClient(connector)) {
                 uninitializedConnectors.add(connector);
-                diffStates.remove(connector);
+                removeDiffState(connector);
                 if (getLogger().isLoggable(Level.FINE)) {
                     getLogger()
                             .log(Level.FINE,
@@ -434,6 +463,10 @@ public class ConnectorTracker implements Serializable {
             }
         }
 
+        // The state is about to change and can no longer be used for
+        // rebuilding the diff state
+        rebuildStaleDiffState(connector);
+
         dirtyConnectors.add(connector);
     }
 
@@ -568,14 +601,152 @@ public class ConnectorTracker implements Serializable {
         return dirtyConnectors;
     }
 
+    /**
+     * Gets the state last sent to the client for the given connector. The
+     * returned object might be a copy of the stored state, so changes must be
+     * stored using {@link #setDiffState(ClientConnector, JSONObject)}.
+     * 
+     * @param connector
+     *            the connector to get the state for
+     * @return the last sent state, or <code>null</code> if no state has been
+     *         sent
+     */
     public JSONObject getDiffState(ClientConnector connector) {
         assert getConnector(connector.getConnectorId()) == connector;
-        return diffStates.get(connector);
+        rebuildStaleDiffState(connector);
+        return getDiffStateStore().get(connector);
     }
 
+    private void rebuildStaleDiffState(ClientConnector connector) {
+        if (staleDiffStates != null && staleDiffStates.remove(connector)) {
+            try {
+                // Stores the full state as the diff state since there is no
+                // diff state for the connector anymore
+                connector.encodeState();
+            } catch (JSONException e) {
+                getLogger().log(Level.WARNING,
+                        "Could not rebuild the diff state of " + connector, e);
+            }
+        }
+    }
+
+    /**
+     * Sets the state last sent to the client for the given connector.
+     * 
+     * @param connector
+     *            the connector to set the state for
+     * @param diffState
+     *            the state sent to the client
+     */
     public void setDiffState(ClientConnector connector, JSONObject diffState) {
         assert getConnector(connector.getConnectorId()) == connector;
-        diffStates.put(connector, diffState);
+        if (staleDiffStates != null) {
+            staleDiffStates.remove(connector);
+        }
+        getDiffStateStore().put(connector, diffState);
+    }
+
+    /**
+     * Discards the state last sent to the client for the given connector. The
+     * state is rebuilt from the current state of the connector when it is
+     * next needed, so this should only be used when the client is known to
+     * have the current state of the connector.
+     * 
+     * @since 7.2
+     * @param connector
+     *            the connector whose diff state to discard
+     */
+    public void invalidateDiffState(ClientConnector connector) {
+        removeDiffState(connector);
+        if (staleDiffStates == null) {
+            staleDiffStates = new HashSet<ClientConnector>();
+        }
+        staleDiffStates.add(connector);
+    }
+
+    private void removeDiffState(ClientConnector connector) {
+        // Avoid creating the store before it is needed
+        if (diffStates != null) {
+            diffStates.remove(connector);
+        }
+        if (staleDiffStates != null) {
+            staleDiffStates.remove(connector);
+        }
+    }
+
+    /**
+     * Gets the store used for keeping track of the states sent to the client.
+     * Unless explicitly set, a store of the type configured using the
+     * {@value Constants#SERVLET_PARAMETER_DIFF_STATE_STORE} init parameter is
+     * created when first needed.
+     * 
+     * @since 7.2
+     * @return the diff state store, not <code>null</code>
+     */
+    public DiffStateStore getDiffStateStore() {
+        if (diffStates == null) {
+            diffStates = createDiffStateStore();
+        }
+        return diffStates;
+    }
+
+    /**
+     * Sets the store to use for keeping track of the states sent to the
+     * client. Any states in the previously used store are moved to the new
+     * store.
+     * 
+     * @since 7.2
+     * @param diffStateStore
+     *            the diff state store to use, not <code>null</code>
+     */
+    public void setDiffStateStore(DiffStateStore diffStateStore) {
+        if (diffStateStore == null) {
+            throw new IllegalArgumentException(
+                    "The diff state store cannot be null");
+        }
+        if (diffStates != null) {
+            for (ClientConnector connector : connectorIdToConnector.values()) {
+                JSONObject diffState = diffStates.get(connector);
+                if (diffState != null) {
+                    diffStateStore.put(connector, diffState);
+                }
+            }
+        }
+        diffStates = diffStateStore;
+    }
+
+    /**
+     * Creates the store to use for keeping track of the states sent to the
+     * client.
+     * 
+     * @since 7.2
+     * @return a new diff state store
+     */
+    protected DiffStateStore createDiffStateStore() {
+        VaadinSession session = uI.getSession();
+        VaadinService service = session != null ? session.getService() : null;
+        if (service != null && service.getDeploymentConfiguration() != null) {
+            String storeClassName = service.getDeploymentConfiguration()
+                    .getApplicationOrSystemProperty(
+                            Constants.SERVLET_PARAMETER_DIFF_STATE_STORE, null);
+            if (storeClassName != null) {
+                ClassLoader classLoader = service.getClassLoader();
+                if (classLoader == null) {
+                    classLoader = getClass().getClassLoader();
+                }
+                try {
+                    return classLoader.loadClass(storeClassName)
+                            .asSubclass(DiffStateStore.class).newInstance();
+                } catch (Exception e) {
+                    getLogger().log(
+                            Level.WARNING,
+                            "Could not create diff state store "
+                                    + storeClassName + ", using "
+                                    + JsonDiffStateStore.class.getName(), e);
+                }
+            }
+        }
+        return new JsonDiffStateStore();
     }
 
     public boolean isDirty(ClientConnector connector) {
@@ -633,41 +804,6 @@ public class ConnectorTracker implements Serializable {
         this.writingResponse = writingResponse;
     }
 
-    /* Special serialization to JSONObjects which are not serializable */
-    private void writeObject(java.io.ObjectOutputStream out) throws IOException {
-        out.defaultWriteObject();
-        // Convert JSONObjects in diff state to String representation as
-        // JSONObject is not serializable
-        HashMap<ClientConnector, String> stringDiffStates = new HashMap<ClientConnector, String>(
-                diffStates.size());
-        for (ClientConnector key : diffStates.keySet()) {
-            stringDiffStates.put(key, diffStates.get(key).toString());
-        }
-        out.writeObject(stringDiffStates);
-    }
-
-    /* Special serialization to JSONObjects which are not serializable */
-    private void readObject(java.io.ObjectInputStream in) throws IOException,
-            ClassNotFoundException {
-        in.defaultReadObject();
-
-        // Read String versions of JSONObjects and parse into JSONObjects as
-        // JSONObject is not serializable
-        diffStates = new HashMap<ClientConnector, JSONObject>();
-        @SuppressWarnings("unchecked")
-        HashMap<ClientConnector, String> stringDiffStates = (HashMap<ClientConnector, String>) in
-                .readObject();
-        diffStates = new HashMap<ClientConnector, JSONObject>();
-        for (ClientConnector key : stringDiffStates.keySet()) {
-            try {
-                diffStates.put(key, new JSONObject(stringDiffStates.get(key)));
-            } catch (JSONException e) {
-                throw new IOException(e);
-            }
-        }
-
-    }
-
     /**
      * Checks if the indicated connector has a StreamVariable of the given name
      * and returns the variable if one is found.
@@ -876,4 +1012,54 @@ public class ConnectorTracker implements Serializable {
         syncIdToUnregisteredConnectorIds.headMap(lastSyncIdSeenByClient)
                 .clear();
     }
+
+    /*
+     * The diff states of connectors that are not dirty are the encoded current
+     * states of the connectors, so they are left out if the stream skips
+     * caches.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+
+        if (diffStates == null
+                || !CompactObjectOutputStream.isSkippingCaches(out)) {
+            out.writeObject(diffStates);
+            out.writeObject(staleDiffStates);
+            return;
+        }
+
+        DiffStateStore dirtyStates = createEmptyCopy(diffStates);
+        Set<ClientConnector> stale = new HashSet<ClientConnector>();
+        if (staleDiffStates != null) {
+            stale.addAll(staleDiffStates);
+        }
+        for (ClientConnector connector : connectorIdToConnector.values()) {
+            JSONObject diffState = diffStates.get(connector);
+            if (diffState == null) {
+                continue;
+            } else if (dirtyConnectors.contains(connector)) {
+                dirtyStates.put(connector, diffState);
+            } else {
+                stale.add(connector);
+            }
+        }
+        out.writeObject(dirtyStates);
+        out.writeObject(stale);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        diffStates = (DiffStateStore) in.readObject();
+        staleDiffStates = (Set<ClientConnector>) in.readObject();
+    }
+
+    private static DiffStateStore createEmptyCopy(DiffStateStore store) {
+        try {
+            return store.getClass().newInstance();
+        } catch (Exception e) {
+            return new JsonDiffStateStore();
+        }
+    }
 }
@@ -17,6 +17,7 @@
 package com.vaadin.ui;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import com.vaadin.shared.ui.slider.SliderOrientation;
 import com.vaadin.shared.ui.slider.SliderServerRpc;
@@ -43,8 +44,10 @@ public class Slider extends AbstractField<Double> {
              * See #12133.
              */
             try {
-                getUI().getConnectorTracker().getDiffState(Slider.this)
-                        .put("value", value);
+                ConnectorTracker tracker = getUI().getConnectorTracker();
+                JSONObject diffState = tracker.getDiffState(Slider.this);
+                diffState.put("value", value);
+                tracker.setDiffState(Slider.this, diffState);
             } catch (JSONException e) {
                 throw new RuntimeException(e);
             }
@@ -16,6 +16,8 @@
 
 package com.vaadin.ui;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -24,7 +26,11 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,11 +54,14 @@ import com.vaadin.server.LocaleService;
 import com.vaadin.server.Page;
 import com.vaadin.server.PaintException;
 import com.vaadin.server.PaintTarget;
+import com.vaadin.server.UILockingSessionLock;
+import com.vaadin.server.UIPassivator;
 import com.vaadin.server.UIProvider;
 import com.vaadin.server.VaadinRequest;
 import com.vaadin.server.VaadinService;
 import com.vaadin.server.VaadinServlet;
 import com.vaadin.server.VaadinSession;
+import com.vaadin.server.VaadinSession.FutureAccess;
 import com.vaadin.server.communication.PushConnection;
 import com.vaadin.shared.Connector;
 import com.vaadin.shared.EventId;
@@ -215,12 +224,44 @@ public abstract class UI extends AbstractSingleComponentContainer implements
     /**
      * Timestamp keeping track of the last heartbeat of this UI. Updated to the
      * current time whenever the application receives a heartbeat or UIDL
-     * request from the client for this UI.
+     * request from the client for this UI. Heartbeat requests update it
+     * without locking the session.
      */
-    private long lastHeartbeatTimestamp = System.currentTimeMillis();
+    private volatile long lastHeartbeatTimestamp = System.currentTimeMillis();
+
+    /**
+     * Timestamp keeping track of the last UIDL or push request with RPC calls
+     * for this UI.
+     */
+    private volatile long lastUidlRequestTimestamp = System
+            .currentTimeMillis();
 
     private boolean closing = false;
 
+    /**
+     * The lock of this UI, only used if UI locking is enabled.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The session lock that was used when the UI lock was acquired. Needed for
+     * unlocking if the UI is detached while locked.
+     */
+    private transient UILockingSessionLock lockedSessionLock;
+
+    /**
+     * The session that was locked through {@link #lock()} when UI locking is
+     * not enabled.
+     */
+    private transient VaadinSession lockedSession;
+
+    /*
+     * Pending tasks can't be serialized and the queue should be empty when the
+     * UI is serialized as long as it doesn't happen while some other thread
+     * has the lock.
+     */
+    private transient LinkedBlockingQueue<FutureAccess> pendingAccessQueue = new LinkedBlockingQueue<FutureAccess>();
+
     private TooltipConfiguration tooltipConfiguration = new TooltipConfigurationImpl(
             this);
     private PushConfiguration pushConfiguration = new PushConfigurationImpl(
@@ -1123,7 +1164,8 @@ public abstract class UI extends AbstractSingleComponentContainer implements
      * <p>
      * This method is not intended to be overridden. If it is overridden, care
      * should be taken since this method might be called in situations where
-     * {@link UI#getCurrent()} does not return this UI.
+     * {@link UI#getCurrent()} does not return this UI, and without holding
+     * the session lock.
      * 
      * @param lastHeartbeat
      *            The time the last heartbeat request occurred, in milliseconds
@@ -1133,6 +1175,35 @@ public abstract class UI extends AbstractSingleComponentContainer implements
         lastHeartbeatTimestamp = lastHeartbeat;
     }
 
+    /**
+     * Returns the timestamp of the last UIDL or push request that delivered
+     * RPC calls to this UI. Unlike the heartbeat timestamp, this is not
+     * updated by heartbeat requests and thus tells how long the UI has been
+     * idle.
+     * 
+     * @see UIPassivator
+     * 
+     * @since 7.2
+     * @return The time the last request occurred, in milliseconds since the
+     *         epoch.
+     */
+    public long getLastUidlRequestTimestamp() {
+        return lastUidlRequestTimestamp;
+    }
+
+    /**
+     * Sets the timestamp of the last UIDL or push request for this UI. Called
+     * by the framework whenever RPC calls are received for this UI.
+     * 
+     * @since 7.2
+     * @param lastUidlRequest
+     *            The time the last request occurred, in milliseconds since the
+     *            epoch.
+     */
+    public void setLastUidlRequestTimestamp(long lastUidlRequest) {
+        lastUidlRequestTimestamp = lastUidlRequest;
+    }
+
     /**
      * Gets the theme that was used when the UI was initialized.
      * 
@@ -1170,7 +1241,7 @@ public abstract class UI extends AbstractSingleComponentContainer implements
 
             // Can't use UI.push() directly since it checks for a valid session
             if (session != null) {
-                session.getService().runPendingAccessTasks(session);
+                session.getService().runPendingAccessTasks(this);
             }
             getPushConnection().push();
         }
@@ -1287,7 +1358,7 @@ public abstract class UI extends AbstractSingleComponentContainer implements
      */
     public void accessSynchronously(Runnable runnable)
             throws UIDetachedException {
-        Map<Class<?>, CurrentInstance> old = null;
+        CurrentInstance.Snapshot old = null;
 
         VaadinSession session = getSession();
 
@@ -1297,6 +1368,20 @@ public abstract class UI extends AbstractSingleComponentContainer implements
 
         VaadinService.verifyNoOtherSessionLocked(session);
 
+        if (session.getLockInstance() instanceof UILockingSessionLock) {
+            lock();
+            try {
+                old = CurrentInstance.saveAndSetCurrent(this);
+                runnable.run();
+            } finally {
+                unlock();
+                if (old != null) {
+                    CurrentInstance.restore(old);
+                }
+            }
+            return;
+        }
+
         session.lock();
         try {
             if (getSession() == null) {
@@ -1304,12 +1389,12 @@ public abstract class UI extends AbstractSingleComponentContainer implements
                 // acquired the lock.
                 throw new UIDetachedException();
             }
-            old = CurrentInstance.setCurrent(this);
+            old = CurrentInstance.saveAndSetCurrent(this);
             runnable.run();
         } finally {
             session.unlock();
             if (old != null) {
-                CurrentInstance.restoreInstances(old);
+                CurrentInstance.restore(old);
             }
         }
 
@@ -1368,7 +1453,7 @@ public abstract class UI extends AbstractSingleComponentContainer implements
             throw new UIDetachedException();
         }
 
-        return session.access(new ErrorHandlingRunnable() {
+        ErrorHandlingRunnable uiRunnable = new ErrorHandlingRunnable() {
             @Override
             public void run() {
                 accessSynchronously(runnable);
@@ -1398,7 +1483,230 @@ public abstract class UI extends AbstractSingleComponentContainer implements
                     getLogger().log(Level.SEVERE, e.getMessage(), e);
                 }
             }
-        });
+        };
+
+        if (session.getLockInstance() instanceof UILockingSessionLock) {
+            FutureAccess future = new FutureAccess(session, uiRunnable);
+            session.getService().getAccessTaskScheduler()
+                    .enqueue(pendingAccessQueue, future, this);
+            session.getService().ensureAccessQueuePurged(this);
+            return future;
+        } else {
+            return session.access(uiRunnable);
+        }
+    }
+
+    /**
+     * Locks this UI to protect its data from concurrent access. The preferred
+     * way of accessing a UI from outside the normal request handling is to use
+     * {@link #access(Runnable)} or {@link #accessSynchronously(Runnable)}.
+     * <p>
+     * If {@link com.vaadin.server.DeploymentConfiguration#isUILockingEnabled()
+     * UI locking} is enabled, only this UI is locked, which means that other
+     * UIs in the same session can be used concurrently by other threads.
+     * Otherwise, the entire session is locked.
+     * <p>
+     * The lock of another UI in the same session must not be held when calling
+     * this method. Holding the session lock is allowed.
+     * 
+     * @see #unlock()
+     * @see #hasLock()
+     * @see UILockingSessionLock
+     * 
+     * @since 7.2
+     * 
+     * @throws UIDetachedException
+     *             if the UI is not attached to a session
+     * @throws IllegalStateException
+     *             if the current thread holds the lock of another UI in the
+     *             same session
+     */
+    public void lock() throws UIDetachedException {
+        VaadinSession session = getSession();
+        if (session == null) {
+            throw new UIDetachedException();
+        }
+
+        Lock sessionLock = session.getLockInstance();
+        if (!(sessionLock instanceof UILockingSessionLock)) {
+            session.lock();
+            lockedSession = session;
+            return;
+        }
+
+        UILockingSessionLock uiLockingSessionLock = (UILockingSessionLock) sessionLock;
+        if (!lock.isHeldByCurrentThread()
+                && !uiLockingSessionLock.isHeldByCurrentThread()
+                && uiLockingSessionLock.isUILockHeldByCurrentThread()) {
+            throw new IllegalStateException(
+                    "Can't lock a UI while holding the lock of another UI in the same session. Use UI.access() instead.");
+        }
+
+        uiLockingSessionLock.lockUI(lock);
+        lockedSessionLock = uiLockingSessionLock;
+
+        if (getSession() == null) {
+            // UI was detached before we acquired the lock
+            unlock();
+            throw new UIDetachedException();
+        }
+    }
+
+    /**
+     * Acquires the lock of this UI only if it is not held by another thread at
+     * the time of invocation. Has the same restrictions as {@link #lock()}.
+     * 
+     * @see #lock()
+     * 
+     * @since 7.2
+     * 
+     * @return <code>true</code> if the lock was acquired; <code>false</code>
+     *         if the lock is held by some other thread or if the UI is
+     *         detached
+     */
+    public boolean tryLock() {
+        VaadinSession session = getSession();
+        if (session == null) {
+            return false;
+        }
+
+        Lock sessionLock = session.getLockInstance();
+        if (!(sessionLock instanceof UILockingSessionLock)) {
+            if (sessionLock.tryLock()) {
+                lockedSession = session;
+                return true;
+            }
+            return false;
+        }
+
+        UILockingSessionLock uiLockingSessionLock = (UILockingSessionLock) sessionLock;
+        if (!lock.isHeldByCurrentThread()
+                && !uiLockingSessionLock.isHeldByCurrentThread()
+                && uiLockingSessionLock.isUILockHeldByCurrentThread()) {
+            return false;
+        }
+
+        Lock uiLock = uiLockingSessionLock.getUILock();
+        if (!uiLock.tryLock()) {
+            return false;
+        }
+        if (!lock.tryLock()) {
+            uiLock.unlock();
+            return false;
+        }
+        lockedSessionLock = uiLockingSessionLock;
+        return true;
+    }
+
+    /**
+     * Unlocks this UI. This method should always be used in a finally block
+     * after {@link #lock()} to ensure that the lock is always released.
+     * <p>
+     * If the lock is ultimately released, pending tasks enqueued using
+     * {@link #access(Runnable)} are run and the pending changes are pushed to
+     * the client if the push mode is {@link PushMode#AUTOMATIC automatic}.
+     * 
+     * @see #lock()
+     * 
+     * @since 7.2
+     */
+    public void unlock() {
+        if (!lock.isHeldByCurrentThread()) {
+            VaadinSession session = getSession();
+            if (session == null) {
+                session = lockedSession;
+            }
+            session.unlock();
+            return;
+        }
+
+        UILockingSessionLock sessionLock = lockedSessionLock;
+        VaadinSession session = getSession();
+        /*
+         * Nothing to do here if the session lock is held since tasks and
+         * pushes are handled when the session lock is released.
+         */
+        boolean ultimateRelease = lock.getHoldCount() == 1 && session != null
+                && !sessionLock.isHeldByCurrentThread();
+        try {
+            if (ultimateRelease) {
+                session.getService().runPendingAccessTasks(this);
+
+                if (getPushConfiguration().getPushMode() == PushMode.AUTOMATIC) {
+                    CurrentInstance.Snapshot oldCurrent = CurrentInstance
+                            .saveAndSetCurrent(this);
+                    try {
+                        push();
+                    } finally {
+                        CurrentInstance.restore(oldCurrent);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+            sessionLock.getUILock().unlock();
+        }
+
+        /*
+         * Tasks might have been enqueued after the queues were purged but
+         * before the lock was released.
+         */
+        if (ultimateRelease) {
+            if (!pendingAccessQueue.isEmpty()) {
+                session.getService().ensureAccessQueuePurged(this);
+            }
+            if (!sessionLock.isUILockHeldByCurrentThread()
+                    && !session.getPendingAccessQueue().isEmpty()) {
+                session.getService().ensureAccessQueuePurged(session);
+            }
+        }
+    }
+
+    /**
+     * Checks if the current thread has exclusive access to this UI, either
+     * through the lock of this UI or through the session lock.
+     * 
+     * @since 7.2
+     * 
+     * @return <code>true</code> if the current thread has exclusive access to
+     *         this UI, otherwise <code>false</code>
+     */
+    public boolean hasLock() {
+        if (lock.isHeldByCurrentThread()) {
+            return true;
+        }
+        VaadinSession session = getSession();
+        if (session == null) {
+            return false;
+        }
+        Lock sessionLock = session.getLockInstance();
+        if (sessionLock instanceof UILockingSessionLock) {
+            return ((UILockingSessionLock) sessionLock).isHeldByCurrentThread();
+        }
+        return session.hasLock();
+    }
+
+    /**
+     * Gets the queue of tasks submitted using {@link #access(Runnable)} when
+     * UI locking is enabled. It is safe to call this method and access the
+     * returned queue without holding the lock.
+     * 
+     * @since 7.2
+     * 
+     * @return the queue of pending access tasks
+     */
+    public Queue<FutureAccess> getPendingAccessQueue() {
+        return pendingAccessQueue;
+    }
+
+    /**
+     * Override default deserialization logic to account for transient
+     * {@link #pendingAccessQueue}.
+     */
+    private void readObject(ObjectInputStream stream) throws IOException,
+            ClassNotFoundException {
+        stream.defaultReadObject();
+        pendingAccessQueue = new LinkedBlockingQueue<FutureAccess>();
     }
 
     /**
@@ -1456,7 +1764,7 @@ public abstract class UI extends AbstractSingleComponentContainer implements
         if (session == null) {
             throw new UIDetachedException("Cannot push a detached UI");
         }
-        assert session.hasLock();
+        assert hasLock();
 
         if (!getPushConfiguration().getPushMode().isEnabled()) {
             throw new IllegalStateException("Push not enabled");
@@ -1468,7 +1776,7 @@ public abstract class UI extends AbstractSingleComponentContainer implements
          * when the push would otherwise be ignored because there are no changes
          * to push.
          */
-        session.getService().runPendingAccessTasks(session);
+        session.getService().runPendingAccessTasks(this);
 
         if (!getConnectorTracker().hasDirtyConnectors()) {
             // Do not push if there is nothing to push
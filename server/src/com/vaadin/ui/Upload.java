@@ -23,11 +23,14 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Map;
 
+import com.vaadin.server.ChunkedStreamVariable;
 import com.vaadin.server.NoInputStreamException;
 import com.vaadin.server.NoOutputStreamException;
 import com.vaadin.server.PaintException;
 import com.vaadin.server.PaintTarget;
 import com.vaadin.server.StreamVariable.StreamingProgressEvent;
+import com.vaadin.server.UploadException;
+import com.vaadin.server.communication.FileUploadHandler.UploadInterruptedException;
 import com.vaadin.shared.EventId;
 import com.vaadin.shared.ui.upload.UploadClientRpc;
 import com.vaadin.shared.ui.upload.UploadServerRpc;
@@ -106,6 +109,15 @@ public class Upload extends AbstractComponent implements Component.Focusable,
 
     private boolean interrupted = false;
 
+    /*
+     * The partially received chunked upload, if any
+     */
+    private String chunkedUploadId;
+    private String chunkedFilename;
+    private String chunkedMimeType;
+    private long chunkedReceivedBytes;
+    private boolean chunkInProgress;
+
     private boolean notStarted;
 
     private int nextid;
@@ -175,6 +187,10 @@ public class Upload extends AbstractComponent implements Component.Focusable,
 
         target.addAttribute("state", isUploading);
 
+        // Send the file in chunks if the browser supports it
+        target.addAttribute("resumable",
+                getReceiver() instanceof ResumableReceiver);
+
         if (buttonCaption != null) {
             target.addAttribute("buttoncaption", buttonCaption);
         }
@@ -209,6 +225,37 @@ public class Upload extends AbstractComponent implements Component.Focusable,
 
     }
 
+    /**
+     * Receiver that also supports resumable uploads sent in chunks. An upload
+     * interrupted e.g. by a network failure is continued from the number of
+     * bytes received so far instead of starting over. When the receiver of an
+     * upload is resumable, browsers that can read the selected file send it in
+     * chunks.
+     * 
+     * @see ChunkedStreamVariable
+     * @author Vaadin Ltd
+     * @since 7.2
+     */
+    public interface ResumableReceiver extends Receiver {
+
+        /**
+         * Invoked when a chunk of a resumable upload arrives. The returned
+         * stream should append to the content previously received for the
+         * upload, discarding anything after the given offset.
+         * 
+         * @param filename
+         *            the desired filename of the upload, usually as specified
+         *            by the client.
+         * @param mimeType
+         *            the MIME type of the uploaded file.
+         * @param offset
+         *            the offset of the chunk in the uploaded file
+         * @return Stream to which the chunk should be written.
+         */
+        public OutputStream receiveUpload(String filename, String mimeType,
+                long offset);
+    }
+
     /* Upload events */
 
     private static final Method UPLOAD_FINISHED_METHOD;
@@ -976,14 +1023,41 @@ public class Upload extends AbstractComponent implements Component.Focusable,
     /**
      * Interrupts the upload currently being received. The interruption will be
      * done by the receiving tread so this method will return immediately and
-     * the actual interrupt will happen a bit later.
+     * the actual interrupt will happen a bit later. A chunked upload that is
+     * partially received but not being received at the moment is discarded
+     * immediately.
      */
     public void interruptUpload() {
         if (isUploading) {
-            interrupted = true;
+            if (chunkedUploadId != null && !chunkInProgress) {
+                // There is no receiving thread to notice the interruption
+                discardChunkedUpload(new UploadInterruptedException());
+            } else {
+                interrupted = true;
+            }
         }
     }
 
+    /**
+     * Discards the partially received chunked upload and fires a failed event
+     * for it.
+     */
+    private void discardChunkedUpload(Exception reason) {
+        String filename = chunkedFilename;
+        String mimeType = chunkedMimeType;
+        resetChunkedUpload();
+        fireUploadInterrupted(filename, mimeType, 0, reason);
+        endUpload();
+    }
+
+    private void resetChunkedUpload() {
+        chunkedUploadId = null;
+        chunkedFilename = null;
+        chunkedMimeType = null;
+        chunkedReceivedBytes = 0;
+        chunkInProgress = false;
+    }
+
     /**
      * Go into state where new uploading can begin.
      * 
@@ -1104,7 +1178,7 @@ public class Upload extends AbstractComponent implements Component.Focusable,
 
     protected com.vaadin.server.StreamVariable getStreamVariable() {
         if (streamVariable == null) {
-            streamVariable = new com.vaadin.server.StreamVariable() {
+            streamVariable = new ChunkedStreamVariable() {
                 private StreamingStartEvent lastStartedEvent;
 
                 @Override
@@ -1137,8 +1211,47 @@ public class Upload extends AbstractComponent implements Component.Focusable,
                     return receiveUpload;
                 }
 
+                @Override
+                public OutputStream getOutputStream(String uploadId,
+                        long offset) {
+                    if (!(getReceiver() instanceof ResumableReceiver)) {
+                        throw new IllegalStateException(
+                                "Chunked upload cannot be performed without a ResumableReceiver set");
+                    }
+                    if (!uploadId.equals(chunkedUploadId)) {
+                        chunkedUploadId = uploadId;
+                        chunkedFilename = lastStartedEvent.getFileName();
+                        chunkedMimeType = lastStartedEvent.getMimeType();
+                        lastStartedEvent = null;
+                    }
+                    chunkInProgress = true;
+                    return ((ResumableReceiver) getReceiver()).receiveUpload(
+                            chunkedFilename, chunkedMimeType, offset);
+                }
+
+                @Override
+                public String getUploadId() {
+                    return chunkedUploadId;
+                }
+
+                @Override
+                public long getReceivedBytes() {
+                    return chunkedReceivedBytes;
+                }
+
+                @Override
+                public void chunkReceived(long receivedBytes) {
+                    chunkedReceivedBytes = receivedBytes;
+                    chunkInProgress = false;
+                }
+
                 @Override
                 public void streamingStarted(StreamingStartEvent event) {
+                    if (chunkedUploadId != null && !chunkInProgress) {
+                        // The client has abandoned the partial upload
+                        discardChunkedUpload(new UploadException(
+                                "Upload replaced by a new upload"));
+                    }
                     startUpload();
                     contentLength = event.getContentLength();
                     fireStarted(event.getFileName(), event.getMimeType());
@@ -1147,6 +1260,7 @@ public class Upload extends AbstractComponent implements Component.Focusable,
 
                 @Override
                 public void streamingFinished(StreamingEndEvent event) {
+                    resetChunkedUpload();
                     fireUploadSuccess(event.getFileName(), event.getMimeType(),
                             event.getContentLength());
                     endUpload();
@@ -1155,6 +1269,7 @@ public class Upload extends AbstractComponent implements Component.Focusable,
 
                 @Override
                 public void streamingFailed(StreamingErrorEvent event) {
+                    resetChunkedUpload();
                     Exception exception = event.getException();
                     if (exception instanceof NoInputStreamException) {
                         fireNoInputStream(event.getFileName(),
@@ -18,6 +18,7 @@ package com.vaadin.util;
 
 import java.io.Serializable;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -52,6 +53,13 @@ import com.vaadin.ui.UI;
  * <p>
  * Non-inheritable: {@link VaadinRequest}, {@link VaadinResponse}.
  * </p>
+ * <p>
+ * The framework instances are kept in fixed slots instead of a map, and
+ * setting an instance that is already current reuses its reference. The
+ * current instances can be saved and restored using {@link Snapshot}s, which
+ * are reused when saved with {@link #saveAndSetCurrent(UI)} or
+ * {@link #saveAndSetCurrent(VaadinSession)}.
+ * </p>
  * 
  * @author Vaadin Ltd
  * @since 7.0.0
@@ -59,23 +67,172 @@ import com.vaadin.ui.UI;
 public class CurrentInstance implements Serializable {
     private static final Object NULL_OBJECT = new Object();
 
+    private static final int UI_SLOT = 0;
+    private static final int SESSION_SLOT = 1;
+    private static final int SERVICE_SLOT = 2;
+    private static final int REQUEST_SLOT = 3;
+    private static final int RESPONSE_SLOT = 4;
+    private static final int SLOT_COUNT = 5;
+
+    private static final int ALL_SLOTS = (1 << SLOT_COUNT) - 1;
+    private static final int SESSION_SLOTS = (1 << SESSION_SLOT)
+            | (1 << SERVICE_SLOT);
+    private static final int UI_SLOTS = (1 << UI_SLOT) | SESSION_SLOTS;
+
     private final WeakReference<Object> instance;
     private final boolean inheritable;
 
-    private static InheritableThreadLocal<Map<Class<?>, CurrentInstance>> instances = new InheritableThreadLocal<Map<Class<?>, CurrentInstance>>() {
+    /**
+     * The current instances of a thread. Instances of the framework types are
+     * stored in fixed slots and other types in a map that is only created
+     * when needed.
+     */
+    private static final class Instances implements Serializable {
+        private final CurrentInstance[] slots = new CurrentInstance[SLOT_COUNT];
+        private Map<Class<?>, CurrentInstance> others;
+
+        /**
+         * The instances most recently replaced in each slot, reused if the
+         * same instance is set again.
+         */
+        private final CurrentInstance[] recent = new CurrentInstance[SLOT_COUNT];
+
+        /**
+         * Snapshots released by {@link CurrentInstance#restore(Snapshot)} for
+         * reuse by the same thread.
+         */
+        private Snapshot pool;
+
+        private CurrentInstance get(int slot, Class<?> type) {
+            if (slot >= 0) {
+                return slots[slot];
+            } else if (others == null) {
+                return null;
+            } else {
+                return others.get(type);
+            }
+        }
+
+        private CurrentInstance put(int slot, Class<?> type,
+                CurrentInstance currentInstance) {
+            if (slot >= 0) {
+                CurrentInstance previous = slots[slot];
+                if (previous != null) {
+                    recent[slot] = previous;
+                }
+                slots[slot] = currentInstance;
+                return previous;
+            } else if (currentInstance == null) {
+                return others == null ? null : others.remove(type);
+            } else {
+                if (others == null) {
+                    others = new HashMap<Class<?>, CurrentInstance>();
+                }
+                return others.put(type, currentInstance);
+            }
+        }
+
+        private boolean isEmpty() {
+            for (CurrentInstance currentInstance : slots) {
+                if (currentInstance != null) {
+                    return false;
+                }
+            }
+            return others == null || others.isEmpty();
+        }
+
+        private void clear() {
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                put(slot, null, null);
+            }
+            others = null;
+        }
+
+        private Snapshot obtainSnapshot() {
+            Snapshot snapshot = pool;
+            if (snapshot == null) {
+                snapshot = new Snapshot(true);
+            } else {
+                pool = snapshot.next;
+                snapshot.next = null;
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * A saved set of current instances that can be restored using
+     * {@link CurrentInstance#restore(Snapshot)}. A snapshot taken using
+     * {@link CurrentInstance#takeSnapshot(boolean)} contains all current
+     * instances and replaces all current instances when restored. A snapshot
+     * returned by {@link CurrentInstance#saveAndSetCurrent(UI)} or
+     * {@link CurrentInstance#saveAndSetCurrent(VaadinSession)} only contains
+     * the instances replaced by the method and is reused after it has been
+     * restored, so it must be restored exactly once, by the same thread and
+     * in reverse order to other such snapshots.
+     * 
+     * @since 7.2
+     */
+    public static final class Snapshot implements Serializable {
+        private final CurrentInstance[] slots = new CurrentInstance[SLOT_COUNT];
+        private Map<Class<?>, CurrentInstance> others;
+        private int mask;
+        private final boolean pooled;
+        private Snapshot next;
+
+        private Snapshot(boolean pooled) {
+            this.pooled = pooled;
+        }
+
+        /**
+         * Gets the instances in this snapshot as a map that can be restored
+         * using {@link CurrentInstance#restoreInstances(Map)}.
+         * 
+         * @return a map containing the instances of this snapshot
+         */
+        public Map<Class<?>, CurrentInstance> toMap() {
+            Map<Class<?>, CurrentInstance> map = new HashMap<Class<?>, CurrentInstance>();
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                if ((mask & (1 << slot)) == 0) {
+                    continue;
+                }
+                CurrentInstance currentInstance = slots[slot];
+                if (currentInstance != null) {
+                    map.put(getSlotType(slot), currentInstance);
+                } else if (pooled) {
+                    map.put(getSlotType(slot), new CurrentInstance(
+                            NULL_OBJECT, isSlotInheritable(slot)));
+                }
+            }
+            if (others != null) {
+                map.putAll(others);
+            }
+            return map;
+        }
+    }
+
+    private static InheritableThreadLocal<Instances> instances = new InheritableThreadLocal<Instances>() {
         @Override
-        protected Map<Class<?>, CurrentInstance> childValue(
-                Map<Class<?>, CurrentInstance> parentValue) {
+        protected Instances childValue(Instances parentValue) {
             if (parentValue == null) {
                 return null;
             }
 
-            Map<Class<?>, CurrentInstance> value = new HashMap<Class<?>, CurrentInstance>();
+            Instances value = new Instances();
 
-            // Copy all inheritable values to child map
-            for (Entry<Class<?>, CurrentInstance> e : parentValue.entrySet()) {
-                if (e.getValue().inheritable) {
-                    value.put(e.getKey(), e.getValue());
+            // Copy all inheritable values to child
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                CurrentInstance currentInstance = parentValue.slots[slot];
+                if (currentInstance != null && currentInstance.inheritable) {
+                    value.slots[slot] = currentInstance;
+                }
+            }
+            if (parentValue.others != null) {
+                for (Entry<Class<?>, CurrentInstance> e : parentValue.others
+                        .entrySet()) {
+                    if (e.getValue().inheritable) {
+                        value.put(-1, e.getKey(), e.getValue());
+                    }
                 }
             }
 
@@ -88,6 +245,41 @@ public class CurrentInstance implements Serializable {
         this.inheritable = inheritable;
     }
 
+    private static int getSlot(Class<?> type) {
+        if (type == UI.class) {
+            return UI_SLOT;
+        } else if (type == VaadinSession.class) {
+            return SESSION_SLOT;
+        } else if (type == VaadinService.class) {
+            return SERVICE_SLOT;
+        } else if (type == VaadinRequest.class) {
+            return REQUEST_SLOT;
+        } else if (type == VaadinResponse.class) {
+            return RESPONSE_SLOT;
+        } else {
+            return -1;
+        }
+    }
+
+    private static Class<?> getSlotType(int slot) {
+        switch (slot) {
+        case UI_SLOT:
+            return UI.class;
+        case SESSION_SLOT:
+            return VaadinSession.class;
+        case SERVICE_SLOT:
+            return VaadinService.class;
+        case REQUEST_SLOT:
+            return VaadinRequest.class;
+        default:
+            return VaadinResponse.class;
+        }
+    }
+
+    private static boolean isSlotInheritable(int slot) {
+        return slot != REQUEST_SLOT && slot != RESPONSE_SLOT;
+    }
+
     /**
      * Gets the current instance of a specific type if available.
      * 
@@ -97,11 +289,11 @@ public class CurrentInstance implements Serializable {
      *         if there is no current instance.
      */
     public static <T> T get(Class<T> type) {
-        Map<Class<?>, CurrentInstance> map = instances.get();
-        if (map == null) {
+        Instances current = instances.get();
+        if (current == null) {
             return null;
         }
-        CurrentInstance currentInstance = map.get(type);
+        CurrentInstance currentInstance = current.get(getSlot(type), type);
         if (currentInstance != null) {
             Object value = currentInstance.instance.get();
             if (value == null) {
@@ -112,15 +304,15 @@ public class CurrentInstance implements Serializable {
                  * should thus never invoke CurrentInstance.get().
                  * 
                  * At this point, there might also be other values that have
-                 * been collected, so we'll scan the entire map and remove stale
+                 * been collected, so we'll scan all instances and remove stale
                  * CurrentInstance objects. Using a ReferenceQueue could make
                  * this assumingly rare case slightly more efficient, but would
                  * significantly increase the complexity of the code for
                  * maintaining a separate ReferenceQueue for each Thread.
                  */
-                removeStaleInstances(map);
+                removeStaleInstances(current);
 
-                if (map.isEmpty()) {
+                if (current.isEmpty()) {
                     instances.remove();
                 }
 
@@ -132,6 +324,22 @@ public class CurrentInstance implements Serializable {
         }
     }
 
+    private static void removeStaleInstances(Instances current) {
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            CurrentInstance currentInstance = current.slots[slot];
+            if (currentInstance != null
+                    && currentInstance.instance.get() == null) {
+                current.slots[slot] = null;
+                getLogger().log(Level.FINE,
+                        "CurrentInstance for {0} has been garbage collected.",
+                        getSlotType(slot));
+            }
+        }
+        if (current.others != null) {
+            removeStaleInstances(current.others);
+        }
+    }
+
     private static void removeStaleInstances(Map<Class<?>, CurrentInstance> map) {
         for (Iterator<Entry<Class<?>, CurrentInstance>> iterator = map
                 .entrySet().iterator(); iterator.hasNext();) {
@@ -182,26 +390,25 @@ public class CurrentInstance implements Serializable {
     }
 
     private static <T> void set(Class<T> type, T instance, boolean inheritable) {
-        Map<Class<?>, CurrentInstance> map = instances.get();
+        Instances current = instances.get();
+        int slot = getSlot(type);
         if (instance == null) {
             // remove the instance
-            if (map == null) {
+            if (current == null) {
                 return;
             }
-            map.remove(type);
-            if (map.isEmpty()) {
+            current.put(slot, type, null);
+            if (current.isEmpty()) {
                 instances.remove();
-                map = null;
             }
         } else {
             assert type.isInstance(instance) : "Invald instance type";
-            if (map == null) {
-                map = new HashMap<Class<?>, CurrentInstance>();
-                instances.set(map);
+            if (current == null) {
+                current = new Instances();
+                instances.set(current);
             }
 
-            CurrentInstance previousInstance = map.put(type,
-                    new CurrentInstance(instance, inheritable));
+            CurrentInstance previousInstance = current.get(slot, type);
             if (previousInstance != null) {
                 assert previousInstance.inheritable == inheritable : "Inheritable status mismatch for "
                         + type
@@ -209,12 +416,28 @@ public class CurrentInstance implements Serializable {
                         + previousInstance.inheritable
                         + ", new is "
                         + inheritable + ")";
+                if (previousInstance.instance.get() == instance
+                        && previousInstance.inheritable == inheritable) {
+                    // Already current, avoid creating a new reference
+                    return;
+                }
+            }
+            if (slot >= 0) {
+                CurrentInstance recentInstance = current.recent[slot];
+                if (recentInstance != null
+                        && recentInstance.instance.get() == instance
+                        && recentInstance.inheritable == inheritable) {
+                    current.put(slot, type, recentInstance);
+                    return;
+                }
             }
+            current.put(slot, type, new CurrentInstance(instance, inheritable));
         }
     }
 
     /**
-     * Clears all current instances.
+     * Clears all current instances. Also releases the snapshots and instances
+     * kept for reuse by the current thread.
      */
     public static void clearAll() {
         instances.remove();
@@ -277,28 +500,184 @@ public class CurrentInstance implements Serializable {
      */
     public static Map<Class<?>, CurrentInstance> getInstances(
             boolean onlyInheritable) {
-        Map<Class<?>, CurrentInstance> map = instances.get();
-        if (map == null) {
+        if (instances.get() == null) {
             return Collections.emptyMap();
         } else {
-            Map<Class<?>, CurrentInstance> copy = new HashMap<Class<?>, CurrentInstance>();
-            boolean removeStale = false;
-            for (Class<?> c : map.keySet()) {
-                CurrentInstance ci = map.get(c);
+            return takeSnapshot(onlyInheritable).toMap();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the current instances. Restoring the snapshot using
+     * {@link #restore(Snapshot)} replaces all current instances with the
+     * instances in the snapshot. The snapshot can be restored any number of
+     * times and by any thread.
+     * 
+     * @since 7.2
+     * @param onlyInheritable
+     *            <code>true</code> if only the inheritable instances should be
+     *            included; <code>false</code> to get all instances.
+     * @return a snapshot of the current instances
+     */
+    public static Snapshot takeSnapshot(boolean onlyInheritable) {
+        Snapshot snapshot = new Snapshot(false);
+        snapshot.mask = ALL_SLOTS;
+
+        Instances current = instances.get();
+        if (current == null) {
+            return snapshot;
+        }
+        boolean removeStale = false;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            CurrentInstance ci = current.slots[slot];
+            if (ci == null) {
+                continue;
+            } else if (ci.instance.get() == null) {
+                removeStale = true;
+            } else if (ci.inheritable || !onlyInheritable) {
+                snapshot.slots[slot] = ci;
+            }
+        }
+        if (current.others != null) {
+            for (Entry<Class<?>, CurrentInstance> e : current.others
+                    .entrySet()) {
+                CurrentInstance ci = e.getValue();
                 if (ci.instance.get() == null) {
                     removeStale = true;
                 } else if (ci.inheritable || !onlyInheritable) {
-                    copy.put(c, ci);
+                    if (snapshot.others == null) {
+                        snapshot.others = new HashMap<Class<?>, CurrentInstance>();
+                    }
+                    snapshot.others.put(e.getKey(), ci);
                 }
             }
-            if (removeStale) {
-                removeStaleInstances(map);
-                if (map.isEmpty()) {
-                    instances.remove();
+        }
+        if (removeStale) {
+            removeStaleInstances(current);
+            if (current.isEmpty()) {
+                instances.remove();
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Restores the instances saved in the given snapshot. A snapshot returned
+     * by {@link #saveAndSetCurrent(UI)} or
+     * {@link #saveAndSetCurrent(VaadinSession)} can no longer be used after
+     * it has been restored.
+     * 
+     * @since 7.2
+     * @param snapshot
+     *            the snapshot to restore, not <code>null</code>
+     */
+    public static void restore(Snapshot snapshot) {
+        Instances current = instances.get();
+        if (current == null) {
+            current = new Instances();
+            instances.set(current);
+        }
+        if (!snapshot.pooled) {
+            // Replaces all current instances
+            current.clear();
+        }
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if ((snapshot.mask & (1 << slot)) != 0) {
+                CurrentInstance ci = snapshot.slots[slot];
+                if (ci != null && ci.instance.get() == null) {
+                    ci = null;
                 }
+                current.put(slot, null, ci);
             }
-            return copy;
         }
+        if (snapshot.others != null) {
+            for (Entry<Class<?>, CurrentInstance> e : snapshot.others
+                    .entrySet()) {
+                if (e.getValue().instance.get() != null) {
+                    current.put(-1, e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        if (snapshot.pooled) {
+            // Release the references and reuse the snapshot
+            Arrays.fill(snapshot.slots, null);
+            snapshot.next = current.pool;
+            current.pool = snapshot;
+        }
+
+        /*
+         * The holder is kept even if all instances were cleared, so that the
+         * snapshot pool and the recently used instances are still there for
+         * the next saveAndSetCurrent. clearAll() removes it.
+         */
+    }
+
+    /**
+     * Sets current instances for the UI and all related classes. The
+     * previously defined values can be restored by passing the returned
+     * snapshot to {@link #restore(Snapshot)}. Unlike
+     * {@link #setCurrent(UI)}, this method does not allocate any objects when
+     * used repeatedly by the same thread.
+     * 
+     * @since 7.2
+     * 
+     * @param ui
+     *            The UI
+     * @return A snapshot containing the old values of the instances that this
+     *         method updated.
+     */
+    public static Snapshot saveAndSetCurrent(UI ui) {
+        Snapshot old = saveSlots(UI_SLOTS);
+        UI.setCurrent(ui);
+        setCurrentSession(ui.getSession());
+        return old;
+    }
+
+    /**
+     * Sets current instances for the {@link VaadinSession} and all related
+     * classes. The previously defined values can be restored by passing the
+     * returned snapshot to {@link #restore(Snapshot)}. Unlike
+     * {@link #setCurrent(VaadinSession)}, this method does not allocate any
+     * objects when used repeatedly by the same thread.
+     * 
+     * @since 7.2
+     * 
+     * @param session
+     *            The VaadinSession
+     * @return A snapshot containing the old values of the instances that this
+     *         method updated.
+     */
+    public static Snapshot saveAndSetCurrent(VaadinSession session) {
+        Snapshot old = saveSlots(SESSION_SLOTS);
+        setCurrentSession(session);
+        return old;
+    }
+
+    private static Snapshot saveSlots(int mask) {
+        Instances current = instances.get();
+        if (current == null) {
+            current = new Instances();
+            instances.set(current);
+        }
+        Snapshot snapshot = current.obtainSnapshot();
+        snapshot.mask = mask;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if ((mask & (1 << slot)) != 0) {
+                snapshot.slots[slot] = current.slots[slot];
+            }
+        }
+        return snapshot;
+    }
+
+    private static void setCurrentSession(VaadinSession session) {
+        VaadinService service = null;
+        if (session != null) {
+            service = session.getService();
+        }
+
+        VaadinSession.setCurrent(session);
+        VaadinService.setCurrent(service);
     }
 
     /**
@@ -341,13 +720,7 @@ public class CurrentInstance implements Serializable {
                 getSameOrNullObject(VaadinSession.getCurrent()), true));
         old.put(VaadinService.class, new CurrentInstance(
                 getSameOrNullObject(VaadinService.getCurrent()), true));
-        VaadinService service = null;
-        if (session != null) {
-            service = session.getService();
-        }
-
-        VaadinSession.setCurrent(session);
-        VaadinService.setCurrent(service);
+        setCurrentSession(session);
 
         return old;
     }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AccessTaskSchedulerTest {
+
+    private VaadinServletService service;
+    private VaadinSession session;
+    private ExecutorService producer = Executors.newSingleThreadExecutor();
+
+    private void setup(String... initParameters) throws Exception {
+        Properties properties = new Properties();
+        for (int i = 0; i < initParameters.length; i += 2) {
+            properties.setProperty(initParameters[i], initParameters[i + 1]);
+        }
+        VaadinServlet servlet = new VaadinServlet();
+        servlet.init(new MockServletConfig(properties));
+        service = servlet.getService();
+        session = new MockVaadinSession(service);
+    }
+
+    @After
+    public void tearDown() {
+        producer.shutdownNow();
+        if (service != null) {
+            service.destroy();
+        }
+    }
+
+    private Future<Void> access(final AtomicInteger counter) {
+        return session.access(new Runnable() {
+            @Override
+            public void run() {
+                counter.incrementAndGet();
+            }
+        });
+    }
+
+    @Test
+    public void defaultScheduler_runsTasksInUnlockingThread() throws Exception {
+        setup();
+        AccessTaskScheduler scheduler = service.getAccessTaskScheduler();
+        Assert.assertEquals(0, scheduler.getQueueLimit());
+        Assert.assertFalse(scheduler.isBackgroundDraining());
+
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        session.lock();
+        try {
+            session.access(new Runnable() {
+                @Override
+                public void run() {
+                    thread.set(Thread.currentThread());
+                }
+            });
+        } finally {
+            session.unlock();
+        }
+        Assert.assertSame(Thread.currentThread(), thread.get());
+        Assert.assertEquals(1, scheduler.getBatchSize().getCount());
+    }
+
+    @Test
+    public void rejectPolicy_queueFull_taskRejected() throws Exception {
+        setup(Constants.SERVLET_PARAMETER_ACCESS_QUEUE_LIMIT, "2",
+                Constants.SERVLET_PARAMETER_ACCESS_QUEUE_OVERFLOW, "reject");
+        AtomicInteger counter = new AtomicInteger();
+
+        session.lock();
+        try {
+            access(counter);
+            access(counter);
+            try {
+                access(counter);
+                Assert.fail("Task should have been rejected");
+            } catch (RejectedExecutionException expected) {
+            }
+        } finally {
+            session.unlock();
+        }
+
+        Assert.assertEquals(2, counter.get());
+        Assert.assertEquals(1, service.getAccessTaskScheduler()
+                .getRejectedTaskCount());
+    }
+
+    @Test
+    public void blockPolicy_queueFull_producerWaitsForRoom() throws Exception {
+        setup(Constants.SERVLET_PARAMETER_ACCESS_QUEUE_LIMIT, "1");
+        final AtomicInteger counter = new AtomicInteger();
+
+        session.lock();
+        Future<?> blockedProducer;
+        try {
+            // The lock holder is never blocked
+            access(counter);
+            access(counter);
+
+            blockedProducer = producer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    access(counter);
+                }
+            });
+            try {
+                blockedProducer.get(200, TimeUnit.MILLISECONDS);
+                Assert.fail("Producer should wait until the queue is purged");
+            } catch (TimeoutException expected) {
+            }
+        } finally {
+            session.unlock();
+        }
+
+        blockedProducer.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(3, counter.get());
+    }
+
+    @Test
+    public void drainThreads_tasksNotRunInRequestThread() throws Exception {
+        setup(Constants.SERVLET_PARAMETER_ACCESS_DRAIN_THREADS, "1");
+        Assert.assertTrue(service.getAccessTaskScheduler()
+                .isBackgroundDraining());
+
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        final CountDownLatch ran = new CountDownLatch(1);
+        session.lock();
+        try {
+            session.access(new Runnable() {
+                @Override
+                public void run() {
+                    thread.set(Thread.currentThread());
+                    ran.countDown();
+                }
+            });
+        } finally {
+            session.unlock();
+        }
+
+        Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+        Assert.assertNotSame(Thread.currentThread(), thread.get());
+    }
+
+    @Test
+    public void drainThreads_tasksAddedDuringBatch_runInNextBatch()
+            throws Exception {
+        setup(Constants.SERVLET_PARAMETER_ACCESS_DRAIN_THREADS, "1");
+        final AtomicInteger counter = new AtomicInteger();
+        final CountDownLatch ran = new CountDownLatch(4);
+
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (counter.incrementAndGet() == 1) {
+                    session.access(this);
+                }
+                ran.countDown();
+            }
+        };
+        session.lock();
+        try {
+            session.access(task);
+            session.access(task);
+            session.access(task);
+        } finally {
+            session.unlock();
+        }
+
+        Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+        // The batch is recorded after its last task has been run
+        AccessTaskScheduler scheduler = service.getAccessTaskScheduler();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getBatchSize().getCount() < 2
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Histogram.Snapshot batches = scheduler.getBatchSize();
+        Assert.assertEquals(2, batches.getCount());
+        Assert.assertEquals(3, batches.getMax());
+    }
+
+    @Test
+    public void drainThreads_steadyProducer_stackDoesNotGrow()
+            throws Exception {
+        setup(Constants.SERVLET_PARAMETER_ACCESS_DRAIN_THREADS, "1");
+        final int batches = 200;
+        final AtomicInteger counter = new AtomicInteger();
+        final AtomicInteger firstDepth = new AtomicInteger();
+        final AtomicInteger lastDepth = new AtomicInteger();
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        // Each task adds the next one, so each batch has one task
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                int depth = Thread.currentThread().getStackTrace().length;
+                if (counter.incrementAndGet() == 1) {
+                    firstDepth.set(depth);
+                }
+                if (counter.get() < batches) {
+                    session.access(this);
+                } else {
+                    lastDepth.set(depth);
+                    ran.countDown();
+                }
+            }
+        };
+        session.access(task);
+
+        Assert.assertTrue(ran.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(firstDepth.get(), lastDepth.get());
+    }
+}
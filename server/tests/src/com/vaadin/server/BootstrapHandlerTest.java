@@ -0,0 +1,203 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.jsoup.nodes.Element;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.tests.util.MockDeploymentConfiguration;
+import com.vaadin.ui.UI;
+
+public class BootstrapHandlerTest {
+
+    public static class TestUI extends UI {
+        @Override
+        protected void init(VaadinRequest request) {
+        }
+    }
+
+    private VaadinService service;
+    private VaadinSession session;
+    private BootstrapHandler handler;
+    private String theme = "reindeer";
+
+    @Before
+    public void setUp() {
+        service = EasyMock.createNiceMock(VaadinService.class);
+        EasyMock.expect(service.getDeploymentConfiguration())
+                .andReturn(new MockDeploymentConfiguration()).anyTimes();
+        EasyMock.expect(service.getRequestMetrics())
+                .andReturn(new RequestMetrics(0)).anyTimes();
+        EasyMock.expect(service.isStandalone(EasyMock.<VaadinRequest> anyObject()))
+                .andReturn(true).anyTimes();
+        EasyMock.expect(
+                service.getStaticFileLocation(EasyMock
+                        .<VaadinRequest> anyObject())).andReturn(".")
+                .anyTimes();
+        EasyMock.expect(
+                service.getMainDivId(EasyMock.<VaadinSession> anyObject(),
+                        EasyMock.<VaadinRequest> anyObject(),
+                        EasyMock.<Class<? extends UI>> anyObject()))
+                .andReturn("test-1").anyTimes();
+        EasyMock.expect(
+                service.getConfiguredWidgetset(EasyMock
+                        .<VaadinRequest> anyObject()))
+                .andReturn("com.example.Widgetset").anyTimes();
+        EasyMock.replay(service);
+
+        session = new MockVaadinSession(service);
+        session.lock();
+        try {
+            session.setConfiguration(service.getDeploymentConfiguration());
+            session.addUIProvider(new UIProvider() {
+                @Override
+                public Class<? extends UI> getUIClass(
+                        UIClassSelectionEvent event) {
+                    return TestUI.class;
+                }
+
+                @Override
+                public String getTheme(UICreateEvent event) {
+                    return theme;
+                }
+
+                @Override
+                public String getPageTitle(UICreateEvent event) {
+                    return "Test <&> page";
+                }
+            });
+        } finally {
+            session.unlock();
+        }
+
+        handler = new BootstrapHandler() {
+            @Override
+            protected String getServiceUrl(BootstrapContext context) {
+                return null;
+            }
+        };
+    }
+
+    private String getBootstrapPage(String restartParameter)
+            throws IOException {
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.expect(request.getService()).andReturn(service).anyTimes();
+        EasyMock.expect(
+                request.getParameter(VaadinService.URL_PARAMETER_RESTART_APPLICATION))
+                .andReturn(restartParameter).anyTimes();
+        EasyMock.replay(request);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VaadinResponse response = EasyMock
+                .createNiceMock(VaadinResponse.class);
+        EasyMock.expect(response.getOutputStream()).andReturn(out).anyTimes();
+        EasyMock.replay(response);
+
+        Assert.assertTrue(handler.handleRequest(session, request, response));
+        return out.toString("UTF-8");
+    }
+
+    private void addBootstrapListener(BootstrapListener listener) {
+        session.lock();
+        try {
+            session.addBootstrapListener(listener);
+        } finally {
+            session.unlock();
+        }
+    }
+
+    private void removeBootstrapListener(BootstrapListener listener) {
+        session.lock();
+        try {
+            session.removeBootstrapListener(listener);
+        } finally {
+            session.unlock();
+        }
+    }
+
+    @Test
+    public void cachedPageMatchesGeneratedPage() throws IOException {
+        String generated = getBootstrapPage(null);
+        String cached = getBootstrapPage(null);
+
+        addBootstrapListener(new BootstrapListener() {
+            @Override
+            public void modifyBootstrapPage(BootstrapPageResponse response) {
+            }
+
+            @Override
+            public void modifyBootstrapFragment(
+                    BootstrapFragmentResponse response) {
+            }
+        });
+        String uncached = getBootstrapPage(null);
+
+        Assert.assertEquals(uncached, generated);
+        Assert.assertEquals(uncached, cached);
+        Assert.assertTrue(cached.contains("<title>Test &lt;&amp;&gt; page</title>"));
+        Assert.assertTrue(cached.contains("vaadin.initApplication(\"test-1\""));
+    }
+
+    @Test
+    public void mainScriptGeneratedForEachRequest() throws IOException {
+        String ignoreRestart = BootstrapHandler.IGNORE_RESTART_PARAM + "=1";
+
+        Assert.assertFalse(getBootstrapPage(null).contains(ignoreRestart));
+        Assert.assertTrue(getBootstrapPage("").contains(ignoreRestart));
+        Assert.assertFalse(getBootstrapPage(null).contains(ignoreRestart));
+    }
+
+    @Test
+    public void templatePerTheme() throws IOException {
+        Assert.assertTrue(getBootstrapPage(null).contains(
+                "VAADIN/themes/reindeer/favicon.ico"));
+        theme = "runo";
+        Assert.assertTrue(getBootstrapPage(null).contains(
+                "VAADIN/themes/runo/favicon.ico"));
+        theme = "reindeer";
+        Assert.assertFalse(getBootstrapPage(null).contains("runo"));
+    }
+
+    @Test
+    public void listenerModificationsNotCached() throws IOException {
+        BootstrapListener listener = new BootstrapListener() {
+            @Override
+            public void modifyBootstrapPage(BootstrapPageResponse response) {
+                Element head = response.getDocument().head();
+                head.appendElement("meta").attr("name", "modified");
+            }
+
+            @Override
+            public void modifyBootstrapFragment(
+                    BootstrapFragmentResponse response) {
+            }
+        };
+
+        getBootstrapPage(null);
+        addBootstrapListener(listener);
+        Assert.assertTrue(getBootstrapPage(null).contains("modified"));
+        Assert.assertTrue(getBootstrapPage(null).contains("modified"));
+        removeBootstrapListener(listener);
+        Assert.assertFalse(getBootstrapPage(null).contains("modified"));
+    }
+}
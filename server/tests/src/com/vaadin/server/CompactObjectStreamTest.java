@@ -0,0 +1,211 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.data.util.IndexedContainer;
+import com.vaadin.ui.ConnectorTracker;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Table;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.VerticalLayout;
+
+public class CompactObjectStreamTest {
+
+    public static class TestUI extends UI {
+        private final Page page = new Page(this, getState(false).pageState) {
+            @Override
+            public void init(VaadinRequest request) {
+            }
+        };
+
+        private final Label label = new Label("Hello");
+        private final Table table = new Table();
+
+        @Override
+        protected void init(VaadinRequest request) {
+            IndexedContainer container = new IndexedContainer();
+            container.addContainerProperty("name", String.class, null);
+            for (int i = 0; i < 100; i++) {
+                container.getContainerProperty(container.addItem(), "name")
+                        .setValue("Item " + i % 10);
+            }
+            table.setContainerDataSource(container);
+            setContent(new VerticalLayout(label, table));
+        }
+
+        @Override
+        public Page getPage() {
+            return page;
+        }
+    }
+
+    private VaadinServletService service;
+    private MockVaadinSession session;
+    private TestUI ui;
+
+    @Before
+    public void setup() throws Exception {
+        Properties initParameters = new Properties();
+        initParameters.setProperty(
+                Constants.SERVLET_PARAMETER_COMPACT_SESSION_SERIALIZATION,
+                "true");
+        VaadinServlet servlet = new VaadinServlet();
+        servlet.init(new MockServletConfig(initParameters));
+        service = servlet.getService();
+
+        session = new MockVaadinSession(service);
+        ui = new TestUI();
+        VaadinServletRequest request = new VaadinServletRequest(
+                EasyMock.createMock(HttpServletRequest.class), service) {
+            @Override
+            public String getParameter(String name) {
+                return null;
+            }
+        };
+        session.lock();
+        try {
+            session.setConfiguration(service.getDeploymentConfiguration());
+            ui.doInit(request, session.getNextUIid(), null);
+            ui.setSession(session);
+            session.addUI(ui);
+        } finally {
+            session.unlock();
+        }
+    }
+
+    private static byte[] write(ObjectOutputStream out,
+            ByteArrayOutputStream bytes, Object object) throws IOException {
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] writeCompact(Object object, boolean skipCaches)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        return write(new CompactObjectOutputStream(bytes, skipCaches), bytes,
+                object);
+    }
+
+    private static byte[] writeDefault(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        return write(new ObjectOutputStream(bytes), bytes, object);
+    }
+
+    private static Object readCompact(byte[] data) throws Exception {
+        return new CompactObjectInputStream(new ByteArrayInputStream(data))
+                .readObject();
+    }
+
+    @Test
+    public void uiRoundTrip() throws Exception {
+        byte[] compact = writeCompact(ui, false);
+        byte[] standard = writeDefault(ui);
+        Assert.assertTrue(compact.length + " >= " + standard.length,
+                compact.length < standard.length);
+
+        TestUI copy = (TestUI) readCompact(compact);
+        Assert.assertNotSame(ui, copy);
+        Assert.assertEquals(ui.getUIId(), copy.getUIId());
+        copy.getSession().getLockInstance().lock();
+        try {
+            Assert.assertEquals("Hello", copy.label.getValue());
+            Assert.assertEquals(100, copy.table.size());
+            Object itemId = copy.table.firstItemId();
+            Assert.assertEquals("Item 0", copy.table.getItem(itemId)
+                    .getItemProperty("name").getValue());
+            Assert.assertTrue(copy.table.containsId(copy.table.lastItemId()));
+        } finally {
+            copy.getSession().getLockInstance().unlock();
+        }
+    }
+
+    @Test
+    public void equalStringsWrittenOnce() throws Exception {
+        String[] strings = { new String("Item"), new String("Item") };
+        Assert.assertNotSame(strings[0], strings[1]);
+
+        String[] copy = (String[]) readCompact(writeCompact(strings, false));
+        Assert.assertSame(copy[0], copy[1]);
+    }
+
+    @Test
+    public void diffStatesOfCleanConnectorsRebuilt() throws Exception {
+        ConnectorTracker tracker = ui.getConnectorTracker();
+        JSONObject labelState;
+        session.lock();
+        try {
+            // Simulate writing a response for the label only
+            ui.label.encodeState();
+            tracker.markClean(ui.label);
+            labelState = tracker.getDiffState(ui.label);
+            ui.table.encodeState();
+        } finally {
+            session.unlock();
+        }
+        Assert.assertTrue(tracker.isDirty(ui.table));
+
+        byte[] skipped = writeCompact(ui, true);
+        Assert.assertTrue(skipped.length < writeCompact(ui, false).length);
+
+        TestUI copy = (TestUI) readCompact(skipped);
+        ConnectorTracker copyTracker = copy.getConnectorTracker();
+        copy.getSession().getLockInstance().lock();
+        try {
+            JSONObject rebuilt = copyTracker.getDiffState(copy.label);
+            Assert.assertNotNull(rebuilt);
+            Assert.assertEquals(labelState.length(), rebuilt.length());
+            Assert.assertEquals(labelState.getString("text"),
+                    rebuilt.getString("text"));
+            Assert.assertNotNull(copyTracker.getDiffState(copy.table));
+        } finally {
+            copy.getSession().getLockInstance().unlock();
+        }
+    }
+
+    @Test
+    public void sessionWrittenInCompactForm() throws Exception {
+        byte[] data = writeDefault(session);
+        VaadinSession copy = (VaadinSession) new ObjectInputStream(
+                new ByteArrayInputStream(data)).readObject();
+
+        Assert.assertEquals(MockVaadinSession.class, copy.getClass());
+        copy.getLockInstance().lock();
+        try {
+            Assert.assertEquals(1, copy.getUIs().size());
+            UI copyUI = copy.getUIs().iterator().next();
+            Assert.assertSame(copy, copyUI.getSession());
+        } finally {
+            copy.getLockInstance().unlock();
+        }
+    }
+}
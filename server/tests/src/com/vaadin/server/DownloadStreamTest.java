@@ -0,0 +1,362 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+public class DownloadStreamTest {
+
+    private static final byte[] CONTENT = new byte[100];
+    static {
+        for (int i = 0; i < CONTENT.length; i++) {
+            CONTENT[i] = (byte) i;
+        }
+    }
+
+    private static class RecordingResponse implements VaadinResponse {
+        private int status = HttpServletResponse.SC_OK;
+        private String contentType;
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private final ByteArrayOutputStream body;
+
+        public RecordingResponse(ByteArrayOutputStream body) {
+            this.body = body;
+        }
+
+        @Override
+        public void setStatus(int statusCode) {
+            status = statusCode;
+        }
+
+        @Override
+        public void setContentType(String contentType) {
+            this.contentType = contentType;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public void setDateHeader(String name, long timestamp) {
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return body;
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            return new PrintWriter(body);
+        }
+
+        @Override
+        public void setCacheTime(long milliseconds) {
+        }
+
+        @Override
+        public void sendError(int errorCode, String message) {
+            status = errorCode;
+        }
+
+        @Override
+        public VaadinService getService() {
+            return null;
+        }
+
+        @Override
+        public void addCookie(Cookie cookie) {
+        }
+    }
+
+    /**
+     * Seekable source that records the positions it is opened at.
+     */
+    private static class TestSource implements StreamResource.StreamSource,
+            SeekableStreamSource {
+        private final List<Long> offsets = new ArrayList<Long>();
+
+        @Override
+        public InputStream getStream() {
+            return new ByteArrayInputStream(CONTENT);
+        }
+
+        @Override
+        public long getContentLength() {
+            return CONTENT.length;
+        }
+
+        @Override
+        public InputStream openStream(long offset) {
+            offsets.add(offset);
+            return new ByteArrayInputStream(CONTENT, (int) offset,
+                    CONTENT.length - (int) offset);
+        }
+    }
+
+    private static DownloadStream createStream() {
+        DownloadStream stream = new DownloadStream(new ByteArrayInputStream(
+                CONTENT), "video/webm", "video.webm");
+        stream.setParameter("Content-Length", String.valueOf(CONTENT.length));
+        stream.setParameter("ETag", "\"v1\"");
+        return stream;
+    }
+
+    private static RecordingResponse write(DownloadStream stream,
+            String range, String ifRange) throws IOException {
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.expect(request.getMethod()).andReturn("GET").anyTimes();
+        EasyMock.expect(request.getHeader("Range")).andReturn(range)
+                .anyTimes();
+        EasyMock.expect(request.getHeader("If-Range")).andReturn(ifRange)
+                .anyTimes();
+        EasyMock.replay(request);
+
+        RecordingResponse response = new RecordingResponse(
+                new ByteArrayOutputStream());
+        stream.writeResponse(request, response);
+        return response;
+    }
+
+    private static byte[] range(int first, int last) {
+        byte[] bytes = new byte[last - first + 1];
+        System.arraycopy(CONTENT, first, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    private static void assertBody(byte[] expected,
+            RecordingResponse response) {
+        Assert.assertEquals(new String(expected), new String(
+                response.body.toByteArray()));
+    }
+
+    @Test
+    public void noRange() throws IOException {
+        RecordingResponse response = write(createStream(), null, null);
+
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+        Assert.assertEquals("bytes", response.headers.get("Accept-Ranges"));
+        assertBody(CONTENT, response);
+    }
+
+    @Test
+    public void singleRange() throws IOException {
+        RecordingResponse response = write(createStream(), "bytes=10-19",
+                null);
+
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT,
+                response.status);
+        Assert.assertEquals("bytes 10-19/100",
+                response.headers.get("Content-Range"));
+        Assert.assertEquals("10", response.headers.get("Content-Length"));
+        Assert.assertEquals("video/webm", response.contentType);
+        assertBody(range(10, 19), response);
+    }
+
+    @Test
+    public void openAndSuffixRanges() throws IOException {
+        RecordingResponse response = write(createStream(), "bytes=95-", null);
+        Assert.assertEquals("bytes 95-99/100",
+                response.headers.get("Content-Range"));
+        assertBody(range(95, 99), response);
+
+        response = write(createStream(), "bytes=-3", null);
+        Assert.assertEquals("bytes 97-99/100",
+                response.headers.get("Content-Range"));
+        assertBody(range(97, 99), response);
+
+        response = write(createStream(), "bytes=90-1000", null);
+        Assert.assertEquals("bytes 90-99/100",
+                response.headers.get("Content-Range"));
+    }
+
+    @Test
+    public void overlappingRangesAreMerged() throws IOException {
+        RecordingResponse response = write(createStream(),
+                "bytes=20-30, 0-10, 5-19", null);
+
+        Assert.assertEquals("bytes 0-30/100",
+                response.headers.get("Content-Range"));
+        assertBody(range(0, 30), response);
+    }
+
+    @Test
+    public void multipleRanges() throws IOException {
+        RecordingResponse response = write(createStream(), "bytes=50-52,0-1",
+                null);
+
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT,
+                response.status);
+        Assert.assertTrue(response.contentType
+                .startsWith("multipart/byteranges; boundary="));
+        String boundary = response.contentType.substring(response.contentType
+                .indexOf('=') + 1);
+
+        String body = new String(response.body.toByteArray(), "ISO-8859-1");
+        String expected = "\r\n--" + boundary + "\r\n"
+                + "Content-Type: video/webm\r\n"
+                + "Content-Range: bytes 0-1/100\r\n\r\n"
+                + new String(range(0, 1), "ISO-8859-1") + "\r\n--"
+                + boundary + "\r\n" + "Content-Type: video/webm\r\n"
+                + "Content-Range: bytes 50-52/100\r\n\r\n"
+                + new String(range(50, 52), "ISO-8859-1") + "\r\n--"
+                + boundary + "--\r\n";
+        Assert.assertEquals(expected, body);
+        Assert.assertEquals(String.valueOf(body.length()),
+                response.headers.get("Content-Length"));
+    }
+
+    @Test
+    public void unsatisfiableRange() throws IOException {
+        RecordingResponse response = write(createStream(), "bytes=100-",
+                null);
+
+        Assert.assertEquals(416, response.status);
+        Assert.assertEquals("bytes */100",
+                response.headers.get("Content-Range"));
+        Assert.assertEquals(0, response.body.size());
+    }
+
+    @Test
+    public void invalidRangeIsIgnored() throws IOException {
+        RecordingResponse response = write(createStream(), "bytes=20-10",
+                null);
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+        assertBody(CONTENT, response);
+
+        response = write(createStream(), "bytes=x", null);
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+    }
+
+    @Test
+    public void ifRange() throws IOException {
+        RecordingResponse response = write(createStream(), "bytes=10-19",
+                "\"v1\"");
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT,
+                response.status);
+
+        response = write(createStream(), "bytes=10-19", "\"v0\"");
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+        assertBody(CONTENT, response);
+
+        response = write(createStream(), "bytes=10-19", "W/\"v1\"");
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+    }
+
+    @Test
+    public void unknownLength() throws IOException {
+        DownloadStream stream = new DownloadStream(new ByteArrayInputStream(
+                CONTENT), "video/webm", "video.webm");
+        RecordingResponse response = write(stream, "bytes=10-19", null);
+
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+        Assert.assertNull(response.headers.get("Accept-Ranges"));
+        assertBody(CONTENT, response);
+    }
+
+    @Test
+    public void seekableStreamSource() throws IOException {
+        TestSource source = new TestSource();
+        StreamResource resource = new StreamResource(source, "video.webm");
+
+        RecordingResponse response = write(resource.getStream(),
+                "bytes=60-61,80-81", null);
+
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT,
+                response.status);
+        Assert.assertEquals(1, source.offsets.size());
+        Assert.assertEquals(Long.valueOf(60), source.offsets.get(0));
+    }
+
+    private static File createFile() throws IOException {
+        File file = File.createTempFile("video", ".webm");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(CONTENT);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void fileResource() throws IOException {
+        File file = createFile();
+        try {
+            FileResource resource = new FileResource(file);
+            DownloadStream stream = resource.getStream();
+            Assert.assertSame(resource, stream.getSeekableSource());
+
+            RecordingResponse response = write(stream, "bytes=40-49",
+                    stream.getParameter("Last-Modified"));
+
+            Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT,
+                    response.status);
+            Assert.assertEquals("bytes 40-49/100",
+                    response.headers.get("Content-Range"));
+            Assert.assertEquals("10", response.headers.get("Content-Length"));
+            assertBody(range(40, 49), response);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void fileResourceRanges() throws IOException {
+        File file = createFile();
+        try {
+            FileResource resource = new FileResource(file);
+
+            RecordingResponse response = write(resource.getStream(), null,
+                    null);
+            assertBody(CONTENT, response);
+
+            response = write(resource.getStream(), "bytes=30-39", null);
+            assertBody(range(30, 39), response);
+
+            response = write(resource.getStream(), "bytes=0-1,50-52", null);
+            String body = new String(response.body.toByteArray(),
+                    "ISO-8859-1");
+            Assert.assertTrue(body.contains("bytes 0-1/100\r\n\r\n"
+                    + new String(range(0, 1), "ISO-8859-1") + "\r\n--"));
+            Assert.assertTrue(body.contains("bytes 50-52/100\r\n\r\n"
+                    + new String(range(50, 52), "ISO-8859-1") + "\r\n--"));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileTransferTest {
+
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void createFile() throws IOException {
+        content = new byte[100 * 1024];
+        new Random(1).nextBytes(content);
+        file = File.createTempFile("transfer", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void sendFileWhenSupported() throws IOException {
+        HttpServletRequest request = EasyMock
+                .createMock(HttpServletRequest.class);
+        EasyMock.expect(
+                request.getAttribute(FileTransfer.SENDFILE_SUPPORTED_ATTRIBUTE))
+                .andReturn(Boolean.TRUE);
+        request.setAttribute(FileTransfer.SENDFILE_FILENAME_ATTRIBUTE,
+                file.getCanonicalPath());
+        request.setAttribute(FileTransfer.SENDFILE_START_ATTRIBUTE,
+                Long.valueOf(0));
+        request.setAttribute(FileTransfer.SENDFILE_END_ATTRIBUTE,
+                Long.valueOf(content.length));
+        EasyMock.replay(request);
+        HttpServletResponse response = EasyMock
+                .createMock(HttpServletResponse.class);
+
+        Assert.assertTrue(FileTransfer.sendFile(request, response, file, 0,
+                content.length));
+        EasyMock.verify(request);
+    }
+
+    @Test
+    public void noSendFileWhenNotSupported() throws IOException {
+        HttpServletRequest request = EasyMock
+                .createMock(HttpServletRequest.class);
+        EasyMock.expect(
+                request.getAttribute(FileTransfer.SENDFILE_SUPPORTED_ATTRIBUTE))
+                .andReturn(null);
+        EasyMock.replay(request);
+        HttpServletResponse response = EasyMock
+                .createMock(HttpServletResponse.class);
+
+        Assert.assertFalse(FileTransfer.sendFile(request, response, file, 0,
+                content.length));
+    }
+
+    @Test
+    public void noSendFileForSmallOrWrappedResponses() throws IOException {
+        HttpServletRequest request = EasyMock
+                .createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(
+                request.getAttribute(FileTransfer.SENDFILE_SUPPORTED_ATTRIBUTE))
+                .andReturn(Boolean.TRUE).anyTimes();
+        EasyMock.replay(request);
+        HttpServletResponse response = EasyMock
+                .createMock(HttpServletResponse.class);
+
+        Assert.assertFalse(FileTransfer.sendFile(request, response, file, 0,
+                1000));
+        Assert.assertFalse(FileTransfer.sendFile(request,
+                new HttpServletResponseWrapper(response), file, 0,
+                content.length));
+    }
+}
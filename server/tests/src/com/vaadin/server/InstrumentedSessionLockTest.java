@@ -0,0 +1,180 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Test;
+
+import com.vaadin.util.CurrentInstance;
+
+public class InstrumentedSessionLockTest {
+
+    private SessionLockMetrics metrics = new SessionLockMetrics();
+    private InstrumentedSessionLock lock = new InstrumentedSessionLock(metrics);
+    private ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        CurrentInstance.clearAll();
+        executor.shutdownNow();
+    }
+
+    private CountDownLatch holdLockInOtherThread() throws Exception {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                lock.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } finally {
+                    lock.unlock();
+                }
+                return null;
+            }
+        });
+        Assert.assertTrue(locked.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test
+    public void lockAndUnlock_waitAndHoldTimesRecorded() throws Exception {
+        lock.lock();
+        lock.lock();
+        Thread.sleep(10);
+        lock.unlock();
+        lock.unlock();
+
+        // Reentrant locking is not counted
+        Assert.assertEquals(1, metrics.getWaitTime().getCount());
+        Assert.assertEquals(1, metrics.getHoldTime().getCount());
+        Assert.assertTrue(metrics.getHoldTime().getMax() >= 10000);
+    }
+
+    @Test
+    public void ownerSampling_stackTraceRecorded() {
+        lock.lock();
+        try {
+            Assert.assertSame(Thread.currentThread(), lock.getOwnerThread());
+            Assert.assertNull(lock.getOwnerStackTrace());
+        } finally {
+            lock.unlock();
+        }
+
+        metrics.setOwnerSampling(true);
+        lock.lock();
+        try {
+            Assert.assertTrue(lock.getOwnerDescription().contains(
+                    "ownerSampling_stackTraceRecorded"));
+        } finally {
+            lock.unlock();
+        }
+        Assert.assertNull(lock.getOwnerThread());
+        Assert.assertNull(lock.getOwnerStackTrace());
+    }
+
+    @Test
+    public void maxWait_requestThread_failsFast() throws Exception {
+        metrics.setMaxWait(20);
+        CountDownLatch release = holdLockInOtherThread();
+        CurrentInstance.set(VaadinRequest.class,
+                EasyMock.createMock(VaadinRequest.class));
+        try {
+            lock.lock();
+            Assert.fail("Lock should not have been acquired");
+        } catch (SessionLockTimeoutException e) {
+            Assert.assertTrue(e.getMessage().contains("held by thread"));
+        } finally {
+            release.countDown();
+        }
+        Assert.assertEquals(1, metrics.getTimeoutCount());
+        Assert.assertFalse(lock.isHeldByCurrentThread());
+    }
+
+    @Test
+    public void maxWait_backgroundThread_waitsForLock() throws Exception {
+        metrics.setMaxWait(20);
+        lock.lock();
+        Future<?> waiter;
+        try {
+            waiter = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    lock.lock();
+                    lock.unlock();
+                }
+            });
+            try {
+                waiter.get(100, TimeUnit.MILLISECONDS);
+                Assert.fail("Lock should still be held");
+            } catch (TimeoutException expected) {
+            }
+        } finally {
+            lock.unlock();
+        }
+        waiter.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(0, metrics.getTimeoutCount());
+    }
+
+    @Test
+    public void serialization_metricsNotSerializedButRestored()
+            throws Exception {
+        metrics.setMaxWait(20);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(lock);
+        out.writeObject(new InstrumentedSessionLock());
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray()));
+        InstrumentedSessionLock readLock = (InstrumentedSessionLock) in
+                .readObject();
+        InstrumentedSessionLock readPlainLock = (InstrumentedSessionLock) in
+                .readObject();
+
+        CurrentInstance.set(VaadinRequest.class,
+                EasyMock.createMock(VaadinRequest.class));
+        Assert.assertEquals(0, readLock.getMaxWaitForCurrentThread());
+        readLock.lock();
+        readLock.unlock();
+        Assert.assertEquals(0, metrics.getHoldTime().getCount());
+
+        readLock.restoreMetrics(metrics);
+        readPlainLock.restoreMetrics(metrics);
+        Assert.assertEquals(20, readLock.getMaxWaitForCurrentThread());
+        Assert.assertEquals(0, readPlainLock.getMaxWaitForCurrentThread());
+        readLock.lock();
+        readLock.unlock();
+        Assert.assertEquals(1, metrics.getHoldTime().getCount());
+    }
+}
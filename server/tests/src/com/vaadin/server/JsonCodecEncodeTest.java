@@ -0,0 +1,223 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vaadin.shared.JsonConstants;
+import com.vaadin.shared.communication.SharedState;
+import com.vaadin.shared.ui.label.ContentMode;
+
+/**
+ * Tests for encoding objects field by field with {@link JsonCodec}.
+ * 
+ * @author Vaadin Ltd
+ */
+public class JsonCodecEncodeTest {
+
+    public static class TestState extends SharedState {
+        public String text;
+        public int number;
+        public Integer boxedNumber;
+        public boolean flag;
+        public char character = 'a';
+        public ContentMode mode = ContentMode.TEXT;
+        public List<String> items = new ArrayList<String>();
+        public Set<String> tags = new HashSet<String>();
+        public Map<String, Integer> values = new HashMap<String, Integer>();
+        private double accessorValue;
+
+        public double getAccessorValue() {
+            return accessorValue;
+        }
+
+        public void setAccessorValue(double accessorValue) {
+            this.accessorValue = accessorValue;
+        }
+    }
+
+    public static class DuplicateState extends SharedState {
+        public String value;
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+    }
+
+    @Test
+    public void encodeWithoutReference() throws JSONException {
+        TestState state = new TestState();
+        state.text = "foo";
+        state.number = 4;
+        state.items.add("bar");
+        state.setAccessorValue(1.5);
+
+        JSONObject encoded = (JSONObject) JsonCodec.encode(state, null,
+                TestState.class, null).getEncodedValue();
+
+        Assert.assertEquals("foo", encoded.get("text"));
+        Assert.assertEquals(4, encoded.get("number"));
+        Assert.assertEquals(JSONObject.NULL, encoded.get("boxedNumber"));
+        Assert.assertEquals(Boolean.FALSE, encoded.get("flag"));
+        Assert.assertEquals('a', encoded.get("character"));
+        Assert.assertEquals("TEXT", encoded.get("mode"));
+        Assert.assertEquals("[\"bar\"]", encoded.get("items").toString());
+        Assert.assertEquals(1.5, encoded.get("accessorValue"));
+    }
+
+    @Test
+    public void diffContainsOnlyChangedProperties() throws JSONException {
+        JSONObject reference = (JSONObject) JsonCodec.encode(new TestState(),
+                null, TestState.class, null).getEncodedValue();
+
+        TestState state = new TestState();
+        state.boxedNumber = 7;
+        state.mode = ContentMode.HTML;
+        state.items.addAll(Arrays.asList("a", "b"));
+
+        EncodeResult result = JsonCodec.encode(state, reference,
+                TestState.class, null);
+        JSONObject diff = (JSONObject) result.getDiff();
+
+        Assert.assertEquals(3, diff.length());
+        Assert.assertEquals(7, diff.get("boxedNumber"));
+        Assert.assertEquals("HTML", diff.get("mode"));
+        Assert.assertEquals("[\"a\",\"b\"]", diff.get("items").toString());
+
+        // Encoding again using the previous value as reference gives no diff
+        JSONObject encoded = (JSONObject) result.getEncodedValue();
+        result = JsonCodec.encode(state, encoded, TestState.class, null);
+        Assert.assertEquals(0, ((JSONObject) result.getDiff()).length());
+    }
+
+    @Test(expected = JSONException.class)
+    public void encodeDuplicatePropertyNames() throws JSONException {
+        JsonCodec.encode(new DuplicateState(), null, DuplicateState.class,
+                null);
+    }
+
+    @Test
+    public void appendToListSendsOnlyAddedElement() throws JSONException {
+        TestState state = new TestState();
+        for (int i = 0; i < 100; i++) {
+            state.items.add("Item " + i);
+        }
+        JSONObject reference = encode(state, null);
+
+        state.items.add("Item 100");
+        JSONObject diff = (JSONObject) JsonCodec
+                .encode(state, reference, TestState.class, null).getDiff();
+
+        JSONArray splice = diff.getJSONObject("items").getJSONArray(
+                JsonConstants.COLLECTION_DIFF_SPLICE);
+        Assert.assertEquals(100, splice.getInt(0));
+        Assert.assertEquals(0, splice.getInt(1));
+        Assert.assertEquals("[\"Item 100\"]", splice.get(2).toString());
+    }
+
+    @Test
+    public void removeAndReplaceInListSendsSplice() throws JSONException {
+        TestState state = new TestState();
+        for (int i = 0; i < 10; i++) {
+            state.items.add("Item " + i);
+        }
+        JSONObject reference = encode(state, null);
+
+        state.items.remove(3);
+        state.items.set(3, "Replaced");
+        JSONObject diff = (JSONObject) JsonCodec
+                .encode(state, reference, TestState.class, null).getDiff();
+
+        JSONArray splice = diff.getJSONObject("items").getJSONArray(
+                JsonConstants.COLLECTION_DIFF_SPLICE);
+        Assert.assertEquals(3, splice.getInt(0));
+        Assert.assertEquals(2, splice.getInt(1));
+        Assert.assertEquals("[\"Replaced\"]", splice.get(2).toString());
+    }
+
+    @Test
+    public void mostlyChangedListIsSentInFull() throws JSONException {
+        TestState state = new TestState();
+        state.items.addAll(Arrays.asList("a", "b"));
+        JSONObject reference = encode(state, null);
+
+        state.items.set(1, "c");
+        JSONObject diff = (JSONObject) JsonCodec
+                .encode(state, reference, TestState.class, null).getDiff();
+        Assert.assertEquals("[\"a\",\"c\"]", diff.get("items").toString());
+    }
+
+    @Test
+    public void setChangesSendAddedAndRemoved() throws JSONException {
+        TestState state = new TestState();
+        for (int i = 0; i < 10; i++) {
+            state.tags.add("Tag " + i);
+        }
+        JSONObject reference = encode(state, null);
+
+        state.tags.remove("Tag 5");
+        state.tags.add("Tag 10");
+        JSONObject diff = (JSONObject) JsonCodec
+                .encode(state, reference, TestState.class, null).getDiff();
+
+        JSONObject tags = diff.getJSONObject("tags");
+        Assert.assertEquals("[\"Tag 10\"]",
+                tags.get(JsonConstants.COLLECTION_DIFF_ADD).toString());
+        Assert.assertEquals("[\"Tag 5\"]",
+                tags.get(JsonConstants.COLLECTION_DIFF_REMOVE).toString());
+    }
+
+    @Test
+    public void mapChangesSendPutAndRemoved() throws JSONException {
+        TestState state = new TestState();
+        for (int i = 0; i < 10; i++) {
+            state.values.put("Key " + i, i);
+        }
+        JSONObject reference = encode(state, null);
+
+        state.values.put("Key 1", 100);
+        state.values.remove("Key 2");
+        JSONObject diff = (JSONObject) JsonCodec
+                .encode(state, reference, TestState.class, null).getDiff();
+
+        JSONArray values = diff.getJSONArray("values");
+        Assert.assertEquals(JsonConstants.MAP_DIFF, values.get(0));
+        Assert.assertEquals("{\"Key 1\":100}", values.get(1).toString());
+        Assert.assertEquals("[\"Key 2\"]", values.get(2).toString());
+    }
+
+    private static JSONObject encode(TestState state, JSONObject reference)
+            throws JSONException {
+        return (JSONObject) JsonCodec.encode(state, reference,
+                TestState.class, null).getEncodedValue();
+    }
+}
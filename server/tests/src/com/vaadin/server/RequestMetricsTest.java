@@ -0,0 +1,191 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vaadin.server.Histogram.Snapshot;
+import com.vaadin.server.RequestMetrics.Phase;
+import com.vaadin.server.RequestMetrics.Sample;
+import com.vaadin.tests.util.MockDeploymentConfiguration;
+
+public class RequestMetricsTest {
+
+    @Test
+    public void histogramPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        Snapshot snapshot = histogram.getSnapshot();
+        Assert.assertEquals(100, snapshot.getCount());
+        Assert.assertEquals(50.5, snapshot.getMean(), 0.001);
+        Assert.assertEquals(100, snapshot.getMax());
+        // 50 is in the bucket [32, 63]
+        Assert.assertEquals(63, snapshot.getMedian());
+        // 90 and 99 are in the bucket [64, 127], capped by the max
+        Assert.assertEquals(100, snapshot.getPercentile90());
+        Assert.assertEquals(100, snapshot.getPercentile99());
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void histogramZeroAndNegativeValues() {
+        Histogram histogram = new Histogram();
+        histogram.record(0);
+        histogram.record(-5);
+
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMax());
+        Assert.assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void samplingDisabledByDefault() {
+        RequestMetrics metrics = new RequestMetrics(0);
+        VaadinRequest request = createRequest(100);
+
+        Assert.assertNull(metrics.startSample(request));
+        Assert.assertNull(metrics.getSample(request));
+        metrics.endSample(request);
+        Assert.assertEquals(0, metrics.getSampledRequestCount());
+    }
+
+    @Test
+    public void mxBeansRegisteredWithSamplingDisabled() throws Exception {
+        VaadinServletService service = new VaadinServletService(
+                new VaadinServlet(), new MockDeploymentConfiguration()) {
+            @Override
+            public String getServiceName() {
+                return "request-metrics-test";
+            }
+        };
+        service.init();
+        List<ObjectName> names = new ArrayList<ObjectName>();
+        for (String type : new String[] { "RequestMetrics",
+                "SessionLockMetrics", "AccessTaskScheduler" }) {
+            names.add(new ObjectName("com.vaadin:type=" + type
+                    + ",service=\"request-metrics-test\""));
+        }
+        try {
+            for (ObjectName name : names) {
+                Assert.assertTrue(name.toString(), ManagementFactory
+                        .getPlatformMBeanServer().isRegistered(name));
+            }
+        } finally {
+            service.destroy();
+        }
+        for (ObjectName name : names) {
+            Assert.assertFalse(name.toString(), ManagementFactory
+                    .getPlatformMBeanServer().isRegistered(name));
+        }
+    }
+
+    @Test
+    public void everyNthRequestSampled() {
+        RequestMetrics metrics = new RequestMetrics(3);
+
+        int sampled = 0;
+        for (int i = 0; i < 9; i++) {
+            VaadinRequest request = createRequest(10);
+            if (metrics.startSample(request) != null) {
+                sampled++;
+            }
+            metrics.endSample(request);
+        }
+
+        Assert.assertEquals(3, sampled);
+        Assert.assertEquals(3, metrics.getSampledRequestCount());
+        Assert.assertEquals(3, metrics.getRequestDuration().getCount());
+        Assert.assertEquals(3, metrics.getBytesIn().getCount());
+    }
+
+    @Test
+    public void sampleValuesRecorded() {
+        RequestMetrics metrics = new RequestMetrics(1);
+        VaadinRequest request = createRequest(1234);
+
+        Sample sample = metrics.startSample(request);
+        Assert.assertSame(sample, metrics.getSample(request));
+        sample.addTimeSince(Phase.RPC_DECODE, System.nanoTime() - 5000000);
+        sample.addBytesOut(2000);
+        sample.addBytesOut(48);
+        sample.addDirtyConnectors(7);
+        metrics.endSample(request);
+
+        Assert.assertNull(metrics.getSample(request));
+        Assert.assertEquals(1, metrics.getRpcDecode().getCount());
+        Assert.assertTrue(metrics.getRpcDecode().getMax() >= 5000);
+        // Phases that did not occur are not recorded
+        Assert.assertEquals(0, metrics.getLockWait().getCount());
+        Assert.assertEquals(1234, metrics.getBytesIn().getMax());
+        Assert.assertEquals(2048, metrics.getBytesOut().getMax());
+        Assert.assertEquals(7, metrics.getDirtyConnectors().getMax());
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getSampledRequestCount());
+        Assert.assertEquals(0, metrics.getRpcDecode().getCount());
+    }
+
+    private static VaadinRequest createRequest(int contentLength) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.expect(request.getContentLength()).andReturn(contentLength)
+                .anyTimes();
+        request.setAttribute(EasyMock.anyObject(String.class),
+                EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                Object[] args = EasyMock.getCurrentArguments();
+                attributes.put((String) args[0], args[1]);
+                return null;
+            }
+        }).anyTimes();
+        request.removeAttribute(EasyMock.anyObject(String.class));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                attributes.remove(EasyMock.getCurrentArguments()[0]);
+                return null;
+            }
+        }).anyTimes();
+        EasyMock.expect(request.getAttribute(EasyMock.anyObject(String.class)))
+                .andAnswer(new IAnswer<Object>() {
+                    @Override
+                    public Object answer() throws Throwable {
+                        return attributes.get(EasyMock.getCurrentArguments()[0]);
+                    }
+                }).anyTimes();
+        EasyMock.replay(request);
+        return request;
+    }
+}
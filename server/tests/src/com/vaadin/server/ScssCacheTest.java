@@ -0,0 +1,254 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScssCacheTest {
+
+    /**
+     * Runs background compilations right away in the calling thread.
+     */
+    private static class DirectExecutor extends AbstractExecutorService {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+
+    private File dir;
+    private ScssCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("theme", "");
+        dir.delete();
+        dir.mkdir();
+        cache = new ScssCache(new DirectExecutor(), 0);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        // Make sure the modification time changes even on file systems with
+        // a coarse resolution
+        long lastModified = file.exists() ? file.lastModified() + 2000 : 0;
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        if (lastModified > 0) {
+            file.setLastModified(lastModified);
+        }
+        return file;
+    }
+
+    private String getCss(File file) {
+        return cache.getCss("/VAADIN/themes/test/" + file.getName(),
+                file.getPath());
+    }
+
+    @Test
+    public void findImports() {
+        Assert.assertEquals(Arrays.asList("a", "b/c", "d.scss"),
+                ScssCache.findImports("@import \"a\";\n"
+                        + "@import 'b/c', \"d.scss\";\n"
+                        + "@import url(foo.css);\n"
+                        + "@import \"plain.css\";\n"
+                        + "@import \"http://example.com/x\";\n"
+                        + ".v-button { color: red; }"));
+    }
+
+    @Test
+    public void findDependencies() throws IOException {
+        File styles = write("styles.scss", "@import \"base\";\n"
+                + "@import \"missing\";\n.a { color: red; }");
+        File base = write("base.scss", "@import 'colors';\n");
+        File colors = write("_colors.scss", "@import \"base\";\n$c: red;");
+
+        Map<File, Long> dependencies = ScssCache.findDependencies(styles
+                .getPath());
+        Assert.assertEquals(3, dependencies.size());
+        Assert.assertEquals(Long.valueOf(colors.lastModified()),
+                dependencies.get(colors));
+        Assert.assertTrue(dependencies.containsKey(styles));
+        Assert.assertTrue(dependencies.containsKey(base));
+
+        Assert.assertTrue(ScssCache.findDependencies(null).isEmpty());
+    }
+
+    @Test
+    public void compiledOnce() throws IOException {
+        File styles = write("styles.scss",
+                "$c: red;\n.v-button { color: $c; }");
+
+        String css = getCss(styles);
+        Assert.assertTrue(css, css.contains("color: red"));
+        Assert.assertSame(css, getCss(styles));
+
+        Assert.assertEquals(1, cache.getCompileCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getEntryCount());
+    }
+
+    @Test
+    public void recompiledWhenImportChanges() throws IOException {
+        File styles = write("styles.scss",
+                "@import \"colors\";\n.v-button { color: $c; }");
+        File colors = write("_colors.scss", "$c: red;");
+        Assert.assertTrue(getCss(styles).contains("color: red"));
+
+        write(colors.getName(), "$c: blue;");
+        // The stale CSS is served while compiling
+        Assert.assertTrue(getCss(styles).contains("color: red"));
+        Assert.assertTrue(getCss(styles).contains("color: blue"));
+
+        Assert.assertEquals(2, cache.getCompileCount());
+        Assert.assertEquals(1, cache.getStaleHitCount());
+    }
+
+    @Test
+    public void failedRecompileKeepsOldCss() throws IOException {
+        final boolean[] fail = new boolean[1];
+        cache = new ScssCache(new DirectExecutor(), 0) {
+            @Override
+            protected String compile(String realFilename, String identifier)
+                    throws Exception {
+                if (fail[0]) {
+                    throw new Exception("Invalid stylesheet");
+                }
+                return super.compile(realFilename, identifier);
+            }
+        };
+        File styles = write("styles.scss", ".v-button { color: red; }");
+        Assert.assertTrue(getCss(styles).contains("color: red"));
+
+        fail[0] = true;
+        write(styles.getName(), ".v-button { color: blue; }");
+        Assert.assertTrue(getCss(styles).contains("color: red"));
+        Assert.assertTrue(getCss(styles).contains("color: red"));
+        Assert.assertEquals(1, cache.getFailedCompileCount());
+
+        // Compiled again when the files change again
+        fail[0] = false;
+        write(styles.getName(), ".v-button { color: green; }");
+        getCss(styles);
+        Assert.assertTrue(getCss(styles).contains("color: green"));
+    }
+
+    @Test
+    public void checkInterval() throws IOException {
+        cache = new ScssCache(new DirectExecutor(), 60000);
+        File styles = write("styles.scss", ".v-button { color: red; }");
+        getCss(styles);
+
+        write(styles.getName(), ".v-button { color: blue; }");
+        Assert.assertTrue(getCss(styles).contains("color: red"));
+        Assert.assertEquals(1, cache.getCompileCount());
+    }
+
+    @Test
+    public void stylesheetsCompiledInParallel() throws Exception {
+        if (!ScssCache.isParallelCompileSupported()) {
+            return;
+        }
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        cache = new ScssCache(Executors.newSingleThreadExecutor(), 0) {
+            @Override
+            protected String compile(String realFilename, String identifier)
+                    throws Exception {
+                if (identifier.endsWith("slow.scss")) {
+                    started.countDown();
+                    release.await();
+                }
+                return super.compile(realFilename, identifier);
+            }
+        };
+        final File slow = write("slow.scss", ".a { color: red; }");
+        File fast = write("fast.scss", ".b { color: blue; }");
+
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                getCss(slow);
+            }
+        };
+        thread.start();
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // Not blocked by the other compilation
+        Assert.assertTrue(getCss(fast).contains("color: blue"));
+
+        release.countDown();
+        thread.join();
+        Assert.assertEquals(2, cache.getCompileCount());
+        cache.shutdown();
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.util.ArrayList;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.data.util.IndexedContainer;
+import com.vaadin.ui.ComboBox;
+import com.vaadin.ui.ConnectorTracker;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.VerticalLayout;
+
+public class SessionReplicatorTest {
+
+    public static class TestUI extends UI {
+        private final Page page = new Page(this, getState(false).pageState) {
+            @Override
+            public void init(VaadinRequest request) {
+            }
+        };
+
+        private final VerticalLayout layout = new VerticalLayout();
+        private final Label label = new Label("Hello");
+
+        @Override
+        protected void init(VaadinRequest request) {
+            for (int i = 0; i < 50; i++) {
+                layout.addComponent(new Label("Label " + i));
+            }
+            layout.addComponent(label);
+            setContent(layout);
+        }
+
+        @Override
+        public Page getPage() {
+            return page;
+        }
+    }
+
+    /**
+     * Stand-in for a standby node that keeps a copy of the session.
+     */
+    private static class ReplicationTarget {
+        private VaadinSession replica;
+
+        public void receive(byte[] delta) throws Exception {
+            if (replica == null) {
+                replica = SessionReplicator.applyDelta(null, delta);
+                return;
+            }
+            replica.getLockInstance().lock();
+            try {
+                replica = SessionReplicator.applyDelta(replica, delta);
+            } finally {
+                replica.getLockInstance().unlock();
+            }
+        }
+
+        public TestUI getUI(int uiId) {
+            for (UI ui : replica.getUIs()) {
+                if (ui.getUIId() == uiId) {
+                    return (TestUI) ui;
+                }
+            }
+            return null;
+        }
+
+        public void lock() {
+            replica.getLockInstance().lock();
+        }
+
+        public void unlock() {
+            replica.getLockInstance().unlock();
+        }
+    }
+
+    private VaadinServletService service;
+    private MockVaadinSession session;
+    private TestUI ui;
+    private SessionReplicator replicator;
+    private ReplicationTarget target;
+
+    @Before
+    public void setup() throws Exception {
+        VaadinServlet servlet = new VaadinServlet();
+        servlet.init(new MockServletConfig(new Properties()));
+        service = servlet.getService();
+
+        session = new MockVaadinSession(service);
+        session.lock();
+        try {
+            session.setConfiguration(service.getDeploymentConfiguration());
+            ui = createUI();
+        } finally {
+            session.unlock();
+        }
+        replicator = new SessionReplicator(session);
+        target = new ReplicationTarget();
+    }
+
+    private TestUI createUI() {
+        TestUI ui = new TestUI();
+        VaadinServletRequest request = new VaadinServletRequest(
+                EasyMock.createMock(HttpServletRequest.class), service) {
+            @Override
+            public String getParameter(String name) {
+                return null;
+            }
+        };
+        ui.doInit(request, session.getNextUIid(), null);
+        ui.setSession(session);
+        session.addUI(ui);
+        return ui;
+    }
+
+    /**
+     * Simulates writing a response that sends the states of all dirty
+     * connectors to the client.
+     */
+    private void writeResponse() throws Exception {
+        session.lock();
+        try {
+            for (UI ui : session.getUIs()) {
+                ConnectorTracker tracker = ui.getConnectorTracker();
+                for (ClientConnector connector : new ArrayList<ClientConnector>(
+                        tracker.getDirtyConnectors())) {
+                    connector.encodeState();
+                    tracker.markClientSideInitialized(connector);
+                }
+                tracker.markAllConnectorsClean();
+            }
+        } finally {
+            session.unlock();
+        }
+    }
+
+    private byte[] replicate() throws Exception {
+        byte[] delta;
+        session.lock();
+        try {
+            delta = replicator.createDelta();
+        } finally {
+            session.unlock();
+        }
+        target.receive(delta);
+        return delta;
+    }
+
+    @Test
+    public void changedConnectorUpdatedInPlace() throws Exception {
+        writeResponse();
+        byte[] full = replicate();
+        target.lock();
+        TestUI replicaUI = target.getUI(ui.getUIId());
+        target.unlock();
+        Label replicaLabel = replicaUI.label;
+
+        session.lock();
+        try {
+            ui.label.setValue("Changed");
+        } finally {
+            session.unlock();
+        }
+        writeResponse();
+        byte[] delta = replicate();
+        Assert.assertTrue(delta.length + " >= " + full.length / 10,
+                delta.length < full.length / 10);
+
+        target.lock();
+        try {
+            ConnectorTracker tracker = replicaUI.getConnectorTracker();
+            Assert.assertFalse(tracker.isDirty(replicaLabel));
+            Assert.assertTrue(tracker.isClientSideInitialized(replicaLabel));
+            Assert.assertEquals("Changed", tracker.getDiffState(replicaLabel)
+                    .getString("text"));
+
+            Assert.assertSame(replicaUI, target.getUI(ui.getUIId()));
+            Assert.assertSame(replicaLabel, replicaUI.label);
+            Assert.assertEquals("Changed", replicaLabel.getValue());
+            Assert.assertSame(replicaUI.layout, replicaLabel.getParent());
+            Assert.assertSame(replicaLabel,
+                    replicaUI.layout.getComponent(50));
+        } finally {
+            target.unlock();
+        }
+    }
+
+    @Test
+    public void addedAndRemovedConnectorsReplicated() throws Exception {
+        replicate();
+
+        Label added;
+        session.lock();
+        try {
+            added = new Label("Added");
+            ui.layout.addComponent(added);
+            ui.layout.removeComponent(ui.label);
+        } finally {
+            session.unlock();
+        }
+        replicate();
+
+        target.lock();
+        try {
+            TestUI replicaUI = target.getUI(ui.getUIId());
+            ConnectorTracker tracker = replicaUI.getConnectorTracker();
+            Assert.assertEquals(51, replicaUI.layout.getComponentCount());
+
+            Label replicaAdded = (Label) tracker.getConnector(added
+                    .getConnectorId());
+            Assert.assertNotNull(replicaAdded);
+            Assert.assertNotSame(added, replicaAdded);
+            Assert.assertEquals("Added", replicaAdded.getValue());
+            Assert.assertSame(replicaUI.layout, replicaAdded.getParent());
+            Assert.assertSame(replicaAdded, replicaUI.layout.getComponent(50));
+
+            Assert.assertNull(tracker.getConnector(ui.label.getConnectorId()));
+        } finally {
+            target.unlock();
+        }
+    }
+
+    @Test
+    public void uisAndAttributesReplicated() throws Exception {
+        replicate();
+
+        TestUI second;
+        session.lock();
+        try {
+            second = createUI();
+            session.setAttribute("user", "admin");
+        } finally {
+            session.unlock();
+        }
+        replicate();
+
+        target.lock();
+        try {
+            Assert.assertEquals(2, target.replica.getUIs().size());
+            Assert.assertSame(target.replica, target.getUI(second.getUIId())
+                    .getSession());
+            Assert.assertEquals("admin", target.replica.getAttribute("user"));
+        } finally {
+            target.unlock();
+        }
+
+        session.lock();
+        try {
+            session.removeUI(ui);
+            session.setAttribute("user", null);
+            second.label.setValue("Second");
+        } finally {
+            session.unlock();
+        }
+        replicate();
+
+        target.lock();
+        try {
+            Assert.assertEquals(1, target.replica.getUIs().size());
+            Assert.assertNull(target.getUI(ui.getUIId()));
+            Assert.assertNull(target.replica.getAttribute("user"));
+            Assert.assertEquals("Second", target.getUI(second.getUIId()).label
+                    .getValue());
+        } finally {
+            target.unlock();
+        }
+
+        target.lock();
+        try {
+            // Ids created in the standby copy after a failover do not clash
+            Assert.assertEquals(second.getUIId() + 1,
+                    target.replica.getNextUIid());
+            Assert.assertEquals(String.valueOf(session.getIdSequences()[0]),
+                    target.replica.createConnectorId(null));
+        } finally {
+            target.unlock();
+        }
+    }
+
+    @Test
+    public void changeWithoutMarkDirtyReplicated() throws Exception {
+        writeResponse();
+        byte[] full = replicate();
+
+        session.lock();
+        try {
+            // Does not mark the label dirty
+            ui.label.setData("Data");
+            Assert.assertFalse(ui.getConnectorTracker().isDirty(ui.label));
+        } finally {
+            session.unlock();
+        }
+        byte[] delta = replicate();
+        Assert.assertTrue(delta.length < full.length / 10);
+
+        target.lock();
+        try {
+            Assert.assertEquals("Data", target.getUI(ui.getUIId()).label
+                    .getData());
+        } finally {
+            target.unlock();
+        }
+    }
+
+    @Test
+    public void sharedContainerStaysShared() throws Exception {
+        ComboBox first;
+        ComboBox second;
+        session.lock();
+        try {
+            IndexedContainer container = new IndexedContainer();
+            container.addItem("a");
+            container.addItem("b");
+            first = new ComboBox(null, container);
+            second = new ComboBox(null, container);
+            ui.layout.addComponent(first);
+            ui.layout.addComponent(second);
+        } finally {
+            session.unlock();
+        }
+        writeResponse();
+        byte[] full = replicate();
+
+        session.lock();
+        try {
+            // Writing only the first combo box would duplicate the container
+            first.setValue("a");
+        } finally {
+            session.unlock();
+        }
+        writeResponse();
+        Assert.assertTrue(replicate().length < full.length / 2);
+        assertContainerShared(first, second, "a");
+
+        session.lock();
+        try {
+            first.getContainerDataSource().addItem("c");
+        } finally {
+            session.unlock();
+        }
+        writeResponse();
+        Assert.assertTrue(replicate().length < full.length / 2);
+        assertContainerShared(first, second, "c");
+    }
+
+    private void assertContainerShared(ComboBox first, ComboBox second,
+            String itemId) {
+        target.lock();
+        try {
+            ConnectorTracker tracker = target.getUI(ui.getUIId())
+                    .getConnectorTracker();
+            ComboBox replicaFirst = (ComboBox) tracker.getConnector(first
+                    .getConnectorId());
+            ComboBox replicaSecond = (ComboBox) tracker.getConnector(second
+                    .getConnectorId());
+            Assert.assertEquals("a", replicaFirst.getValue());
+            Assert.assertSame(replicaFirst.getContainerDataSource(),
+                    replicaSecond.getContainerDataSource());
+            Assert.assertTrue(replicaSecond.containsId(itemId));
+        } finally {
+            target.unlock();
+        }
+    }
+}
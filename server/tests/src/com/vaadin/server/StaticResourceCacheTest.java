@@ -0,0 +1,183 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.communication.ResponseCompression;
+
+public class StaticResourceCacheTest {
+
+    private File dir;
+
+    @Before
+    public void createDirectory() throws IOException {
+        dir = File.createTempFile("static", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void deleteDirectory() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private URL createFile(String name, byte[] content) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file.toURI().toURL();
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            sb.append(".v-button { color: red; }\n");
+        }
+        return sb.substring(0, length).getBytes();
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(1).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void loadAndGet() throws IOException {
+        StaticResourceCache cache = new StaticResourceCache(100000,
+                Deflater.BEST_COMPRESSION);
+        byte[] content = text(5000);
+
+        Assert.assertNull(cache.get("/VAADIN/a.css"));
+        StaticResourceCache.Entry entry = cache.load("/VAADIN/a.css",
+                createFile("a.css", content));
+        Assert.assertSame(entry, cache.get("/VAADIN/a.css"));
+
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getEntryCount());
+        Assert.assertEquals(0, entry.getLastModified() % 1000);
+
+        cache.reset();
+        Assert.assertEquals(0, cache.getHitCount());
+        Assert.assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void gzipVariantOnlyForCompressibleContent() throws IOException {
+        StaticResourceCache cache = new StaticResourceCache(100000,
+                Deflater.BEST_COMPRESSION);
+        StaticResourceCache.Entry css = cache.load("/VAADIN/a.css",
+                createFile("a.css", text(5000)));
+        StaticResourceCache.Entry png = cache.load("/VAADIN/a.png",
+                createFile("a.png", random(5000)));
+
+        Assert.assertNotNull(css.getGzippedContent());
+        Assert.assertTrue(css.getGzippedContent().length < 1000);
+        Assert.assertNull(png.getGzippedContent());
+
+        Assert.assertFalse(css.getETag(false).equals(css.getETag(true)));
+        Assert.assertTrue(css.getETag(false).startsWith("\""));
+        Assert.assertTrue(css.getETag(true).endsWith("\""));
+    }
+
+    @Test
+    public void sameContentSameETag() throws IOException {
+        StaticResourceCache cache = new StaticResourceCache(100000,
+                Deflater.BEST_COMPRESSION);
+        String a = cache.load("/VAADIN/a.css", createFile("a.css", text(100)))
+                .getETag(false);
+        String b = cache.load("/VAADIN/b.css", createFile("b.css", text(100)))
+                .getETag(false);
+        String c = cache.load("/VAADIN/c.css", createFile("c.css", text(101)))
+                .getETag(false);
+        Assert.assertEquals(a, b);
+        Assert.assertFalse(a.equals(c));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws IOException {
+        StaticResourceCache cache = new StaticResourceCache(12000,
+                Deflater.BEST_COMPRESSION);
+        cache.load("/VAADIN/a.png", createFile("a.png", random(2900)));
+        cache.load("/VAADIN/b.png", createFile("b.png", random(2900)));
+        cache.load("/VAADIN/c.png", createFile("c.png", random(2900)));
+        cache.get("/VAADIN/a.png");
+        cache.load("/VAADIN/d.png", createFile("d.png", random(2900)));
+        cache.load("/VAADIN/e.png", createFile("e.png", random(2900)));
+
+        Assert.assertTrue(cache.getSize() <= cache.getMaxSize());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertNotNull(cache.get("/VAADIN/a.png"));
+        Assert.assertNull(cache.get("/VAADIN/b.png"));
+        Assert.assertNotNull(cache.get("/VAADIN/e.png"));
+
+        cache.setMaxSize(6000);
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertNotNull(cache.get("/VAADIN/a.png"));
+        Assert.assertNotNull(cache.get("/VAADIN/e.png"));
+    }
+
+    @Test
+    public void tooLargeResourceIsNotCached() throws IOException {
+        StaticResourceCache cache = new StaticResourceCache(10000,
+                Deflater.BEST_COMPRESSION);
+        Assert.assertNull(cache.load("/VAADIN/a.png",
+                createFile("a.png", random(3000))));
+        Assert.assertEquals(0, cache.getEntryCount());
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void ifNoneMatch() {
+        Assert.assertTrue(StaticResourceCache.matches("\"abc\"", "\"abc\""));
+        Assert.assertTrue(StaticResourceCache.matches("W/\"abc\"", "\"abc\""));
+        Assert.assertTrue(StaticResourceCache.matches("\"x\", \"abc\"",
+                "\"abc\""));
+        Assert.assertTrue(StaticResourceCache.matches("*", "\"abc\""));
+        Assert.assertFalse(StaticResourceCache.matches("\"abc-gzip\"",
+                "\"abc\""));
+        Assert.assertFalse(StaticResourceCache.matches(null, "\"abc\""));
+    }
+
+    @Test
+    public void acceptEncoding() {
+        Assert.assertTrue(ResponseCompression.isGzipAccepted("gzip, deflate"));
+        Assert.assertTrue(ResponseCompression.isGzipAccepted("GZIP"));
+        Assert.assertFalse(ResponseCompression.isGzipAccepted("deflate"));
+        Assert.assertFalse(ResponseCompression.isGzipAccepted("gzip;q=0"));
+        Assert.assertFalse(ResponseCompression.isGzipAccepted((String) null));
+    }
+}
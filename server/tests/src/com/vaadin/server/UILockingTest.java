@@ -0,0 +1,536 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.event.dd.DragAndDropEvent;
+import com.vaadin.event.dd.DropHandler;
+import com.vaadin.event.dd.acceptcriteria.AcceptAll;
+import com.vaadin.event.dd.acceptcriteria.AcceptCriterion;
+import com.vaadin.server.VaadinSession.FutureAccess;
+import com.vaadin.shared.ui.dd.DragEventType;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.DragAndDropWrapper;
+import com.vaadin.ui.Embedded;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.UI;
+import com.vaadin.util.CurrentInstance;
+
+public class UILockingTest {
+
+    private VaadinServletService service;
+    private VaadinSession session;
+    private UI ui1;
+    private UI ui2;
+    private ExecutorService executor;
+
+    @Before
+    public void setup() throws Exception {
+        Properties initParameters = new Properties();
+        initParameters.setProperty(Constants.SERVLET_PARAMETER_UI_LOCKING,
+                "true");
+        VaadinServlet servlet = new VaadinServlet();
+        servlet.init(new MockServletConfig(initParameters));
+        service = servlet.getService();
+
+        final UILockingSessionLock lock = new UILockingSessionLock(
+                service.getSessionLockMetrics());
+        session = new VaadinSession(service) {
+            @Override
+            public Lock getLockInstance() {
+                return lock;
+            }
+        };
+
+        session.lock();
+        try {
+            session.setCommunicationManager(new LegacyCommunicationManager(
+                    session));
+            ui1 = createUI();
+            ui2 = createUI();
+        } finally {
+            session.unlock();
+        }
+
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private UI createUI() {
+        UI ui = new UI() {
+            Page page = new Page(this, getState(false).pageState) {
+                @Override
+                public void init(VaadinRequest request) {
+                }
+            };
+
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+
+            @Override
+            public Page getPage() {
+                return page;
+            }
+        };
+        VaadinServletRequest request = new VaadinServletRequest(
+                EasyMock.createMock(HttpServletRequest.class), service) {
+            @Override
+            public String getParameter(String name) {
+                return null;
+            }
+        };
+        ui.doInit(request, session.getNextUIid(), null);
+        ui.setSession(session);
+        session.addUI(ui);
+        return ui;
+    }
+
+    private boolean tryLockInOtherThread(final UI ui) throws Exception {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (ui.tryLock()) {
+                    ui.unlock();
+                    return true;
+                }
+                return false;
+            }
+        }).get(5, TimeUnit.SECONDS).booleanValue();
+    }
+
+    @Test
+    public void createSessionLock_uiLockingEnabled_createsUILockingLock() {
+        Assert.assertTrue(service.createSessionLock() instanceof UILockingSessionLock);
+    }
+
+    @Test
+    public void lockUI_otherUIAvailableForOtherThreads() throws Exception {
+        ui1.lock();
+        try {
+            Assert.assertTrue(tryLockInOtherThread(ui2));
+            Assert.assertFalse(tryLockInOtherThread(ui1));
+        } finally {
+            ui1.unlock();
+        }
+        Assert.assertTrue(tryLockInOtherThread(ui1));
+    }
+
+    @Test
+    public void lockSession_excludesAllUILocks() throws Exception {
+        session.lock();
+        try {
+            Assert.assertFalse(tryLockInOtherThread(ui1));
+            Assert.assertFalse(tryLockInOtherThread(ui2));
+
+            // Locking a UI while holding the session lock is allowed
+            ui1.lock();
+            Assert.assertTrue(ui1.hasLock());
+            ui1.unlock();
+        } finally {
+            session.unlock();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void lockSession_uiLockHeld_throws() {
+        ui1.lock();
+        try {
+            session.lock();
+        } finally {
+            ui1.unlock();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void lockUI_otherUILockHeld_throws() {
+        ui1.lock();
+        try {
+            ui2.lock();
+        } finally {
+            ui1.unlock();
+        }
+    }
+
+    @Test
+    public void lockUI_maxWait_requestThreadGivesUp() throws Exception {
+        service.getSessionLockMetrics().setMaxWait(20);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                session.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } finally {
+                    session.unlock();
+                }
+                return null;
+            }
+        });
+        Assert.assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+        CurrentInstance.set(VaadinRequest.class,
+                EasyMock.createMock(VaadinRequest.class));
+        try {
+            ui1.lock();
+            Assert.fail("UI lock should not have been acquired");
+        } catch (SessionLockTimeoutException e) {
+            Assert.assertTrue(e.getMessage().contains("held by thread"));
+        } finally {
+            CurrentInstance.clearAll();
+            release.countDown();
+        }
+        Assert.assertFalse(ui1.hasLock());
+        Assert.assertEquals(1, service.getSessionLockMetrics()
+                .getTimeoutCount());
+
+        // Background threads wait as long as needed
+        ui1.lock();
+        ui1.unlock();
+    }
+
+    @Test
+    public void hasLock_uiLockHeld() {
+        ui1.lock();
+        try {
+            Assert.assertTrue(ui1.hasLock());
+            Assert.assertFalse(ui2.hasLock());
+            Assert.assertTrue(session.hasLock());
+        } finally {
+            ui1.unlock();
+        }
+        Assert.assertFalse(ui1.hasLock());
+        Assert.assertFalse(session.hasLock());
+    }
+
+    @Test
+    public void access_uiLocked_runWhenUnlocked() {
+        final AtomicBoolean run = new AtomicBoolean();
+        ui1.lock();
+        Future<Void> future;
+        try {
+            future = ui1.access(new Runnable() {
+                @Override
+                public void run() {
+                    Assert.assertSame(ui1, UI.getCurrent());
+                    Assert.assertTrue(ui1.hasLock());
+                    run.set(true);
+                }
+            });
+            Assert.assertFalse(run.get());
+        } finally {
+            ui1.unlock();
+        }
+        Assert.assertTrue(run.get());
+        Assert.assertTrue(future.isDone());
+    }
+
+    @Test
+    public void access_otherUILocked_runImmediately() throws Exception {
+        final AtomicBoolean run = new AtomicBoolean();
+        ui1.lock();
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ui2.access(new Runnable() {
+                        @Override
+                        public void run() {
+                            run.set(true);
+                        }
+                    });
+                }
+            }).get(5, TimeUnit.SECONDS);
+            Assert.assertTrue(run.get());
+        } finally {
+            ui1.unlock();
+        }
+    }
+
+    @Test
+    public void accessSession_uiLocked_runWhenUILockReleased() {
+        final AtomicBoolean run = new AtomicBoolean();
+        ui1.lock();
+        try {
+            session.access(new Runnable() {
+                @Override
+                public void run() {
+                    Assert.assertTrue(((UILockingSessionLock) session
+                            .getLockInstance()).isHeldByCurrentThread());
+                    run.set(true);
+                }
+            });
+            Assert.assertFalse(run.get());
+        } finally {
+            ui1.unlock();
+        }
+        Assert.assertTrue(run.get());
+    }
+
+    /**
+     * Runs the task for both UIs at the same time, each in a thread holding
+     * only the lock of its UI.
+     */
+    private <T> List<T> runConcurrently(final UIRunnable<T> task)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (final UI ui : new UI[] { ui1, ui2 }) {
+                futures.add(pool.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        ui.lock();
+                        try {
+                            barrier.await(5, TimeUnit.SECONDS);
+                            return task.run(ui);
+                        } finally {
+                            ui.unlock();
+                        }
+                    }
+                }));
+            }
+            List<T> results = new ArrayList<T>();
+            for (Future<T> future : futures) {
+                results.add(future.get(30, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private interface UIRunnable<T> {
+        public T run(UI ui) throws Exception;
+    }
+
+    @Test
+    public void globalResources_registeredConcurrentlyFromTwoUIs()
+            throws Exception {
+        final int count = 2000;
+        List<Map<StreamResource, Embedded>> registered = runConcurrently(new UIRunnable<Map<StreamResource, Embedded>>() {
+            @Override
+            public Map<StreamResource, Embedded> run(UI ui) {
+                GlobalResourceHandler handler = session
+                        .getGlobalResourceHandler(true);
+                Map<StreamResource, Embedded> resources = new HashMap<StreamResource, Embedded>();
+                CssLayout layout = new CssLayout();
+                ui.setContent(layout);
+                for (int i = 0; i < count; i++) {
+                    Embedded embedded = new Embedded();
+                    layout.addComponent(embedded);
+                    StreamResource resource = new StreamResource(
+                            new StreamResource.StreamSource() {
+                                @Override
+                                public InputStream getStream() {
+                                    return new ByteArrayInputStream(
+                                            new byte[0]);
+                                }
+                            }, "file" + i);
+                    handler.register(resource, embedded);
+                    resources.put(resource, embedded);
+                }
+                return resources;
+            }
+        });
+
+        session.lock();
+        try {
+            assertAllRegistered(registered, 2 * count);
+        } finally {
+            session.unlock();
+        }
+    }
+
+    private void assertAllRegistered(
+            List<Map<StreamResource, Embedded>> registered, int count) {
+        GlobalResourceHandler handler = session.getGlobalResourceHandler(false);
+        Set<String> uris = new HashSet<String>();
+        for (Map<StreamResource, Embedded> resources : registered) {
+            for (Map.Entry<StreamResource, Embedded> entry : resources
+                    .entrySet()) {
+                String uri = handler.getUri(entry.getValue(), entry.getKey());
+                Assert.assertNotNull(uri);
+                Assert.assertTrue("Duplicate URI " + uri, uris.add(uri));
+            }
+        }
+        Assert.assertEquals(count, uris.size());
+
+        for (Map<StreamResource, Embedded> resources : registered) {
+            for (Map.Entry<StreamResource, Embedded> entry : resources
+                    .entrySet()) {
+                handler.unregisterConnector(entry.getValue());
+                Assert.assertNull(handler.getUri(entry.getValue(),
+                        entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void connectorIds_createdConcurrentlyFromTwoUIs() throws Exception {
+        final int count = 20000;
+        List<List<String>> created = runConcurrently(new UIRunnable<List<String>>() {
+            @Override
+            public List<String> run(UI ui) {
+                List<String> ids = new ArrayList<String>();
+                for (int i = 0; i < count; i++) {
+                    ids.add(session.createConnectorId(null));
+                }
+                return ids;
+            }
+        });
+
+        Set<String> ids = new HashSet<String>();
+        for (List<String> list : created) {
+            ids.addAll(list);
+        }
+        Assert.assertEquals(2 * count, ids.size());
+    }
+
+    @Test
+    public void blockingQueue_otherUILockHeld_waitsForRoom() throws Exception {
+        ExecutorService drainExecutor = Executors.newSingleThreadExecutor();
+        final AccessTaskScheduler scheduler = new AccessTaskScheduler(1,
+                AccessTaskScheduler.OverflowPolicy.BLOCK, drainExecutor);
+        final Queue<FutureAccess> queue = ui2.getPendingAccessQueue();
+        try {
+            Future<?> producer = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    ui1.lock();
+                    try {
+                        scheduler.enqueue(queue, new FutureAccess(session,
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                    }
+                                }), ui2);
+                        scheduler.enqueue(queue, new FutureAccess(session,
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                    }
+                                }), ui2);
+                    } finally {
+                        ui1.unlock();
+                    }
+                    return null;
+                }
+            });
+            try {
+                producer.get(200, TimeUnit.MILLISECONDS);
+                Assert.fail("Producer should wait for room in the queue");
+            } catch (TimeoutException expected) {
+            }
+            Assert.assertEquals(1, queue.size());
+
+            queue.poll();
+            scheduler.batchCompleted(queue, 1, System.nanoTime());
+            producer.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(1, queue.size());
+        } finally {
+            queue.clear();
+            drainExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void dragAndDrop_visitsOfTwoUIsKeptApart() throws Exception {
+        List<String> responses = runConcurrently(new UIRunnable<String>() {
+            @Override
+            public String run(UI ui) throws Exception {
+                DragAndDropWrapper wrapper = new DragAndDropWrapper(
+                        new Label());
+                wrapper.setDropHandler(new DropHandler() {
+                    @Override
+                    public void drop(DragAndDropEvent event) {
+                    }
+
+                    @Override
+                    public AcceptCriterion getAcceptCriterion() {
+                        return AcceptAll.get();
+                    }
+                });
+                ui.setContent(wrapper);
+
+                DragAndDropService dnd = session.getDragAndDropService();
+                String response = null;
+                for (int i = 0; i < 1000; i++) {
+                    Map<String, Object> variables = new HashMap<String, Object>();
+                    variables.put("dhowner", wrapper);
+                    variables.put("visitId",
+                            Integer.valueOf(ui.getUIId() * 10000 + i + 1));
+                    variables.put("type",
+                            Integer.valueOf(DragEventType.ENTER.ordinal()));
+                    variables.put("evt", new HashMap<String, Object>());
+                    variables.put("tra", new HashMap<String, Object>());
+                    dnd.changeVariables(null, variables);
+
+                    StringWriter writer = new StringWriter();
+                    dnd.printJSONResponse(writer, ui);
+                    response = writer.toString();
+                    String expected = "\"visitId\":"
+                            + (ui.getUIId() * 10000 + i + 1);
+                    if (!response.contains(expected)) {
+                        return response;
+                    }
+                }
+                return "ok";
+            }
+        });
+
+        Assert.assertEquals("ok", responses.get(0));
+        Assert.assertEquals("ok", responses.get(1));
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.Embedded;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.UI;
+
+public class UIPassivatorTest {
+
+    public static class PassivatableUI extends UI {
+        private final Page page = new Page(this, getState(false).pageState) {
+            @Override
+            public void init(VaadinRequest request) {
+            }
+        };
+
+        private final Label label = new Label("Hello");
+
+        @Override
+        protected void init(VaadinRequest request) {
+            setContent(label);
+        }
+
+        @Override
+        public Page getPage() {
+            return page;
+        }
+    }
+
+    private static class EmptySource implements StreamResource.StreamSource {
+        @Override
+        public InputStream getStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    }
+
+    private File directory;
+    private VaadinServletService service;
+    private MockVaadinSession session;
+    private UIPassivator passivator;
+
+    @Before
+    public void setup() throws Exception {
+        directory = File.createTempFile("passivated", "");
+        directory.delete();
+
+        Properties initParameters = new Properties();
+        initParameters.setProperty(
+                Constants.SERVLET_PARAMETER_UI_PASSIVATION_TIMEOUT, "3600");
+        initParameters.setProperty(
+                Constants.SERVLET_PARAMETER_UI_PASSIVATION_DIRECTORY,
+                directory.getPath());
+        VaadinServlet servlet = new VaadinServlet();
+        servlet.init(new MockServletConfig(initParameters));
+        service = servlet.getService();
+
+        session = new MockVaadinSession(service);
+        service.registerSession(session);
+        passivator = service.getUIPassivator();
+    }
+
+    @After
+    public void tearDown() {
+        service.destroy();
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private int getPassivatedFileCount() {
+        return passivator.getDirectory().listFiles().length;
+    }
+
+    private PassivatableUI createUI() {
+        PassivatableUI ui = new PassivatableUI();
+        VaadinServletRequest request = new VaadinServletRequest(
+                EasyMock.createMock(HttpServletRequest.class), service) {
+            @Override
+            public String getParameter(String name) {
+                return null;
+            }
+        };
+        session.lock();
+        try {
+            ui.doInit(request, session.getNextUIid(), null);
+            ui.setSession(session);
+            session.addUI(ui);
+        } finally {
+            session.unlock();
+        }
+        return ui;
+    }
+
+    @Test
+    public void idleUIPassivatedAndActivated() {
+        PassivatableUI idle = createUI();
+        idle.setLastUidlRequestTimestamp(0);
+        session.lock();
+        try {
+            idle.label.setValue("Changed");
+        } finally {
+            session.unlock();
+        }
+        PassivatableUI busy = createUI();
+
+        passivator.run();
+
+        Assert.assertEquals(1, passivator.getPassivationCount());
+        Assert.assertEquals(1, passivator.getPassivatedUICount());
+        Assert.assertEquals(1, getPassivatedFileCount());
+        Assert.assertEquals(1, passivator.getPassivatedSize().getCount());
+
+        session.lock();
+        try {
+            Assert.assertEquals(1, session.getUIs().size());
+            Assert.assertSame(busy, session.getUIs().iterator().next());
+
+            UI restored = session.getUIById(idle.getUIId());
+            Assert.assertNotNull(restored);
+            Assert.assertNotSame(idle, restored);
+            Assert.assertSame(session, restored.getSession());
+            Assert.assertEquals("Changed",
+                    ((PassivatableUI) restored).label.getValue());
+            Assert.assertSame(restored, session.getUIById(idle.getUIId()));
+            Assert.assertEquals(2, session.getUIs().size());
+        } finally {
+            session.unlock();
+        }
+
+        Assert.assertEquals(1, passivator.getActivationCount());
+        Assert.assertEquals(0, passivator.getPassivatedUICount());
+        Assert.assertEquals(0, getPassivatedFileCount());
+    }
+
+    @Test
+    public void heartbeatDoesNotActivate() {
+        PassivatableUI idle = createUI();
+        idle.setLastUidlRequestTimestamp(0);
+        idle.setLastHeartbeatTimestamp(System.currentTimeMillis() - 1000);
+        passivator.run();
+
+        long heartbeat = System.currentTimeMillis();
+        Assert.assertTrue(passivator.updateHeartbeat(session, idle.getUIId(),
+                heartbeat));
+        Assert.assertFalse(passivator.updateHeartbeat(session,
+                idle.getUIId() + 1, heartbeat));
+        Assert.assertEquals(0, passivator.getActivationCount());
+
+        session.lock();
+        try {
+            Assert.assertEquals(heartbeat, session.getUIById(idle.getUIId())
+                    .getLastHeartbeatTimestamp());
+        } finally {
+            session.unlock();
+        }
+    }
+
+    @Test
+    public void heartbeatDuringActivationNotLost() {
+        PassivatableUI idle = createUI();
+        idle.setLastUidlRequestTimestamp(0);
+        idle.setLastHeartbeatTimestamp(System.currentTimeMillis() - 1000);
+        passivator.run();
+
+        // A heartbeat that found the stub just before the UI was activated
+        UIPassivator.PassivatedUI stub = session.getPassivatedUI(idle
+                .getUIId());
+        UI restored;
+        session.lock();
+        try {
+            restored = session.getUIById(idle.getUIId());
+        } finally {
+            session.unlock();
+        }
+        long heartbeat = System.currentTimeMillis() + 1000;
+        stub.setLastHeartbeatTimestamp(heartbeat);
+
+        Assert.assertEquals(heartbeat, restored.getLastHeartbeatTimestamp());
+    }
+
+    @Test
+    public void passivatedUIDetachedWhenSessionDestroyed() {
+        PassivatableUI idle = createUI();
+        idle.setLastUidlRequestTimestamp(0);
+        passivator.run();
+        Assert.assertEquals(1, getPassivatedFileCount());
+
+        service.fireSessionDestroy(session);
+
+        Assert.assertEquals(1, passivator.getActivationCount());
+        Assert.assertEquals(0, getPassivatedFileCount());
+        session.lock();
+        try {
+            Assert.assertTrue(session.getUIs().isEmpty());
+            Assert.assertNull(session.getUIById(idle.getUIId()));
+        } finally {
+            session.unlock();
+        }
+    }
+
+    @Test
+    public void globalResourcesReleasedAndRestored() {
+        PassivatableUI idle = createUI();
+        idle.setLastUidlRequestTimestamp(0);
+        Embedded embedded = new Embedded();
+        StreamResource resource = new StreamResource(new EmptySource(),
+                "file");
+        GlobalResourceHandler handler;
+        String uri;
+        session.lock();
+        try {
+            CssLayout layout = new CssLayout(embedded);
+            idle.setContent(layout);
+            embedded.setSource(resource);
+            handler = session.getGlobalResourceHandler(true);
+            handler.register(resource, embedded);
+            uri = handler.getUri(embedded, resource);
+            Assert.assertNotNull(uri);
+        } finally {
+            session.unlock();
+        }
+
+        passivator.run();
+        Assert.assertEquals(1, passivator.getPassivationCount());
+
+        session.lock();
+        try {
+            // The old connectors are no longer referenced by the handler
+            Assert.assertNull(handler.getUri(embedded, resource));
+            Assert.assertTrue(handler.getRegistrations(idle).isEmpty());
+
+            UI restored = session.getUIById(idle.getUIId());
+            Embedded restoredEmbedded = (Embedded) ((CssLayout) restored
+                    .getContent()).getComponent(0);
+            StreamResource restoredResource = (StreamResource) restoredEmbedded
+                    .getSource();
+            Assert.assertNotSame(resource, restoredResource);
+            Assert.assertEquals(uri,
+                    handler.getUri(restoredEmbedded, restoredResource));
+
+            // New resources don't reuse the id of the restored one
+            Embedded other = new Embedded();
+            ((CssLayout) restored.getContent()).addComponent(other);
+            StreamResource otherResource = new StreamResource(
+                    new EmptySource(), "file");
+            handler.register(otherResource, other);
+            Assert.assertFalse(uri.equals(handler.getUri(other,
+                    otherResource)));
+        } finally {
+            session.unlock();
+        }
+    }
+
+    @Test
+    public void sharedObjectsPreventPassivation() {
+        PassivatableUI attributeUser = createUI();
+        attributeUser.setLastUidlRequestTimestamp(0);
+        PassivatableUI connectorUser = createUI();
+        connectorUser.setLastUidlRequestTimestamp(0);
+        PassivatableUI busy = createUI();
+        session.lock();
+        try {
+            ArrayList<String> attribute = new ArrayList<String>();
+            session.setAttribute("shared", attribute);
+            attributeUser.label.setData(attribute);
+            connectorUser.label.setData(busy.label);
+        } finally {
+            session.unlock();
+        }
+
+        passivator.run();
+
+        Assert.assertEquals(0, passivator.getPassivationCount());
+        Assert.assertEquals(2, passivator.getFailureCount());
+        Assert.assertEquals(0, getPassivatedFileCount());
+        session.lock();
+        try {
+            Assert.assertEquals(3, session.getUIs().size());
+            Assert.assertSame(attributeUser,
+                    session.getUIById(attributeUser.getUIId()));
+            Assert.assertSame(connectorUser,
+                    session.getUIById(connectorUser.getUIId()));
+        } finally {
+            session.unlock();
+        }
+    }
+
+    @Test
+    public void privateDirectoryPerPassivator() {
+        Assert.assertNull(passivator.getDirectory());
+        PassivatableUI idle = createUI();
+        idle.setLastUidlRequestTimestamp(0);
+        passivator.run();
+
+        File passivationDirectory = passivator.getDirectory();
+        Assert.assertEquals(directory, passivationDirectory.getParentFile());
+
+        UIPassivator other = new UIPassivator(service, directory, 1);
+        PassivatableUI otherIdle = createUI();
+        session.lock();
+        try {
+            Assert.assertTrue(other.passivate(session, otherIdle));
+        } finally {
+            session.unlock();
+        }
+        Assert.assertFalse(passivationDirectory.equals(other.getDirectory()));
+        Assert.assertEquals(directory, other.getDirectory().getParentFile());
+        Assert.assertEquals(1, getPassivatedFileCount());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server;
+
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.ui.Label;
+import com.vaadin.ui.UI;
+
+public class UIReaperTest {
+
+    private VaadinServletService service;
+    private MockVaadinSession session;
+    private UIReaper reaper;
+
+    @Before
+    public void setup() throws Exception {
+        Properties initParameters = new Properties();
+        initParameters.setProperty(
+                Constants.SERVLET_PARAMETER_UI_REAPER_INTERVAL, "3600");
+        VaadinServlet servlet = new VaadinServlet();
+        servlet.init(new MockServletConfig(initParameters));
+        service = servlet.getService();
+
+        session = new MockVaadinSession(service);
+        service.registerSession(session);
+        reaper = new UIReaper(service);
+    }
+
+    @After
+    public void tearDown() {
+        service.destroy();
+    }
+
+    private UI createUI() {
+        UI ui = new UI() {
+            Page page = new Page(this, getState(false).pageState) {
+                @Override
+                public void init(VaadinRequest request) {
+                }
+            };
+
+            @Override
+            protected void init(VaadinRequest request) {
+                setContent(new Label("Hello"));
+            }
+
+            @Override
+            public Page getPage() {
+                return page;
+            }
+        };
+        VaadinServletRequest request = new VaadinServletRequest(
+                EasyMock.createMock(HttpServletRequest.class), service) {
+            @Override
+            public String getParameter(String name) {
+                return null;
+            }
+        };
+        session.lock();
+        try {
+            ui.doInit(request, session.getNextUIid(), null);
+            ui.setSession(session);
+            session.addUI(ui);
+        } finally {
+            session.unlock();
+        }
+        return ui;
+    }
+
+    @Test
+    public void reaperScheduledWhenConfigured() {
+        Assert.assertNotNull(service.getUIReaper());
+    }
+
+    @Test
+    public void expiredUIIsRemoved() {
+        UI expired = createUI();
+        int connectors = expired.getConnectorTracker().getConnectorCount();
+        expired.setLastHeartbeatTimestamp(0);
+        UI active = createUI();
+
+        reaper.run();
+
+        Assert.assertTrue(expired.isClosing());
+        Assert.assertFalse(active.isClosing());
+        session.lock();
+        try {
+            Assert.assertNull(session.getUIById(expired.getUIId()));
+            Assert.assertSame(active, session.getUIById(active.getUIId()));
+        } finally {
+            session.unlock();
+        }
+
+        Assert.assertEquals(1, reaper.getRunCount());
+        Assert.assertEquals(1, reaper.getReclaimedUICount());
+        Assert.assertTrue(connectors > 1);
+        Assert.assertEquals(connectors, reaper.getReclaimedConnectorCount());
+        Assert.assertEquals(0, reaper.getSkippedSessionCount());
+    }
+
+    @Test
+    public void lockedSessionIsSkipped() throws Exception {
+        UI expired = createUI();
+        expired.setLastHeartbeatTimestamp(0);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        session.lock();
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    reaper.run();
+                    return null;
+                }
+            }).get(5, TimeUnit.SECONDS);
+        } finally {
+            session.unlock();
+            executor.shutdownNow();
+        }
+
+        Assert.assertFalse(expired.isClosing());
+        Assert.assertEquals(0, reaper.getReclaimedUICount());
+        Assert.assertEquals(1, reaper.getSkippedSessionCount());
+
+        reaper.run();
+        Assert.assertEquals(1, reaper.getReclaimedUICount());
+    }
+
+    @Test
+    public void destroyedSessionIsNotChecked() {
+        Assert.assertTrue(service.getSessions().contains(session));
+
+        service.fireSessionDestroy(session);
+
+        Assert.assertFalse(service.getSessions().contains(session));
+    }
+}
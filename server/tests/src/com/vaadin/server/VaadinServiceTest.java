@@ -15,14 +15,25 @@
  */
 package com.vaadin.server;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionBindingEvent;
 
 import org.easymock.EasyMock;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.vaadin.shared.ApplicationConstants;
+import com.vaadin.shared.ui.ui.UIConstants;
+import com.vaadin.ui.UI;
+
 /**
  * 
  * @author Vaadin Ltd
@@ -50,4 +61,87 @@ public class VaadinServiceTest {
                         + "method for closing session", 1,
                 vaadinSession.getCloseCount());
     }
+
+    @Test
+    public void heartbeatNotBlockedBySessionLock() throws Exception {
+        Properties initParameters = new Properties();
+        initParameters.setProperty(
+                Constants.SERVLET_PARAMETER_SESSION_LOCK_MAX_WAIT, "5000");
+        VaadinServlet servlet = new VaadinServlet();
+        servlet.init(new MockServletConfig(initParameters));
+        final VaadinService service = servlet.getService();
+
+        final WrappedSession wrappedSession = new WrappedHttpSession(
+                EasyMock.createNiceMock(HttpSession.class)) {
+            private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+            @Override
+            public Object getAttribute(String name) {
+                return attributes.get(name);
+            }
+
+            @Override
+            public void setAttribute(String name, Object value) {
+                attributes.put(name, value);
+            }
+        };
+
+        VaadinSession session = new VaadinSession(service);
+        UI ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.expect(request.getPathInfo())
+                .andReturn("/" + ApplicationConstants.HEARTBEAT_PATH + "/")
+                .anyTimes();
+        EasyMock.expect(request.getWrappedSession(EasyMock.anyBoolean()))
+                .andReturn(wrappedSession).anyTimes();
+        EasyMock.expect(request.getParameter(UIConstants.UI_ID_PARAMETER))
+                .andReturn("0").anyTimes();
+        EasyMock.replay(request);
+
+        service.lockSession(wrappedSession);
+        try {
+            session.storeInSession(service, wrappedSession);
+            ui.doInit(request, session.getNextUIid(), null);
+            ui.setSession(session);
+            session.addUI(ui);
+        } finally {
+            service.unlockSession(wrappedSession);
+        }
+        ui.setLastHeartbeatTimestamp(0);
+
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread lockHolder = new Thread() {
+            @Override
+            public void run() {
+                service.lockSession(wrappedSession);
+                try {
+                    locked.countDown();
+                    done.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Release the lock
+                } finally {
+                    service.unlockSession(wrappedSession);
+                }
+            }
+        };
+        lockHolder.start();
+        try {
+            Assert.assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+            long start = System.currentTimeMillis();
+            service.handleRequest(request,
+                    EasyMock.createNiceMock(VaadinResponse.class));
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+            Assert.assertTrue(ui.getLastHeartbeatTimestamp() > 0);
+        } finally {
+            done.countDown();
+            lockHolder.join();
+            service.destroy();
+        }
+    }
 }
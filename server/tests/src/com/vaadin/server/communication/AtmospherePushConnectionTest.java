@@ -0,0 +1,185 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server.communication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.Broadcaster;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.LegacyCommunicationManager;
+import com.vaadin.server.MockVaadinSession;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinServlet;
+import com.vaadin.server.VaadinServletService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.tests.util.MockDeploymentConfiguration;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.UI;
+
+public class AtmospherePushConnectionTest {
+
+    private VaadinService service;
+    private VaadinSession session;
+    private UI ui;
+    private Label label;
+    private AtmospherePushConnection connection;
+    private final List<Object> messages = new ArrayList<Object>();
+
+    @Before
+    public void setUp() throws Exception {
+        service = new VaadinServletService(new VaadinServlet(),
+                new MockDeploymentConfiguration()) {
+            @Override
+            public String getServiceName() {
+                return "push-test";
+            }
+        };
+
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.replay(request);
+
+        session = new MockVaadinSession(service);
+        ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        ui.doInit(request, 0, "");
+
+        session.lock();
+        try {
+            session.setCommunicationManager(new LegacyCommunicationManager(
+                    session));
+            ui.setSession(session);
+            session.addUI(ui);
+            label = new Label("0");
+            ui.setContent(label);
+
+            connection = new AtmospherePushConnection(ui);
+            connection.connect(createResource());
+        } finally {
+            session.unlock();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        service.destroy();
+    }
+
+    @Test
+    public void pushesSentImmediatelyByDefault() {
+        session.lock();
+        try {
+            for (int i = 1; i <= 3; i++) {
+                label.setValue(String.valueOf(i));
+                connection.push();
+            }
+        } finally {
+            session.unlock();
+        }
+
+        Assert.assertEquals(3, messages.size());
+        Assert.assertEquals(3, connection.getPushRequestCount());
+        Assert.assertEquals(3, connection.getMessageCount());
+    }
+
+    @Test
+    public void pushesWithinWindowCoalesced() throws InterruptedException {
+        connection.setCoalescingWindow(100);
+
+        session.lock();
+        try {
+            for (int i = 1; i <= 10; i++) {
+                label.setValue(String.valueOf(i));
+                connection.push();
+            }
+            // Only the first push is sent right away
+            Assert.assertEquals(1, messages.size());
+        } finally {
+            session.unlock();
+        }
+
+        long timeout = System.currentTimeMillis() + 5000;
+        while (messages.size() < 2 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+
+        session.lock();
+        try {
+            Assert.assertEquals(2, messages.size());
+            Assert.assertTrue(messages.get(1).toString().contains("\"10\""));
+            Assert.assertFalse(ui.getConnectorTracker().hasDirtyConnectors());
+            Assert.assertEquals(10, connection.getPushRequestCount());
+            Assert.assertEquals(2, connection.getMessageCount());
+        } finally {
+            session.unlock();
+        }
+    }
+
+    @Test
+    public void responseIncludesDeferredChanges() throws InterruptedException {
+        connection.setCoalescingWindow(100);
+
+        session.lock();
+        try {
+            label.setValue("1");
+            connection.push();
+            label.setValue("2");
+            connection.push();
+            // A response to a client request is never deferred
+            connection.push(false);
+        } finally {
+            session.unlock();
+        }
+
+        Thread.sleep(300);
+        Assert.assertEquals(2, messages.size());
+        Assert.assertEquals(2, connection.getMessageCount());
+    }
+
+    private AtmosphereResource createResource() {
+        final AtmosphereResource resource = EasyMock
+                .createNiceMock(AtmosphereResource.class);
+        Broadcaster broadcaster = EasyMock.createNiceMock(Broadcaster.class);
+        final Future<Object> sent = EasyMock.createNiceMock(Future.class);
+        EasyMock.expect(sent.isDone()).andReturn(true).anyTimes();
+        EasyMock.expect(resource.getBroadcaster()).andReturn(broadcaster)
+                .anyTimes();
+        EasyMock.expect(broadcaster.broadcast(EasyMock.anyObject(), EasyMock
+                .same(resource))).andAnswer(new IAnswer<Future<Object>>() {
+            @Override
+            public Future<Object> answer() throws Throwable {
+                synchronized (messages) {
+                    messages.add(EasyMock.getCurrentArguments()[0]);
+                }
+                return sent;
+            }
+        }).anyTimes();
+        EasyMock.replay(resource, broadcaster, sent);
+        return resource;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringWriter;
+
+import org.easymock.EasyMock;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.LegacyCommunicationManager;
+import com.vaadin.server.MockVaadinSession;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Slider;
+import com.vaadin.ui.UI;
+
+public class DiffStateStoreTest {
+
+    private VaadinSession session;
+    private UI ui;
+    private Button button;
+
+    @Before
+    public void setUp() {
+        VaadinService service = EasyMock.createNiceMock(VaadinService.class);
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.replay(service, request);
+
+        session = new MockVaadinSession(service);
+        ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        ui.doInit(request, 0, "");
+
+        session.lock();
+        session.setCommunicationManager(new LegacyCommunicationManager(session));
+        ui.setSession(session);
+        session.addUI(ui);
+
+        button = new Button("Initial");
+        ui.setContent(button);
+    }
+
+    @After
+    public void tearDown() {
+        session.unlock();
+    }
+
+    @Test
+    public void defaultStoreKeepsJson() {
+        Assert.assertTrue(ui.getConnectorTracker().getDiffStateStore() instanceof JsonDiffStateStore);
+    }
+
+    @Test
+    public void compactStoreSendsOnlyChanges() throws Exception {
+        ui.getConnectorTracker().setDiffStateStore(new CompactDiffStateStore());
+
+        JSONObject states = writeStates();
+        Assert.assertEquals("Initial",
+                states.getJSONObject(button.getConnectorId()).get("caption"));
+
+        button.setCaption("Changed");
+        states = writeStates();
+        JSONObject buttonState = states.getJSONObject(button.getConnectorId());
+        Assert.assertEquals(1, buttonState.length());
+        Assert.assertEquals("Changed", buttonState.get("caption"));
+
+        ui.getConnectorTracker().markDirty(button);
+        Assert.assertEquals(0, writeStates().length());
+    }
+
+    @Test
+    public void compactStoreComparesNumbersByValue() throws Exception {
+        ui.getConnectorTracker().setDiffStateStore(new CompactDiffStateStore());
+        Slider slider = new Slider(0, 100);
+        slider.setValue(50.0);
+        ui.setContent(slider);
+
+        JSONObject sliderState = writeStates().getJSONObject(
+                slider.getConnectorId());
+        Assert.assertEquals(50, sliderState.getInt("value"));
+
+        ui.getConnectorTracker().markDirty(slider);
+        Assert.assertEquals(0, writeStates().length());
+
+        slider.setValue(75.5);
+        sliderState = writeStates().getJSONObject(slider.getConnectorId());
+        Assert.assertEquals(1, sliderState.length());
+        Assert.assertEquals(75.5, sliderState.getDouble("value"), 0);
+    }
+
+    @Test
+    public void modifiedDiffStateIsStoredExplicitly() throws Exception {
+        ui.getConnectorTracker().setDiffStateStore(new CompactDiffStateStore());
+        writeStates();
+
+        JSONObject diffState = ui.getConnectorTracker().getDiffState(button);
+        diffState.put("caption", "Client value");
+        // Not stored yet
+        Assert.assertEquals("Initial", ui.getConnectorTracker()
+                .getDiffState(button).get("caption"));
+
+        ui.getConnectorTracker().setDiffState(button, diffState);
+        Assert.assertEquals("Client value", ui.getConnectorTracker()
+                .getDiffState(button).get("caption"));
+    }
+
+    @Test
+    public void storesSurviveSerialization() throws Exception {
+        assertSerializable(new JsonDiffStateStore());
+        assertSerializable(new CompactDiffStateStore());
+    }
+
+    private void assertSerializable(DiffStateStore store) throws Exception {
+        Button button = new Button();
+        store.put(button, new JSONObject("{\"caption\":\"foo\",\"width\":1}"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(button);
+        out.writeObject(store);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray()));
+        Button readButton = (Button) in.readObject();
+        DiffStateStore readStore = (DiffStateStore) in.readObject();
+
+        Assert.assertEquals(1, readStore.size());
+        JSONObject state = readStore.get(readButton);
+        Assert.assertEquals("foo", state.get("caption"));
+        Assert.assertEquals(1, state.getInt("width"));
+    }
+
+    private JSONObject writeStates() throws Exception {
+        StringWriter writer = new StringWriter();
+        new SharedStateWriter().write(ui, writer);
+        ui.getConnectorTracker().markAllConnectorsClean();
+        return new JSONObject(writer.toString());
+    }
+}
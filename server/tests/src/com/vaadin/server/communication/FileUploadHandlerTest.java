@@ -0,0 +1,677 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.Constants;
+import com.vaadin.server.LegacyCommunicationManager;
+import com.vaadin.server.MockVaadinSession;
+import com.vaadin.server.ServletPortletHelper;
+import com.vaadin.server.StreamVariable;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.server.communication.FileUploadHandler.SimpleMultiPartInputStream;
+import com.vaadin.shared.ui.upload.UploadConstants;
+import com.vaadin.tests.util.MockDeploymentConfiguration;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.Upload;
+import com.vaadin.ui.Upload.FailedEvent;
+import com.vaadin.ui.Upload.FailedListener;
+import com.vaadin.ui.Upload.ResumableReceiver;
+import com.vaadin.ui.Upload.SucceededEvent;
+import com.vaadin.ui.Upload.SucceededListener;
+
+public class FileUploadHandlerTest {
+
+    private static class RecordingStreamVariable implements StreamVariable {
+        private final File file;
+        private final List<Long> progress = new ArrayList<Long>();
+        private long finishedLength = -1;
+
+        public RecordingStreamVariable(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            try {
+                return new FileOutputStream(file);
+            } catch (FileNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public boolean listenProgress() {
+            return true;
+        }
+
+        @Override
+        public void onProgress(StreamingProgressEvent event) {
+            progress.add(Long.valueOf(event.getBytesReceived()));
+        }
+
+        @Override
+        public void streamingStarted(StreamingStartEvent event) {
+        }
+
+        @Override
+        public void streamingFinished(StreamingEndEvent event) {
+            finishedLength = event.getBytesReceived();
+        }
+
+        @Override
+        public void streamingFailed(StreamingErrorEvent event) {
+        }
+
+        @Override
+        public boolean isInterrupted() {
+            return false;
+        }
+    }
+
+    /**
+     * Receiver keeping the uploaded content in memory.
+     */
+    private static class MemoryReceiver implements ResumableReceiver {
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        @Override
+        public OutputStream receiveUpload(String filename, String mimeType) {
+            content.reset();
+            return content;
+        }
+
+        @Override
+        public OutputStream receiveUpload(String filename, String mimeType,
+                long offset) {
+            byte[] received = content.toByteArray();
+            content.reset();
+            content.write(received, 0, (int) offset);
+            return content;
+        }
+    }
+
+    public static class TestUpload extends Upload {
+        @Override
+        public StreamVariable getStreamVariable() {
+            return super.getStreamVariable();
+        }
+    }
+
+    private static class RecordingResponse implements VaadinResponse {
+        private int status = HttpServletResponse.SC_OK;
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        @Override
+        public void setStatus(int statusCode) {
+            status = statusCode;
+        }
+
+        @Override
+        public void setContentType(String contentType) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public void setDateHeader(String name, long timestamp) {
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            return new PrintWriter(getOutputStream());
+        }
+
+        @Override
+        public void setCacheTime(long milliseconds) {
+        }
+
+        @Override
+        public void sendError(int errorCode, String message) {
+            status = errorCode;
+        }
+
+        @Override
+        public VaadinService getService() {
+            return null;
+        }
+
+        @Override
+        public void addCookie(Cookie cookie) {
+        }
+
+        public long getOffset() {
+            return Long.parseLong(headers
+                    .get(UploadConstants.UPLOAD_OFFSET_HEADER));
+        }
+    }
+
+    /**
+     * Stream that fails after a given number of bytes, like a request whose
+     * connection is lost.
+     */
+    private static class FlakyInputStream extends FilterInputStream {
+        private int failAfter;
+
+        public FlakyInputStream(byte[] content, int offset, int length,
+                int failAfter) {
+            super(new ByteArrayInputStream(content, offset, length));
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (failAfter == 0) {
+                throw new IOException("Connection reset");
+            }
+            // Return at most 100 bytes at a time like a network stream
+            len = Math.min(len, 100);
+            if (failAfter > 0) {
+                len = Math.min(len, failAfter);
+            }
+            int read = super.read(b, off, len);
+            if (failAfter > 0 && read > 0) {
+                failAfter -= read;
+            }
+            return read;
+        }
+    }
+
+    private File file;
+    private MockDeploymentConfiguration configuration;
+    private VaadinService service;
+    private VaadinSession session;
+    private Capture<Runnable> accessTask;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("upload", "");
+
+        configuration = new MockDeploymentConfiguration();
+        configuration.setApplicationOrSystemProperty(
+                Constants.SERVLET_PARAMETER_UPLOAD_BUFFER_SIZE, "1024");
+
+        service = EasyMock.createNiceMock(VaadinService.class);
+        EasyMock.expect(service.getDeploymentConfiguration())
+                .andReturn(configuration).anyTimes();
+        accessTask = new Capture<Runnable>();
+        EasyMock.expect(
+                service.accessSession(EasyMock.<VaadinSession> anyObject(),
+                        EasyMock.capture(accessTask))).andReturn(null);
+        EasyMock.replay(service);
+
+        session = new MockVaadinSession(service);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void multipartUploadWrittenToFileWithQueuedProgress()
+            throws Exception {
+        byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        byte[] end = "\r\n--boundary--\r\n".getBytes("UTF-8");
+        byte[] input = Arrays.copyOf(content, content.length + end.length);
+        System.arraycopy(end, 0, input, content.length, end.length);
+
+        FileUploadHandler handler = new FileUploadHandler() {
+            @Override
+            protected int getProgressEventInterval() {
+                return 0;
+            }
+        };
+        RecordingStreamVariable streamVariable = new RecordingStreamVariable(
+                file);
+        SimpleMultiPartInputStream in = new SimpleMultiPartInputStream(
+                new ByteArrayInputStream(input), "boundary",
+                handler.getUploadBufferSize(session));
+
+        handler.streamToReceiver(session, in, streamVariable, "file",
+                "application/octet-stream", content.length);
+
+        Assert.assertEquals(content.length, file.length());
+        byte[] written = new byte[content.length];
+        FileInputStream fileInput = new FileInputStream(file);
+        try {
+            Assert.assertEquals(content.length, fileInput.read(written));
+        } finally {
+            fileInput.close();
+        }
+        Assert.assertTrue(Arrays.equals(content, written));
+        Assert.assertEquals(content.length, streamVariable.finishedLength);
+
+        // Only one access task is queued for all intermediate progress, and
+        // the final progress is delivered when finishing
+        EasyMock.verify(service);
+        Assert.assertEquals(
+                Arrays.asList(Long.valueOf(content.length)),
+                streamVariable.progress);
+
+        // A task delivered after the upload has finished does nothing
+        accessTask.getValue().run();
+        Assert.assertEquals(1, streamVariable.progress.size());
+    }
+
+    @Test
+    public void fileOutputStreamSubclassWrittenThroughWrite()
+            throws Exception {
+        byte[] content = new byte[10000];
+        Arrays.fill(content, (byte) 'x');
+        byte[] end = "\r\n--boundary--\r\n".getBytes("UTF-8");
+        byte[] input = Arrays.copyOf(content, content.length + end.length);
+        System.arraycopy(end, 0, input, content.length, end.length);
+
+        final long[] written = new long[1];
+        RecordingStreamVariable streamVariable = new RecordingStreamVariable(
+                file) {
+            @Override
+            public OutputStream getOutputStream() {
+                try {
+                    return new FileOutputStream(file) {
+                        @Override
+                        public void write(byte[] b, int off, int len)
+                                throws IOException {
+                            written[0] += len;
+                            super.write(b, off, len);
+                        }
+                    };
+                } catch (FileNotFoundException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        FileUploadHandler handler = new FileUploadHandler();
+        SimpleMultiPartInputStream in = new SimpleMultiPartInputStream(
+                new ByteArrayInputStream(input), "boundary",
+                handler.getUploadBufferSize(session));
+
+        handler.streamToReceiver(session, in, streamVariable, "file",
+                "application/octet-stream", content.length);
+
+        Assert.assertEquals(content.length, written[0]);
+        Assert.assertEquals(content.length, file.length());
+    }
+
+    private TestUpload createUpload(MemoryReceiver receiver) {
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.replay(request);
+        UI ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        TestUpload upload = new TestUpload();
+        upload.setReceiver(receiver);
+        session.lock();
+        try {
+            session.setCommunicationManager(new LegacyCommunicationManager(
+                    session));
+            ui.doInit(request, session.getNextUIid(), null);
+            ui.setSession(session);
+            session.addUI(ui);
+            ui.setContent(upload);
+            ui.getConnectorTracker().addStreamVariable(
+                    upload.getConnectorId(), "action",
+                    upload.getStreamVariable());
+        } finally {
+            session.unlock();
+        }
+        return upload;
+    }
+
+    /**
+     * Creates a chunk request of the given upload, or a plain XHR upload
+     * request if the upload id is <code>null</code>.
+     */
+    private VaadinRequest createChunkRequest(Upload upload, String uploadId,
+            InputStream content, long offset, long length) throws IOException {
+        String secKey;
+        session.lock();
+        try {
+            secKey = upload.getUI().getConnectorTracker()
+                    .getSeckey(((TestUpload) upload).getStreamVariable());
+        } finally {
+            session.unlock();
+        }
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.expect(request.getPathInfo())
+                .andReturn(
+                        "/" + ServletPortletHelper.UPLOAD_URL_PREFIX
+                                + upload.getUI().getUIId() + "/"
+                                + upload.getConnectorId() + "/action/"
+                                + secKey).anyTimes();
+        EasyMock.expect(request.getContentType())
+                .andReturn("application/octet-stream").anyTimes();
+        if (uploadId != null) {
+            EasyMock.expect(
+                    request.getHeader(UploadConstants.UPLOAD_ID_HEADER))
+                    .andReturn(uploadId).anyTimes();
+            EasyMock.expect(
+                    request.getHeader(UploadConstants.UPLOAD_OFFSET_HEADER))
+                    .andReturn(Long.toString(offset)).anyTimes();
+            EasyMock.expect(
+                    request.getHeader(UploadConstants.UPLOAD_LENGTH_HEADER))
+                    .andReturn(Long.toString(length)).anyTimes();
+            EasyMock.expect(
+                    request.getHeader(UploadConstants.UPLOAD_FILENAME_HEADER))
+                    .andReturn("file%20name.bin").anyTimes();
+        } else {
+            EasyMock.expect(request.getContentLength())
+                    .andReturn((int) length).anyTimes();
+        }
+        EasyMock.expect(request.getInputStream()).andReturn(content)
+                .anyTimes();
+        EasyMock.replay(request);
+        return request;
+    }
+
+    @Test
+    public void chunkedUploadResumedWithFlakyClient() throws Exception {
+        MemoryReceiver receiver = new MemoryReceiver();
+        TestUpload upload = createUpload(receiver);
+        final List<String> succeeded = new ArrayList<String>();
+        upload.addSucceededListener(new SucceededListener() {
+            @Override
+            public void uploadSucceeded(SucceededEvent event) {
+                succeeded.add(event.getFilename() + ":" + event.getLength());
+            }
+        });
+
+        Random random = new Random(42);
+        byte[] content = new byte[50000];
+        random.nextBytes(content);
+        int chunkSize = 4096;
+
+        FileUploadHandler handler = new FileUploadHandler();
+        long acknowledged = 0;
+        int requests = 0;
+        int failures = 0;
+        while (acknowledged < content.length) {
+            requests++;
+            Assert.assertTrue("Upload does not progress", requests < 200);
+            int length = (int) Math.min(chunkSize, content.length
+                    - acknowledged);
+            // Every third request loses its connection partway
+            boolean fail = random.nextInt(3) == 0;
+            InputStream chunk = new FlakyInputStream(content,
+                    (int) acknowledged, length, fail ? random.nextInt(length)
+                            : -1);
+            RecordingResponse response = new RecordingResponse();
+
+            Assert.assertTrue(handler.handleRequest(session,
+                    createChunkRequest(upload, "1", chunk, acknowledged,
+                            content.length), response));
+
+            if (fail) {
+                // The client never sees the response and retries the chunk
+                failures++;
+                continue;
+            }
+            if (response.status == HttpServletResponse.SC_CONFLICT) {
+                Assert.assertTrue(response.getOffset() > acknowledged);
+            } else {
+                Assert.assertEquals(HttpServletResponse.SC_OK,
+                        response.status);
+                Assert.assertEquals(acknowledged + length,
+                        response.getOffset());
+            }
+            acknowledged = response.getOffset();
+        }
+
+        Assert.assertTrue(failures > 0);
+        Assert.assertTrue(Arrays.equals(content,
+                receiver.content.toByteArray()));
+        Assert.assertEquals(Arrays.asList("file name.bin:" + content.length),
+                succeeded);
+        Assert.assertFalse(upload.isUploading());
+    }
+
+    @Test
+    public void chunkAtWrongOffsetRejected() throws Exception {
+        TestUpload upload = createUpload(new MemoryReceiver());
+        byte[] content = new byte[100];
+
+        RecordingResponse response = new RecordingResponse();
+        new FileUploadHandler().handleRequest(session,
+                createChunkRequest(upload, "1", new ByteArrayInputStream(
+                        content, 0, 50), 50, content.length), response);
+
+        Assert.assertEquals(HttpServletResponse.SC_CONFLICT, response.status);
+        Assert.assertEquals(0, response.getOffset());
+    }
+
+    private List<String> recordEvents(Upload upload) {
+        final List<String> events = new ArrayList<String>();
+        upload.addSucceededListener(new SucceededListener() {
+            @Override
+            public void uploadSucceeded(SucceededEvent event) {
+                events.add("succeeded:" + event.getLength());
+            }
+        });
+        upload.addFailedListener(new FailedListener() {
+            @Override
+            public void uploadFailed(FailedEvent event) {
+                events.add("failed:"
+                        + event.getReason().getClass().getSimpleName());
+            }
+        });
+        return events;
+    }
+
+    /**
+     * Sends the first half of a chunked upload, after which the client
+     * abandons it.
+     */
+    private void sendAbandonedUpload(TestUpload upload, byte[] content)
+            throws IOException {
+        RecordingResponse response = new RecordingResponse();
+        new FileUploadHandler().handleRequest(session,
+                createChunkRequest(upload, "abandoned",
+                        new ByteArrayInputStream(content, 0, 50), 0,
+                        content.length), response);
+        Assert.assertEquals(50, response.getOffset());
+        Assert.assertTrue(upload.isUploading());
+    }
+
+    @Test
+    public void newChunkedUploadReplacesAbandonedUpload() throws Exception {
+        MemoryReceiver receiver = new MemoryReceiver();
+        TestUpload upload = createUpload(receiver);
+        List<String> events = recordEvents(upload);
+        byte[] content = new byte[100];
+        new Random(42).nextBytes(content);
+        sendAbandonedUpload(upload, new byte[100]);
+
+        FileUploadHandler handler = new FileUploadHandler();
+        RecordingResponse response = new RecordingResponse();
+        handler.handleRequest(session, createChunkRequest(upload, "new",
+                new ByteArrayInputStream(content), 0, content.length),
+                response);
+
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+        Assert.assertEquals(content.length, response.getOffset());
+        Assert.assertTrue(Arrays.equals(content,
+                receiver.content.toByteArray()));
+        Assert.assertEquals(
+                Arrays.asList("failed:UploadException", "succeeded:100"),
+                events);
+        Assert.assertFalse(upload.isUploading());
+
+        // The abandoned upload is gone and has to start over
+        response = new RecordingResponse();
+        handler.handleRequest(session, createChunkRequest(upload,
+                "abandoned", new ByteArrayInputStream(content, 50, 50), 50,
+                content.length), response);
+        Assert.assertEquals(HttpServletResponse.SC_CONFLICT, response.status);
+        Assert.assertEquals(0, response.getOffset());
+    }
+
+    @Test
+    public void plainUploadReplacesAbandonedUpload() throws Exception {
+        MemoryReceiver receiver = new MemoryReceiver();
+        TestUpload upload = createUpload(receiver);
+        List<String> events = recordEvents(upload);
+        byte[] content = new byte[100];
+        new Random(42).nextBytes(content);
+        sendAbandonedUpload(upload, new byte[100]);
+
+        new FileUploadHandler().handleRequest(session,
+                createChunkRequest(upload, null, new ByteArrayInputStream(
+                        content), 0, content.length),
+                new RecordingResponse());
+
+        Assert.assertTrue(Arrays.equals(content,
+                receiver.content.toByteArray()));
+        Assert.assertEquals(
+                Arrays.asList("failed:UploadException", "succeeded:100"),
+                events);
+        Assert.assertFalse(upload.isUploading());
+    }
+
+    @Test
+    public void interruptDiscardsAbandonedUpload() throws Exception {
+        TestUpload upload = createUpload(new MemoryReceiver());
+        List<String> events = recordEvents(upload);
+        byte[] content = new byte[100];
+        sendAbandonedUpload(upload, content);
+
+        session.lock();
+        try {
+            upload.interruptUpload();
+        } finally {
+            session.unlock();
+        }
+        Assert.assertEquals(Arrays.asList("failed:UploadInterruptedException"),
+                events);
+        Assert.assertFalse(upload.isUploading());
+
+        RecordingResponse response = new RecordingResponse();
+        new FileUploadHandler().handleRequest(session, createChunkRequest(
+                upload, "abandoned", new ByteArrayInputStream(content, 50, 50),
+                50, content.length), response);
+        Assert.assertEquals(HttpServletResponse.SC_CONFLICT, response.status);
+        Assert.assertEquals(0, response.getOffset());
+    }
+
+    @Test
+    public void concurrentUploadsLimited() throws Exception {
+        configuration.setApplicationOrSystemProperty(
+                Constants.SERVLET_PARAMETER_MAX_CONCURRENT_UPLOADS, "1");
+        final TestUpload upload = createUpload(new MemoryReceiver());
+        final FileUploadHandler handler = new FileUploadHandler();
+        final byte[] content = new byte[100];
+
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        InputStream blocking = new ByteArrayInputStream(content) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                reading.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+                return super.read(b, off, len);
+            }
+        };
+        final VaadinRequest blockingRequest = createChunkRequest(upload, "1",
+                blocking, 0, content.length);
+        final RecordingResponse blockedResponse = new RecordingResponse();
+        Thread uploader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    handler.handleRequest(session, blockingRequest,
+                            blockedResponse);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        uploader.start();
+        try {
+            Assert.assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+            RecordingResponse response = new RecordingResponse();
+            handler.handleRequest(session, createChunkRequest(upload, "1",
+                    new ByteArrayInputStream(content), 0, content.length),
+                    response);
+            Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    response.status);
+        } finally {
+            release.countDown();
+            uploader.join();
+        }
+        Assert.assertEquals(HttpServletResponse.SC_OK, blockedResponse.status);
+        Assert.assertEquals(content.length, blockedResponse.getOffset());
+    }
+
+    @Test
+    public void invalidBufferSizeUsesDefault() {
+        ((MockDeploymentConfiguration) service.getDeploymentConfiguration())
+                .setApplicationOrSystemProperty(
+                        Constants.SERVLET_PARAMETER_UPLOAD_BUFFER_SIZE, "-1");
+        Assert.assertEquals(FileUploadHandler.DEFAULT_UPLOAD_BUFFER_SIZE,
+                new FileUploadHandler().getUploadBufferSize(session));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server.communication;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.MockVaadinSession;
+import com.vaadin.server.RequestHandler;
+import com.vaadin.server.RequestMetrics;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.ApplicationConstants;
+import com.vaadin.shared.ui.ui.UIConstants;
+import com.vaadin.ui.UI;
+
+public class HeartbeatHandlerTest {
+
+    private VaadinSession session;
+    private UI ui;
+    private VaadinResponse response;
+
+    @Before
+    public void setUp() {
+        VaadinService service = EasyMock.createNiceMock(VaadinService.class);
+        EasyMock.expect(service.getRequestMetrics())
+                .andReturn(new RequestMetrics(0)).anyTimes();
+        EasyMock.replay(service);
+        session = new MockVaadinSession(service);
+        response = EasyMock.createNiceMock(VaadinResponse.class);
+        EasyMock.replay(response);
+
+        ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        session.lock();
+        try {
+            ui.doInit(createHeartbeatRequest(null), session.getNextUIid(),
+                    null);
+            ui.setSession(session);
+            session.addUI(ui);
+        } finally {
+            session.unlock();
+        }
+        ui.setLastHeartbeatTimestamp(0);
+    }
+
+    private static VaadinRequest createHeartbeatRequest(String uiId) {
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.expect(request.getPathInfo())
+                .andReturn("/" + ApplicationConstants.HEARTBEAT_PATH + "/")
+                .anyTimes();
+        EasyMock.expect(request.getParameter(UIConstants.UI_ID_PARAMETER))
+                .andReturn(uiId).anyTimes();
+        EasyMock.replay(request);
+        return request;
+    }
+
+    @Test
+    public void heartbeatHandledWhileSessionLockedByOtherThread()
+            throws Exception {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread lockHolder = new Thread() {
+            @Override
+            public void run() {
+                session.lock();
+                try {
+                    locked.countDown();
+                    done.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Release the lock
+                } finally {
+                    session.unlock();
+                }
+            }
+        };
+        lockHolder.start();
+        try {
+            Assert.assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+            HeartbeatHandler handler = new HeartbeatHandler();
+            Assert.assertTrue(handler.handleRequest(session,
+                    createHeartbeatRequest(String.valueOf(ui.getUIId())),
+                    response));
+            Assert.assertTrue(ui.getLastHeartbeatTimestamp() > 0);
+        } finally {
+            done.countDown();
+            lockHolder.join();
+        }
+    }
+
+    @Test
+    public void heartbeatForUnknownUIHandledWhileLocked() throws IOException {
+        final boolean[] handledWhileLocked = new boolean[1];
+        HeartbeatHandler handler = new HeartbeatHandler() {
+            @Override
+            public boolean synchronizedHandleRequest(VaadinSession session,
+                    VaadinRequest request, VaadinResponse response)
+                    throws IOException {
+                handledWhileLocked[0] = session.hasLock();
+                return true;
+            }
+        };
+
+        Assert.assertTrue(handler.handleRequest(session,
+                createHeartbeatRequest("42"), response));
+        Assert.assertTrue(handledWhileLocked[0]);
+        Assert.assertEquals(0, ui.getLastHeartbeatTimestamp());
+    }
+
+    @Test
+    public void heartbeatPassedToSessionHandlersWithoutLocking()
+            throws IOException {
+        final boolean[] handledWhileLocked = new boolean[] { true };
+        session.lock();
+        try {
+            session.addRequestHandler(new RequestHandler() {
+                @Override
+                public boolean handleRequest(VaadinSession session,
+                        VaadinRequest request, VaadinResponse response) {
+                    handledWhileLocked[0] = session.hasLock();
+                    return true;
+                }
+            });
+        } finally {
+            session.unlock();
+        }
+
+        Assert.assertTrue(new SessionRequestHandler().handleRequest(session,
+                createHeartbeatRequest(String.valueOf(ui.getUIId())),
+                response));
+        Assert.assertFalse(handledWhileLocked[0]);
+    }
+
+    @Test
+    public void updateHeartbeatReturnsFalseForUnknownUI() {
+        Assert.assertFalse(session.updateHeartbeat(42, 1000));
+        Assert.assertTrue(session.updateHeartbeat(ui.getUIId(), 1000));
+        Assert.assertEquals(1000, ui.getLastHeartbeatTimestamp());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.zip.GZIPInputStream;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.RequestMetrics;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinService;
+import com.vaadin.tests.util.MockDeploymentConfiguration;
+
+public class ResponseCompressionTest {
+
+    private static final String JSON = "{\"changes\":[],\"state\":{\"0\":{\"caption\":\"Hello world\"}}}";
+
+    private MockDeploymentConfiguration configuration;
+    private ResponseCompression compression;
+    private VaadinService service;
+    private ByteArrayOutputStream body;
+    private Capture<String> contentEncoding;
+
+    @Before
+    public void setUp() {
+        configuration = new MockDeploymentConfiguration();
+        compression = new ResponseCompression();
+        service = EasyMock.createNiceMock(VaadinService.class);
+        EasyMock.expect(service.getDeploymentConfiguration())
+                .andReturn(configuration).anyTimes();
+        EasyMock.expect(service.getResponseCompression())
+                .andReturn(compression).anyTimes();
+        EasyMock.expect(service.getRequestMetrics())
+                .andReturn(new RequestMetrics(0)).anyTimes();
+        EasyMock.replay(service);
+        body = new ByteArrayOutputStream();
+        contentEncoding = new Capture<String>();
+    }
+
+    @Test
+    public void compressionDisabledByDefault() throws IOException {
+        commit(createRequest("gzip, deflate"));
+
+        Assert.assertFalse(contentEncoding.hasCaptured());
+        Assert.assertEquals(JSON, new String(body.toByteArray(), "UTF-8"));
+        Assert.assertEquals(0, compression.getCompressedResponseCount());
+    }
+
+    @Test
+    public void responseAboveThresholdCompressed() throws IOException {
+        configuration.setCompressionThreshold(10);
+        commit(createRequest("gzip, deflate"));
+
+        Assert.assertEquals("gzip", contentEncoding.getValue());
+        Assert.assertEquals(JSON, gunzip(body.toByteArray()));
+        Assert.assertEquals(1, compression.getCompressedResponseCount());
+        Assert.assertEquals(JSON.length(), compression.getUncompressedBytes());
+        Assert.assertEquals(body.size(), compression.getCompressedBytes());
+    }
+
+    @Test
+    public void responseBelowThresholdNotCompressed() throws IOException {
+        configuration.setCompressionThreshold(JSON.length() + 1);
+        commit(createRequest("gzip"));
+
+        Assert.assertFalse(contentEncoding.hasCaptured());
+        Assert.assertEquals(JSON, new String(body.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void notCompressedWithoutAcceptEncoding() throws IOException {
+        configuration.setCompressionThreshold(0);
+        commit(createRequest(null));
+
+        Assert.assertFalse(contentEncoding.hasCaptured());
+        Assert.assertEquals(JSON, new String(body.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void compressedStreamRecordsStatistics() throws IOException {
+        configuration.setCompressionThreshold(0);
+        configuration.setCompressionLevel(1);
+        VaadinRequest request = createRequest("gzip");
+        Assert.assertTrue(compression.isCompressed(request, -1));
+
+        byte[] data = JSON.getBytes("UTF-8");
+        OutputStream out = compression.openCompressedStream(request,
+                createResponse());
+        out.write(data);
+        out.close();
+
+        Assert.assertEquals("gzip", contentEncoding.getValue());
+        Assert.assertEquals(JSON, gunzip(body.toByteArray()));
+        Assert.assertEquals(data.length, compression.getUncompressedBytes());
+        Assert.assertEquals(body.size(), compression.getCompressedBytes());
+    }
+
+    @Test
+    public void acceptEncodingParsing() {
+        Assert.assertTrue(ResponseCompression
+                .isGzipAccepted(createRequest("gzip")));
+        Assert.assertTrue(ResponseCompression
+                .isGzipAccepted(createRequest("deflate, GZIP;q=0.5")));
+        Assert.assertTrue(ResponseCompression
+                .isGzipAccepted(createRequest("*")));
+        Assert.assertFalse(ResponseCompression
+                .isGzipAccepted(createRequest("deflate")));
+        Assert.assertFalse(ResponseCompression
+                .isGzipAccepted(createRequest("gzip;q=0")));
+        Assert.assertFalse(ResponseCompression
+                .isGzipAccepted(createRequest("identity")));
+    }
+
+    private void commit(VaadinRequest request) throws IOException {
+        UIInitHandler.commitJsonResponse(request, createResponse(), JSON);
+    }
+
+    private VaadinRequest createRequest(String acceptEncoding) {
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.expect(request.getService()).andReturn(service).anyTimes();
+        EasyMock.expect(request.getHeader("Accept-Encoding"))
+                .andReturn(acceptEncoding).anyTimes();
+        EasyMock.replay(request);
+        return request;
+    }
+
+    private VaadinResponse createResponse() throws IOException {
+        VaadinResponse response = EasyMock
+                .createNiceMock(VaadinResponse.class);
+        EasyMock.expect(response.getOutputStream()).andReturn(body)
+                .anyTimes();
+        response.setHeader(EasyMock.eq("Content-Encoding"),
+                EasyMock.capture(contentEncoding));
+        EasyMock.replay(response);
+        return response;
+    }
+
+    private static String gunzip(byte[] data) throws IOException {
+        Reader reader = new InputStreamReader(new GZIPInputStream(
+                new ByteArrayInputStream(data)), "UTF-8");
+        StringWriter writer = new StringWriter();
+        char[] buffer = new char[1024];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            writer.write(buffer, 0, read);
+        }
+        return writer.toString();
+    }
+}
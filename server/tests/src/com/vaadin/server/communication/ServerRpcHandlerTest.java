@@ -0,0 +1,238 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server.communication;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.easymock.EasyMock;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.LegacyCommunicationManager;
+import com.vaadin.server.LegacyCommunicationManager.InvalidUIDLSecurityKeyException;
+import com.vaadin.server.MockVaadinSession;
+import com.vaadin.server.RequestMetrics;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.communication.ServerRpc;
+import com.vaadin.tests.util.MockDeploymentConfiguration;
+import com.vaadin.ui.AbstractComponent;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
+
+public class ServerRpcHandlerTest {
+
+    public interface TestRpc extends ServerRpc {
+        public void call(String text, List<Integer> numbers);
+    }
+
+    public static class RpcComponent extends AbstractComponent {
+        private final List<String> calls = new ArrayList<String>();
+
+        public RpcComponent() {
+            registerRpc(new TestRpc() {
+                @Override
+                public void call(String text, List<Integer> numbers) {
+                    calls.add(text + numbers);
+                }
+            });
+        }
+    }
+
+    private VaadinSession session;
+    private UI ui;
+    private TextField textField;
+    private RpcComponent component;
+
+    @Before
+    public void setUp() {
+        VaadinService service = EasyMock.createNiceMock(VaadinService.class);
+        EasyMock.expect(service.getDeploymentConfiguration())
+                .andReturn(new MockDeploymentConfiguration()).anyTimes();
+        EasyMock.expect(service.getRequestMetrics())
+                .andReturn(new RequestMetrics(0)).anyTimes();
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.replay(service, request);
+
+        session = new MockVaadinSession(service);
+        ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        ui.doInit(request, 0, "");
+
+        session.lock();
+        session.setCommunicationManager(new LegacyCommunicationManager(session));
+        ui.setSession(session);
+        session.addUI(ui);
+
+        textField = new TextField();
+        component = new RpcComponent();
+        ui.setContent(new CssLayout(textField, component));
+    }
+
+    @After
+    public void tearDown() {
+        session.unlock();
+    }
+
+    @Test
+    public void serverRpcInvoked() throws Exception {
+        JSONArray invocations = new JSONArray();
+        invocations.put(rpcCall("first", 1, 2));
+        invocations.put(rpcCall("second", 3));
+
+        handle(createMessage(session.getCsrfToken(), invocations));
+
+        Assert.assertEquals("[first[1, 2], second[3]]",
+                component.calls.toString());
+    }
+
+    @Test
+    public void legacyVariableChangeApplied() throws Exception {
+        JSONArray invocations = new JSONArray();
+        invocations.put(new JSONArray("[\"" + textField.getConnectorId()
+                + "\",\"v\",\"v\",[\"text\",[\"s\",\"Hello \\\"world\\\"\"]]]"));
+
+        handle(createMessage(session.getCsrfToken(), invocations));
+
+        Assert.assertEquals("Hello \"world\"", textField.getValue());
+    }
+
+    @Test
+    public void largeValueSpanningBuffers() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 100000) {
+            text.append("[{\\\"}]ä ");
+        }
+        JSONArray invocations = new JSONArray();
+        invocations.put(rpcCall(text.toString()));
+
+        handle(createMessage(session.getCsrfToken(), invocations));
+
+        Assert.assertEquals(text.toString() + "[]", component.calls.get(0));
+    }
+
+    @Test
+    public void syncIdAfterInvocations() throws Exception {
+        String message = "{\"rpc\":[" + rpcCall("call") + "],\"csrfToken\":\""
+                + session.getCsrfToken() + "\",\"syncId\":0}";
+
+        handle(message);
+
+        Assert.assertEquals("[call[]]", component.calls.toString());
+    }
+
+    @Test
+    public void invocationsEncodedAsString() throws Exception {
+        JSONArray invocations = new JSONArray();
+        invocations.put(rpcCall("call"));
+        JSONObject message = new JSONObject(createMessage(
+                session.getCsrfToken(), invocations));
+        message.put("rpc", invocations.toString());
+
+        handle(message.toString());
+
+        Assert.assertEquals("[call[]]", component.calls.toString());
+    }
+
+    @Test
+    public void emptyMessageIgnored() throws Exception {
+        handle("  ");
+        Assert.assertTrue(component.calls.isEmpty());
+    }
+
+    @Test
+    public void invalidCsrfTokenRejected() throws Exception {
+        JSONArray invocations = new JSONArray();
+        invocations.put(rpcCall("call"));
+        try {
+            handle(createMessage("invalid", invocations));
+            Assert.fail("Invalid CSRF token should be rejected");
+        } catch (InvalidUIDLSecurityKeyException e) {
+            // expected
+        }
+        Assert.assertTrue(component.calls.isEmpty());
+    }
+
+    @Test
+    public void emptyInvocationsFollowedByOtherValues() throws Exception {
+        // Sent by ApplicationConnection.repaintAll
+        handle("{\"csrfToken\":\"" + session.getCsrfToken()
+                + "\",\"rpc\":[],\"syncId\":0}");
+
+        Assert.assertTrue(component.calls.isEmpty());
+    }
+
+    @Test
+    public void csrfTokenCheckedBeforeDecodingInvocations() throws Exception {
+        String invalidCall = "[\"" + component.getConnectorId()
+                + "\",\"no.such.Rpc\",\"call\",[]]";
+        try {
+            handle("{\"csrfToken\":\"invalid\",\"rpc\":[" + invalidCall
+                    + "],\"syncId\":0}");
+            Assert.fail("Invalid CSRF token should be rejected");
+        } catch (InvalidUIDLSecurityKeyException e) {
+            // expected
+        }
+        try {
+            handle("{\"rpc\":[" + invalidCall
+                    + "],\"csrfToken\":\"invalid\",\"syncId\":0}");
+            Assert.fail("Invalid CSRF token should be rejected");
+        } catch (InvalidUIDLSecurityKeyException e) {
+            // expected
+        }
+    }
+
+    private JSONArray rpcCall(String text, int... numbers) throws Exception {
+        JSONArray list = new JSONArray();
+        for (int number : numbers) {
+            list.put(number);
+        }
+        JSONArray parameters = new JSONArray();
+        parameters.put(text);
+        parameters.put(list);
+
+        JSONArray call = new JSONArray();
+        call.put(component.getConnectorId());
+        call.put(TestRpc.class.getName());
+        call.put("call");
+        call.put(parameters);
+        return call;
+    }
+
+    private String createMessage(String csrfToken, JSONArray invocations)
+            throws Exception {
+        JSONObject message = new JSONObject();
+        message.put("csrfToken", csrfToken);
+        message.put("rpc", invocations);
+        message.put("syncId", 0);
+        return message.toString();
+    }
+
+    private void handle(String message) throws Exception {
+        new ServerRpcHandler().handleRpc(ui, new StringReader(message), null);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.server.communication;
+
+import java.io.StringWriter;
+
+import org.easymock.EasyMock;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.LegacyCommunicationManager;
+import com.vaadin.server.MockVaadinSession;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.UI;
+
+public class SharedStateWriterTest {
+
+    private VaadinSession session;
+    private UI ui;
+
+    @Before
+    public void setUp() {
+        VaadinService service = EasyMock.createNiceMock(VaadinService.class);
+        VaadinRequest request = EasyMock.createNiceMock(VaadinRequest.class);
+        EasyMock.replay(service, request);
+
+        session = new MockVaadinSession(service);
+        ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        ui.doInit(request, 0, "");
+
+        session.lock();
+        session.setCommunicationManager(new LegacyCommunicationManager(session));
+        ui.setSession(session);
+        session.addUI(ui);
+    }
+
+    @After
+    public void tearDown() {
+        session.unlock();
+    }
+
+    @Test
+    public void writeStatesOfAllDirtyConnectors() throws Exception {
+        CssLayout layout = new CssLayout();
+        Button button = new Button("Click \"me\"");
+        Label label = new Label("Label");
+        layout.addComponent(button);
+        layout.addComponent(label);
+        ui.setContent(layout);
+
+        StringWriter writer = new StringWriter();
+        new SharedStateWriter().write(ui, writer);
+
+        JSONObject states = new JSONObject(writer.toString());
+        Assert.assertEquals("Click \"me\"",
+                states.getJSONObject(button.getConnectorId()).getString(
+                        "caption"));
+        Assert.assertTrue(states.has(label.getConnectorId()));
+        Assert.assertTrue(states.has(ui.getConnectorId()));
+    }
+
+    @Test
+    public void writeEmptyObjectWithoutChanges() throws Exception {
+        StringWriter writer = new StringWriter();
+        new SharedStateWriter().write(ui, writer);
+        ui.getConnectorTracker().markAllConnectorsClean();
+
+        writer = new StringWriter();
+        new SharedStateWriter().write(ui, writer);
+        Assert.assertEquals("{}", writer.toString());
+    }
+}
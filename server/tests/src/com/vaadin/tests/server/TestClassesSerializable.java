@@ -36,6 +36,7 @@ public class TestClassesSerializable extends TestCase {
             "com\\.vaadin\\.server\\.widgetsetutils\\..*", //
             "com\\.vaadin\\.server\\.themeutils\\..*", //
             "com\\.vaadin\\.tests\\..*", // exclude automated tests
+            "com\\.vaadin\\.benchmarks\\..*", //
             "com\\.vaadin\\.tools\\..*", //
             "com\\.vaadin\\.ui\\.themes\\..*", //
             // exact class level filtering
@@ -47,7 +48,23 @@ public class TestClassesSerializable extends TestCase {
             "com\\.vaadin\\.server\\.MockServletConfig", //
             "com\\.vaadin\\.server\\.MockServletContext", //
             "com\\.vaadin\\.server\\.Constants", //
+            "com\\.vaadin\\.server\\.RequestMetricsMXBean", //
+            "com\\.vaadin\\.server\\.AccessTaskSchedulerMXBean", //
+            "com\\.vaadin\\.server\\.SessionLockMetricsMXBean", //
+            "com\\.vaadin\\.server\\.UIReaperMXBean", //
+            "com\\.vaadin\\.server\\.UIPassivatorMXBean", //
+            "com\\.vaadin\\.server\\.StaticResourceCacheMXBean", //
+            "com\\.vaadin\\.server\\.ScssCacheMXBean", //
+            "com\\.vaadin\\.server\\.UIPassivator\\$PassivationOutputStream", //
+            "com\\.vaadin\\.server\\.UIPassivator\\$ActivationInputStream", //
+            "com\\.vaadin\\.server\\.CompactObjectOutputStream", //
+            "com\\.vaadin\\.server\\.CompactObjectInputStream", //
+            "com\\.vaadin\\.server\\.SessionReplicator\\$ReplicationOutputStream", //
+            "com\\.vaadin\\.server\\.SessionReplicator\\$ReplicationInputStream", //
+            "com\\.vaadin\\.server\\.SessionReplicator\\$ScanOutputStream", //
             "com\\.vaadin\\.server\\.communication\\.FileUploadHandler\\$SimpleMultiPartInputStream", //
+            "com\\.vaadin\\.server\\.communication\\.ResponseCompression\\$GzipStream", //
+            "com\\.vaadin\\.server\\.communication\\.StreamingJsonReader", //
             "com\\.vaadin\\.server\\.communication\\.PushRequestHandler.*",
             "com\\.vaadin\\.server\\.communication\\.PushHandler.*", // PushHandler
             "com\\.vaadin\\.server\\.communication\\.DateSerializer", //
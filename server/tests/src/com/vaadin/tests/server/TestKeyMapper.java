@@ -1,5 +1,9 @@
 package com.vaadin.tests.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.lang.reflect.Field;
 import java.util.HashMap;
 
@@ -82,6 +86,25 @@ public class TestKeyMapper extends TestCase {
 
     }
 
+    @SuppressWarnings("unchecked")
+    public void testSerialization() throws Exception {
+        KeyMapper<String> mapper = new KeyMapper<String>();
+        String key1 = mapper.key("o1");
+        String key2 = mapper.key("o2");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(mapper);
+        out.close();
+        KeyMapper<String> copy = (KeyMapper<String>) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertSize(copy, 2);
+        assertEquals("o1", copy.get(key1));
+        assertEquals("o2", copy.get(key2));
+        assertEquals(key2, copy.key("o2"));
+    }
+
     private void assertSize(KeyMapper<?> mapper, int i) {
         try {
             Field f1 = KeyMapper.class.getDeclaredField("objectKeyMap");
@@ -3,7 +3,9 @@ package com.vaadin.tests.server;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -102,6 +104,69 @@ public class TestSimpleMultiPartInputStream extends TestCase {
                 "abcabd", "xyz123abc");
     }
 
+    public void testBulkReadWithSmallBuffer() throws Exception {
+        String boundary = "abcabd";
+        // Content full of partial boundary matches
+        byte[] content = createContent(100000, "\r\n--abcab");
+        byte[] input = concat(content,
+                (getFullBoundary(boundary) + "\r\n").getBytes());
+
+        // Underlying stream that returns a few bytes at a time
+        InputStream trickle = new ByteArrayInputStream(input) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        SimpleMultiPartInputStream smpis = new SimpleMultiPartInputStream(
+                trickle, boundary, 16);
+
+        ByteArrayOutputStream resultStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int read;
+        while ((read = smpis.read(buffer)) != -1) {
+            resultStream.write(buffer, 0, read);
+        }
+        assertTrue(Arrays.equals(content, resultStream.toByteArray()));
+        assertEquals(-1, smpis.read());
+    }
+
+    public void testMissingBoundaryFailsWithLargeBuffer() throws Exception {
+        SimpleMultiPartInputStream smpis = new SimpleMultiPartInputStream(
+                new ByteArrayInputStream(createContent(1000, "\r\n--ab")),
+                "abc", 64 * 1024);
+        try {
+            while (smpis.read(new byte[100]) != -1) {
+                // Read until failure
+            }
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    private static byte[] createContent(int length, String noise) {
+        Random random = new Random(length);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        while (content.size() < length) {
+            if (random.nextInt(10) == 0) {
+                byte[] prefix = noise.substring(0,
+                        1 + random.nextInt(noise.length())).getBytes();
+                content.write(prefix, 0, prefix.length);
+            } else {
+                // Leave out the bytes that would complete the boundaries
+                int b = random.nextInt(256);
+                content.write(b == 'c' || b == 'd' ? 'e' : b);
+            }
+        }
+        return content.toByteArray();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
     /*
      * TODO fix these tests, they don't do what their method name says.
      */
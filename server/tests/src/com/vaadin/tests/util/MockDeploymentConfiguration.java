@@ -16,6 +16,9 @@ public class MockDeploymentConfiguration implements DeploymentConfiguration {
     private int heartbeatInterval = 300;
     private boolean closeIdleSessions = false;
     private PushMode pushMode = PushMode.DISABLED;
+    private int compressionThreshold = -1;
+    private int compressionLevel = 6;
+    private boolean uiLocking = false;
     private Properties initParameters = new Properties();
     private Map<String, String> applicationOrSystemProperty = new HashMap<String, String>();
     private LegacyProperyToStringMode legacyPropertyToStringMode = LegacyProperyToStringMode.DISABLED;
@@ -74,6 +77,33 @@ public class MockDeploymentConfiguration implements DeploymentConfiguration {
         this.pushMode = pushMode;
     }
 
+    @Override
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    @Override
+    public boolean isUILockingEnabled() {
+        return uiLocking;
+    }
+
+    public void setUILockingEnabled(boolean uiLocking) {
+        this.uiLocking = uiLocking;
+    }
+
     @Override
     public Properties getInitParameters() {
         return initParameters;
@@ -26,6 +26,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
 import com.vaadin.server.VaadinService;
 import com.vaadin.server.VaadinSession;
 import com.vaadin.ui.UI;
@@ -137,13 +138,12 @@ public class TestCurrentInstance {
         Assert.assertNull(getInternalCurrentInstanceVariable().get());
     }
 
-    private InheritableThreadLocal<Map<Class<?>, CurrentInstance>> getInternalCurrentInstanceVariable()
+    private InheritableThreadLocal<?> getInternalCurrentInstanceVariable()
             throws SecurityException, NoSuchFieldException,
             IllegalAccessException {
         Field f = CurrentInstance.class.getDeclaredField("instances");
         f.setAccessible(true);
-        return (InheritableThreadLocal<Map<Class<?>, CurrentInstance>>) f
-                .get(null);
+        return (InheritableThreadLocal<?>) f.get(null);
     }
 
     public void testInheritedClearedAfterRemove() {
@@ -191,4 +191,82 @@ public class TestCurrentInstance {
         assertNull(CurrentInstance.get(VaadinSession.class));
         assertNull(CurrentInstance.get(VaadinService.class));
     }
+
+    @Test
+    public void testRestoringSavedSnapshotWorks() throws Exception {
+        CurrentInstance.clearAll();
+        UI outer = new UIStoredInCurrentInstance();
+        UI inner = new UIStoredInCurrentInstance();
+        VaadinRequest request = EasyMock.createMock(VaadinRequest.class);
+        CurrentInstance.set(VaadinRequest.class, request);
+
+        CurrentInstance.Snapshot outerSnapshot = CurrentInstance
+                .saveAndSetCurrent(outer);
+        Assert.assertSame(outer, UI.getCurrent());
+        CurrentInstance.Snapshot innerSnapshot = CurrentInstance
+                .saveAndSetCurrent(inner);
+        Assert.assertSame(inner, UI.getCurrent());
+
+        CurrentInstance.restore(innerSnapshot);
+        Assert.assertSame(outer, UI.getCurrent());
+        CurrentInstance.restore(outerSnapshot);
+        assertNull(UI.getCurrent());
+        // Only the saved instances are restored
+        Assert.assertSame(request, CurrentInstance.get(VaadinRequest.class));
+
+        // Restored snapshots are reused
+        Assert.assertSame(outerSnapshot,
+                CurrentInstance.saveAndSetCurrent(inner));
+        CurrentInstance.restore(outerSnapshot);
+        assertNull(UI.getCurrent());
+
+        CurrentInstance.set(VaadinRequest.class, null);
+        assertCleared();
+    }
+
+    @Test
+    public void testSnapshotReusedAfterRestoringEmptyInstances()
+            throws Exception {
+        CurrentInstance.clearAll();
+        UI ui = new UIStoredInCurrentInstance();
+
+        CurrentInstance.Snapshot snapshot = CurrentInstance
+                .saveAndSetCurrent(ui);
+        CurrentInstance.restore(snapshot);
+        assertNull(UI.getCurrent());
+
+        Assert.assertSame(snapshot, CurrentInstance.saveAndSetCurrent(ui));
+        CurrentInstance.restore(snapshot);
+
+        CurrentInstance.clearAll();
+        assertCleared();
+    }
+
+    @Test
+    public void testTakenSnapshotReplacesAllInstances() throws Exception {
+        CurrentInstance.clearAll();
+        UI ui = new UIStoredInCurrentInstance();
+        UI.setCurrent(ui);
+        CurrentInstance.set(VaadinRequest.class,
+                EasyMock.createMock(VaadinRequest.class));
+        CurrentInstance.setInheritable(TestCurrentInstance.class, this);
+
+        CurrentInstance.Snapshot snapshot = CurrentInstance.takeSnapshot(true);
+        Map<Class<?>, CurrentInstance> map = snapshot.toMap();
+        Assert.assertEquals(2, map.size());
+        Assert.assertTrue(map.containsKey(UI.class));
+        Assert.assertTrue(map.containsKey(TestCurrentInstance.class));
+
+        CurrentInstance.clearAll();
+        CurrentInstance.set(VaadinResponse.class,
+                EasyMock.createMock(VaadinResponse.class));
+        CurrentInstance.restore(snapshot);
+        Assert.assertSame(ui, UI.getCurrent());
+        Assert.assertSame(this, CurrentInstance.get(TestCurrentInstance.class));
+        assertNull(CurrentInstance.get(VaadinRequest.class));
+        assertNull(CurrentInstance.get(VaadinResponse.class));
+
+        CurrentInstance.clearAll();
+        assertCleared();
+    }
 }
@@ -32,6 +32,43 @@ public class JsonConstants implements Serializable {
     public static final String VTYPE_SET = "q";
     public static final String VTYPE_NULL = "n";
 
+    /**
+     * Key of a list change in shared state. Instead of the full list, the
+     * server may send an object with this key mapped to an array
+     * <code>[index, removeCount, [inserted values]]</code> describing how the
+     * previously sent list should be modified.
+     * 
+     * @since 7.2
+     */
+    public static final String COLLECTION_DIFF_SPLICE = "splice";
+
+    /**
+     * Key of the values to add to a set in a set change in shared state.
+     * Instead of the full set, the server may send an object with the added
+     * and {@link #COLLECTION_DIFF_REMOVE removed} values.
+     * 
+     * @since 7.2
+     */
+    public static final String COLLECTION_DIFF_ADD = "add";
+
+    /**
+     * Key of the values to remove from a set in a set change in shared state.
+     * 
+     * @see #COLLECTION_DIFF_ADD
+     * @since 7.2
+     */
+    public static final String COLLECTION_DIFF_REMOVE = "remove";
+
+    /**
+     * First element of a map change in shared state. Instead of the full map,
+     * the server may send an array
+     * <code>["diff", {key: new value}, [removed keys]]</code> for maps with
+     * String keys.
+     * 
+     * @since 7.2
+     */
+    public static final String MAP_DIFF = "diff";
+
     public static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
 
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2000-2013 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.vaadin.shared.ui.upload;
+
+import java.io.Serializable;
+
+/**
+ * Constants of the resumable chunked upload protocol. A chunked upload sends
+ * the file in consecutive requests to the upload URL of the stream variable,
+ * each with the raw content of one chunk as the body. The server appends the
+ * chunk and acknowledges the number of bytes received so far in the
+ * {@link #UPLOAD_OFFSET_HEADER} response header. A chunk that does not start
+ * at the acknowledged offset is rejected with 409 Conflict and the offset to
+ * resume from, and a busy server responds with 503 Service Unavailable.
+ * <p>
+ * All chunks of an upload carry the same {@link #UPLOAD_ID_HEADER}. A chunk
+ * with a new id starts a new upload at offset 0, discarding any upload that
+ * was left partially received. A chunk of an upload the server does not know,
+ * e.g. because it was discarded, is rejected with 409 Conflict and offset 0.
+ * 
+ * @author Vaadin Ltd
+ * @since 7.2
+ */
+public class UploadConstants implements Serializable {
+
+    /**
+     * Request header with the offset of the chunk in the file, and response
+     * header with the number of bytes received so far.
+     */
+    public static final String UPLOAD_OFFSET_HEADER = "Upload-Offset";
+
+    /**
+     * Request header with an id chosen by the client that identifies the
+     * upload the chunk belongs to.
+     */
+    public static final String UPLOAD_ID_HEADER = "Upload-Id";
+
+    /**
+     * Request header with the total length of the file in bytes.
+     */
+    public static final String UPLOAD_LENGTH_HEADER = "Upload-Length";
+
+    /**
+     * Optional request header with the URL encoded name of the file.
+     */
+    public static final String UPLOAD_FILENAME_HEADER = "Upload-Filename";
+}